@@ -0,0 +1,68 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting the request URI into request type and service, done by the dispatcher before every
+ * request is handed to a service. Lives in this package because the parsing methods are package
+ * private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GeoWebCacheDispatcherBenchmark {
+
+    private static final String[] URIS = {
+            "/geowebcache/service/wms",
+            "/geowebcache/service/tms/1.0.0/topp:states@EPSG:4326@png/5/12/20.png",
+            "/geowebcache/service/gmaps",
+            "/geowebcache/service/wmts",
+            "/geowebcache/demo/topp:states" };
+
+    private int next;
+
+    @Benchmark
+    public String[] parseRequest() throws GeoWebCacheException {
+        next = (next + 1) % URIS.length;
+        String normalized = GeoWebCacheDispatcher.normalizeURI(URIS[next], "/geowebcache", null);
+        return GeoWebCacheDispatcher.parseRequest(normalized);
+    }
+
+    /**
+     * As embedded in GeoServer, where the dispatcher has a servlet prefix to remove as well
+     */
+    @Benchmark
+    public String[] parseRequestWithServletPrefix() throws GeoWebCacheException {
+        next = (next + 1) % URIS.length;
+        String uri = "/geoserver/gwc" + URIS[next].substring("/geowebcache".length());
+        String normalized = GeoWebCacheDispatcher.normalizeURI(uri, "/geoserver", "/gwc");
+        return GeoWebCacheDispatcher.parseRequest(normalized);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Input for the benchmarks. Images are drawn in memory so that the benchmarks run offline, and a
+ * fixed seed makes every run draw the same picture.
+ */
+public class BenchmarkData {
+
+    private static final Color[] AREA_COLORS = { new Color(170, 210, 240),
+            new Color(200, 230, 180), new Color(230, 200, 200), new Color(220, 220, 220) };
+
+    private static final Color[] ROAD_COLORS = { Color.WHITE, new Color(250, 200, 100),
+            new Color(120, 120, 120) };
+
+    private BenchmarkData() {
+        // static helpers only
+    }
+
+    /**
+     * Draws areas and roads in a few colors over a plain background, which compresses roughly like
+     * a rendered map rather than like noise or a flat color
+     *
+     * @param imageType
+     *            one of the {@link BufferedImage} types, TYPE_INT_ARGB for PNG and TYPE_INT_RGB for
+     *            JPEG
+     */
+    public static BufferedImage createMap(int width, int height, int imageType, long seed) {
+        BufferedImage img = new BufferedImage(width, height, imageType);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(new Color(240, 235, 210));
+            g.fillRect(0, 0, width, height);
+
+            Random random = new Random(seed);
+            int features = (width * height) / 16384;
+            for (int i = 0; i < features; i++) {
+                g.setColor(AREA_COLORS[random.nextInt(AREA_COLORS.length)]);
+                int x = random.nextInt(width);
+                int y = random.nextInt(height);
+                g.fillOval(x, y, 8 + random.nextInt(48), 8 + random.nextInt(48));
+            }
+
+            g.setStroke(new BasicStroke(3f));
+            for (int i = 0; i < features; i++) {
+                g.setColor(ROAD_COLORS[random.nextInt(ROAD_COLORS.length)]);
+                g.drawLine(random.nextInt(width), random.nextInt(height), random.nextInt(width),
+                        random.nextInt(height));
+            }
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+
+    /**
+     * @return the image encoded by ImageIO in the given format, "png" or "jpeg"
+     */
+    public static byte[] encode(BufferedImage img, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(img, format, out)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The directory benchmarks that write files work in, a tmpfs mount by default so that they
+     * measure the code rather than the disk. Override with {@code -Dgwc.benchmark.dir=...}
+     */
+    public static File benchmarkDir(String name) {
+        String base = System.getProperty("gwc.benchmark.dir");
+        if (base == null) {
+            File shm = new File("/dev/shm");
+            base = shm.isDirectory() && shm.canWrite() ? shm.getPath() : System
+                    .getProperty("java.io.tmpdir");
+        }
+        return new File(base, name);
+    }
+
+    public static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteRecursive(children[i]);
+            }
+        }
+        file.delete();
+    }
+}
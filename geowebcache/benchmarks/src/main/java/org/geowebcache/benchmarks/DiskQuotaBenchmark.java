@@ -0,0 +1,76 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.diskquota.DiskQuotaConfig;
+import org.geowebcache.diskquota.LayerQuota;
+import org.geowebcache.diskquota.Quota;
+import org.geowebcache.diskquota.StorageUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the disk quota monitor does for every tile stored, with 32 seeding threads writing to the
+ * same layer: find the layer quota and account for the tile. {@code synchronizedQuota} is the
+ * way it used to be done, adding to the {@link Quota} right away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(32)
+@Fork(1)
+public class DiskQuotaBenchmark {
+
+    private static final String LAYER = "topp:states";
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private DiskQuotaConfig config;
+
+    @Setup
+    public void setUp() {
+        LayerQuota layerQuota = new LayerQuota(LAYER, "LFU");
+        layerQuota.getQuota().setValue(100);
+        layerQuota.getQuota().setUnits(StorageUnit.GiB);
+        config = new DiskQuotaConfig();
+        config.setLayerQuotas(Collections.singletonList(layerQuota));
+    }
+
+    @Benchmark
+    public void synchronizedQuota() {
+        LayerQuota layerQuota = config.getLayerQuota(LAYER);
+        Quota usedQuota = layerQuota.getUsedQuota();
+        usedQuota.add(BLOCK_SIZE, StorageUnit.B);
+    }
+
+    @Benchmark
+    public void counter() {
+        config.getLayerQuota(LAYER).addUsedBytes(BLOCK_SIZE);
+    }
+}
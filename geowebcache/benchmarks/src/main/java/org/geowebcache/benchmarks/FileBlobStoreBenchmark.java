@@ -0,0 +1,105 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and writing tiles through the FileBlobStore. Runs on tmpfs by default, see
+ * {@link BenchmarkData#benchmarkDir(String)}, so that the numbers show the overhead of the store
+ * rather than the speed of the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileBlobStoreBenchmark {
+
+    private static final int TILES = 1024;
+
+    @Param( { "5120", "20480" })
+    public int tileSize;
+
+    private File root;
+
+    private FileBlobStore store;
+
+    private byte[] blob;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        root = BenchmarkData.benchmarkDir("gwcFileBlobStoreBenchmark");
+        BenchmarkData.deleteRecursive(root);
+        root.mkdirs();
+        store = new FileBlobStore(root.getAbsolutePath());
+
+        blob = new byte[tileSize];
+        new Random(42).nextBytes(blob);
+        for (int i = 0; i < TILES; i++) {
+            store.put(tile(i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.deleteRecursive(root);
+    }
+
+    private TileObject tile(int i) {
+        long[] xyz = { i % 32, i / 32, 12 };
+        return TileObject.createCompleteTileObject("topp:states", xyz, "EPSG:4326", "image/png",
+                null, blob);
+    }
+
+    private TileObject query(int i) {
+        long[] xyz = { i % 32, i / 32, 12 };
+        return TileObject.createQueryTileObject("topp:states", xyz, "EPSG:4326", "image/png",
+                null);
+    }
+
+    @Benchmark
+    public byte[] get() throws StorageException {
+        next = (next + 1) % TILES;
+        return store.get(query(next));
+    }
+
+    @Benchmark
+    public void put() throws StorageException {
+        next = (next + 1) % TILES;
+        store.put(tile(next));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of mapping a tile to its directory and file name, done for every tile read or written by
+ * the FileBlobStore
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FilePathGeneratorBenchmark {
+
+    private static final int INDEXES = 1024;
+
+    private long[][] tileIndexes;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        tileIndexes = new long[INDEXES][];
+        for (int i = 0; i < INDEXES; i++) {
+            int z = 10 + random.nextInt(10);
+            long side = 1L << z;
+            tileIndexes[i] = new long[] { (long) (random.nextDouble() * side),
+                    (long) (random.nextDouble() * side), z };
+        }
+    }
+
+    private long[] nextIndex() {
+        next = (next + 1) % INDEXES;
+        return tileIndexes[next];
+    }
+
+    @Benchmark
+    public String[] tilePath() {
+        return FilePathGenerator.tilePath("/var/cache/gwc", "topp:states", nextIndex(),
+                "EPSG:4326", ImageMime.png, -1L);
+    }
+
+    @Benchmark
+    public String[] tilePathWithParameters() {
+        return FilePathGenerator.tilePath("/var/cache/gwc", "topp:states", nextIndex(),
+                "EPSG:4326", ImageMime.png, 0x1234abcdL);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridMismatchException;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolving a WMS request's bounding box to a tile index, and looking up the coverage of a zoom
+ * level, both done on every tile request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GridSubsetBenchmark {
+
+    private static final int TILES = 1024;
+
+    private GridSubset gridSubset;
+
+    private BoundingBox[] tileBounds;
+
+    private int[] levels;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+
+        Random random = new Random(42);
+        tileBounds = new BoundingBox[TILES];
+        levels = new int[TILES];
+        for (int i = 0; i < TILES; i++) {
+            int z = random.nextInt(18);
+            long[] coverage = gridSubset.getCoverage(z);
+            long x = coverage[0] + (long) (random.nextDouble() * (coverage[2] - coverage[0] + 1));
+            long y = coverage[1] + (long) (random.nextDouble() * (coverage[3] - coverage[1] + 1));
+            tileBounds[i] = gridSubset.boundsFromIndex(new long[] { x, y, z });
+            levels[i] = z;
+        }
+    }
+
+    @Benchmark
+    public long[] closestIndex() throws GridMismatchException {
+        next = (next + 1) % TILES;
+        return gridSubset.closestIndex(tileBounds[next]);
+    }
+
+    @Benchmark
+    public long[] getCoverage() {
+        next = (next + 1) % TILES;
+        return gridSubset.getCoverage(levels[next]);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.diskquota.ConfigLoader;
+import org.geowebcache.diskquota.paging.FilePageStore;
+import org.geowebcache.diskquota.paging.MappedPageStore;
+import org.geowebcache.diskquota.paging.PageStore;
+import org.geowebcache.diskquota.paging.TilePage;
+import org.geowebcache.util.ApplicationContextProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and saving the disk quota pages of a layer with a million pages, with the serialized
+ * {@link FilePageStore} and with the {@link MappedPageStore}. The save changes one page in a
+ * thousand, as between two saves of a busy layer. Run with {@code -prof gc} to compare the memory
+ * each load allocates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class PageStoreBenchmark {
+
+    private static final int PAGES = 1000000;
+
+    private static final String LAYER = "topp_states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    @Param( { "file", "mapped" })
+    public String store;
+
+    private File root;
+
+    private PageStore pageStore;
+
+    private List<TilePage> pages;
+
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = BenchmarkData.benchmarkDir("gwcPageStoreBenchmark");
+        BenchmarkData.deleteRecursive(root);
+        root.mkdirs();
+
+        if ("file".equals(store)) {
+            pageStore = new FilePageStore(new DirectoryConfigLoader(root));
+        } else {
+            pageStore = new MappedPageStore(root);
+        }
+
+        pages = new ArrayList<TilePage>(PAGES);
+        for (int i = 0; i < PAGES; i++) {
+            pages.add(new TilePage(i % 1000, i / 1000, 15, i % 5000, i % 256, 20000000));
+        }
+        pageStore.savePages(LAYER, GRIDSET, pages);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (pageStore instanceof MappedPageStore) {
+            ((MappedPageStore) pageStore).destroy();
+        }
+        BenchmarkData.deleteRecursive(root);
+    }
+
+    @Benchmark
+    public List<TilePage> load() throws IOException {
+        return pageStore.getPages(LAYER, GRIDSET);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        round++;
+        for (int i = round % 1000; i < PAGES; i += 1000) {
+            pages.get(i).markHit();
+        }
+        pageStore.savePages(LAYER, GRIDSET, pages);
+    }
+
+    /**
+     * Keeps the storage files in a directory rather than in the cache of a web application
+     */
+    private static class DirectoryConfigLoader extends ConfigLoader {
+        private final File directory;
+
+        DirectoryConfigLoader(File directory) throws IOException {
+            super(null, new ApplicationContextProvider(), null);
+            this.directory = directory;
+        }
+
+        @Override
+        public File getRootCacheDir() {
+            return directory;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.stats.RuntimeStats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the dispatcher does for every request served, with 64 threads serving tiles: log the
+ * request to the runtime statistics. {@code synchronizedStats} is the way it used to be done, all
+ * requests going through the same lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(64)
+@Fork(1)
+public class RuntimeStatsBenchmark {
+
+    private static final int TILE_SIZE = 20000;
+
+    private RuntimeStats stats;
+
+    private SynchronizedStats synchronizedStats;
+
+    @Setup
+    public void setUp() {
+        stats = new RuntimeStats(3, Arrays.asList(3, 15, 60), Arrays.asList("3 seconds",
+                "15 seconds", "60 seconds"));
+        stats.start();
+        synchronizedStats = new SynchronizedStats();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stats.destroy();
+    }
+
+    @Benchmark
+    public void synchronizedStats() {
+        synchronizedStats.log(TILE_SIZE, CacheResult.HIT);
+    }
+
+    @Benchmark
+    public void stripedStats() {
+        stats.log(TILE_SIZE, CacheResult.HIT);
+    }
+
+    /**
+     * The counters {@link RuntimeStats} used to keep
+     */
+    private static class SynchronizedStats {
+
+        int curBytes;
+
+        int curRequests;
+
+        long totalHits;
+
+        long totalMisses;
+
+        long totalWMS;
+
+        synchronized void log(int size, CacheResult cacheResult) {
+            curBytes += size;
+            curRequests += 1;
+
+            if (cacheResult == CacheResult.HIT) {
+                totalHits++;
+            } else if (cacheResult == CacheResult.MISS) {
+                totalMisses++;
+            } else if (cacheResult == CacheResult.WMS) {
+                totalWMS++;
+            }
+        }
+    }
+}
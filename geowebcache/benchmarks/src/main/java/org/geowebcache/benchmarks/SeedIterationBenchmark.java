@@ -0,0 +1,115 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.PartitionedTileRangeIterator;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Seeding a range with a layer that does no work, so that only handing out the meta tile
+ * locations is measured. Each invocation walks the whole range with the given number of threads,
+ * sharing one {@link TileRangeIterator} or one {@link PartitionedTileRangeIterator}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SeedIterationBenchmark {
+
+    private static final int[] META = { 4, 4 };
+
+    @Param( { "1", "2", "4", "8", "16", "32" })
+    public int threads;
+
+    @Param( { "shared", "partitioned" })
+    public String iterator;
+
+    /** Simulated work per meta tile, in JMH tokens, 0 for a no-op layer */
+    @Param( { "0", "100" })
+    public int work;
+
+    private TileRange tr;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        int zoomStop = 11;
+        long[][] coverages = gridSubset.expandToMetaFactors(gridSubset.getCoverages(), META);
+        tr = new TileRange("topp:states", gridSubset.getName(), 0, zoomStop, coverages,
+                ImageMime.png, null);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long seed() throws Exception {
+        final TileRangeIterator trIter;
+        if ("partitioned".equals(iterator)) {
+            trIter = new PartitionedTileRangeIterator(tr, META, threads);
+        } else {
+            trIter = new TileRangeIterator(tr, META);
+        }
+
+        Future<?>[] futures = new Future<?>[threads];
+        for (int i = 0; i < threads; i++) {
+            futures[i] = executor.submit(new Callable<Object>() {
+                public Object call() {
+                    while (trIter.nextMetaGridLocation() != null) {
+                        // stands in for the layer rendering the meta tile
+                        Blackhole.consumeCPU(work);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (int i = 0; i < threads; i++) {
+            futures[i].get();
+        }
+        return trIter.getCountRendered();
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.file.FilePathFilter;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Truncating a 64x64 tile area out of a synthetic zoom level of five million empty tiles
+ * (2240x2240), walking the cache with a {@link FilePathFilter} that prunes the directories
+ * outside the area, with the filter as it was before, which listed every directory and split
+ * every file name, and through {@link FileBlobStore#delete(TileRange)}.
+ * <p>
+ * The zoom level takes a few minutes to create and is kept between runs, delete
+ * {@code gwcSmallTruncateBenchmark} in the benchmark directory when done. On tmpfs it takes a
+ * few GB of memory, use {@code -Dgwc.benchmark.dir=...} to put it on a disk instead.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SmallTruncateBenchmark {
+
+    private static final int ZOOM_LEVEL = 11;
+
+    private static final int SIDE = 2240;
+
+    private static final int AREA_MIN = 1000;
+
+    private static final int AREA_MAX = 1063;
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    @Param( { "fullScan", "pruned", "blobStore" })
+    public String walk;
+
+    private File root;
+
+    private File layerDir;
+
+    private FileBlobStore store;
+
+    private TileRange tileRange;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, StorageException {
+        root = BenchmarkData.benchmarkDir("gwcSmallTruncateBenchmark");
+        layerDir = new File(root, FilePathGenerator.filteredLayerName(LAYER));
+        File complete = new File(root, "complete");
+        if (!complete.exists()) {
+            BenchmarkData.deleteRecursive(root);
+            createTiles(0, 0, SIDE - 1, SIDE - 1);
+            complete.createNewFile();
+        }
+        store = new FileBlobStore(root.getAbsolutePath());
+
+        long[][] rangeBounds = new long[ZOOM_LEVEL + 1][];
+        rangeBounds[ZOOM_LEVEL] = new long[] { AREA_MIN, AREA_MIN, AREA_MAX, AREA_MAX };
+        tileRange = new TileRange(LAYER, GRIDSET, ZOOM_LEVEL, ZOOM_LEVEL, rangeBounds,
+                ImageMime.png, null);
+    }
+
+    /**
+     * Puts back the tiles the last iteration deleted
+     */
+    @Setup(Level.Iteration)
+    public void restoreArea() throws IOException {
+        createTiles(AREA_MIN, AREA_MIN, AREA_MAX, AREA_MAX);
+    }
+
+    private void createTiles(long minx, long miny, long maxx, long maxy) throws IOException {
+        for (long x = minx; x <= maxx; x++) {
+            for (long y = miny; y <= maxy; y++) {
+                long[] xyz = { x, y, ZOOM_LEVEL };
+                String[] path = FilePathGenerator.tilePath(root.getPath(), LAYER, xyz, GRIDSET,
+                        ImageMime.png, -1L);
+                File dir = new File(path[0]);
+                dir.mkdirs();
+                new File(dir, path[1]).createNewFile();
+            }
+        }
+    }
+
+    @Benchmark
+    public long truncate() throws StorageException {
+        if ("blobStore".equals(walk)) {
+            store.delete(tileRange);
+            return 0;
+        }
+        FilenameFilter filter;
+        if ("pruned".equals(walk)) {
+            filter = new FilePathFilter(tileRange);
+        } else {
+            filter = new FullScanFilter(tileRange);
+        }
+        long deleted = 0;
+        File[] zoomDirs = layerDir.listFiles(filter);
+        for (int i = 0; zoomDirs != null && i < zoomDirs.length; i++) {
+            File[] intermediates = zoomDirs[i].listFiles(filter);
+            for (int j = 0; intermediates != null && j < intermediates.length; j++) {
+                File[] tiles = intermediates[j].listFiles(filter);
+                for (int k = 0; tiles != null && k < tiles.length; k++) {
+                    if (tiles[k].delete()) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * What FilePathFilter used to do: accept every intermediate directory, and split the names of
+     * all the tiles in them
+     */
+    private static class FullScanFilter implements FilenameFilter {
+        private final TileRange tr;
+
+        private final String gridSetPrefix;
+
+        FullScanFilter(TileRange tr) {
+            this.tr = tr;
+            this.gridSetPrefix = FilePathGenerator.filteredGridSetId(tr.gridSetId);
+        }
+
+        public boolean accept(File dir, String name) {
+            if (name.startsWith(gridSetPrefix)) {
+                int zoomLevel = FilePathGenerator.findZoomLevel(name);
+                return zoomLevel >= tr.zoomStart && zoomLevel <= tr.zoomStop;
+            } else if (name.contains(".")) {
+                String[] parts = name.split("\\.");
+                if (!parts[parts.length - 1].equalsIgnoreCase(tr.mimeType.getFileExtension())) {
+                    return false;
+                }
+                String[] coords = parts[0].split("_");
+                int zoomLevel = FilePathGenerator.findZoomLevel(dir.getParentFile().getName());
+                return tr.contains(Long.parseLong(coords[0]), Long.parseLong(coords[1]),
+                        zoomLevel);
+            }
+            return true;
+        }
+    }
+}
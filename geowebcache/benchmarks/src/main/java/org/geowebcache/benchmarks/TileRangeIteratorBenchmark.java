@@ -0,0 +1,84 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing out metatile locations to seeding threads. All threads of a seed task share one
+ * iterator, so the contended case is the one that matters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TileRangeIteratorBenchmark {
+
+    /** Deep enough that no iteration gets to the end of the range */
+    private static final int ZOOM_STOP = 20;
+
+    private GridSubset gridSubset;
+
+    private TileRangeIterator iterator;
+
+    @Setup
+    public void setUpGrid() {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIterator() {
+        int[] metaTilingFactors = { 4, 4 };
+        long[][] coverages = gridSubset.expandToMetaFactors(gridSubset.getCoverages(),
+                metaTilingFactors);
+        TileRange tr = new TileRange("topp:states", gridSubset.getName(), 0, ZOOM_STOP,
+                coverages, ImageMime.png, null);
+        iterator = new TileRangeIterator(tr, metaTilingFactors);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long[] nextMetaGridLocation() {
+        return iterator.nextMetaGridLocation();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long[] nextMetaGridLocationContended() {
+        return iterator.nextMetaGridLocation();
+    }
+}
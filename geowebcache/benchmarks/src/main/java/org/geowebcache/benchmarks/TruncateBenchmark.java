@@ -0,0 +1,108 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Truncating a synthetic cache of a million tiles, a 1024x1024 zoom level, through the
+ * FileBlobStore. Each iteration seeds the cache again, so only single shot times make sense here.
+ * One thread is about what the old sequential walk did.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class TruncateBenchmark {
+
+    private static final int ZOOM_LEVEL = 10;
+
+    private static final int SIDE = 1024;
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    @Param( { "1", "8" })
+    public int threads;
+
+    /** The whole zoom level, or a window that leaves a border of partially covered directories */
+    @Param( { "zoomLevel", "window" })
+    public String range;
+
+    private File root;
+
+    private FileBlobStore store;
+
+    private TileRange tileRange;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        root = BenchmarkData.benchmarkDir("gwcTruncateBenchmark");
+        BenchmarkData.deleteRecursive(root);
+        root.mkdirs();
+        store = new FileBlobStore(root.getAbsolutePath());
+        store.setTruncateThreads(threads);
+
+        byte[] blob = new byte[64];
+        for (long x = 0; x < SIDE; x++) {
+            for (long y = 0; y < SIDE; y++) {
+                long[] xyz = { x, y, ZOOM_LEVEL };
+                store.put(TileObject.createCompleteTileObject(LAYER, xyz, GRIDSET, "image/png",
+                        null, blob));
+            }
+        }
+
+        long[][] rangeBounds = new long[ZOOM_LEVEL + 1][];
+        if ("window".equals(range)) {
+            rangeBounds[ZOOM_LEVEL] = new long[] { 100, 100, SIDE - 100, SIDE - 100 };
+        } else {
+            rangeBounds[ZOOM_LEVEL] = new long[] { 0, 0, SIDE - 1, SIDE - 1 };
+        }
+        tileRange = new TileRange(LAYER, GRIDSET, ZOOM_LEVEL, ZOOM_LEVEL, rangeBounds,
+                ImageMime.png, null);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkData.deleteRecursive(root);
+    }
+
+    @Benchmark
+    public boolean truncate() throws Exception {
+        return store.delete(tileRange);
+    }
+}
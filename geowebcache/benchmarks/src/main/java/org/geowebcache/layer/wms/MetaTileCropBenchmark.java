@@ -0,0 +1,112 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.media.jai.JAI;
+import javax.media.jai.operator.CropDescriptor;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.benchmarks.BenchmarkData;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageIOPool;
+import org.geowebcache.mime.ImageMime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding, cropping and encoding a PNG metatile of 256 pixel tiles, cropping the tiles with a
+ * JAI CropDescriptor as WMSMetaTile used to, or as child rasters of the decoded image as it does
+ * now. Run with {@code -prof gc} to see the allocation per metatile too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetaTileCropBenchmark {
+
+    @Param( { "3", "4", "8" })
+    public int meta;
+
+    @Param( { "jai", "raster" })
+    public String crop;
+
+    private GridSubset gridSubset;
+
+    private byte[] response;
+
+    private final RenderingHints noCache = new RenderingHints(JAI.KEY_TILE_CACHE, null);
+
+    @Setup
+    public void setUp() throws IOException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        BufferedImage img = BenchmarkData.createMap(meta * gridSubset.getTileWidth(), meta
+                * gridSubset.getTileHeight(), BufferedImage.TYPE_INT_ARGB, 42);
+        response = BenchmarkData.encode(img, "png");
+    }
+
+    @Benchmark
+    public int metaTile() throws IOException, GeoWebCacheException {
+        if ("jai".equals(crop)) {
+            return cropWithJAI();
+        }
+        long[] gridLoc = { 0, 0, 4 };
+        WMSMetaTile metaTile = new WMSMetaTile(null, gridSubset, ImageMime.png, null, gridLoc,
+                meta, meta, null);
+        metaTile.setImageBytes(response);
+        metaTile.createTiles(gridSubset.getTileHeight(), gridSubset.getTileWidth());
+        byte[][] tiles = metaTile.encodeTiles(null);
+        int written = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            written += tiles[i].length;
+        }
+        return written;
+    }
+
+    private int cropWithJAI() throws IOException {
+        BufferedImage img = ImageIOPool.read(response, ImageMime.png);
+        int tileWidth = gridSubset.getTileWidth();
+        int tileHeight = gridSubset.getTileHeight();
+        int written = 0;
+        for (int y = 0; y < meta; y++) {
+            for (int x = 0; x < meta; x++) {
+                RenderedImage tile = CropDescriptor.create(img, new Float(x * tileWidth),
+                        new Float((meta - 1 - y) * tileHeight), new Float(tileWidth), new Float(
+                                tileHeight), noCache);
+                written += ImageIOPool.write(tile, ImageMime.png, null).length;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.benchmarks.BenchmarkData;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileEncoderExecutor;
+import org.geowebcache.mime.ImageMime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding the 16 tiles of a decoded 4x4 PNG metatile: with a new ImageIO writer and output
+ * stream per tile as WMSMetaTile used to, with the pooled writers one tile after the other, and
+ * with the pooled writers on a {@link TileEncoderExecutor}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetaTileEncodeBenchmark {
+
+    private static final int META = 4;
+
+    @Param( { "imageio", "pooled", "parallel" })
+    public String encoder;
+
+    private GridSubset gridSubset;
+
+    private byte[] response;
+
+    private BufferedImage[] crops;
+
+    private TileEncoderExecutor executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        BufferedImage img = BenchmarkData.createMap(META * gridSubset.getTileWidth(), META
+                * gridSubset.getTileHeight(), BufferedImage.TYPE_INT_ARGB, 42);
+        response = BenchmarkData.encode(img, "png");
+        // the same tiles the metatile crops, for encoding them the way it used to
+        int tileWidth = gridSubset.getTileWidth();
+        int tileHeight = gridSubset.getTileHeight();
+        crops = new BufferedImage[META * META];
+        for (int y = 0; y < META; y++) {
+            for (int x = 0; x < META; x++) {
+                crops[y * META + x] = img.getSubimage(x * tileWidth, (META - 1 - y) * tileHeight,
+                        tileWidth, tileHeight);
+            }
+        }
+        if ("parallel".equals(encoder)) {
+            executor = new TileEncoderExecutor(64);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    @Benchmark
+    public int encode() throws IOException, GeoWebCacheException {
+        long[] gridLoc = { 0, 0, 4 };
+        WMSMetaTile metaTile = new WMSMetaTile(null, gridSubset, ImageMime.png, null, gridLoc,
+                META, META, null);
+        metaTile.setImageBytes(response);
+        metaTile.createTiles(gridSubset.getTileHeight(), gridSubset.getTileWidth());
+
+        int written = 0;
+        if ("imageio".equals(encoder)) {
+            for (int i = 0; i < META * META; i++) {
+                written += encodeWithNewWriter(crops[i]).length;
+            }
+        } else {
+            byte[][] tiles = metaTile.encodeTiles(executor);
+            for (int i = 0; i < tiles.length; i++) {
+                written += tiles[i].length;
+            }
+        }
+        return written;
+    }
+
+    private byte[] encodeWithNewWriter(BufferedImage tile) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageOutputStream imgOut = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(imgOut);
+        writer.write(null, new IIOImage(tile, null, null), writer.getDefaultWriteParam());
+        imgOut.close();
+        writer.dispose();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.benchmarks.BenchmarkData;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cutting a 4x4 metatile into tiles and encoding them, what {@link WMSLayer} does with every WMS
+ * response. Lives in this package because the metatile methods are protected.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WMSMetaTileBenchmark {
+
+    private static final int META = 4;
+
+    @Param( { "png", "jpeg" })
+    public String format;
+
+    private GridSubset gridSubset;
+
+    private ImageMime mime;
+
+    private byte[] response;
+
+    private WMSMetaTile metaTile;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setUp() throws IOException, GeoWebCacheException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        mime = "png".equals(format) ? ImageMime.png : ImageMime.jpeg;
+
+        int width = META * gridSubset.getTileWidth();
+        int height = META * gridSubset.getTileHeight();
+        int imageType = (mime == ImageMime.png) ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage img = BenchmarkData.createMap(width, height, imageType, 42);
+        response = BenchmarkData.encode(img, format);
+
+        metaTile = newMetaTile();
+        metaTile.setImageBytes(response);
+    }
+
+    private WMSMetaTile newMetaTile() {
+        long[] gridLoc = { 0, 0, 4 };
+        return new WMSMetaTile(null, gridSubset, mime, null, gridLoc, META, META, null);
+    }
+
+    /**
+     * Crops and encodes all the tiles, with the metatile already decoded
+     */
+    @Benchmark
+    public int cropAndEncode() throws IOException {
+        return writeTiles(metaTile);
+    }
+
+    /**
+     * Decoding the WMS response as well, the whole of the work done per metatile
+     */
+    @Benchmark
+    public int decodeCropAndEncode() throws IOException, GeoWebCacheException {
+        WMSMetaTile decoded = newMetaTile();
+        decoded.setImageBytes(response);
+        return writeTiles(decoded);
+    }
+
+    private int writeTiles(WMSMetaTile tile) throws IOException {
+        tile.createTiles(gridSubset.getTileHeight(), gridSubset.getTileWidth());
+        int written = 0;
+        for (int i = 0; i < META * META; i++) {
+            out.reset();
+            tile.writeTileToStream(i, out);
+            written += out.size();
+        }
+        return written;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.benchmarks.BenchmarkData;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fusing a 1024x768 full WMS request out of cached PNG tiles, served from memory so only the
+ * decoding and compositing are measured. Lives in this package because the fuser methods are
+ * protected.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WMSTileFuserBenchmark {
+
+    private static final int ZOOM_LEVEL = 4;
+
+    private static final int DISTINCT_TILES = 16;
+
+    /**
+     * aligned: 4x3 whole tiles at their resolution, unaligned: 5x4 cut tiles and a rescale
+     */
+    @Param( { "aligned", "unaligned" })
+    public String layout;
+
+    /**
+     * Tile fuser threads, 0 to fetch and decode the tiles on the calling thread
+     */
+    @Param( { "0", "4" })
+    public int threads;
+
+    private MemoryLayer layer;
+
+    private GridSubset gridSubset;
+
+    private BoundingBox bounds;
+
+    private TileFuserExecutor executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+
+        byte[][] tiles = new byte[DISTINCT_TILES][];
+        for (int i = 0; i < DISTINCT_TILES; i++) {
+            BufferedImage img = BenchmarkData.createMap(gridSubset.getTileWidth(), gridSubset
+                    .getTileHeight(), BufferedImage.TYPE_INT_ARGB, i);
+            tiles[i] = BenchmarkData.encode(img, "png");
+        }
+        layer = new MemoryLayer(gridSubset, tiles);
+        layer.initialize(gridSetBroker);
+
+        // 11.25 degrees per tile at this zoom level
+        double tileSpan = gridSubset.getResolutions()[ZOOM_LEVEL] * gridSubset.getTileWidth();
+        if ("aligned".equals(layout)) {
+            bounds = new BoundingBox(0, 0, 4 * tileSpan, 3 * tileSpan);
+        } else {
+            bounds = new BoundingBox(1, 1, 1 + 4.1 * tileSpan, 1 + 3.075 * tileSpan);
+        }
+
+        if (threads > 0) {
+            executor = new TileFuserExecutor(threads, 64);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    @Benchmark
+    public BufferedImage fuse() throws Exception {
+        WMSTileFuser fuser = new WMSTileFuser(layer, gridSubset, bounds, 1024, 768);
+        fuser.setExecutor(executor);
+        fuser.determineSourceResolution();
+        fuser.determineCanvasLayout();
+        fuser.createCanvas();
+        fuser.renderCanvas();
+        fuser.scaleRaster();
+        return fuser.canvas;
+    }
+
+    /**
+     * Serves the same few encoded tiles over and over, without a backend or a cache
+     */
+    private static class MemoryLayer extends WMSLayer {
+        private final byte[][] tiles;
+
+        MemoryLayer(GridSubset gridSubset, byte[][] tiles) {
+            super("benchmark:memory", new String[] { "http://localhost/wms" }, null,
+                    "benchmark:memory", formats(), subsets(gridSubset), null, new int[] { 1, 1 },
+                    null, false);
+            this.tiles = tiles;
+        }
+
+        private static List<String> formats() {
+            List<String> formats = new LinkedList<String>();
+            formats.add("image/png");
+            return formats;
+        }
+
+        private static Hashtable<String, GridSubset> subsets(GridSubset gridSubset) {
+            Hashtable<String, GridSubset> subsets = new Hashtable<String, GridSubset>();
+            subsets.put(gridSubset.getName(), gridSubset);
+            return subsets;
+        }
+
+        @Override
+        public ConveyorTile getTile(ConveyorTile tile) throws GeoWebCacheException, IOException {
+            long[] idx = tile.getTileIndex();
+            tile.setContent(tiles[(int) ((idx[0] + idx[1] * 3) % DISTINCT_TILES)]);
+            return tile;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -40,13 +41,17 @@ import org.geowebcache.demo.Demo;
 import org.geowebcache.filter.request.RequestFilterException;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.OutsideCoverageException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
 import org.geowebcache.layer.BadTileException;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.service.OWSException;
 import org.geowebcache.service.Service;
+import org.geowebcache.stats.PipelineStats;
 import org.geowebcache.stats.RuntimeStats;
+import org.geowebcache.stats.PipelineStats.Stage;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.util.ServletUtils;
@@ -66,6 +71,8 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
     public static final String TYPE_HOME = "home";
     
+    public static final String TYPE_STATS = "stats";
+    
     private TileLayerDispatcher tileLayerDispatcher = null;
     
     private DefaultStorageFinder defaultStorageFinder = null;
@@ -78,6 +85,8 @@ public class GeoWebCacheDispatcher extends AbstractController {
     
     private RuntimeStats runtimeStats;
     
+    private PipelineStats pipelineStats;
+    
     private HashMap<String,Service> services = null;
     
     private byte[] blankTile = null; 
@@ -118,6 +127,16 @@ public class GeoWebCacheDispatcher extends AbstractController {
         this.defaultStorageFinder = defaultStorageFinder;
     }
     
+    /**
+     * Sets where the per layer latencies and hit ratios are recorded, and enables the 
+     * stats page that publishes them as JSON. Null (the default) disables both.
+     * 
+     * @param pipelineStats
+     */
+    public void setPipelineStats(PipelineStats pipelineStats) {
+        this.pipelineStats = pipelineStats;
+    }
+    
     /**
      * GeoServer and other solutions that embedded this dispatcher will prepend a
      * path, this is used to remove it.
@@ -232,12 +251,9 @@ public class GeoWebCacheDispatcher extends AbstractController {
         // Break the request into components, {type, service name}
         String[] requestComps = null;
         try {
-            String normalizedURI = request.getRequestURI().replaceFirst(request.getContextPath(), "");
-            
-            if(servletPrefix != null) {
-                normalizedURI =  normalizedURI.replaceFirst(servletPrefix, ""); //getRequestURI().replaceFirst(request.getContextPath()+, "");
-            }
-             requestComps = parseRequest(normalizedURI);
+            String normalizedURI = normalizeURI(request.getRequestURI(), request.getContextPath(),
+                    servletPrefix);
+            requestComps = parseRequest(normalizedURI);
             //requestComps = parseRequest(request.getRequestURI());
         } catch (GeoWebCacheException gwce) {
             writeError(response, 400, gwce.getMessage());
@@ -252,6 +268,8 @@ public class GeoWebCacheDispatcher extends AbstractController {
             } else if (requestComps[0].equalsIgnoreCase(TYPE_DEMO) 
                     || requestComps[0].equalsIgnoreCase(TYPE_DEMO + "s")) {
                 handleDemoRequest(requestComps[1],request, response);   
+            } else if (requestComps[0].equalsIgnoreCase(TYPE_STATS)) {
+                handleStatsRequest(response);
             } else {
                 writeError(response, 404, "Unknown path: " + requestComps[0]);
             }
@@ -289,13 +307,31 @@ public class GeoWebCacheDispatcher extends AbstractController {
         log.info("GeoWebCacheDispatcher.destroy() was invoked, shutting down.");
     }
     
+    /**
+     * Removes the context path and the servlet prefix, if any, from the request URI
+     * 
+     * @param requestURI
+     * @param contextPath
+     * @param servletPrefix
+     *            may be null
+     * @return the path parsed by {@link #parseRequest(String)}
+     */
+    static String normalizeURI(String requestURI, String contextPath, String servletPrefix) {
+        String normalizedURI = requestURI.replaceFirst(contextPath, "");
+        
+        if(servletPrefix != null) {
+            normalizedURI =  normalizedURI.replaceFirst(servletPrefix, ""); //getRequestURI().replaceFirst(request.getContextPath()+, "");
+        }
+        return normalizedURI;
+    }
+    
     /**
      * Essentially this slices away the prefix, leaving type and request
      * 
      * @param servletPath
      * @return {type, service}ervletPrefix
      */
-    private String[] parseRequest(String servletPath)
+    static String[] parseRequest(String servletPath)
             throws GeoWebCacheException {
         String[] retStrs = new String[2];
         String[] splitStr = servletPath.split("/");
@@ -351,6 +387,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
             // Keep the URI
             // tile.requestURI = request.getRequestURI();
 
+            long start = System.nanoTime();
             try {
                 // A5) Ask the layer to provide the content for the tile
                 layer.getTile(convTile);
@@ -362,6 +399,11 @@ public class GeoWebCacheDispatcher extends AbstractController {
             } catch (OutsideCoverageException e) {
                 writeEmpty(convTile, e.getMessage());
             }
+            
+            if(pipelineStats != null) {
+                pipelineStats.recordCacheResult(layer.getName(), convTile.getCacheResult());
+                pipelineStats.record(layer.getName(), Stage.DISPATCH, start);
+            }
         }
     }
        
@@ -371,6 +413,18 @@ public class GeoWebCacheDispatcher extends AbstractController {
         Demo.makeMap(tileLayerDispatcher, gridSetBroker, action, request, response);        
     }
     
+    /**
+     * Writes the per layer hit ratios and latency percentiles as JSON
+     */
+    private void handleStatsRequest(HttpServletResponse response) throws IOException {
+        if(pipelineStats == null) {
+            writeError(response, 404, "Pipeline statistics are not enabled");
+            return;
+        }
+        byte[] json = pipelineStats.getJSONStats().getBytes("UTF-8");
+        writeFixedResponse(response, 200, "application/json", json, CacheResult.OTHER);
+    }
+    
     /**
      * Helper function for looking up the service that should handle the
      * request.
@@ -436,6 +490,10 @@ public class GeoWebCacheDispatcher extends AbstractController {
             str.append("<h3>Runtime Statistics</h3>\n");
             str.append(runtimeStats.getHTMLStats());
         }
+        if(pipelineStats != null) {
+            str.append("<p><a href=\""+baseUrl+"stats\">Per layer hit ratios and latencies</a>");
+            str.append(" (JSON, also available through JMX)</p>\n");
+        }
         str.append("</body></html>\n");
         
         writePage(response, 200, str.toString());
@@ -485,7 +543,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
             tile.servletResp.setHeader("ETag", hexTag);
         } 
         
-        writeFixedResponse(tile.servletResp, 200, tile.getMimeType().getMimeType(), tile.getContent(), tile.getCacheResult());
+        writeFixedResponse(tile.servletResp, 200, tile.getMimeType().getMimeType(), tile.getContentResource(), tile.getCacheResult());
     }
     
     /**
@@ -513,17 +571,30 @@ public class GeoWebCacheDispatcher extends AbstractController {
     }
     
     private void writeFixedResponse(HttpServletResponse response, int httpCode, String contentType, byte[] data, CacheResult cacheRes) {
+        Resource resource = null;
+        if(data != null) {
+            resource = new ByteArrayResource(data);
+        }
+        writeFixedResponse(response, httpCode, contentType, resource, cacheRes);
+    }
+    
+    /**
+     * Writes the resource through a channel, so that file backed tiles are copied straight 
+     * from the file to the response
+     */
+    private void writeFixedResponse(HttpServletResponse response, int httpCode, String contentType, Resource resource, CacheResult cacheRes) {
         response.setStatus(httpCode);
         response.setContentType(contentType);
         
-        if(data != null) {
-            response.setContentLength(data.length);
+        if(resource != null) {
+            int length = (int) resource.getSize();
+            response.setContentLength(length);
             
             try {
                 OutputStream os = response.getOutputStream();
-                os.write(data);
+                resource.transferTo(Channels.newChannel(os));
                 
-                runtimeStats.log(data.length, cacheRes);
+                runtimeStats.log(length, cacheRes);
                 
             } catch (IOException ioe) {
                 log.debug("Caught IOException: " + ioe.getMessage() + "\n\n" + ioe.toString());
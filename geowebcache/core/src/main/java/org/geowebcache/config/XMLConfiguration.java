@@ -65,6 +65,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.meta.ContactInformation;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.GeoRSSFeedDefinition;
+import org.geowebcache.layer.wms.BackendThrottle;
 import org.geowebcache.layer.wms.WMSHttpHelper;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.FormatModifier;
@@ -386,6 +387,7 @@ public class XMLConfiguration implements Configuration {
         
         xs.alias("layers", List.class);
         xs.alias("wmsLayer", WMSLayer.class);
+        xs.alias("backendThrottle", BackendThrottle.class);
         
         // These two are for 1.1.x compatibility
         xs.alias("grids", new ArrayList<XMLOldGrid>().getClass());
@@ -24,6 +24,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.Resource;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileResponseReceiver;
 import org.geowebcache.mime.MimeType;
@@ -149,6 +150,14 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
         return stObj.getBlob();
     }
     
+    /**
+     * @return the content without forcing it into memory, tiles read from the cache may be backed
+     *         by a file
+     */
+    public Resource getContentResource() {
+        return ((TileObject) stObj).getBlobResource();
+    }
+    
     public void setContent(byte[] payload) {
         stObj.setBlob(payload);
     }
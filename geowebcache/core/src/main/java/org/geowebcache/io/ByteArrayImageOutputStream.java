@@ -0,0 +1,133 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * A seekable in-memory image output stream that can be emptied and used again, so encoding one
+ * tile after the other does not allocate new buffers every time
+ */
+public class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+
+    private byte[] buf;
+
+    // the number of bytes written, which may be less than the buffer length
+    private int count;
+
+    public ByteArrayImageOutputStream(int initialSize) {
+        buf = new byte[initialSize];
+    }
+
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= count) {
+            return -1;
+        }
+        return buf[(int) streamPos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= count) {
+            return -1;
+        }
+        int read = (int) Math.min(len, count - streamPos);
+        System.arraycopy(buf, (int) streamPos, b, off, read);
+        streamPos += read;
+        return read;
+    }
+
+    public void write(int b) throws IOException {
+        checkClosed();
+        flushBits();
+        prepareWrite(1);
+        buf[(int) streamPos++] = (byte) b;
+        count = Math.max(count, (int) streamPos);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        flushBits();
+        prepareWrite(len);
+        System.arraycopy(b, off, buf, (int) streamPos, len);
+        streamPos += len;
+        count = Math.max(count, (int) streamPos);
+    }
+
+    /**
+     * Makes room for {@code len} more bytes at the current position, zeroing whatever a seek past
+     * the end skipped
+     */
+    private void prepareWrite(int len) throws IOException {
+        long end = streamPos + len;
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Images over 2GB can't be kept in memory");
+        }
+        if (end > buf.length) {
+            byte[] grown = new byte[(int) Math.min(Integer.MAX_VALUE, Math.max(end,
+                    2L * buf.length))];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+        if (streamPos > count) {
+            for (int i = count; i < streamPos; i++) {
+                buf[i] = 0;
+            }
+        }
+    }
+
+    public long length() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Empties the stream, keeping its buffer
+     */
+    public void clear() {
+        streamPos = 0;
+        bitOffset = 0;
+        flushedPos = 0;
+        count = 0;
+    }
+
+    /**
+     * @return a copy of the bytes written
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[count];
+        System.arraycopy(buf, 0, copy, 0, count);
+        return copy;
+    }
+
+    /**
+     * Writes the bytes written so far to another stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A resource backed by a file, written out with {@link FileChannel#transferTo} so that the
+ * contents do not have to be copied onto the heap.
+ * <p>
+ * The size is taken when the resource is created, the file is only opened when the resource is
+ * read. The file is expected to be replaced by renaming a new one over it, as
+ * {@code FileBlobStore} does, rather than rewritten in place; a resource whose file has been
+ * replaced by one of a different size fails rather than send contents that do not match its
+ * size.
+ * </p>
+ */
+public class FileResource implements Resource {
+
+    private final File file;
+
+    private final long length;
+
+    public FileResource(File file) {
+        this.file = file;
+        this.length = file.length();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return length;
+    }
+
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel in = fis.getChannel();
+            if (in.size() != length) {
+                throw new IOException(file.getAbsolutePath() + " was replaced, it has "
+                        + in.size() + " bytes instead of " + length);
+            }
+            long position = 0;
+            while (position < length) {
+                long written = in.transferTo(position, length - position, channel);
+                if (written <= 0 && position >= in.size()) {
+                    throw new IOException(file.getAbsolutePath() + " was truncated to "
+                            + in.size() + " bytes while being sent, expected " + length);
+                }
+                position += written;
+            }
+            return position;
+        } finally {
+            fis.close();
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return new FileInputStream(file);
+    }
+}
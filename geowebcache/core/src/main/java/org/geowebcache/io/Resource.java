@@ -0,0 +1,46 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The contents of a cached object, which may live in memory or in a file.
+ * <p>
+ * Writing a resource to a channel lets file backed implementations send their contents without
+ * loading them on the heap first.
+ * </p>
+ */
+public interface Resource {
+
+    /**
+     * @return the number of bytes in the resource
+     */
+    public long getSize();
+
+    /**
+     * Writes the whole resource to the channel
+     * 
+     * @return the number of bytes written
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * @return a new stream over the contents, to be closed by the caller
+     */
+    public InputStream getInputStream() throws IOException;
+}
@@ -29,11 +29,9 @@ public class GridLocObj {
 
     int hashCode;
         
-    public GridLocObj(long[] gridLoc, int max) {
+    public GridLocObj(long[] gridLoc) {
         this.gridLoc = gridLoc;
-        long sum = gridLoc[0] * 433L + gridLoc[1] * 19L + gridLoc[2];
-        sum = Math.abs(sum);
-        this.hashCode = (int) (sum % max);
+        this.hashCode = Arrays.hashCode(gridLoc);
     }
 
     public boolean equals(Object obj) {
@@ -0,0 +1,74 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Bounded thread pool the layers encode the tiles of a metatile on, one tile per task, so that a
+ * metatile is stored in about the time it takes to encode one of its tiles.
+ * <p>
+ * Encoding is CPU bound, so by default there is a thread per processor. When the queue is full
+ * the submitting thread encodes the tile itself. Queued tiles are still encoded after shutdown,
+ * as their submitters wait for them.
+ * </p>
+ */
+public class TileEncoderExecutor extends ThreadPoolExecutor implements DisposableBean {
+
+    private static final ThreadFactory tf = new CustomizableThreadFactory("GWC Tile Encoder Thread-");
+
+    /**
+     * @param queueDepth
+     *            the maximum number of pending tiles before submitters encode them themselves
+     */
+    public TileEncoderExecutor(int queueDepth) {
+        this(Runtime.getRuntime().availableProcessors(), queueDepth);
+    }
+
+    /**
+     * @param poolSize
+     *            the number of threads encoding tiles
+     * @param queueDepth
+     *            the maximum number of pending tiles before submitters encode them themselves
+     */
+    public TileEncoderExecutor(int poolSize, int queueDepth) {
+        super(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                queueDepth), tf, new CallerRuns());
+    }
+
+    /**
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        shutdown();
+    }
+
+    /**
+     * Runs rejected tasks on the submitting thread. Unlike ThreadPoolExecutor.CallerRunsPolicy
+     * this also applies after shutdown, as the submitting thread waits for every tile.
+     */
+    private static class CallerRuns implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            r.run();
+        }
+    }
+}
@@ -132,11 +132,27 @@ public class TileLayerDispatcher implements DisposableBean {
      */
     public void reInit() throws GeoWebCacheException {
         // this should wait for the current running config load task to finish if it still didn't
-        checkConfigurationLoaded();
+        Map<String, TileLayer> oldLayers = checkConfigurationLoaded();
         // now mark config not loaded by setting layers to null
         this.configuredLayers = null;
-        // and let a new task to perform the config load
-        configurationLoadTask = configLoadService.submit(new ConfigurationLoader(this, 0));
+        // and let a new task to perform the config load, and then release the old layers
+        configurationLoadTask = configLoadService.submit(new ConfigurationLoader(this, 0,
+                oldLayers));
+    }
+
+    /**
+     * Destroys the layers of {@code layers} that are not also in {@code keep}
+     */
+    private void destroyLayers(Map<String, TileLayer> layers, Map<String, TileLayer> keep) {
+        for (TileLayer layer : layers.values()) {
+            if (keep == null || keep.get(layer.getName()) != layer) {
+                try {
+                    layer.destroy();
+                } catch (RuntimeException e) {
+                    log.error("Error destroying layer " + layer.getName(), e);
+                }
+            }
+        }
     }
 
     /**
@@ -239,6 +255,9 @@ public class TileLayerDispatcher implements DisposableBean {
             oldLayer.acquireLayerLock();
             layers.remove(layer.getName());
             oldLayer.releaseLayerLock();
+            if (oldLayer != layer) {
+                oldLayer.destroy();
+            }
         }
         layers.put(layer.getName(), layer);
     }
@@ -256,6 +275,7 @@ public class TileLayerDispatcher implements DisposableBean {
             layer.acquireLayerLock();
             layers.remove(layerName);
             layer.releaseLayerLock();
+            layer.destroy();
         }
     }
 
@@ -276,6 +296,8 @@ public class TileLayerDispatcher implements DisposableBean {
             } catch (GeoWebCacheException gwce) {
                 log.error(gwce.getMessage());
             }
+            // only its settings were kept
+            layer.destroy();
         } else {
             layerMap.put(layer.getName(), layer);
         }
@@ -287,9 +309,21 @@ public class TileLayerDispatcher implements DisposableBean {
 
         int loadDelay;
 
+        Map<String, TileLayer> replacedLayers;
+
         private ConfigurationLoader(TileLayerDispatcher parent, int loadDelay) {
+            this(parent, loadDelay, null);
+        }
+
+        /**
+         * @param replacedLayers
+         *            the layers of the previous load, destroyed once the new ones are loaded
+         */
+        private ConfigurationLoader(TileLayerDispatcher parent, int loadDelay,
+                Map<String, TileLayer> replacedLayers) {
             this.parent = parent;
             this.loadDelay = loadDelay;
+            this.replacedLayers = replacedLayers;
         }
 
         public Map<String, TileLayer> call() throws Exception {
@@ -305,6 +339,9 @@ public class TileLayerDispatcher implements DisposableBean {
             }
 
             HashMap<String, TileLayer> newLayers = parent.initialize(false);
+            if (replacedLayers != null) {
+                parent.destroyLayers(replacedLayers, newLayers);
+            }
             log.info("ConfigurationLoader completed");
             return newLayers;
         }
@@ -328,5 +365,9 @@ public class TileLayerDispatcher implements DisposableBean {
                         + " seconds. This may prevent the server container to properly shut down!!!");
             }
         }
+        Map<String, TileLayer> layers = this.configuredLayers;
+        if (layers != null) {
+            destroyLayers(layers, null);
+        }
     }
 }
@@ -0,0 +1,245 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Picks which of the WMS URLs of a {@link WMSLayer} to send the next request to, based on how the
+ * backends behind them have been doing.
+ * <p>
+ * For each URL the requests in flight are counted, and the latency and success rate are kept as
+ * exponentially weighted moving averages. Requests go to the URL with the lowest expected cost,
+ * its average latency times the requests that would be in flight, divided by its success rate.
+ * URLs nobody has heard from yet start out as the cheapest, and URLs within 20% of each other
+ * take turns.
+ * </p>
+ * <p>
+ * Every URL has a circuit breaker. After {@code failureThreshold} failures in a row it opens, and
+ * the URL gets no requests for {@code openTimeout} milliseconds. After that the next request goes
+ * to it as a single probe (half open). If it succeeds the circuit closes again, if it fails it stays
+ * open for another period. When all circuits are open there is no URL to pick, so a dead backend
+ * fails requests right away instead of stalling each of them until the backend timeout.
+ * </p>
+ */
+public class BackendSelector {
+    private static Log log = LogFactory.getLog(BackendSelector.class);
+
+    /** Weight of the latest sample in the moving averages */
+    static final double WEIGHT = 0.2;
+
+    /** Latencies are counted from here, differences far below it are noise */
+    static final double LATENCY_FLOOR = 10;
+
+    /** How much cheaper a URL has to be to win over the next one in round robin order */
+    static final double TIE = 0.2;
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    public static final long DEFAULT_OPEN_TIMEOUT = 30 * 1000;
+
+    private final String[] urls;
+
+    private final Backend[] backends;
+
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    private long openTimeout = DEFAULT_OPEN_TIMEOUT;
+
+    private int next;
+
+    /**
+     * @param urls
+     *            the WMS URLs of the layer, the selector keeps its own copy so that the indexes it
+     *            hands out always refer to the URLs it was created for
+     */
+    public BackendSelector(String[] urls) {
+        this.urls = urls.clone();
+        backends = new Backend[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            backends[i] = new Backend();
+        }
+    }
+
+    /**
+     * @return the number of URLs to pick from
+     */
+    public int getURLCount() {
+        return urls.length;
+    }
+
+    /**
+     * @return the URL at an index returned by {@link #select(boolean[])}
+     */
+    public String getURL(int index) {
+        return urls[index];
+    }
+
+    /**
+     * Picks the URL for a request, every successful call must be followed by a call to
+     * {@link #finished(int, boolean, long)}
+     * 
+     * @param tried
+     *            the URLs that were already tried for this request, they are skipped. May be null.
+     * @return the index of the URL, or -1 if none can be used right now
+     */
+    public synchronized int select(boolean[] tried) {
+        long now = System.currentTimeMillis();
+        int best = -1;
+        double bestCost = Double.MAX_VALUE;
+        for (int n = 0; n < backends.length; n++) {
+            int i = (next + n) % backends.length;
+            Backend backend = backends[i];
+            if ((tried != null && tried[i]) || !backend.available(now, openTimeout)) {
+                continue;
+            }
+            if (backend.open) {
+                // the circuit has been open long enough, this request is the probe
+                best = i;
+                backend.probing = true;
+                break;
+            }
+            double cost = backend.cost();
+            if (cost < bestCost * (1 - TIE)) {
+                best = i;
+                bestCost = cost;
+            }
+        }
+        if (best == -1) {
+            return -1;
+        }
+
+        next = (best + 1) % backends.length;
+        backends[best].inFlight++;
+        return best;
+    }
+
+    /**
+     * Records the outcome of a request sent to the URL returned by {@link #select(boolean[])}
+     * 
+     * @param index
+     *            the index of the URL
+     * @param success
+     *            whether the backend answered, an answer with an error in it still counts
+     * @param millis
+     *            how long the request took
+     */
+    public synchronized void finished(int index, boolean success, long millis) {
+        Backend backend = backends[index];
+        backend.inFlight--;
+        backend.latency = backend.samples == 0 ? millis : backend.latency * (1 - WEIGHT)
+                + millis * WEIGHT;
+        backend.successRate = backend.successRate * (1 - WEIGHT) + (success ? WEIGHT : 0);
+        backend.samples++;
+
+        if (success) {
+            if (backend.open) {
+                log.info("WMS backend " + index + " is back, closing its circuit");
+            }
+            backend.failures = 0;
+            backend.open = false;
+            backend.probing = false;
+        } else {
+            backend.failures++;
+            if (backend.probing || (!backend.open && backend.failures >= failureThreshold)) {
+                if (!backend.open) {
+                    log.warn("WMS backend " + index + " failed " + backend.failures
+                            + " times in a row, not sending it requests for " + openTimeout
+                            + "ms");
+                }
+                backend.open = true;
+                backend.probing = false;
+                backend.openedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * @return whether the circuit of the URL is open, half open counting as open
+     */
+    public synchronized boolean isOpen(int index) {
+        return backends[index].open;
+    }
+
+    /**
+     * @return the moving average of the latency of the URL, in milliseconds
+     */
+    public synchronized double getAverageLatency(int index) {
+        return backends[index].latency;
+    }
+
+    /**
+     * @return the moving average of the share of requests to the URL that succeeded
+     */
+    public synchronized double getSuccessRate(int index) {
+        return backends[index].successRate;
+    }
+
+    public synchronized int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets how many failures in a row open the circuit of a URL
+     */
+    public synchronized void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public synchronized long getOpenTimeout() {
+        return openTimeout;
+    }
+
+    /**
+     * Sets how long, in milliseconds, an open circuit stays open before a probe is let through
+     */
+    public synchronized void setOpenTimeout(long openTimeout) {
+        this.openTimeout = openTimeout;
+    }
+
+    /**
+     * The state of one URL, guarded by the selector
+     */
+    private static class Backend {
+        int inFlight;
+
+        double latency;
+
+        double successRate = 1;
+
+        long samples;
+
+        int failures;
+
+        boolean open;
+
+        boolean probing;
+
+        long openedAt;
+
+        boolean available(long now, long openTimeout) {
+            if (!open) {
+                return true;
+            }
+            return !probing && now - openedAt >= openTimeout;
+        }
+
+        double cost() {
+            // a backend that never succeeds is not free just because it fails fast
+            return (latency + LATENCY_FLOOR) * (inFlight + 1) / Math.max(successRate, 0.01);
+        }
+    }
+}
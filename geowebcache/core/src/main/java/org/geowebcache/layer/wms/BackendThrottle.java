@@ -0,0 +1,300 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+
+/**
+ * Limits the load a {@link WMSLayer} puts on its WMS backend, with separate budgets for seeding
+ * and for interactive requests so that a seed job can not starve the clients.
+ * <p>
+ * Each budget has a token bucket limiting the requests per second, allowing bursts of up to one
+ * second worth of requests, and a limit on the requests in flight at the same time. Anything not
+ * configured is unlimited.
+ * </p>
+ * <p>
+ * When a {@code latencyThreshold} is set the seed budget adapts to the backend: the latency of
+ * every backend request is measured by {@link WMSHttpHelper}, and whenever the moving average
+ * goes above the threshold the number of seed requests allowed in flight is halved. While it
+ * stays below, the limit grows by one again, up to {@code seedMaxConcurrent}. The limit is changed
+ * at most once per threshold period, so that the effect of the last change can be seen.
+ * Interactive requests are never slowed down by this.
+ * </p>
+ * <p>
+ * Configured as part of the layer, the runtime state is created by {@link #initialize()}. The
+ * budgets may be replaced while requests are in flight, so every request gets a {@link Permit}
+ * that gives its place back to the budget it was taken from.
+ * </p>
+ */
+public class BackendThrottle {
+    private static Log log = LogFactory.getLog(BackendThrottle.class);
+
+    /** Weight of the latest sample in the moving average of the latency */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private Double seedRequestsPerSecond;
+
+    private Integer seedMaxConcurrent;
+
+    private Double interactiveRequestsPerSecond;
+
+    private Integer interactiveMaxConcurrent;
+
+    private Integer latencyThreshold;
+
+    private transient volatile Budget seed;
+
+    private transient volatile Budget interactive;
+
+    private transient double averageLatency;
+
+    private transient long lastAdjustment;
+
+    /**
+     * Creates the budgets from the configuration, must be called before the throttle is used and
+     * again after changing the configuration
+     */
+    public synchronized void initialize() {
+        seed = new Budget(seedRequestsPerSecond, seedMaxConcurrent);
+        interactive = new Budget(interactiveRequestsPerSecond, interactiveMaxConcurrent);
+        averageLatency = 0;
+        lastAdjustment = 0;
+    }
+
+    /**
+     * Waits until the budget allows one more request to the backend
+     *
+     * @param seeding
+     *            whether the request is for seeding, or for a client waiting for a tile
+     * @return the permit for the request, to be {@link Permit#release() released} once the
+     *         request is done
+     */
+    public Permit acquire(boolean seeding) throws GeoWebCacheException {
+        final Budget budget = seeding ? seed : interactive;
+        try {
+            budget.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while waiting for the backend");
+        }
+        return new Permit(budget);
+    }
+
+    /**
+     * Records how long a backend request took, and adapts the seed concurrency if adaptive mode
+     * is on
+     */
+    public void recordLatency(long millis) {
+        if (latencyThreshold == null) {
+            return;
+        }
+        synchronized (this) {
+            if (averageLatency == 0) {
+                averageLatency = millis;
+            } else {
+                averageLatency = averageLatency * (1 - LATENCY_WEIGHT) + millis * LATENCY_WEIGHT;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastAdjustment < latencyThreshold) {
+                return;
+            }
+            lastAdjustment = now;
+            if (averageLatency > latencyThreshold) {
+                int limit = seed.decreaseLimit();
+                if (log.isDebugEnabled()) {
+                    log.debug("Backend latency " + Math.round(averageLatency)
+                            + "ms, seed concurrency reduced to " + limit);
+                }
+            } else {
+                seed.increaseLimit();
+            }
+        }
+    }
+
+    /**
+     * @return the number of seed requests currently allowed in flight, Integer.MAX_VALUE if
+     *         unlimited
+     */
+    public int getSeedConcurrencyLimit() {
+        return seed.getLimit();
+    }
+
+    /**
+     * @return the moving average of the backend latency in milliseconds, 0 if adaptive mode is off
+     */
+    public synchronized double getAverageLatency() {
+        return averageLatency;
+    }
+
+    public Double getSeedRequestsPerSecond() {
+        return seedRequestsPerSecond;
+    }
+
+    public void setSeedRequestsPerSecond(Double seedRequestsPerSecond) {
+        this.seedRequestsPerSecond = seedRequestsPerSecond;
+    }
+
+    public Integer getSeedMaxConcurrent() {
+        return seedMaxConcurrent;
+    }
+
+    public void setSeedMaxConcurrent(Integer seedMaxConcurrent) {
+        this.seedMaxConcurrent = seedMaxConcurrent;
+    }
+
+    public Double getInteractiveRequestsPerSecond() {
+        return interactiveRequestsPerSecond;
+    }
+
+    public void setInteractiveRequestsPerSecond(Double interactiveRequestsPerSecond) {
+        this.interactiveRequestsPerSecond = interactiveRequestsPerSecond;
+    }
+
+    public Integer getInteractiveMaxConcurrent() {
+        return interactiveMaxConcurrent;
+    }
+
+    public void setInteractiveMaxConcurrent(Integer interactiveMaxConcurrent) {
+        this.interactiveMaxConcurrent = interactiveMaxConcurrent;
+    }
+
+    /**
+     * @return the average backend latency, in milliseconds, above which seed concurrency is
+     *         reduced. Null if adaptive mode is off.
+     */
+    public Integer getLatencyThreshold() {
+        return latencyThreshold;
+    }
+
+    public void setLatencyThreshold(Integer latencyThreshold) {
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * Handed out by {@link BackendThrottle#acquire(boolean)} for one request
+     */
+    public static final class Permit {
+        private final Budget budget;
+
+        private Permit(Budget budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * Lets the next request in, on the budget this permit was taken from even if the
+         * throttle was initialized again since
+         */
+        public void release() {
+            budget.release();
+        }
+    }
+
+    /**
+     * A token bucket and a limit on the requests in flight
+     */
+    private static class Budget {
+        /** Tokens per nanosecond, 0 for no rate limit */
+        private final double rate;
+
+        private final double capacity;
+
+        private double tokens;
+
+        private long lastRefill;
+
+        private final int maxConcurrent;
+
+        private int limit;
+
+        private int inFlight;
+
+        Budget(Double requestsPerSecond, Integer maxConcurrent) {
+            if (requestsPerSecond != null && requestsPerSecond.doubleValue() > 0) {
+                rate = requestsPerSecond.doubleValue() / TimeUnit.SECONDS.toNanos(1);
+                capacity = Math.max(1, requestsPerSecond.doubleValue());
+            } else {
+                rate = 0;
+                capacity = 0;
+            }
+            tokens = capacity;
+            lastRefill = System.nanoTime();
+
+            if (maxConcurrent != null && maxConcurrent.intValue() > 0) {
+                this.maxConcurrent = maxConcurrent.intValue();
+            } else {
+                this.maxConcurrent = Integer.MAX_VALUE;
+            }
+            limit = this.maxConcurrent;
+        }
+
+        void acquire() throws InterruptedException {
+            long wait = reserveToken();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            synchronized (this) {
+                while (inFlight >= limit) {
+                    wait();
+                }
+                inFlight++;
+            }
+        }
+
+        synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+
+        /**
+         * Takes a token, going into debt if there is none
+         *
+         * @return the nanoseconds to wait until the token is paid for
+         */
+        private synchronized long reserveToken() {
+            if (rate == 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+            lastRefill = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate);
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+
+        /**
+         * Halves what is actually in flight, rather than the limit, which may be far higher
+         */
+        synchronized int decreaseLimit() {
+            limit = Math.max(1, Math.min(limit, inFlight) / 2);
+            return limit;
+        }
+
+        synchronized void increaseLimit() {
+            if (limit < maxConcurrent) {
+                limit++;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -23,9 +23,13 @@ import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
@@ -45,21 +49,112 @@ import org.geowebcache.util.ServletUtils;
 public class WMSHttpHelper extends WMSSourceHelper {
     private static Log log = LogFactory.getLog(org.geowebcache.layer.wms.WMSHttpHelper.class);
     
-    private final URL proxyUrl;
+    /** Default number of pooled connections per backend host */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+    /** Default time, in milliseconds, after which unused pooled connections are closed */
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 60 * 1000;
+
+    private final MultiThreadedHttpConnectionManager connectionManager;
+
+    private final HttpClient httpClient;
+
+    private final boolean doAuthentication;
+
+    private volatile long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+
+    private volatile long lastIdleCheck = System.currentTimeMillis();
+
+    private int backendCount = 1;
 
-    private final String httpUsername;
-    
-    private final String httpPassword;
-    
     public WMSHttpHelper() {
         this(null, null, null);
     }
 
+    /**
+     * The proxy and credentials are resolved once, here. All requests made through this helper
+     * share a pool of keep-alive connections, so one helper should be used per layer (or per set
+     * of layers served by the same backends).
+     * 
+     * @param httpUsername
+     * @param httpPassword
+     * @param proxyUrl
+     */
     public WMSHttpHelper(String httpUsername, String httpPassword, URL proxyUrl) {
         super();
-        this.httpUsername = httpUsername;
-        this.httpPassword = httpPassword;
-        this.proxyUrl = proxyUrl;
+        
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        params.setMaxTotalConnections(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        params.setStaleCheckingEnabled(true);
+        
+        // The helper only talks to the backends of the layer(s) it belongs to,
+        // so the credentials are not restricted to a particular host
+        HttpClientBuilder builder = new HttpClientBuilder(AuthScope.ANY, 120, httpUsername,
+                httpPassword, proxyUrl);
+        builder.setConnectionManager(connectionManager);
+        
+        this.httpClient = builder.buildClient();
+        this.doAuthentication = builder.isDoAuthentication();
+    }
+    
+    /**
+     * Sets the maximum number of concurrent connections kept to each backend host. Requests
+     * beyond this number wait for a connection to be returned to the pool.
+     * 
+     * @param maxConnections
+     */
+    public synchronized void setMaxConnectionsPerHost(int maxConnections) {
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setMaxTotalConnections(maxConnections * backendCount);
+    }
+
+    /**
+     * Sets the number of backend URLs served through this helper, so that the pool may hold the
+     * maximum number of connections per host for each of them
+     * 
+     * @param backendCount
+     */
+    public synchronized void setBackendCount(int backendCount) {
+        this.backendCount = Math.max(1, backendCount);
+        setMaxConnectionsPerHost(getMaxConnectionsPerHost());
+    }
+
+    /**
+     * Sets how long, in milliseconds, opening a connection to a backend may take. This applies to
+     * the whole pool, the timeout passed to {@link #executeRequest(URL, Integer)} only bounds the
+     * wait for data.
+     * 
+     * @param connectionTimeout
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        connectionManager.getParams().setConnectionTimeout(connectionTimeout);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return connectionManager.getParams().getDefaultMaxConnectionsPerHost();
+    }
+
+    public int getMaxTotalConnections() {
+        return connectionManager.getParams().getMaxTotalConnections();
+    }
+    
+    /**
+     * Sets how long, in milliseconds, a pooled connection may stay unused before it is closed.
+     * 
+     * @param idleConnectionTimeout
+     */
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+    
+    /**
+     * Closes all pooled connections, the helper should not be used afterwards
+     */
+    public void destroy() {
+        connectionManager.shutdown();
     }
     
     /**
@@ -74,30 +169,108 @@ public class WMSHttpHelper extends WMSSourceHelper {
     @Override
     protected byte[] makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
             String wmsParams, String expectedMimeType) throws GeoWebCacheException {
+        return makeRequest(tileRespRecv, layer, wmsParams, expectedMimeType, null);
+    }
+
+    /**
+     * Decodes the metatile straight from the HTTP response, the encoded image is never held in
+     * memory as a whole
+     */
+    @Override
+    public void fetchMetaTile(WMSMetaTile metaTile) throws GeoWebCacheException {
+        makeRequest(metaTile, metaTile.getLayer(), metaTile.getWMSParams(), metaTile
+                .getRequestFormat().getFormat(), metaTile);
+
+        if (metaTile.getError()) {
+            throw new GeoWebCacheException("Empty metatile, error message: "
+                    + metaTile.getErrorMessage());
+        }
+    }
+
+    /**
+     * Tries the backends, healthiest first, until one of them answers
+     * 
+     * @param decodeInto
+     *            the metatile to decode the response into, or null to return it as bytes
+     * @return the response, or null if it was decoded into the metatile
+     */
+    private byte[] makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+            String wmsParams, String expectedMimeType, WMSMetaTile decodeInto)
+            throws GeoWebCacheException {
         byte[] data = null;
+        boolean received = false;
         URL wmsBackendUrl = null;
 
+        // the selector comes with the URLs it picks from
+        BackendSelector selector = layer.getBackendSelector();
+        final int urlCount = selector.getURLCount();
+        boolean[] tried = new boolean[urlCount];
+
         int backendTries = 0; // keep track of how many backends we have tried
-        while (data == null && backendTries < layer.getWMSurl().length) {
-            String requestUrl = layer.nextWmsURL() + wmsParams;
+        while (!received && backendTries < urlCount) {
+            int backend = selector.select(tried);
+            if (backend == -1) {
+                break;
+            }
+            tried[backend] = true;
+            String requestUrl = selector.getURL(backend) + wmsParams;
             
+            long start = System.currentTimeMillis();
+            boolean answered = false;
             try {
-                wmsBackendUrl = new URL(requestUrl);
-            } catch (MalformedURLException maue) {
-                throw new GeoWebCacheException("Malformed URL: "
-                        + requestUrl + " " + maue.getMessage());
+                try {
+                    wmsBackendUrl = new URL(requestUrl);
+                } catch (MalformedURLException maue) {
+                    throw new GeoWebCacheException("Malformed URL: "
+                            + requestUrl + " " + maue.getMessage());
+                }
+
+                GetMethod getMethod = connectAndCheckHeaders(tileRespRecv, wmsBackendUrl,
+                        wmsParams, expectedMimeType, layer.getBackendTimeout());
+                if (getMethod != null) {
+                    try {
+                        if (decodeInto == null) {
+                            data = readBody(tileRespRecv, getMethod, wmsBackendUrl);
+                            received = data != null;
+                        } else {
+                            received = decodeBody(decodeInto, getMethod, wmsBackendUrl);
+                        }
+                    } finally {
+                        getMethod.releaseConnection();
+                    }
+                }
+                answered = received;
+            } catch (ServiceException se) {
+                // the backend did answer. A client error would be the same anywhere, a server
+                // error counts against the health of this backend and the next one gets a try
+                answered = tileRespRecv.getStatus() < 500;
+                if (answered || !hasUntried(tried)) {
+                    tileRespRecv.setError();
+                    throw se;
+                }
+                log.debug("Trying another backend after " + se.getMessage());
+            } finally {
+                selector.finished(backend, answered, System.currentTimeMillis() - start);
+            }
+
+            BackendThrottle throttle = layer.getBackendThrottle();
+            if (throttle != null) {
+                throttle.recordLatency(System.currentTimeMillis() - start);
             }
-            
-            data = connectAndCheckHeaders(tileRespRecv, wmsBackendUrl, wmsParams, expectedMimeType,
-                    layer.getBackendTimeout());
 
             backendTries++;
         }
 
-        if (data == null) {
-            String msg = "All backends (" + backendTries + ") failed, "
-                    + "last one: " + wmsBackendUrl.toString() + "\n\n"
-                    + tileRespRecv.getErrorMessage();
+        if (!received) {
+            String msg;
+            if (backendTries == 0) {
+                msg = "All backends (" + urlCount + ") are unavailable after failing "
+                        + "repeatedly, not trying them again yet";
+            } else {
+                msg = "All backends (" + backendTries + ") failed, "
+                        + "last one: " + wmsBackendUrl.toString() + "\n\n"
+                        + tileRespRecv.getErrorMessage();
+            }
 
             tileRespRecv.setError();
             tileRespRecv.setErrorMessage(msg);
@@ -107,29 +280,28 @@ public class WMSHttpHelper extends WMSSourceHelper {
     }
 
     /**
-     * Executes the actual HTTP request, checks the response headers (status and
-     * MIME) and
+     * Executes the actual HTTP request and checks the response headers (status and MIME),
+     * leaving the body to be read by the caller
      * 
      * @param tileRespRecv
      * @param wmsBackendUrl
      * @param wmsparams
-     * @return
+     * @return the executed request, which the caller has to release, or null if the backend
+     *         could not be reached
      * @throws GeoWebCacheException
      */
-    private byte[] connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
-            String wmsParams, String requestMime, Integer backendTimeout)
+    private GetMethod connectAndCheckHeaders(TileResponseReceiver tileRespRecv,
+            URL wmsBackendUrl, String wmsParams, String requestMime, Integer backendTimeout)
             throws GeoWebCacheException {
 
-        byte[] ret = null;
         GetMethod getMethod = null;
         int responseCode = -1;
-        int responseLength = -1;
+        boolean checked = false;
 
         try { // finally
             try {
                 getMethod = executeRequest(wmsBackendUrl, backendTimeout);
                 responseCode = getMethod.getStatusCode();
-                responseLength = (int) getMethod.getResponseContentLength();
 
                 // Do not set error at this stage
             } catch (ConnectException ce) {
@@ -145,14 +317,15 @@ public class WMSHttpHelper extends WMSSourceHelper {
             // Check that the response code is okay
             tileRespRecv.setStatus(responseCode);
             if (responseCode != 200 && responseCode != 204) {
-                tileRespRecv.setError();
+                // the error is only set once no other backend is left to try
                 throw new ServiceException(
                         "Unexpected response code from backend: " + responseCode
                                 + " for " + wmsBackendUrl.toString());
             }
 
             // Check that we're not getting an error MIME back.
-            String responseMime = getMethod.getResponseHeader("Content-Type").getValue();
+            Header contentType = getMethod.getResponseHeader("Content-Type");
+            String responseMime = contentType == null ? null : contentType.getValue();
             if (responseCode != 204
                     && responseMime != null
 	            && ! mimeStringCheck(requestMime,responseMime)) {
@@ -191,44 +364,101 @@ public class WMSHttpHelper extends WMSSourceHelper {
                 }
             }
 
-            // Read the actual data
-            if (responseCode != 204) {
-                try {
-                    if (responseLength < 1) {
-                        ret = ServletUtils.readStream(getMethod.getResponseBodyAsStream(), 16384, 2048);
-                    } else {
-                        ret = new byte[responseLength];
-                        int readLength = 0;
-                        int readAccu = 0;
-                        InputStream inStream = getMethod.getResponseBodyAsStream();
-                        while(readLength > -1 && readAccu < responseLength) {
-                            int left = responseLength - readAccu;
-                            readLength = inStream.read(ret,readAccu,left);
-                            readAccu += readLength;
-                        }
-                        if (readAccu != responseLength) {
-                            tileRespRecv.setError();
-                            throw new GeoWebCacheException(
-                                    "Responseheader advertised " + responseLength 
-                                    + " bytes, but only received " + readLength
-                                    + " from " + wmsBackendUrl.toString());
-                        }
-                    }
-                } catch (IOException ioe) {
+            checked = true;
+            return getMethod;
+        } finally {
+            if (!checked && getMethod != null)
+                getMethod.releaseConnection();
+        }
+    }
+
+    /**
+     * Reads the body of a response whose headers have been checked
+     * 
+     * @return the body, or null if reading it failed
+     */
+    private byte[] readBody(TileResponseReceiver tileRespRecv, GetMethod getMethod,
+            URL wmsBackendUrl) throws GeoWebCacheException {
+        if (getMethod.getStatusCode() == 204) {
+            return new byte[0];
+        }
+
+        int responseLength = (int) getMethod.getResponseContentLength();
+        byte[] ret = null;
+        try {
+            if (responseLength < 1) {
+                ret = ServletUtils.readStream(getMethod.getResponseBodyAsStream(), 16384, 2048);
+            } else {
+                ret = new byte[responseLength];
+                int readLength = 0;
+                int readAccu = 0;
+                InputStream inStream = getMethod.getResponseBodyAsStream();
+                while(readLength > -1 && readAccu < responseLength) {
+                    int left = responseLength - readAccu;
+                    readLength = inStream.read(ret,readAccu,left);
+                    readAccu += readLength;
+                }
+                if (readAccu != responseLength) {
                     tileRespRecv.setError();
-                    log.error("Caught IO exception, " 
-                            + wmsBackendUrl.toString() + " " + ioe.getMessage());
+                    throw new GeoWebCacheException(
+                            "Responseheader advertised " + responseLength 
+                            + " bytes, but only received " + readLength
+                            + " from " + wmsBackendUrl.toString());
                 }
-            } else {
-                ret = new byte[0];
             }
+        } catch (IOException ioe) {
+            tileRespRecv.setError();
+            log.error("Caught IO exception, " 
+                    + wmsBackendUrl.toString() + " " + ioe.getMessage());
+            return null;
+        }
+        return ret;
+    }
 
-        } finally {
-            if (getMethod!=null)
-                getMethod.releaseConnection();
+    /**
+     * Decodes the body of a response whose headers have been checked into the metatile. Error
+     * responses are not decoded, the metatile already carries the error message.
+     * 
+     * @return true if the backend answered, false if reading the response failed
+     */
+    private boolean decodeBody(WMSMetaTile metaTile, GetMethod getMethod, URL wmsBackendUrl)
+            throws GeoWebCacheException {
+        if (metaTile.getError()) {
+            return true;
+        }
+        if (getMethod.getStatusCode() == 204) {
+            metaTile.setError();
+            metaTile.setErrorMessage("No content in the response from "
+                    + wmsBackendUrl.toString());
+            return true;
         }
 
-        return ret;
+        // the error flag is left alone so the next backend can still succeed
+        try {
+            InputStream inStream = getMethod.getResponseBodyAsStream();
+            if (inStream == null) {
+                throw new IOException("Empty response body");
+            }
+            try {
+                metaTile.setImageStream(inStream);
+            } finally {
+                inStream.close();
+            }
+        } catch (IOException ioe) {
+            log.error("Caught IO exception, " 
+                    + wmsBackendUrl.toString() + " " + ioe.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean hasUntried(boolean[] tried) {
+        for (int i = 0; i < tried.length; i++) {
+            if (!tried[i]) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -244,14 +474,27 @@ public class WMSHttpHelper extends WMSSourceHelper {
      */
     public GetMethod executeRequest(URL url, Integer backendTimeout) throws HttpException,
             IOException {
-        HttpClientBuilder builder = new HttpClientBuilder(url, backendTimeout, httpUsername,
-                httpPassword, proxyUrl);
-        HttpClient httpClient = builder.buildClient();
-
+        closeIdleConnections();
+        
+        // per request settings go on the method, the connection manager is shared
+        int timeout = backendTimeout * 1000;
         GetMethod getMethod = new GetMethod(url.toString());
-        getMethod.setDoAuthentication(builder.isDoAuthentication());
+        getMethod.setDoAuthentication(doAuthentication);
+        getMethod.getParams().setSoTimeout(timeout);
 
         httpClient.executeMethod(getMethod);
         return getMethod;
     }
+    
+    /**
+     * Evicts connections that have not been used for a while. This piggybacks on regular
+     * requests rather than running a separate thread, checking at most once per timeout period.
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck > idleConnectionTimeout) {
+            lastIdleCheck = now;
+            connectionManager.closeIdleConnections(idleConnectionTimeout);
+        }
+    }
 }
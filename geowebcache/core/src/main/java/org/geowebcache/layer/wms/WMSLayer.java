@@ -17,16 +17,17 @@
 
 package org.geowebcache.layer.wms;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -52,10 +53,12 @@ import org.geowebcache.layer.ExpirationRule;
 import org.geowebcache.layer.GridLocObj;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.FormatModifier;
-import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
+import org.geowebcache.stats.PipelineStats;
+import org.geowebcache.stats.PipelineStats.Stage;
+import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
@@ -115,6 +118,10 @@ public class WMSLayer extends TileLayer {
     
     protected Integer backendTimeout;
     
+    protected Integer maxBackendConnections;
+    
+    protected BackendThrottle backendThrottle;
+    
     protected Boolean cacheBypassAllowed;
     
     protected Boolean queryable;
@@ -129,17 +136,21 @@ public class WMSLayer extends TileLayer {
 
     private transient int curWmsURL;
 
+    private transient volatile BackendSelector backendSelector;
+
     private transient boolean saveExpirationHeaders;
 
     private transient Lock layerLock;
 
-    private transient boolean layerLocked;
+    private transient volatile boolean layerLocked;
 
     private transient Condition layerLockedCond;
 
-    private transient Condition[] gridLocConds;
-
-    private transient HashMap<GridLocObj, Boolean> procQueue;
+    /**
+     * Metatiles currently being requested from the backend, each with a latch that is released
+     * when the request is done
+     */
+    private transient ConcurrentHashMap<GridLocObj, CountDownLatch> procQueue;
     
     private transient ParameterFilter[] sortedModParams;
     
@@ -243,7 +254,6 @@ public class WMSLayer extends TileLayer {
 
         layerLock = new ReentrantLock();
         layerLockedCond = layerLock.newCondition();
-        procQueue = new HashMap<GridLocObj, Boolean>();
 
         try {
             initParameters();
@@ -299,17 +309,14 @@ public class WMSLayer extends TileLayer {
                     GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG3857));
         }
         
-        // Create conditions for tile locking
+        // The expected number of threads updating the queue of metatiles in progress
         if (concurrency == null) {
             concurrency = 32;
         }
 
         // TODO There should be a WMSServer object and it should be on that
-        this.gridLocConds = new Condition[concurrency];
-
-        for (int i = 0; i < gridLocConds.length; i++) {
-            gridLocConds[i] = layerLock.newCondition();
-        }
+        procQueue = new ConcurrentHashMap<GridLocObj, CountDownLatch>(concurrency * 2, 0.75f,
+                concurrency);
 
         if (this.parameterFilters != null && this.parameterFilters.size() > 0) {
             Iterator<ParameterFilter> iter = parameterFilters.iterator();
@@ -351,6 +358,19 @@ public class WMSLayer extends TileLayer {
                     wmsUrl[i] = url + "?";
                 }
             }
+            
+            WMSHttpHelper httpHelper = (WMSHttpHelper) sourceHelper;
+            httpHelper.setBackendCount(wmsUrl.length);
+            if (maxBackendConnections != null) {
+                httpHelper.setMaxConnectionsPerHost(maxBackendConnections);
+            }
+            httpHelper.setConnectionTimeout(backendTimeout * 1000);
+        }
+        // created again for the URLs as completed above
+        backendSelector = null;
+
+        if (backendThrottle != null) {
+            backendThrottle.initialize();
         }
 
         if (gutter == null) {
@@ -427,9 +447,9 @@ public class WMSLayer extends TileLayer {
         if (tryCacheFetch(tile)) {
             returnTile = finalizeTile(tile);
         }else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
-            returnTile = getMetatilingReponse(tile, true);
+            returnTile = getMetatilingReponse(tile, true, false);
         } else {
-            returnTile = getNonMetatilingReponse(tile, true);
+            returnTile = getNonMetatilingReponse(tile, true, false);
         }
         
         sendTileRequestedEvent(returnTile);
@@ -444,9 +464,9 @@ public class WMSLayer extends TileLayer {
     public void seedTile(ConveyorTile tile, boolean tryCache) throws GeoWebCacheException,
             IOException {
         if (tile.getMimeType().supportsTiling() && (metaWidthHeight[0] > 1 || metaWidthHeight[1] > 1)) {
-            getMetatilingReponse(tile, tryCache);
+            getMetatilingReponse(tile, tryCache, true);
         } else {
-            getNonMetatilingReponse(tile, tryCache);
+            getNonMetatilingReponse(tile, tryCache, true);
         }
     }
 
@@ -455,9 +475,11 @@ public class WMSLayer extends TileLayer {
      * 
      * @param tile the Tile with all the information
      * @param tryCache whether to try the cache, or seed
+     * @param seeding whether the request counts against the seed budget of the backend
      * @throws GeoWebCacheException
      */
-    private ConveyorTile getMetatilingReponse(ConveyorTile tile, boolean tryCache) 
+    private ConveyorTile getMetatilingReponse(final ConveyorTile tile, boolean tryCache,
+            boolean seeding) 
     throws GeoWebCacheException {
         //int idx = this.getSRSIndex(tile.getSRS());
         long[] gridLoc = tile.getTileIndex();
@@ -466,7 +488,7 @@ public class WMSLayer extends TileLayer {
         
         //GridCalculator gridCalc = getGrid(tile.getSRS()).getGridCalculator();
 
-        WMSMetaTile metaTile = new WMSMetaTile(this, gridSubset, 
+        final WMSMetaTile metaTile = new WMSMetaTile(this, gridSubset, 
                 tile.getMimeType(), this.getFormatModifier(tile.getMimeType()),
                 gridLoc, metaWidthHeight[0], metaWidthHeight[1],
                 tile.getFullParameters());
@@ -477,15 +499,15 @@ public class WMSLayer extends TileLayer {
         }
 
         long[] metaGridLoc = metaTile.getMetaGridPos();
-        GridLocObj metaGlo = new GridLocObj(metaGridLoc, this.gridLocConds.length);
+        final GridLocObj metaGlo = new GridLocObj(metaGridLoc);
+        boolean lockHandedOff = false;
 
         /** ****************** Acquire lock ******************* */
         waitForQueue(metaGlo);
         try {
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
-                // Someone got it already, return lock and we're done
-                removeFromQueue(metaGlo);
+                // Someone got it already, the lock is returned below and we're done
                 return finalizeTile(tile);
             }
 
@@ -495,11 +517,14 @@ public class WMSLayer extends TileLayer {
                 metaTile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
 
-            byte[] response = sourceHelper.makeRequest(metaTile);
-
-            if (metaTile.getError() || response == null) {
-                throw new GeoWebCacheException(
-                        "Empty metatile, error message: " + metaTile.getErrorMessage());
+            BackendThrottle.Permit permit = acquireBackend(seeding);
+            try {
+                // the image is decoded as it is received, this covers both
+                long start = System.nanoTime();
+                sourceHelper.fetchMetaTile(metaTile);
+                recordStage(tile, Stage.WMS_FETCH, start);
+            } finally {
+                releaseBackend(permit);
             }
 
             if (saveExpirationHeaders) {
@@ -507,27 +532,42 @@ public class WMSLayer extends TileLayer {
                 saveExpirationInformation((int) (tile.getExpiresHeader() / 1000));
             }
 
-            metaTile.setImageBytes(response);
+            long start = System.nanoTime();
+            metaTile.createTiles(gridSubset.getTileHeight(), gridSubset.getTileWidth());
+            recordStage(tile, Stage.METATILE_DECODE, start);
 
-            boolean useJAI = true;
-            if (tile.getMimeType() == ImageMime.jpeg) {
-                useJAI = false;
-            }
-
-            metaTile.createTiles(gridSubset.getTileHeight(), gridSubset.getTileWidth(), useJAI);
+            final long[][] gridPositions = metaTile.getTilesGridPositions();
 
-            long[][] gridPositions = metaTile.getTilesGridPositions();
+            tile.setContent(getTile(gridLoc, gridPositions, metaTile, tile));
 
-            tile.setContent(getTile(gridLoc, gridPositions, metaTile));
-
-            // TODO separate thread
             if (this.getExpireCache((int) gridLoc[2]) != GWCVars.CACHE_DISABLE_CACHE) {
-                saveTiles(gridPositions, metaTile, tile);
+                Executor executor = tile.getStorageBroker().getPersistenceExecutor();
+                if (executor == null) {
+                    saveTiles(gridPositions, metaTile, tile);
+                } else {
+                    // The metatile stays locked until its tiles are stored, so
+                    // that waiting threads find them in the cache
+                    lockHandedOff = true;
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                saveTiles(gridPositions, metaTile, tile);
+                            } catch (GeoWebCacheException gwce) {
+                                log.error("Unable to save metatile " + metaGlo + ": "
+                                        + gwce.getMessage());
+                            } finally {
+                                removeFromQueue(metaGlo);
+                            }
+                        }
+                    });
+                }
             }
 
             /** ****************** Return lock and response ****** */
         } finally {
-            removeFromQueue(metaGlo);
+            if (!lockHandedOff) {
+                removeFromQueue(metaGlo);
+            }
         }
         return finalizeTile(tile);
     }
@@ -537,21 +577,22 @@ public class WMSLayer extends TileLayer {
      * 
      * @param tile the Tile with all the information
      * @param tryCache whether to try the cache, or seed
+     * @param seeding whether the request counts against the seed budget of the backend
      * @throws GeoWebCacheException
      */
-    private ConveyorTile getNonMetatilingReponse(ConveyorTile tile, boolean tryCache) 
+    private ConveyorTile getNonMetatilingReponse(ConveyorTile tile, boolean tryCache,
+            boolean seeding) 
     throws GeoWebCacheException {
         // String debugHeadersStr = null;
         long[] gridLoc = tile.getTileIndex();
-        GridLocObj glo = new GridLocObj(gridLoc, this.gridLocConds.length);
+        GridLocObj glo = new GridLocObj(gridLoc);
 
         /** ****************** Acquire lock ******************* */
         waitForQueue(glo);
         try {
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
-                // Someone got it already, return lock and we're done
-                removeFromQueue(glo);
+                // Someone got it already, the lock is returned below and we're done
                 return tile;
                 // return this.createTileResponse(tile.getData(), -1, mime,
                 // response);
@@ -564,7 +605,7 @@ public class WMSLayer extends TileLayer {
                 tile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
 
-            tile = doNonMetatilingRequest(tile);
+            tile = doNonMetatilingRequest(tile, seeding);
 
             if (tile.getStatus() > 299 || this.getExpireCache((int) gridLoc[2]) != GWCVars.CACHE_DISABLE_CACHE) {
                 tile.persist();
@@ -641,29 +682,22 @@ public class WMSLayer extends TileLayer {
     protected void saveTiles(long[][] gridPositions, WMSMetaTile metaTile,
             ConveyorTile tileProto) throws GeoWebCacheException {
 
-        for (int i = 0; i < gridPositions.length; i++) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-            try {
-                boolean completed = metaTile.writeTileToStream(i, out);
-                if (!completed) {
-                    log.error("metaTile.writeTileToStream returned false, no tiles saved");
-                }
-            } catch (IOException ioe) {
-                log.error("Unable to write image tile to "
-                        + "ByteArrayOutputStream: " + ioe.getMessage());
-                ioe.printStackTrace();
-            }
+        byte[][] encoded;
+        try {
+            long start = System.nanoTime();
+            encoded = metaTile.encodeTiles(tileProto.getStorageBroker().getEncoderExecutor());
+            recordStage(tileProto, Stage.TILE_ENCODE, start);
+        } catch (IOException ioe) {
+            throw new GeoWebCacheException("Unable to encode the tiles of metatile"
+                    + metaTile.debugString() + ": " + ioe.getMessage());
+        }
 
+        List<TileObject> tiles = new ArrayList<TileObject>(gridPositions.length);
+        for (int i = 0; i < gridPositions.length; i++) {
             long[] idx = {gridPositions[i][0],gridPositions[i][1],gridPositions[i][2]};
             TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx, tileProto.getGridSetId(), 
-                    tileProto.getMimeType().getFormat(), tileProto.getParameters(), out.toByteArray());
-            
-            try {
-                tileProto.getStorageBroker().put(tile);
-            } catch (StorageException e) {
-                throw new GeoWebCacheException(e);
-            }
+                    tileProto.getMimeType().getFormat(), tileProto.getParameters(), encoded[i]);
+            tiles.add(tile);
             //ConveyorTile tile = new ConveyorTile(storageBroker,this, tileProto.getSRS(), gridPos,
             //        tileProto.getMimeType(), metaTile.getStatus(), out.toByteArray());
             //tile.setTileLayer(this);
@@ -671,6 +705,12 @@ public class WMSLayer extends TileLayer {
             
             //cache.set(this.cacheKey, tile, expireCacheInt);
         }
+        
+        try {
+            tileProto.getStorageBroker().putAll(tiles);
+        } catch (StorageException e) {
+            throw new GeoWebCacheException(e);
+        }
     }
 
     /**
@@ -684,7 +724,7 @@ public class WMSLayer extends TileLayer {
      * @return
      */
     private byte[] getTile(long[] gridPos, long[][] gridPositions,
-            WMSMetaTile metaTile) throws GeoWebCacheException {
+            WMSMetaTile metaTile, ConveyorTile tile) throws GeoWebCacheException {
         for (int i = 0; i < gridPositions.length; i++) {
             long[] curPos = gridPositions[i];
 
@@ -692,16 +732,16 @@ public class WMSLayer extends TileLayer {
             if (curPos[0] == gridPos[0] && curPos[1] == gridPos[1]
                     && curPos[2] == gridPos[2]) {
 
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] data = new byte[0];
                 try {
-                    metaTile.writeTileToStream(i, out);
+                    long start = System.nanoTime();
+                    data = metaTile.encodeTile(i);
+                    recordStage(tile, Stage.TILE_ENCODE, start);
                 } catch (IOException ioe) {
-                    log.error("Unable to write image tile "
-                            + "to ByteArrayOutputStream: " + ioe.getMessage());
+                    log.error("Unable to encode image tile: " + ioe.getMessage());
                     ioe.printStackTrace();
                 }
 
-                byte[] data = out.toByteArray();
                 return data;
             }
         }
@@ -710,8 +750,21 @@ public class WMSLayer extends TileLayer {
     }
 
     public ConveyorTile doNonMetatilingRequest(ConveyorTile tile) throws GeoWebCacheException {
+        return doNonMetatilingRequest(tile, false);
+    }
+
+    private ConveyorTile doNonMetatilingRequest(ConveyorTile tile, boolean seeding)
+            throws GeoWebCacheException {
         tile.setTileLayer(this);
-        byte[] response = sourceHelper.makeRequest(tile);
+        byte[] response;
+        BackendThrottle.Permit permit = acquireBackend(seeding);
+        try {
+            long start = System.nanoTime();
+            response = sourceHelper.makeRequest(tile);
+            recordStage(tile, Stage.WMS_FETCH, start);
+        } finally {
+            releaseBackend(permit);
+        }
 
         if (tile.getError() || response == null) {
             throw new GeoWebCacheException("Empty tile, error message: "
@@ -722,6 +775,34 @@ public class WMSLayer extends TileLayer {
         return tile;
     }
 
+    /**
+     * Waits for the backend throttle, if any, to allow a request
+     * 
+     * @return the permit to pass to {@link #releaseBackend(BackendThrottle.Permit)}, null if
+     *         there's no throttle
+     */
+    private BackendThrottle.Permit acquireBackend(boolean seeding) throws GeoWebCacheException {
+        BackendThrottle throttle = backendThrottle;
+        return throttle == null ? null : throttle.acquire(seeding);
+    }
+
+    private void releaseBackend(BackendThrottle.Permit permit) {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /**
+     * Records how long a stage took, if the storage broker keeps statistics
+     */
+    private void recordStage(ConveyorTile tile, Stage stage, long start) {
+        StorageBroker storageBroker = tile.getStorageBroker();
+        PipelineStats stats = storageBroker == null ? null : storageBroker.getPipelineStats();
+        if (stats != null) {
+            stats.record(getName(), stage, start);
+        }
+    }
+
     private ConveyorTile finalizeTile(ConveyorTile tile) {
         if (tile.getStatus() == 0 && !tile.getError()) {
             tile.setStatus(200);
@@ -915,20 +996,47 @@ public class WMSLayer extends TileLayer {
         return strBuilder.toString();
     }
 
+    /**
+     * @return the WMS URLs together with their health, {@link WMSHttpHelper} uses it to pick the
+     *         URL for each request. A selector keeps the URLs it was created with, a later
+     *         {@link #setWMSurl(String[])} only affects the selectors returned after it.
+     */
+    public BackendSelector getBackendSelector() {
+        BackendSelector selector = backendSelector;
+        if (selector == null) {
+            synchronized (this) {
+                selector = backendSelector;
+                if (selector == null) {
+                    selector = new BackendSelector(wmsUrl);
+                    backendSelector = selector;
+                }
+            }
+        }
+        return selector;
+    }
+
     /**
      * Get the WMS backend URL that should be used next according to the round
      * robin.
      * 
      * @return the next URL
+     * @deprecated {@link WMSHttpHelper} picks the URL with {@link #getBackendSelector()}
      */
+    @Deprecated
     protected String nextWmsURL() {
         curWmsURL = (curWmsURL + 1) % wmsUrl.length;
         return wmsUrl[curWmsURL];
     }
 
+    /**
+     * Closes the backend connections of the layer, it should not be used afterwards
+     */
     public void destroy() {
         // Not that it really matters:
         procQueue.clear();
+        if (sourceHelper instanceof WMSHttpHelper) {
+            ((WMSHttpHelper) sourceHelper).destroy();
+        }
     }
 
     public int[] getMetaTilingFactors() {
@@ -959,22 +1067,22 @@ public class WMSLayer extends TileLayer {
      * that could write to the queue have finished
      */
     public void acquireLayerLock() {
-        if(layerLock == null) {
-            layerLocked = true;
+        layerLocked = true;
+        
+        if(procQueue == null) {
             return;
         }
         
-        boolean wait = true;
-        // Wait until the queue is free
-        while (wait) {
-            try {
-                layerLock.lock();
-                this.layerLocked = true;
-                if (this.procQueue == null || this.procQueue.size() == 0) {
-                    wait = false;
+        // Wait until the queue is free. New requests see the flag and back off,
+        // so we only have to wait for the ones already in progress
+        while (!procQueue.isEmpty()) {
+            Iterator<CountDownLatch> iter = procQueue.values().iterator();
+            while (iter.hasNext()) {
+                try {
+                    iter.next().await();
+                } catch (InterruptedException ie) {
+                    // Do we care? Maybe if the program is about to shut down
                 }
-            } finally {
-                layerLock.unlock();
             }
         }
     }
@@ -1000,61 +1108,74 @@ public class WMSLayer extends TileLayer {
     }
 
     /**
+     * Blocks while the entire layer is locked
+     */
+    private void waitForLayerLock() {
+        layerLock.lock();
+        try {
+            while (layerLocked) {
+                this.layerLockedCond.await();
+            }
+        } catch (InterruptedException ie) {
+            // Do we care? Maybe if the program is about to shut down
+        } finally {
+            layerLock.unlock();
+        }
+    }
+
+    /**
+     * Synchronization function, ensures that the same metatile is not requested
+     * simultaneously by two threads. Threads working on different metatiles
+     * never block each other.
      * 
-     * @param metaGridLoc
-     * @return
+     * @param glo
+     *            the grid positions of the tile (bottom left of metatile)
+     * @return whether the calling thread had to wait for another one
      */
     protected boolean waitForQueue(GridLocObj glo) {
-        boolean retry = true;
         boolean hasWaited = false;
-        // int condIdx = getLocCondIdx(gridLoc);
+        CountDownLatch latch = new CountDownLatch(1);
 
-        while (retry) {
-            layerLock.lock();
-            try {
-                // Check for global lock
+        while (true) {
+            // Check for global lock
+            if (layerLocked) {
+                waitForLayerLock();
+                continue;
+            }
+
+            CountDownLatch inFlight = procQueue.putIfAbsent(glo, latch);
+            if (inFlight == null) {
                 if (layerLocked) {
-                    this.layerLockedCond.await();
-                } else if (this.procQueue.containsKey(glo)) {
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " WAITING FOR "+glo.toString()+ " convar " + condIdx);
-                    hasWaited = true;
-                    this.gridLocConds[glo.hashCode()].await();
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " WAKING UP "+glo.toString()+ " convar " + condIdx);
-                } else {
-                    this.procQueue.put(glo, true);
-                    retry = false;
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " CONTINUES "+glo.toString()+ " convar " + condIdx);
+                    // The layer got locked while we were queueing, back off
+                    procQueue.remove(glo);
+                    latch.countDown();
+                    latch = new CountDownLatch(1);
+                    continue;
                 }
+                return hasWaited;
+            }
+
+            // Someone else is working on it, wait for them and then retry
+            hasWaited = true;
+            try {
+                inFlight.await();
             } catch (InterruptedException ie) {
                 // Do we care? Maybe if the program is about to shut down
-            } finally {
-                layerLock.unlock();
             }
         }
-
-        return hasWaited;
     }
 
     /**
-     * Synchronization function, ensures that the same metatile is not requested
-     * simultaneously by two threads.
+     * Returns the lock taken by {@link #waitForQueue(GridLocObj)} and wakes up
+     * the threads waiting for the same metatile.
      * 
-     * @param gridLoc
+     * @param glo
      *            the grid positions of the tile (bottom left of metatile)
-     * @return
      */
     protected void removeFromQueue(GridLocObj glo) {
-        layerLock.lock();
-        try {
-            // System.out.println(Thread.currentThread().getId()
-            // + " DONE, SIGNALLING "+glo.toString() + " convar " + condIdx);
-            this.procQueue.remove(glo);
-            this.gridLocConds[glo.hashCode()].signalAll();
-        } finally {
-            layerLock.unlock();
+        CountDownLatch latch = this.procQueue.remove(glo);
+        if (latch != null) {
+            latch.countDown();
         }
     }
 
@@ -1079,18 +1200,20 @@ public class WMSLayer extends TileLayer {
      * @throws CacheException
      */
     public void putTile(ConveyorTile tile) throws GeoWebCacheException {
-        GridLocObj glo = new GridLocObj(tile.getTileIndex(), this.gridLocConds.length);
+        GridLocObj glo = new GridLocObj(tile.getTileIndex());
 
         /** ****************** Acquire lock ******************* */
         waitForQueue(glo);
+        try {
+            /** ****************** Tile ******************* */
+            if (getExpireCache((int) tile.getTileIndex()[2]) != GWCVars.CACHE_DISABLE_CACHE) {
+                tile.persist();
+            }
 
-        /** ****************** Tile ******************* */
-        if (getExpireCache((int) tile.getTileIndex()[2]) != GWCVars.CACHE_DISABLE_CACHE) {
-            tile.persist();
+            /** ****************** Return lock and response ****** */
+        } finally {
+            removeFromQueue(glo);
         }
-
-        /** ****************** Return lock and response ****** */
-        removeFromQueue(glo);
     }
 
     public void setErrorMime(String errormime) {
@@ -1104,6 +1227,10 @@ public class WMSLayer extends TileLayer {
 
     public void setWMSurl(String[] wmsurl) {
         this.wmsUrl = wmsurl;
+        this.backendSelector = null;
+        if (sourceHelper instanceof WMSHttpHelper) {
+            ((WMSHttpHelper) sourceHelper).setBackendCount(wmsurl.length);
+        }
     }
 
     public String[] getWMSurl() {
@@ -1132,6 +1259,32 @@ public class WMSLayer extends TileLayer {
 
     public void setBackendTimeout(int seconds) {
         backendTimeout = seconds;
+        if (sourceHelper instanceof WMSHttpHelper) {
+            ((WMSHttpHelper) sourceHelper).setConnectionTimeout(seconds * 1000);
+        }
+    }
+    
+    public Integer getMaxBackendConnections() {
+        return maxBackendConnections;
+    }
+    
+    public void setMaxBackendConnections(int maxConnections) {
+        maxBackendConnections = maxConnections;
+    }
+
+    /**
+     * @return the limits on the requests sent to the backend, null if there are none
+     */
+    public BackendThrottle getBackendThrottle() {
+        return backendThrottle;
+    }
+
+    /**
+     * Sets the limits on the requests sent to the backend, takes effect on
+     * {@link #initialize(GridSetBroker)}
+     */
+    public void setBackendThrottle(BackendThrottle backendThrottle) {
+        this.backendThrottle = backendThrottle;
     }
 
     private int getExpiration(ArrayList<ExpirationRule> list, int zoomLevel) {
@@ -1183,7 +1336,12 @@ public class WMSLayer extends TileLayer {
      */
     public void setSourceHelper(WMSSourceHelper source) {
         log.debug("Setting sourceHelper on " + this.name);
+        WMSSourceHelper previous = this.sourceHelper;
         this.sourceHelper = source;
+        // the connections of a replaced helper would otherwise stay open
+        if (previous != source && previous instanceof WMSHttpHelper) {
+            ((WMSHttpHelper) previous).destroy();
+        }
     }
     
     public WMSSourceHelper getSourceHelper() {
@@ -1227,7 +1385,13 @@ public class WMSLayer extends TileLayer {
 
         // Should we do mime type checks?
         
-        byte[] data = sourceHelper.makeRequest(tile);        
+        byte[] data;
+        BackendThrottle.Permit permit = acquireBackend(false);
+        try {
+            data = sourceHelper.makeRequest(tile);
+        } finally {
+            releaseBackend(permit);
+        }
         tile.setContent(data);
 
         return tile;
@@ -17,24 +17,19 @@
  */
 package org.geowebcache.layer.wms;
 
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.RasterFormatException;
-import java.awt.image.RenderedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
-import javax.media.jai.JAI;
-import javax.media.jai.operator.CropDescriptor;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,6 +38,7 @@ import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.MetaTile;
 import org.geowebcache.mime.FormatModifier;
+import org.geowebcache.mime.ImageIOPool;
 import org.geowebcache.mime.MimeType;
 
 public class WMSMetaTile extends MetaTile {
@@ -50,9 +46,9 @@ public class WMSMetaTile extends MetaTile {
 
     private BufferedImage img = null; // buffer for storing the metatile, if it is an image
 
-    private RenderedImage[] tiles = null; // array with tiles (after cropping)
+    private BufferedImage[] tiles = null; // array with tiles, sharing the raster of img
 
-    private final RenderingHints no_cache = new RenderingHints(JAI.KEY_TILE_CACHE, null);
+    private byte[][] encoded = null; // the tiles encoded so far
 
     protected WMSLayer wmsLayer = null;
     
@@ -173,9 +169,12 @@ public class WMSMetaTile extends MetaTile {
                     + " received null instead of byte[]");
         }
 
-        InputStream is = new ByteArrayInputStream(image);
+        MimeType requestFormat = responseFormat;
+        if(formatModifier != null) {
+            requestFormat = formatModifier.getRequestFormat();
+        }
         try {
-            this.img = ImageIO.read(is);
+            this.img = ImageIOPool.read(image, requestFormat);
         } catch (IOException ioe) {
             throw new GeoWebCacheException("WMSMetaTile.setImageBytes() "
                     + "failed on ImageIO.read(byte[" + image.length + "])");
@@ -185,19 +184,36 @@ public class WMSMetaTile extends MetaTile {
         }
     }
 
+    /**
+     * Decodes the metatile while it is being read, instead of buffering the whole response first
+     * 
+     * @param image
+     *            the response of the backend, it is not closed
+     * @throws IOException
+     *             if reading the stream fails
+     */
+    protected void setImageStream(InputStream image) throws GeoWebCacheException, IOException {
+        this.img = ImageIOPool.read(image, getRequestFormat());
+        if (img == null) {
+            throw new GeoWebCacheException("No image reader for the response in "
+                    + getRequestFormat().getFormat() + ". Unable to read image.");
+        }
+    }
+
     /**
      * Cuts the metaTile into the specified number of tiles, the actual number
      * of tiles is determined by metaX and metaY, not the width and height
-     * provided here.
+     * provided here. The tiles are views on the decoded metatile, no pixels are copied.
      * 
      * @param tileWidth
      *            width of each tile
      * @param tileHeight
      *            height of each tile
      */
-    protected void createTiles(int tileHeight, int tileWidth, boolean useJAI) {
+    protected void createTiles(int tileHeight, int tileWidth) {
         int tileCount = metaX * metaY;
-        tiles = new RenderedImage[tileCount];
+        tiles = new BufferedImage[tileCount];
+        encoded = new byte[tileCount][];
 
         if (tileCount > 1) {
             for (int y = 0; y < metaY; y++) {
@@ -205,8 +221,7 @@ public class WMSMetaTile extends MetaTile {
                     int i = x * tileWidth + gutter[0];
                     int j = (metaY - 1 - y) * tileHeight + gutter[3];
 
-                    tiles[y * metaX + x] = createTile(i, j, tileWidth,
-                            tileHeight, useJAI);
+                    tiles[y * metaX + x] = createTile(i, j, tileWidth, tileHeight);
                 }
             }
         } else {
@@ -215,54 +230,34 @@ public class WMSMetaTile extends MetaTile {
     }
 
     /**
-     * Extracts a single tile from the metatile. Handles JPEG
+     * Extracts a single tile from the metatile, as an image whose raster is a child of the
+     * metatile raster sharing its data buffer
      * 
      * @param minX
      * @param minY
      * @param tileWidth
      * @param tileHeight
-     * @return
+     * @return the tile, or null if the area is not inside the metatile
      */
-    private RenderedImage createTile(int minX, int minY, int tileWidth,
-            int tileHeight, boolean useJAI) {
-
-        RenderedImage tile = null;
-
-        // TODO JAI is messing up for JPEG, this is a hack, retest
-        if (useJAI) {
-            // Use JAI
-            try { 
-            tile = CropDescriptor.create(img, new Float(minX), new Float(minY),
-                    new Float(tileWidth), new Float(tileHeight), no_cache);
-            } catch (IllegalArgumentException iae) {
-                log.error("Error cropping, image is " 
-                        + img.getWidth() + "x" + img.getHeight()
-                        + ", requesting a "+tileWidth+"x"+tileHeight
-                        +" tile starting at "+minX+","+minY+".");
-                log.error("Message from JAI: " + iae.getMessage());
-                iae.printStackTrace();
-            }
-        } else {
-            // Don't use JAI
-            try {
-                tile = img.getSubimage(minX, minY, tileWidth, tileHeight);
-            } catch (RasterFormatException rfe) {
-                log.error("RendereedImage.getSubimage(" + minX + "," + minY
-                        + "," + tileWidth + "," + tileHeight
-                        + ") threw exception:");
-                rfe.printStackTrace();
-            }
+    private BufferedImage createTile(int minX, int minY, int tileWidth, int tileHeight) {
+        WritableRaster raster;
+        try {
+            raster = img.getRaster().createWritableChild(minX, minY, tileWidth, tileHeight, 0, 0,
+                    null);
+        } catch (RasterFormatException rfe) {
+            log.error("Error cropping, image is " + img.getWidth() + "x" + img.getHeight()
+                    + ", requesting a " + tileWidth + "x" + tileHeight + " tile starting at "
+                    + minX + "," + minY + ": " + rfe.getMessage());
+            return null;
         }
 
+        BufferedImage tile = new BufferedImage(img.getColorModel(), raster, img
+                .isAlphaPremultiplied(), null);
+
         if (log.isDebugEnabled()) {
             log.debug("Thread: " + Thread.currentThread().getName() + "\n"
-                    + tile.toString() + ", "
-                    + "Information from tile (width, height, minx, miny): "
-                    + tile.getWidth() + ", " + tile.getHeight() + ", "
-                    + tile.getMinX() + ", " + tile.getMinY() + "\n"
-                    + "Information set (width, height, minx, miny): "
-                    + new Float(tileWidth) + ", " + new Float(tileHeight)
-                    + ", " + new Float(minX) + ", " + new Float(minY));
+                    + "Information set (width, height, minx, miny): " + tileWidth + ", "
+                    + tileHeight + ", " + minX + ", " + minY);
         }
 
         return tile;
@@ -273,8 +268,6 @@ public class WMSMetaTile extends MetaTile {
      * 
      * @param tileIdx
      *            the index of the tile relative to the internal array
-     * @param format
-     *            the Java name for the format
      * @param os
      *            the outputstream
      * @return true if no error was encountered
@@ -283,33 +276,87 @@ public class WMSMetaTile extends MetaTile {
     protected boolean writeTileToStream(int tileIdx, OutputStream os)
             throws IOException {
         if (tiles != null) {
-            String format = super.responseFormat.getInternalName();
+            os.write(encodeTile(tileIdx));
+            return true;
+        }
 
+        return false;
+    }
+    
+    /**
+     * Encodes one tile from the internal array of tiles, once, the same bytes are returned if it
+     * is asked for again
+     * 
+     * @param tileIdx
+     *            the index of the tile relative to the internal array
+     * @return the encoded tile
+     * @throws IOException
+     */
+    protected byte[] encodeTile(int tileIdx) throws IOException {
+        if (encoded[tileIdx] == null) {
             if (log.isDebugEnabled()) {
                 log.debug("Thread: " + Thread.currentThread().getName() + " writing: " + tileIdx);
             }
-            
-            
-            // TODO should we recycle the writers ? 
-            // GR: it'd be only a 2% perf gain according to profiler
-            ImageWriter writer = javax.imageio.ImageIO.getImageWritersByFormatName(format).next();
-            ImageWriteParam param  = writer.getDefaultWriteParam();
-            
-            if(this.formatModifier != null) {
-                param = formatModifier.adjustImageWriteParam(param);
+            encoded[tileIdx] = ImageIOPool.write(tiles[tileIdx], responseFormat, formatModifier);
+        }
+        return encoded[tileIdx];
+    }
+    
+    /**
+     * Encodes all the tiles, those not encoded yet in parallel on the executor, the first of them
+     * on the calling thread
+     * 
+     * @param executor
+     *            where to encode the tiles, null to encode them one after the other
+     * @return the encoded tiles, in the order of the internal array
+     * @throws IOException
+     */
+    protected byte[][] encodeTiles(Executor executor) throws IOException {
+        List<Integer> pending = new ArrayList<Integer>(encoded.length);
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] == null) {
+                pending.add(i);
             }
-            
-            ImageOutputStream imgOut = new MemoryCacheImageOutputStream(os);
-            writer.setOutput(imgOut);
-            IIOImage image = new IIOImage(tiles[tileIdx], null, null);
-            writer.write(null, image, param);
-            imgOut.close();
-            writer.dispose();
-            
-            return true;
         }
-
-        return false;
+        
+        if (executor == null || pending.size() < 2) {
+            for (int tileIdx : pending) {
+                encodeTile(tileIdx);
+            }
+            return encoded;
+        }
+        
+        List<FutureTask<byte[]>> tasks = new ArrayList<FutureTask<byte[]>>(pending.size());
+        for (final int tileIdx : pending.subList(1, pending.size())) {
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return encodeTile(tileIdx);
+                }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+        
+        encodeTile(pending.get(0));
+        try {
+            for (FutureTask<byte[]> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding the tiles of" + debugString());
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause.getMessage());
+        }
+        return encoded;
     }
 
     public String debugString() {
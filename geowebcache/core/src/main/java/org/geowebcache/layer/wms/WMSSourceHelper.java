@@ -44,6 +44,26 @@ public abstract class WMSSourceHelper {
 
         return makeRequest(metaTile, layer, wmsParams, metaTile.getRequestFormat().getFormat());
     }
+
+    /**
+     * Requests the image of a metatile and decodes it into the metatile. This buffers the
+     * response returned by {@link #makeRequest(WMSMetaTile)}, helpers that receive the response
+     * as a stream override it to decode the image as it arrives.
+     * 
+     * @param metaTile
+     * @throws GeoWebCacheException
+     *             if the request failed or the response is not an image
+     */
+    public void fetchMetaTile(WMSMetaTile metaTile) throws GeoWebCacheException {
+        byte[] response = makeRequest(metaTile);
+
+        if (metaTile.getError() || response == null) {
+            throw new GeoWebCacheException("Empty metatile, error message: "
+                    + metaTile.getErrorMessage());
+        }
+
+        metaTile.setImageBytes(response);
+    }
     
     public byte[] makeRequest(ConveyorTile tile) throws GeoWebCacheException {
         WMSLayer layer = (WMSLayer) tile.getLayer();
@@ -94,7 +94,7 @@ public class FormatModifier {
         return palette;
     }
     
-    private Float getCompressionQuality() {
+    Float getCompressionQuality() {
         if(compressionQuality != null && compressQual == null) {
             compressQual = Float.parseFloat(compressionQuality);
         }
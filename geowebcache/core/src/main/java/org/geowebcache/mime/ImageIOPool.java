@@ -0,0 +1,253 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.geowebcache.io.ByteArrayImageOutputStream;
+
+/**
+ * Keeps ImageIO writers and readers for reuse, instead of looking them up in the service registry
+ * and creating new ones for every tile.
+ * <p>
+ * Writers are pooled by format and {@link FormatModifier} write parameters, each with its own
+ * output buffer. Readers are pooled by format. At most {@link #MAX_IDLE} of each are kept, the
+ * pool never blocks and creates new ones when it runs out.
+ * </p>
+ */
+public class ImageIOPool {
+
+    static final int MAX_IDLE = 16;
+
+    private static final ConcurrentMap<String, Pool<PooledWriter>> writers = 
+        new ConcurrentHashMap<String, Pool<PooledWriter>>();
+
+    private static final ConcurrentMap<String, Pool<ImageReader>> readers = 
+        new ConcurrentHashMap<String, Pool<ImageReader>>();
+
+    private ImageIOPool() {
+        // static methods only
+    }
+
+    /**
+     * Encodes an image the way {@link ImageIO#write} would, with the compression settings of the
+     * format modifier, if any
+     * 
+     * @param image
+     *            the image to encode
+     * @param format
+     *            the format to encode it in
+     * @param formatModifier
+     *            the write parameters, or null for the defaults
+     * @return the encoded image
+     */
+    public static byte[] write(RenderedImage image, MimeType format,
+            FormatModifier formatModifier) throws IOException {
+        String key = format.getInternalName();
+        if (formatModifier != null && formatModifier.getCompressionQuality() != null) {
+            key = key + ";quality=" + formatModifier.getCompressionQuality();
+        }
+        Pool<PooledWriter> pool = pool(writers, key);
+        PooledWriter writer = pool.take();
+        if (writer == null) {
+            writer = new PooledWriter(format, formatModifier);
+        }
+        boolean reusable = false;
+        try {
+            byte[] encoded = writer.write(image);
+            reusable = true;
+            return encoded;
+        } finally {
+            if (!reusable || !pool.offer(writer)) {
+                writer.writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes an image the way {@link ImageIO#read} would, with a pooled reader if it is in the
+     * expected format
+     * 
+     * @param data
+     *            the encoded image
+     * @param expected
+     *            the format the image should be in, anything else is left to ImageIO to work out
+     * @return the image, or null if there is no reader for it
+     */
+    public static BufferedImage read(byte[] data, MimeType expected) throws IOException {
+        return read(new ByteArrayInputStream(data), expected);
+    }
+
+    /**
+     * Decodes an image while it is read from the stream, so the encoded image never has to be
+     * held in a byte array. The stream is not closed.
+     * 
+     * @param input
+     *            the encoded image
+     * @param expected
+     *            the format the image should be in, anything else is left to ImageIO to work out
+     * @return the image, or null if there is no reader for it
+     */
+    public static BufferedImage read(InputStream input, MimeType expected) throws IOException {
+        ImageInputStream in = new MemoryCacheImageInputStream(input);
+        try {
+            return read(in, expected);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static BufferedImage read(ImageInputStream in, MimeType expected)
+            throws IOException {
+        String format = expected.getFileExtension();
+        Pool<ImageReader> pool = pool(readers, format);
+        ImageReader reader = pool.take();
+        if (reader == null) {
+            Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName(format);
+            if (!it.hasNext()) {
+                return readAnyFormat(in);
+            }
+            reader = it.next();
+        }
+
+        boolean reusable = false;
+        try {
+            // canDecodeInput() marks and resets the stream, another reader can start over
+            if (!reader.getOriginatingProvider().canDecodeInput(in)) {
+                reusable = true;
+                return readAnyFormat(in);
+            }
+            reader.setInput(in, true, true);
+            BufferedImage image = reader.read(0);
+            reusable = true;
+            return image;
+        } finally {
+            reader.reset();
+            if (!reusable || !pool.offer(reader)) {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Like {@link ImageIO#read(ImageInputStream)}, but leaves closing the stream to the caller
+     */
+    private static BufferedImage readAnyFormat(ImageInputStream in) throws IOException {
+        Iterator<ImageReader> it = ImageIO.getImageReaders(in);
+        if (!it.hasNext()) {
+            return null;
+        }
+        ImageReader reader = it.next();
+        try {
+            reader.setInput(in, true, true);
+            return reader.read(0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static <T> Pool<T> pool(ConcurrentMap<String, Pool<T>> pools, String key) {
+        Pool<T> pool = pools.get(key);
+        if (pool == null) {
+            pool = new Pool<T>();
+            Pool<T> existing = pools.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * A bounded stack of idle instances
+     */
+    private static class Pool<T> {
+        private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+
+        // ConcurrentLinkedQueue.size() walks the queue
+        private final AtomicInteger size = new AtomicInteger();
+
+        T take() {
+            T instance = idle.poll();
+            if (instance != null) {
+                size.decrementAndGet();
+            }
+            return instance;
+        }
+
+        boolean offer(T instance) {
+            if (size.incrementAndGet() > MAX_IDLE) {
+                size.decrementAndGet();
+                return false;
+            }
+            idle.offer(instance);
+            return true;
+        }
+    }
+
+    /**
+     * A writer with its write parameters and output buffer
+     */
+    private static class PooledWriter {
+        final ImageWriter writer;
+
+        final ImageWriteParam param;
+
+        final ByteArrayImageOutputStream out = new ByteArrayImageOutputStream(16 * 1024);
+
+        PooledWriter(MimeType format, FormatModifier formatModifier) throws IOException {
+            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format
+                    .getInternalName());
+            if (!it.hasNext()) {
+                throw new IOException("No image writer for " + format.getInternalName());
+            }
+            writer = it.next();
+            ImageWriteParam defaults = writer.getDefaultWriteParam();
+            if (formatModifier != null) {
+                defaults = formatModifier.adjustImageWriteParam(defaults);
+            }
+            param = defaults;
+        }
+
+        byte[] write(RenderedImage image) throws IOException {
+            out.clear();
+            writer.setOutput(out);
+            try {
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.reset();
+            }
+            return out.toByteArray();
+        }
+    }
+}
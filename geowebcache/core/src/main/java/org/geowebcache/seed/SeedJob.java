@@ -0,0 +1,141 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.PartitionedTileRangeIterator;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeProgress;
+
+/**
+ * A seed or reseed request as recorded in the {@link SeedJournal}: what to seed, how, and how far
+ * the tasks working on it got.
+ */
+public class SeedJob {
+
+    private final String id;
+
+    private final TileRange tileRange;
+
+    private final TYPE type;
+
+    private final int[] metaTilingFactors;
+
+    private final int threadCount;
+
+    private final boolean filterUpdate;
+
+    private final int chunkSize;
+
+    /** The progress read from the journal, null for a new job */
+    private final TileRangeProgress savedProgress;
+
+    private PartitionedTileRangeIterator iterator;
+
+    private SeedJournal journal;
+
+    private final AtomicInteger runningTasks = new AtomicInteger();
+
+    public SeedJob(String id, TileRange tileRange, TYPE type, int[] metaTilingFactors,
+            int threadCount, boolean filterUpdate, int chunkSize, TileRangeProgress savedProgress) {
+        this.id = id;
+        this.tileRange = tileRange;
+        this.type = type;
+        this.metaTilingFactors = metaTilingFactors;
+        this.threadCount = threadCount;
+        this.filterUpdate = filterUpdate;
+        this.chunkSize = chunkSize;
+        this.savedProgress = savedProgress;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public TileRange getTileRange() {
+        return tileRange;
+    }
+
+    public TYPE getType() {
+        return type;
+    }
+
+    /**
+     * @return the meta tiling factors the range was expanded to, the progress is only valid for
+     *         these
+     */
+    public int[] getMetaTilingFactors() {
+        return metaTilingFactors;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public boolean getFilterUpdate() {
+        return filterUpdate;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the current progress while the job is running, otherwise the progress recorded in
+     *         the journal, null if nothing was recorded
+     */
+    public TileRangeProgress getProgress() {
+        if (iterator != null) {
+            return iterator.getProgress();
+        }
+        return savedProgress;
+    }
+
+    /**
+     * @return whether the whole range has been seeded
+     */
+    public boolean isComplete() {
+        return iterator != null && iterator.isComplete();
+    }
+
+    /**
+     * @return an iterator over the part of the range that is still to be seeded
+     */
+    PartitionedTileRangeIterator createIterator() {
+        return new PartitionedTileRangeIterator(tileRange, metaTilingFactors, threadCount,
+                chunkSize, savedProgress);
+    }
+
+    /**
+     * Called before the tasks of the job are dispatched
+     */
+    void start(SeedJournal journal, PartitionedTileRangeIterator iterator, int taskCount) {
+        this.journal = journal;
+        this.iterator = iterator;
+        runningTasks.set(taskCount);
+        journal.started(this);
+    }
+
+    /**
+     * Called by each task of the job when it stops, for whatever reason
+     */
+    void taskFinished() {
+        if (runningTasks.decrementAndGet() == 0) {
+            journal.finished(this);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeProgress;
+import org.geowebcache.util.FileUtils;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Keeps a small file per seed job with what the job is about and how far it got, so that jobs
+ * interrupted by a shutdown or a crash can be resumed where they left off, see
+ * {@link TileBreeder#resume(String)}.
+ * <p>
+ * The progress of the running jobs is written every {@code checkpointInterval} milliseconds and
+ * when the last task of a job stops. The file is removed once the job has seeded its whole range.
+ * Files are written to a temporary file first and then renamed, so a crash while writing leaves
+ * the previous checkpoint in place. After a crash at most one interval of work is done again.
+ * </p>
+ */
+public class SeedJournal implements DisposableBean {
+    private static Log log = LogFactory.getLog(SeedJournal.class);
+
+    private static final String SUFFIX = ".seed";
+
+    private final File directory;
+
+    private long checkpointInterval = 30 * 1000;
+
+    private final ConcurrentHashMap<String, SeedJob> running = new ConcurrentHashMap<String, SeedJob>();
+
+    private Timer timer;
+
+    /**
+     * Keeps the journal in the {@code seed_journal} directory of the cache
+     */
+    public SeedJournal(DefaultStorageFinder defaultStorageFinder) throws StorageException {
+        this(new File(defaultStorageFinder.getDefaultPath(), "seed_journal"));
+    }
+
+    public SeedJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param checkpointInterval
+     *            milliseconds between writes of the progress of the running jobs
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return a new, unique, job id
+     */
+    String newJobId() {
+        return UUID.randomUUID().toString();
+    }
+
+    synchronized void started(SeedJob job) {
+        running.put(job.getId(), job);
+        write(job);
+
+        if (timer == null) {
+            timer = new Timer("GWC seed journal", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    checkpoint();
+                }
+            }, checkpointInterval, checkpointInterval);
+        }
+    }
+
+    void finished(SeedJob job) {
+        synchronized (job) {
+            running.remove(job.getId());
+            if (job.isComplete()) {
+                File file = fileFor(job.getId());
+                if (file.exists() && !file.delete()) {
+                    log.error("Unable to delete the seed journal " + file.getAbsolutePath());
+                }
+            } else {
+                writeFile(job);
+                log.info("Seed job " + job.getId() + " on " + job.getTileRange().layerName
+                        + " stopped before it was complete, it can be resumed");
+            }
+        }
+    }
+
+    /**
+     * Writes the progress of all running jobs
+     */
+    public void checkpoint() {
+        Iterator<SeedJob> iter = running.values().iterator();
+        while (iter.hasNext()) {
+            write(iter.next());
+        }
+    }
+
+    private void write(SeedJob job) {
+        synchronized (job) {
+            // the job may have finished in the meantime, its file is gone for good then
+            if (running.containsKey(job.getId())) {
+                writeFile(job);
+            }
+        }
+    }
+
+    private void writeFile(SeedJob job) {
+        Properties props = toProperties(job);
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.error("Unable to create the seed journal directory " + directory.getAbsolutePath());
+            return;
+        }
+        File file = fileFor(job.getId());
+        File tmp = new File(directory, job.getId() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            props.store(out, "Seed job on " + job.getTileRange().layerName);
+            out.getFD().sync();
+        } catch (IOException ioe) {
+            log.error("Unable to write the seed journal " + tmp.getAbsolutePath() + ": "
+                    + ioe.getMessage());
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    // nothing to do
+                }
+            }
+        }
+        if (!FileUtils.renameFile(tmp, file)) {
+            log.error("Unable to rename " + tmp.getAbsolutePath() + " to "
+                    + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return the jobs in the journal that are not running, each with the progress it had made
+     */
+    public List<SeedJob> getUnfinishedJobs() {
+        List<SeedJob> jobs = new ArrayList<SeedJob>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return jobs;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            String id = name.substring(0, name.length() - SUFFIX.length());
+            if (running.containsKey(id)) {
+                continue;
+            }
+            try {
+                jobs.add(read(id, file));
+            } catch (Exception e) {
+                log.error("Unable to read the seed journal " + file.getAbsolutePath() + ": "
+                        + e.getMessage());
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Removes a job that is not running from the journal, it can not be resumed afterwards
+     *
+     * @return false if there was no such job, or it is running
+     */
+    public boolean discard(String id) {
+        if (running.containsKey(id)) {
+            return false;
+        }
+        return fileFor(id).delete();
+    }
+
+    private File fileFor(String id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    private static Properties toProperties(SeedJob job) {
+        TileRange tr = job.getTileRange();
+        Properties props = new Properties();
+        props.setProperty("layer", tr.layerName);
+        props.setProperty("gridSet", tr.gridSetId);
+        props.setProperty("format", tr.mimeType.getFormat());
+        if (tr.parameters != null) {
+            props.setProperty("parameters", tr.parameters);
+        }
+        props.setProperty("type", job.getType().name());
+        int[] meta = job.getMetaTilingFactors();
+        props.setProperty("metaTiling", meta[0] + "," + meta[1]);
+        props.setProperty("threadCount", Integer.toString(job.getThreadCount()));
+        props.setProperty("filterUpdate", Boolean.toString(job.getFilterUpdate()));
+        props.setProperty("chunkSize", Integer.toString(job.getChunkSize()));
+        props.setProperty("zoomStart", Integer.toString(tr.zoomStart));
+        props.setProperty("zoomStop", Integer.toString(tr.zoomStop));
+
+        TileRangeProgress progress = job.getProgress();
+        for (int z = tr.zoomStart; z <= tr.zoomStop; z++) {
+            long[] bounds = tr.rangeBounds[z];
+            props.setProperty("bounds." + z, bounds[0] + "," + bounds[1] + "," + bounds[2] + ","
+                    + bounds[3]);
+
+            if (progress != null) {
+                StringBuilder done = new StringBuilder();
+                for (long[] range : progress.getCompleted(z)) {
+                    if (done.length() > 0) {
+                        done.append(',');
+                    }
+                    done.append(range[0]).append('-').append(range[1]);
+                }
+                if (done.length() > 0) {
+                    props.setProperty("done." + z, done.toString());
+                }
+            }
+        }
+
+        if (progress != null && !progress.getPartial().isEmpty()) {
+            StringBuilder partial = new StringBuilder();
+            for (long[] p : progress.getPartial()) {
+                if (partial.length() > 0) {
+                    partial.append(',');
+                }
+                partial.append(p[0]).append(':').append(p[1]).append(':').append(p[2]);
+            }
+            props.setProperty("partial", partial.toString());
+        }
+        return props;
+    }
+
+    private static SeedJob read(String id, File file) throws IOException, MimeException {
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        int zoomStart = Integer.parseInt(required(props, "zoomStart"));
+        int zoomStop = Integer.parseInt(required(props, "zoomStop"));
+        long[][] rangeBounds = new long[zoomStop + 1][];
+        TileRangeProgress progress = new TileRangeProgress();
+        for (int z = zoomStart; z <= zoomStop; z++) {
+            String[] bounds = required(props, "bounds." + z).split(",");
+            rangeBounds[z] = new long[4];
+            for (int i = 0; i < 4; i++) {
+                rangeBounds[z][i] = Long.parseLong(bounds[i]);
+            }
+
+            String done = props.getProperty("done." + z);
+            if (done != null) {
+                for (String range : done.split(",")) {
+                    int dash = range.indexOf('-');
+                    progress.addCompleted(z, Long.parseLong(range.substring(0, dash)), Long
+                            .parseLong(range.substring(dash + 1)));
+                }
+            }
+        }
+        String partial = props.getProperty("partial");
+        if (partial != null) {
+            for (String p : partial.split(",")) {
+                String[] parts = p.split(":");
+                progress.addPartial(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long
+                        .parseLong(parts[2]));
+            }
+        }
+
+        TileRange tr = new TileRange(required(props, "layer"), required(props, "gridSet"),
+                zoomStart, zoomStop, rangeBounds, MimeType.createFromFormat(required(props,
+                        "format")), props.getProperty("parameters"));
+
+        String[] meta = required(props, "metaTiling").split(",");
+        int[] metaTilingFactors = { Integer.parseInt(meta[0]), Integer.parseInt(meta[1]) };
+
+        return new SeedJob(id, tr, TYPE.valueOf(required(props, "type")), metaTilingFactors, Integer
+                .parseInt(required(props, "threadCount")), Boolean.valueOf(
+                props.getProperty("filterUpdate")).booleanValue(), Integer.parseInt(required(
+                props, "chunkSize")), progress);
+    }
+
+    private static String required(Properties props, String key) throws IOException {
+        String value = props.getProperty(key);
+        if (value == null) {
+            throw new IOException("Missing " + key);
+        }
+        return value;
+    }
+
+    /**
+     * Stops the periodic checkpoints and writes the progress of the running jobs one last time
+     *
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+        checkpoint();
+    }
+}
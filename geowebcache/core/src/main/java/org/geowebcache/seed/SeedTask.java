@@ -45,6 +45,8 @@ class SeedTask extends GWCTask {
 
     private StorageBroker storageBroker;
 
+    private SeedJob job;
+
     /**
      * Constructs a SeedTask from a SeedRequest
      * 
@@ -69,10 +71,27 @@ class SeedTask extends GWCTask {
         super.state = GWCTask.STATE.READY;
     }
 
+    /**
+     * Sets the journaled job this task works for, the task tells it when it stops
+     */
+    void setJob(SeedJob job) {
+        this.job = job;
+    }
+
     /**
      * Method doAction(). this is where all the actual work is being done to seed a tile layer.
      */
     public void doAction() throws GeoWebCacheException, InterruptedException {
+        try {
+            seed();
+        } finally {
+            if (job != null) {
+                job.taskFinished();
+            }
+        }
+    }
+
+    private void seed() throws GeoWebCacheException, InterruptedException {
         super.state = GWCTask.STATE.RUNNING;
 
         // Lower the priority of the thread
@@ -118,6 +137,7 @@ class SeedTask extends GWCTask {
                 super.state = GWCTask.STATE.DEAD;
                 throw gwce;
             }
+            trIter.locationDone();
 
             if (log.isDebugEnabled()) {
                 log.debug(Thread.currentThread().getName() + " seeded " + Arrays.toString(gridLoc));
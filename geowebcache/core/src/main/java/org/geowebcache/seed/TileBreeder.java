@@ -18,7 +18,10 @@
  */
 package org.geowebcache.seed;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -32,15 +35,18 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.DiscontinuousTileRange;
+import org.geowebcache.storage.PartitionedTileRangeIterator;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
+import org.springframework.beans.factory.InitializingBean;
 
 /**
  * 
  * @author Gabriel Roldan, based on Marius Suta's and Arne Kepp's SeedRestlet
  */
-public class TileBreeder {
+public class TileBreeder implements InitializingBean {
     private static Log log = LogFactory.getLog(TileBreeder.class);
 
     private SeederThreadPoolExecutor threadPool;
@@ -49,6 +55,12 @@ public class TileBreeder {
 
     private StorageBroker storageBroker;
 
+    private SeedJournal seedJournal;
+
+    private boolean resumeUnfinishedJobs = false;
+
+    private Thread resumeThread;
+
     public void seed(final String layerName, final SeedRequest sr) throws GeoWebCacheException {
 
         TileLayer tl = findTileLayer(layerName);
@@ -69,13 +81,43 @@ public class TileBreeder {
             threadCount = 1;
         }
 
-        if (threadCount > threadPool.getMaximumPoolSize()) {
-            throw new GeoWebCacheException("Asked to use " + threadCount + " threads,"
-                    + " but maximum is " + threadPool.getMaximumPoolSize());
+        // the filter of a discontinuous range can not be journaled
+        if (seedJournal != null && type != GWCTask.TYPE.TRUNCATE
+                && !(tr instanceof DiscontinuousTileRange)) {
+            SeedJob job = new SeedJob(seedJournal.newJobId(), tr, type, tl
+                    .getMetaTilingFactors(), threadCount, filterUpdate,
+                    PartitionedTileRangeIterator.DEFAULT_CHUNK_SIZE, null);
+            return createTasks(job, tl);
         }
 
-        TileRangeIterator trIter = new TileRangeIterator(tr, tl.getMetaTilingFactors());
+        checkThreadCount(threadCount);
+
+        // every thread works its own part of the range, see PartitionedTileRangeIterator
+        TileRangeIterator trIter = new PartitionedTileRangeIterator(tr, tl
+                .getMetaTilingFactors(), threadCount);
+
+        return createTasks(trIter, tl, type, threadCount, filterUpdate);
+    }
+
+    /**
+     * Creates the tasks for the part of a journaled job that is still to be done, and records the
+     * job as started in the journal
+     */
+    private GWCTask[] createTasks(SeedJob job, TileLayer tl) throws GeoWebCacheException {
+        checkThreadCount(job.getThreadCount());
 
+        PartitionedTileRangeIterator trIter = job.createIterator();
+        GWCTask[] tasks = createTasks(trIter, tl, job.getType(), job.getThreadCount(), job
+                .getFilterUpdate());
+        for (int i = 0; i < tasks.length; i++) {
+            ((SeedTask) tasks[i]).setJob(job);
+        }
+        job.start(seedJournal, trIter, tasks.length);
+        return tasks;
+    }
+
+    private GWCTask[] createTasks(TileRangeIterator trIter, TileLayer tl, GWCTask.TYPE type,
+            int threadCount, boolean filterUpdate) {
         GWCTask[] tasks = new GWCTask[threadCount];
 
         for (int i = 0; i < threadCount; i++) {
@@ -86,6 +128,101 @@ public class TileBreeder {
         return tasks;
     }
 
+    private void checkThreadCount(int threadCount) throws GeoWebCacheException {
+        if (threadCount > threadPool.getMaximumPoolSize()) {
+            throw new GeoWebCacheException("Asked to use " + threadCount + " threads,"
+                    + " but maximum is " + threadPool.getMaximumPoolSize());
+        }
+    }
+
+    /**
+     * @return the seed jobs in the journal that stopped before seeding their whole range, empty
+     *         if there is no journal
+     */
+    public List<SeedJob> getUnfinishedJobs() {
+        if (seedJournal == null) {
+            return new ArrayList<SeedJob>(0);
+        }
+        return seedJournal.getUnfinishedJobs();
+    }
+
+    /**
+     * Carries on with an unfinished seed job, the parts of its range that were done are not
+     * visited again, not even to check the cache
+     */
+    public void resume(String jobId) throws GeoWebCacheException {
+        for (SeedJob job : getUnfinishedJobs()) {
+            if (job.getId().equals(jobId)) {
+                resume(job);
+                return;
+            }
+        }
+        throw new GeoWebCacheException("No unfinished seed job " + jobId);
+    }
+
+    private void resume(SeedJob job) throws GeoWebCacheException {
+        TileLayer tl = findTileLayer(job.getTileRange().layerName);
+        if (!Arrays.equals(tl.getMetaTilingFactors(), job.getMetaTilingFactors())) {
+            throw new GeoWebCacheException("The meta tiling factors of " + tl.getName()
+                    + " have changed, seed job " + job.getId() + " can not be resumed");
+        }
+        log.info("Resuming seed job " + job.getId() + " on " + tl.getName());
+        dispatchTasks(createTasks(job, tl));
+    }
+
+    /**
+     * Removes an unfinished job from the journal
+     *
+     * @return false if there was no such job
+     */
+    public boolean discardJob(String jobId) {
+        return seedJournal != null && seedJournal.discard(jobId);
+    }
+
+    /**
+     * Lists the unfinished seed jobs found in the journal, and resumes them if configured to.
+     * <p>
+     * Resuming a job needs its layer, which is only known once the configuration has been
+     * loaded, so the jobs are resumed from a thread of their own rather than holding up the
+     * startup of the application context.
+     * </p>
+     *
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        final List<SeedJob> unfinished = getUnfinishedJobs();
+        if (!resumeUnfinishedJobs) {
+            for (SeedJob job : unfinished) {
+                log.info("Found unfinished " + job.getType() + " job " + job.getId() + " on "
+                        + job.getTileRange().layerName + ", it can be resumed");
+            }
+            return;
+        }
+        if (unfinished.isEmpty()) {
+            return;
+        }
+        resumeThread = new Thread(new Runnable() {
+            public void run() {
+                for (SeedJob job : unfinished) {
+                    try {
+                        resume(job);
+                    } catch (GeoWebCacheException gwce) {
+                        log.error(gwce.getMessage());
+                    }
+                }
+            }
+        }, "GWC Seed Job Resumer");
+        resumeThread.setDaemon(true);
+        resumeThread.start();
+    }
+
+    /**
+     * @return the thread resuming the unfinished jobs found at startup, null if there was none
+     */
+    Thread getResumeThread() {
+        return resumeThread;
+    }
+
     public void dispatchTasks(GWCTask[] tasks) {
         for (int i = 0; i < tasks.length; i++) {
             threadPool.submit(new MTSeeder(tasks[i]));
@@ -206,6 +343,21 @@ public class TileBreeder {
         storageBroker = sb;
     }
 
+    /**
+     * Optional, without a journal seed jobs can not be resumed
+     */
+    public void setSeedJournal(SeedJournal seedJournal) {
+        this.seedJournal = seedJournal;
+    }
+
+    /**
+     * Whether to resume the unfinished seed jobs found in the journal at startup, rather than
+     * just listing them in the log. Defaults to false.
+     */
+    public void setResumeUnfinishedJobs(boolean resumeUnfinishedJobs) {
+        this.resumeUnfinishedJobs = resumeUnfinishedJobs;
+    }
+
     public TileLayer findTileLayer(String layerName) throws GeoWebCacheException {
         TileLayer layer = null;
 
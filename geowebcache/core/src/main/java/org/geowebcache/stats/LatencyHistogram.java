@@ -0,0 +1,137 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, in log scaled buckets, so percentiles can be worked out
+ * without keeping the samples.
+ * <p>
+ * Latencies are kept in microseconds. Each power of two is split into 8 buckets, so a percentile
+ * is off by 12.5% at most. Recording does not lock nor allocate.
+ * </p>
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** 2^36 microseconds is about 19 hours, anything longer goes to the last bucket */
+    private static final int MAX_EXPONENT = 36;
+
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * @param nanos how long it took, in nanoseconds
+     */
+    public void record(long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the smallest latency, in microseconds, that goes to the given bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return ((long) SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the latency, in milliseconds, under which the given fraction of the samples fall
+     */
+    public double getPercentile(double quantile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < BUCKETS - 1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                break;
+            }
+        }
+        final long upperBound = lowerBound(bucket + 1) - 1;
+        return Math.min(upperBound, maxMicros.get()) / 1000.0;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean() {
+        final long count = this.count.get();
+        return count == 0 ? 0 : totalMicros.get() / 1000.0 / count;
+    }
+
+    public double getMax() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    public double getP50() {
+        return getPercentile(0.50);
+    }
+
+    public double getP95() {
+        return getPercentile(0.95);
+    }
+
+    public double getP99() {
+        return getPercentile(0.99);
+    }
+}
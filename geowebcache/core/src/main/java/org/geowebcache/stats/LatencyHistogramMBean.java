@@ -0,0 +1,36 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+/**
+ * The latencies of one stage of the tile pipeline for one layer, as seen through JMX. All times
+ * are in milliseconds.
+ * 
+ * @see LatencyHistogram
+ */
+public interface LatencyHistogramMBean {
+
+    public long getCount();
+
+    public double getMean();
+
+    public double getMax();
+
+    public double getP50();
+
+    public double getP95();
+
+    public double getP99();
+}
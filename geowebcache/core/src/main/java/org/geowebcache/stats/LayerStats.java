@@ -0,0 +1,73 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.stats.PipelineStats.Stage;
+
+/**
+ * The cache hits and misses of a layer, and the latencies of each stage of the pipeline serving
+ * its tiles
+ */
+public class LayerStats implements LayerStatsMBean {
+
+    private final String layerName;
+
+    private final LatencyHistogram[] latencies;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    LayerStats(String layerName) {
+        this.layerName = layerName;
+        this.latencies = new LatencyHistogram[Stage.values().length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public LatencyHistogram getLatency(Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    void countCacheResult(CacheResult cacheResult) {
+        if (cacheResult == CacheResult.HIT) {
+            hits.incrementAndGet();
+        } else if (cacheResult == CacheResult.MISS) {
+            misses.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        final long hits = this.hits.get();
+        final long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
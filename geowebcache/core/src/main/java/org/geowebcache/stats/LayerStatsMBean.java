@@ -0,0 +1,34 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+/**
+ * How well a layer is served from the cache, as seen through JMX
+ * 
+ * @see LayerStats
+ */
+public interface LayerStatsMBean {
+
+    public String getLayerName();
+
+    public long getHits();
+
+    public long getMisses();
+
+    /**
+     * @return the fraction of the tile requests served from the cache, 0 if there were none
+     */
+    public double getHitRatio();
+}
@@ -0,0 +1,217 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+
+/**
+ * Per layer latency histograms for the stages a tile goes through, and per layer cache hit
+ * ratios.
+ * <p>
+ * Callers take {@link System#nanoTime()} before a stage and hand it to
+ * {@link #record(String, Stage, long)} once done. The figures are published as JSON by
+ * {@link #getJSONStats()}, and through JMX as {@code org.geowebcache:type=LayerStats} and
+ * {@code org.geowebcache:type=LayerLatency} MBeans, registered the first time a layer is seen.
+ * </p>
+ */
+public class PipelineStats {
+    private static Log log = LogFactory.getLog(PipelineStats.class);
+
+    public static final String JMX_DOMAIN = "org.geowebcache";
+
+    public enum Stage {
+        /** From the request being dispatched to the response being written */
+        DISPATCH("dispatch"),
+        METASTORE_GET("metastoreGet"),
+        BLOB_GET("blobGet"),
+        /** Requesting from the backend, metatiles are decoded while they are received */
+        WMS_FETCH("wmsFetch"),
+        /** Cutting a decoded metatile into tiles */
+        METATILE_DECODE("metatileDecode"),
+        TILE_ENCODE("tileEncode"),
+        PERSIST("persist");
+
+        private final String key;
+
+        private Stage(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the name used in the JSON output and the JMX object names
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private final ConcurrentMap<String, LayerStats> layers;
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    private boolean jmxEnabled = true;
+
+    public PipelineStats() {
+        layers = new ConcurrentHashMap<String, LayerStats>();
+    }
+
+    /**
+     * @param jmxEnabled whether to publish the statistics of each layer as MBeans, true by default
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * Records how long a stage took
+     * 
+     * @param layerName
+     * @param stage
+     * @param startNanos the value of {@link System#nanoTime()} when the stage started
+     */
+    public void record(String layerName, Stage stage, long startNanos) {
+        getLayerStats(layerName).getLatency(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Counts a tile request towards the hit ratio of the layer
+     */
+    public void recordCacheResult(String layerName, CacheResult cacheResult) {
+        getLayerStats(layerName).countCacheResult(cacheResult);
+    }
+
+    public LayerStats getLayerStats(String layerName) {
+        LayerStats layerStats = layers.get(layerName);
+        if (layerStats == null) {
+            layerStats = new LayerStats(layerName);
+            LayerStats existing = layers.putIfAbsent(layerName, layerStats);
+            if (existing != null) {
+                return existing;
+            }
+            if (jmxEnabled) {
+                register(layerStats);
+            }
+        }
+        return layerStats;
+    }
+
+    private synchronized void register(LayerStats layerStats) {
+        final String layer = ObjectName.quote(layerStats.getLayerName());
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=LayerStats,layer=" + layer);
+            server.registerMBean(layerStats, name);
+            registered.add(name);
+            for (Stage stage : Stage.values()) {
+                name = new ObjectName(JMX_DOMAIN + ":type=LayerLatency,layer=" + layer
+                        + ",stage=" + stage.getKey());
+                server.registerMBean(layerStats.getLatency(stage), name);
+                registered.add(name);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to register the statistics of layer " + layerStats.getLayerName()
+                    + " with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the hit ratio and the latency percentiles, in milliseconds, of each stage, by layer
+     */
+    public String getJSONStats() {
+        Map<String, LayerStats> sorted = new TreeMap<String, LayerStats>(layers);
+
+        StringBuilder str = new StringBuilder();
+        str.append("{\"layers\":{");
+        for (Iterator<LayerStats> it = sorted.values().iterator(); it.hasNext();) {
+            LayerStats layerStats = it.next();
+            appendString(str, layerStats.getLayerName());
+            str.append(":{\"hits\":").append(layerStats.getHits());
+            str.append(",\"misses\":").append(layerStats.getMisses());
+            str.append(",\"hitRatio\":").append(layerStats.getHitRatio());
+            str.append(",\"latency\":{");
+            boolean first = true;
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram latency = layerStats.getLatency(stage);
+                if (latency.getCount() == 0) {
+                    continue;
+                }
+                if (!first) {
+                    str.append(',');
+                }
+                first = false;
+                str.append('"').append(stage.getKey()).append("\":{");
+                str.append("\"count\":").append(latency.getCount());
+                str.append(",\"mean\":").append(latency.getMean());
+                str.append(",\"p50\":").append(latency.getP50());
+                str.append(",\"p95\":").append(latency.getP95());
+                str.append(",\"p99\":").append(latency.getP99());
+                str.append(",\"max\":").append(latency.getMax());
+                str.append('}');
+            }
+            str.append("}}");
+            if (it.hasNext()) {
+                str.append(',');
+            }
+        }
+        str.append("}}");
+        return str.toString();
+    }
+
+    private static void appendString(StringBuilder str, String value) {
+        str.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                str.append('\\').append(c);
+            } else if (c < 0x20) {
+                String hex = Integer.toHexString(c);
+                str.append("\\u0000", 0, 6 - hex.length()).append(hex);
+            } else {
+                str.append(c);
+            }
+        }
+        str.append('"');
+    }
+
+    /**
+     * Destroy method for Spring, unregisters the MBeans
+     */
+    public synchronized void destroy() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.debug("Unable to unregister " + name + ": " + e.getMessage());
+            }
+        }
+        registered.clear();
+    }
+}
@@ -17,15 +17,41 @@
 package org.geowebcache.stats;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.util.ServletUtils;
 
+/**
+ * Keeps track of the requests served, and the bytes sent, over the last intervals of time.
+ * <p>
+ * {@link #log(int, CacheResult)} is called for every request, so it neither locks nor allocates.
+ * The counters are striped, every thread adding to the stripe picked by its id, and the bytes and
+ * requests of each second go to a ring of per second buckets, indexed by the current time. The
+ * stripes are only summed up when the statistics are read.
+ * </p>
+ */
 public class RuntimeStats {    
     private static Log log = LogFactory.getLog(RuntimeStats.class);
     
+    /** Longs per stripe of the totals, so each stripe is on a cache line of its own */
+    private static final int TOTALS_STRIDE = 8;
+    
+    private static final int HITS = 0;
+    
+    private static final int MISSES = 1;
+    
+    private static final int WMS = 2;
+    
+    private static final int BYTES = 3;
+    
+    private static final int REQUESTS = 4;
+    
+    /** Marks the bucket of a second being cleared for reuse */
+    private static final long CLEARING = -1;
+    
     final int pollInterval;
     
     long startTime = System.currentTimeMillis();
@@ -35,35 +61,30 @@ public class RuntimeStats {
     
     final String[] intervalDescs;
     
-    int curBytes = 0;
-    
-    int curRequests = 0;
-    
     long peakBytesTime = 0;
     
-    int peakBytes = 0;
+    long peakBytes = 0;
     
     long peakRequestsTime = 0;
     
-    int peakRequests = 0;
+    long peakRequests = 0;
     
-    long totalBytes = 0;
+    /** Number of stripes, a power of two */
+    final int stripes;
     
-    long totalRequests = 0;
-    
-    long totalHits;
-    
-    long totalMisses;
-
-    long totalWMS;
+    /** {stripe}{hits, misses, wms, bytes, requests, padding} */
+    final AtomicLongArray totals;
     
-    final int[] bytes;
+    /** Number of per second buckets, a few more than the longest interval */
+    final int ringSize;
     
-    final int[] requests;
+    /** The second each bucket is counting */
+    final AtomicLongArray seconds;
     
-    int ringPos = 0;
+    /** {stripe}{bucket}{bytes, requests} */
+    final AtomicLongArray buckets;
     
-    RuntimeStatsThread statsThread;
+    volatile RuntimeStatsThread statsThread;
     
     /**
      * 
@@ -98,8 +119,17 @@ public class RuntimeStats {
             this.intervalDescs[i] = intervalDescs.get(i);
         }
         
-        bytes = new int[this.intervals[this.intervals.length - 1] / pollInterval];
-        requests = new int[this.intervals[this.intervals.length - 1] / pollInterval];
+        int stripes = 1;
+        while(stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < 64) {
+            stripes <<= 1;
+        }
+        this.stripes = stripes;
+        this.totals = new AtomicLongArray(stripes * TOTALS_STRIDE);
+        
+        // the second being counted and the one before it are never read
+        this.ringSize = Math.max(this.intervals[this.intervals.length - 1], pollInterval) + 2;
+        this.seconds = new AtomicLongArray(ringSize);
+        this.buckets = new AtomicLongArray(stripes * ringSize * 2);
     }
     
     public void start() {
@@ -109,7 +139,8 @@ public class RuntimeStats {
     }
     
     public void destroy() {
-        if(this.statsThread != null) {
+        RuntimeStatsThread statsThread = this.statsThread;
+        if(statsThread != null) {
             statsThread.run = false;
         
             statsThread.interrupt();
@@ -120,151 +151,207 @@ public class RuntimeStats {
     
     public void log(int size, CacheResult cacheResult) {
         if(this.statsThread != null) {
-            synchronized(this) {
-                curBytes += size;
-                curRequests += 1;
-                
-                if(cacheResult == CacheResult.HIT) {
-                    totalHits++;
-                } else if(cacheResult == CacheResult.MISS) {
-                    totalMisses++;
-                } else if(cacheResult == CacheResult.WMS) {
-                    totalWMS++;
+            final int stripe = (int) Thread.currentThread().getId() & (stripes - 1);
+            
+            final int total = stripe * TOTALS_STRIDE;
+            totals.addAndGet(total + BYTES, size);
+            totals.incrementAndGet(total + REQUESTS);
+            
+            if(cacheResult == CacheResult.HIT) {
+                totals.incrementAndGet(total + HITS);
+            } else if(cacheResult == CacheResult.MISS) {
+                totals.incrementAndGet(total + MISSES);
+            } else if(cacheResult == CacheResult.WMS) {
+                totals.incrementAndGet(total + WMS);
+            }
+            
+            final int bucket = bucket(System.currentTimeMillis() / 1000);
+            if(bucket >= 0) {
+                final int pos = (stripe * ringSize + bucket) * 2;
+                buckets.addAndGet(pos, size);
+                buckets.incrementAndGet(pos + 1);
+            }
+        }
+    }
+    
+    /**
+     * Returns the bucket counting the given second, clearing it first if it was counting a second
+     * that is already out of the ring
+     * 
+     * @return the bucket, or -1 if the second is out of the ring already
+     */
+    private int bucket(final long second) {
+        final int bucket = (int) (second % ringSize);
+        long current = seconds.get(bucket);
+        while(current != second) {
+            if(current > second) {
+                // a thread that got the time a long while ago
+                return -1;
+            }
+            if(current != CLEARING && seconds.compareAndSet(bucket, current, CLEARING)) {
+                for(int stripe=0; stripe < stripes; stripe++) {
+                    final int pos = (stripe * ringSize + bucket) * 2;
+                    buckets.set(pos, 0);
+                    buckets.set(pos + 1, 0);
                 }
+                seconds.set(bucket, second);
+                return bucket;
             }
+            // cleared by another thread, only happens on the first request of a second
+            Thread.yield();
+            current = seconds.get(bucket);
         }
+        return bucket;
     }
     
-    protected synchronized int[] popIntervalData() {
-        int[] ret = {curBytes, curRequests};
-        
-        curBytes = 0;
-        curRequests = 0;
-        
-        return ret;
+    /**
+     * Adds up the bytes and requests of the given seconds
+     * 
+     * @return {bytes, requests}
+     */
+    long[] sumBuckets(final long fromSecond, final long toSecond) {
+        long[] sum = new long[2];
+        for(long second = fromSecond; second <= toSecond; second++) {
+            final int bucket = (int) (second % ringSize);
+            if(seconds.get(bucket) != second) {
+                // nothing was logged on that second
+                continue;
+            }
+            for(int stripe=0; stripe < stripes; stripe++) {
+                final int pos = (stripe * ringSize + bucket) * 2;
+                sum[0] += buckets.get(pos);
+                sum[1] += buckets.get(pos + 1);
+            }
+        }
+        return sum;
+    }
+    
+    /**
+     * Adds up a counter over all stripes
+     */
+    private long total(final int counter) {
+        long sum = 0;
+        for(int stripe=0; stripe < stripes; stripe++) {
+            sum += totals.get(stripe * TOTALS_STRIDE + counter);
+        }
+        return sum;
     }
 
     public synchronized String getHTMLStats() {
         long runningTime = (System.currentTimeMillis() - startTime) / 1000;
         
+        final long totalRequests = total(REQUESTS);
+        final long totalBytes = total(BYTES);
+        final long totalHits = total(HITS);
+        final long totalMisses = total(MISSES);
+        final long totalWMS = total(WMS);
+        
         StringBuilder str = new StringBuilder();
         
         str.append("<table border=\"0\" cellspacing=\"5\">");
         
+        // Starting time
+        str.append("<tr><td colspan=\"2\">Started:</td><td colspan=\"3\">");
+        str.append(ServletUtils.formatTimestamp(this.startTime)+ " (" + formatTimeDiff(runningTime) + ") ");
+        str.append("</td></tr>\n");
         
-        synchronized(bytes) {
-            // Starting time
-            str.append("<tr><td colspan=\"2\">Started:</td><td colspan=\"3\">");
-            str.append(ServletUtils.formatTimestamp(this.startTime)+ " (" + formatTimeDiff(runningTime) + ") ");
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"2\">Total number of requests:</td><td colspan=\"3\">"+totalRequests);
-            str.append(" (" + totalRequests / (runningTime) +"/s ) ");
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"2\">Total number of untiled WMS requests:</td><td colspan=\"3\">"+totalWMS);
-            str.append(" (" + totalWMS / (runningTime) +"/s ) ");
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"2\">Total number of bytes:</td><td colspan=\"3\">"+totalBytes);
-            str.append(" ("+formatBits((totalBytes*8.0)/(runningTime))+") ");
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"5\"> </td></tr>");
-            
-            str.append("<tr><td colspan=\"2\">Cache hit ratio:</td><td colspan=\"3\">");
-            if(totalHits + totalMisses > 0) {
-                double hitPercentage = (totalHits * 100.0) / (totalHits + totalMisses);
-                int rounded = (int) Math.round(hitPercentage * 100.0);
+        str.append("<tr><td colspan=\"2\">Total number of requests:</td><td colspan=\"3\">"+totalRequests);
+        str.append(" (" + totalRequests / (runningTime) +"/s ) ");
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"2\">Total number of untiled WMS requests:</td><td colspan=\"3\">"+totalWMS);
+        str.append(" (" + totalWMS / (runningTime) +"/s ) ");
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"2\">Total number of bytes:</td><td colspan=\"3\">"+totalBytes);
+        str.append(" ("+formatBits((totalBytes*8.0)/(runningTime))+") ");
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"5\"> </td></tr>");
+        
+        str.append("<tr><td colspan=\"2\">Cache hit ratio:</td><td colspan=\"3\">");
+        if(totalHits + totalMisses > 0) {
+            double hitPercentage = (totalHits * 100.0) / (totalHits + totalMisses);
+            int rounded = (int) Math.round(hitPercentage * 100.0);
+            int percents = rounded / 100;
+            int decimals = rounded - percents * 100;
+            str.append( percents + "." + decimals +"% of requests");
+        } else {
+            str.append("No data");
+        }
+
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"2\">Blank/KML/HTML:</td><td colspan=\"3\">");
+        if(totalRequests > 0) {
+            if(totalHits + totalMisses == 0) {
+                str.append("100.0% of requests");
+            } else {
+                int rounded = (int) Math.round(((totalRequests - totalHits - totalMisses - totalWMS) * 100.0) / totalRequests);
                 int percents = rounded / 100;
                 int decimals = rounded - percents * 100;
                 str.append( percents + "." + decimals +"% of requests");
-            } else {
-                str.append("No data");
             }
-
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"2\">Blank/KML/HTML:</td><td colspan=\"3\">");
-            if(totalRequests > 0) {
-                if(totalHits + totalMisses == 0) {
-                    str.append("100.0% of requests");
-                } else {
-                    int rounded = (int) Math.round(((totalRequests - totalHits - totalMisses - totalWMS) * 100.0) / totalRequests);
-                    int percents = rounded / 100;
-                    int decimals = rounded - percents * 100;
-                    str.append( percents + "." + decimals +"% of requests");
-                }
-            } else {
-                str.append("No data");
-            }
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"5\"> </td></tr>");
-            
-            str.append("<tr><td colspan=\"2\">Peak request rate:</td><td colspan=\"3\">");
-            if(totalRequests > 0) {
-                str.append(formatRequests( (peakRequests * 1.0) / pollInterval));
-                str.append(" ("+ServletUtils.formatTimestamp(peakRequestsTime)+") ");
-            } else {
-                str.append("No data");
-            }
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"2\">Peak bandwidth:</td><td colspan=\"3\">");
-            if(totalRequests > 0) {
-                str.append(formatBits((peakBytes * 8.0) / pollInterval));
-                str.append(" ("+ServletUtils.formatTimestamp(peakRequestsTime)+") ");
-            } else {
-                str.append("No data");
-            }
-            str.append("</td></tr>\n");
-            
-            str.append("<tr><td colspan=\"5\"> </td></tr>");
-                        
-            str.append("<tr><td>Interval</td><td>Requests</td><td>Rate</td><td>Bytes</td><td>Bandwidth</td></tr>\n");
-            
-            for(int i=0; i<intervals.length; i++) {
-                if(runningTime < intervals[i]) {
-                    continue;
-                }
-                
-                String[] requests = calculateRequests(intervals[i]);
-                
-                String[] bits = calculateBits(intervals[i]);
-                
-                str.append("<tr><td>"
-                        +intervalDescs[i]+"</td><td>"
-                        +requests[0]+"</td><td>"
-                        +requests[1]+"</td><td>"
-                        +bits[0]+"</td><td>"
-                        +bits[1]+"</td><td>"
-                        +"</tr>\n");
+        } else {
+            str.append("No data");
+        }
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"5\"> </td></tr>");
+        
+        str.append("<tr><td colspan=\"2\">Peak request rate:</td><td colspan=\"3\">");
+        if(totalRequests > 0) {
+            str.append(formatRequests( (peakRequests * 1.0) / pollInterval));
+            str.append(" ("+ServletUtils.formatTimestamp(peakRequestsTime)+") ");
+        } else {
+            str.append("No data");
+        }
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"2\">Peak bandwidth:</td><td colspan=\"3\">");
+        if(totalRequests > 0) {
+            str.append(formatBits((peakBytes * 8.0) / pollInterval));
+            str.append(" ("+ServletUtils.formatTimestamp(peakRequestsTime)+") ");
+        } else {
+            str.append("No data");
+        }
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"5\"> </td></tr>");
+                    
+        str.append("<tr><td>Interval</td><td>Requests</td><td>Rate</td><td>Bytes</td><td>Bandwidth</td></tr>\n");
+        
+        for(int i=0; i<intervals.length; i++) {
+            if(runningTime < intervals[i]) {
+                continue;
             }
             
-            str.append("<tr><td colspan=\"5\"> </td></tr>");
+            String[] requests = calculateRequests(intervals[i]);
             
-            str.append("<tr><td colspan=\"5\">All figures are "+pollInterval+" second(s) delayed and do not include HTTP overhead</td></tr>");
+            String[] bits = calculateBits(intervals[i]);
             
-            str.append("<tr><td colspan=\"5\">The cache hit ratio does not account for metatiling</td></tr>");
+            str.append("<tr><td>"
+                    +intervalDescs[i]+"</td><td>"
+                    +requests[0]+"</td><td>"
+                    +requests[1]+"</td><td>"
+                    +bits[0]+"</td><td>"
+                    +bits[1]+"</td><td>"
+                    +"</tr>\n");
         }
         
+        str.append("<tr><td colspan=\"5\"> </td></tr>");
+        
+        str.append("<tr><td colspan=\"5\">All figures are "+pollInterval+" second(s) delayed and do not include HTTP overhead</td></tr>");
+        
+        str.append("<tr><td colspan=\"5\">The cache hit ratio does not account for metatiling</td></tr>");
+        
         return str.toString();
     }
     
     private String[] calculateRequests(int interval) {
-        int nodeCount = interval / pollInterval;
-        
-        int accu = 0;
+        long now = System.currentTimeMillis() / 1000;
         
-        int pos = ((ringPos - 1) + bytes.length) % bytes.length;
-        
-        synchronized(bytes) {
-            for(int i=0; i<nodeCount; i++) {
-                accu += requests[pos];
-                pos = ((pos - 1) + bytes.length) % bytes.length;
-            }
-        }
+        long accu = sumBuckets(now - interval, now - 1)[1];
         
         String avg = formatRequests((accu * 1.0) / interval);
         
@@ -278,19 +365,9 @@ public class RuntimeStats {
     }
     
     private String[] calculateBits(int interval) {
+        long now = System.currentTimeMillis() / 1000;
         
-        int nodeCount = interval / pollInterval;
-        
-        int accu = 0;
-        
-        int pos = ((ringPos - 1) + bytes.length) % bytes.length;
-        
-        synchronized(bytes) {
-            for(int i=0; i<nodeCount; i++) {
-                accu += bytes[pos];    
-                pos = ((pos - 1) + bytes.length) % bytes.length;
-            }
-        }
+        long accu = sumBuckets(now - interval, now - 1)[0];
         
         String avg = formatBits((accu * 8.0) / interval);
         
@@ -327,7 +404,7 @@ public class RuntimeStats {
         
         final RuntimeStats stats;
         
-        boolean run = true;
+        volatile boolean run = true;
         
         private RuntimeStatsThread(RuntimeStats runtimeStats) {
             this.stats = runtimeStats;
@@ -341,17 +418,18 @@ public class RuntimeStats {
                     // /Nothing
                 }
                 
-                updateLists();
+                updatePeaks();
             }
         }
 
-        private void updateLists() {                        
-            synchronized(bytes) {
-                int[] bytesRequests = stats.popIntervalData();
-                
-                stats.totalBytes += bytesRequests[0];
-                stats.totalRequests += bytesRequests[1];
-                
+        /**
+         * Only looks for the peaks, the requests are counted as they come
+         */
+        private void updatePeaks() {
+            long now = System.currentTimeMillis() / 1000;
+            long[] bytesRequests = stats.sumBuckets(now - stats.pollInterval, now - 1);
+            
+            synchronized(stats) {
                 if(bytesRequests[0] > peakBytes) {
                     peakBytes = bytesRequests[0];
                     peakBytesTime = System.currentTimeMillis();
@@ -361,11 +439,6 @@ public class RuntimeStats {
                     peakRequests = bytesRequests[1];
                     peakRequestsTime = System.currentTimeMillis();
                 }
-                
-                bytes[ringPos] = bytesRequests[0];
-                requests[ringPos] = bytesRequests[1];
-                
-                ringPos = (ringPos + 1) % bytes.length;
             }
         }
     }
@@ -17,6 +17,8 @@
  */
 package org.geowebcache.storage;
 
+import org.geowebcache.io.Resource;
+
 /**
  * Manages the persistence of the actual data contained in cacheable objects (tiles, WFS responses).
  * <p>
@@ -44,6 +46,16 @@ public interface BlobStore {
      * @throws StorageException
      */
     public byte[] get(TileObject obj) throws StorageException;
+    
+    /**
+     * Retrieve a blob from storage without necessarily loading it into memory, blobstores keeping
+     * tiles in files can return a file backed resource. Does not modify the passed object.
+     * 
+     * @param obj
+     * @return the contents, null if the blob did not exist
+     * @throws StorageException
+     */
+    public Resource getResource(TileObject obj) throws StorageException;
     public long get(WFSObject obj) throws StorageException;
     
     /**
@@ -0,0 +1,344 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded, in-memory LRU cache of tiles, used by the {@link StorageBroker} to avoid going to
+ * the metastore and the blobstore for frequently requested tiles.
+ * <p>
+ * The cache is split in segments, each guarded by its own lock and holding an equal share of the
+ * total capacity, so that concurrent requests for different tiles rarely contend. The capacity is
+ * expressed in bytes of tile data. Tiles larger than {@link #setMaxTileSize(long) maxTileSize}, or
+ * than a segment, are not cached, so that looking up large tiles does not load them into memory.
+ * </p>
+ */
+public class MemoryTileCache {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    public static final long DEFAULT_MAX_TILE_SIZE = 128 * 1024;
+
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile long maxTileSize = DEFAULT_MAX_TILE_SIZE;
+
+    /**
+     * @param maxSize
+     *            the maximum number of bytes of tile data to keep in memory
+     */
+    public MemoryTileCache(long maxSize) {
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxSize / SEGMENT_COUNT);
+        }
+    }
+
+    /**
+     * @param maxTileSize
+     *            the size in bytes above which tiles are not cached, defaults to
+     *            {@link #DEFAULT_MAX_TILE_SIZE}
+     */
+    public void setMaxTileSize(long maxTileSize) {
+        this.maxTileSize = maxTileSize;
+    }
+
+    public long getMaxTileSize() {
+        return maxTileSize;
+    }
+
+    /**
+     * Looks up a tile, filling in its blob and creation time if found.
+     *
+     * @param tileObj
+     * @return true if the tile was in the cache
+     */
+    public boolean get(TileObject tileObj) {
+        Key key = new Key(tileObj);
+        CachedTile cached = segmentFor(key).get(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        tileObj.setBlob(cached.blob);
+        tileObj.setCreated(cached.created);
+        tileObj.setId(cached.id);
+        return true;
+    }
+
+    /**
+     * Returns a token to pass to {@link #put(TileObject, long)} once the tile has been read from
+     * storage. Together they make sure a tile invalidated while it was being read does not end up
+     * in the cache.
+     */
+    public long getGeneration(TileObject tileObj) {
+        return segmentFor(new Key(tileObj)).generation;
+    }
+
+    /**
+     * Adds a tile that was just read from storage, unless the segment it belongs to has been
+     * invalidated since generation was obtained.
+     */
+    public void put(TileObject tileObj, long generation) {
+        // checked before getBlob(), which reads tiles backed by a file into memory
+        if (tileObj.getBlobSize() < 0 || tileObj.getBlobSize() > maxTileSize) {
+            return;
+        }
+        byte[] blob = tileObj.getBlob();
+        if (blob == null) {
+            return;
+        }
+        Key key = new Key(tileObj);
+        segmentFor(key).put(key,
+                new CachedTile(blob, tileObj.getCreated(), tileObj.getId()), generation);
+    }
+
+    /**
+     * Removes a single tile
+     */
+    public void invalidate(TileObject tileObj) {
+        Key key = new Key(tileObj);
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Removes all tiles of a layer
+     */
+    public void invalidate(String layerName) {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].removeLayer(layerName);
+        }
+    }
+
+    /**
+     * Removes all tiles inside a tile range
+     */
+    public void invalidate(TileRange trObj) {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].removeRange(trObj);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].removeLayer(null);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of bytes of tile data currently cached
+     */
+    public long getSize() {
+        long size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                size += segments[i].size;
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode;
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    private class Segment {
+        private final long maxSize;
+
+        private final LinkedHashMap<Key, CachedTile> map;
+
+        private long size = 0;
+
+        /** Incremented on every invalidation, see {@link MemoryTileCache#put(TileObject, long)} */
+        private volatile long generation = 0;
+
+        Segment(long maxSize) {
+            this.maxSize = maxSize;
+            // access order, the eldest entry is the least recently used one
+            this.map = new LinkedHashMap<Key, CachedTile>(64, 0.75f, true);
+        }
+
+        synchronized CachedTile get(Key key) {
+            return map.get(key);
+        }
+
+        synchronized void put(Key key, CachedTile value, long expectedGeneration) {
+            if (generation != expectedGeneration || value.blob.length > maxSize) {
+                return;
+            }
+            CachedTile previous = map.put(key, value);
+            if (previous != null) {
+                size -= previous.blob.length;
+            }
+            size += value.blob.length;
+
+            Iterator<CachedTile> iter = map.values().iterator();
+            while (size > maxSize && iter.hasNext()) {
+                size -= iter.next().blob.length;
+                iter.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        synchronized void remove(Key key) {
+            generation++;
+            CachedTile previous = map.remove(key);
+            if (previous != null) {
+                size -= previous.blob.length;
+            }
+        }
+
+        synchronized void removeLayer(String layerName) {
+            generation++;
+            Iterator<Map.Entry<Key, CachedTile>> iter = map.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<Key, CachedTile> e = iter.next();
+                if (layerName == null || layerName.equals(e.getKey().layerName)) {
+                    size -= e.getValue().blob.length;
+                    iter.remove();
+                }
+            }
+        }
+
+        synchronized void removeRange(TileRange trObj) {
+            generation++;
+            Iterator<Map.Entry<Key, CachedTile>> iter = map.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<Key, CachedTile> e = iter.next();
+                if (e.getKey().isIn(trObj)) {
+                    size -= e.getValue().blob.length;
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    private static class CachedTile {
+        final byte[] blob;
+
+        final long created;
+
+        final long id;
+
+        CachedTile(byte[] blob, long created, long id) {
+            this.blob = blob;
+            this.created = created;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Identifies a tile by layer, gridset, format, parameters and xyz
+     */
+    private static class Key {
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final String parameters;
+
+        final long x, y, z;
+
+        final int hashCode;
+
+        Key(TileObject tileObj) {
+            this.layerName = tileObj.getLayerName();
+            this.gridSetId = tileObj.getGridSetId();
+            this.format = tileObj.getBlobFormat();
+            String params = tileObj.getParameters();
+            this.parameters = (params == null) ? "" : params;
+            long[] xyz = tileObj.getXYZ();
+            this.x = xyz[0];
+            this.y = xyz[1];
+            this.z = xyz[2];
+
+            int h = Arrays.hashCode(xyz);
+            h = 31 * h + hash(layerName);
+            h = 31 * h + hash(gridSetId);
+            h = 31 * h + hash(format);
+            h = 31 * h + parameters.hashCode();
+            this.hashCode = h;
+        }
+
+        private static int hash(Object o) {
+            return o == null ? 0 : o.hashCode();
+        }
+
+        private static boolean eq(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        boolean isIn(TileRange trObj) {
+            if (!eq(layerName, trObj.layerName) || !eq(gridSetId, trObj.gridSetId)) {
+                return false;
+            }
+            if (trObj.mimeType != null && !trObj.mimeType.getFormat().equals(format)) {
+                return false;
+            }
+            String rangeParams = (trObj.parameters == null) ? "" : trObj.parameters;
+            if (!rangeParams.equals(parameters)) {
+                return false;
+            }
+            if (trObj instanceof DiscontinuousTileRange) {
+                // err on the safe side, the mask is not worth checking here
+                return z >= trObj.zoomStart && z <= trObj.zoomStop;
+            }
+            return trObj.contains(x, y, (int) z);
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && x == other.x && y == other.y && z == other.z
+                    && eq(layerName, other.layerName) && eq(gridSetId, other.gridSetId)
+                    && eq(format, other.format) && parameters.equals(other.parameters);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
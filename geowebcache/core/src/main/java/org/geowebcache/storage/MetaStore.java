@@ -17,6 +17,8 @@
  */
 package org.geowebcache.storage;
 
+import java.util.List;
+
 /**
  * A metastore manages all meta information related to cacheable objects
  */
@@ -38,9 +40,20 @@ public interface MetaStore {
     public void put(TileObject stObj) throws StorageException;
     public void put(WFSObject stObj) throws StorageException;
     
+    /**
+     * Same as {@link #put(TileObject)} for several tiles, such as those of a metatile, which are 
+     * written together
+     */
+    public void putAll(List<TileObject> stObjs) throws StorageException;
+    
     public boolean unlock(TileObject stObj) throws StorageException;
     public boolean unlock(WFSObject stObj) throws StorageException;
     
+    /**
+     * Releases the locks taken by {@link #putAll(List)}
+     */
+    public boolean unlockAll(List<TileObject> stObjs) throws StorageException;
+    
     
     /**
      * Wipes the entire storage. Should only be invoked during testing.
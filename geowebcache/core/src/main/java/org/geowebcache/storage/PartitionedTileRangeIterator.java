@@ -0,0 +1,522 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link TileRangeIterator} for several threads that does not make them take turns.
+ * <p>
+ * Each zoom level is cut into rectangular chunks of {@code chunkSize x chunkSize} meta tiles, and
+ * the chunks of every level are divided into as many contiguous bands as there are partitions. A
+ * thread is bound to a partition the first time it asks for a location and then walks the chunks
+ * of its own bands, so that the requests it sends to the backend stay close to each other. When
+ * its partition runs out it steals half of the chunks another partition has left, taken from the
+ * end furthest away from where that partition is working.
+ * </p>
+ * <p>
+ * The locations handed out are the same as those of a plain {@link TileRangeIterator} for the same
+ * range, only the order differs. Chunks are numbered rather than created up front, so even very
+ * large ranges take little memory.
+ * </p>
+ * <p>
+ * The iterator keeps track of the chunks that are done, and of how far each thread got into the
+ * chunk it is working on, see {@link #getProgress()}. A new iterator created from that progress
+ * only hands out the locations that were not done yet. For the position inside a chunk to be
+ * exact the callers have to report each location they finish through {@link #locationDone()},
+ * asking for the next location counts as finishing the previous one too.
+ * </p>
+ */
+public class PartitionedTileRangeIterator extends TileRangeIterator {
+
+    /** Default chunk side, in meta tiles */
+    public static final int DEFAULT_CHUNK_SIZE = 8;
+
+    private final TileRange tr;
+
+    private final int metaX;
+
+    private final int metaY;
+
+    private final int chunkSize;
+
+    /** Chunks still to be handed out, one list of spans per partition */
+    private final LinkedList<Span>[] partitions;
+
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
+    private final ThreadLocal<Cursor> cursors = new ThreadLocal<Cursor>();
+
+    private final AtomicLong tilesSkippedCount = new AtomicLong();
+
+    private final AtomicLong tilesRenderedCount = new AtomicLong();
+
+    /** Completed chunks, also the lock for everything to do with progress */
+    private final TileRangeProgress completed = new TileRangeProgress();
+
+    /** The cursors of the threads working on the range */
+    private final List<Cursor> activeCursors = new ArrayList<Cursor>();
+
+    /** Chunks left part way through by a previous run that nobody has picked up again yet */
+    private final List<long[]> resumedPartial = new ArrayList<long[]>();
+
+    /**
+     * Note that the bounds of the tile range must already be expanded to the meta tile factors for
+     * this to work.
+     *
+     * @param tr
+     * @param metaTilingFactors
+     * @param partitionCount
+     *            the number of threads expected to share the iterator
+     */
+    public PartitionedTileRangeIterator(TileRange tr, int[] metaTilingFactors, int partitionCount) {
+        this(tr, metaTilingFactors, partitionCount, DEFAULT_CHUNK_SIZE);
+    }
+
+    public PartitionedTileRangeIterator(TileRange tr, int[] metaTilingFactors,
+            int partitionCount, int chunkSize) {
+        this(tr, metaTilingFactors, partitionCount, chunkSize, null);
+    }
+
+    /**
+     * Creates an iterator that carries on where another one left off
+     *
+     * @param resumeFrom
+     *            the progress of the other iterator, which must have had the same tile range, meta
+     *            tiling factors and chunk size. May be null to start from the beginning.
+     */
+    @SuppressWarnings("unchecked")
+    public PartitionedTileRangeIterator(TileRange tr, int[] metaTilingFactors,
+            int partitionCount, int chunkSize, TileRangeProgress resumeFrom) {
+        super(tr, metaTilingFactors);
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("partitionCount shall be a positive integer: "
+                    + partitionCount);
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize shall be a positive integer: "
+                    + chunkSize);
+        }
+        this.tr = tr;
+        this.metaX = metaTilingFactors[0];
+        this.metaY = metaTilingFactors[1];
+        this.chunkSize = chunkSize;
+
+        partitions = new LinkedList[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new LinkedList<Span>();
+        }
+
+        // everything that is not free to be handed out from the start of its chunk
+        TileRangeProgress taken = new TileRangeProgress();
+        if (resumeFrom != null) {
+            for (Integer z : resumeFrom.getCompletedLevels()) {
+                for (long[] range : resumeFrom.getCompleted(z)) {
+                    completed.addCompleted(z, range[0], range[1]);
+                    taken.addCompleted(z, range[0], range[1]);
+                }
+            }
+            // the chunks left part way through go first, spread over the partitions
+            int i = 0;
+            for (long[] p : resumeFrom.getPartial()) {
+                int z = (int) p[0];
+                taken.addCompleted(z, p[1], p[1] + 1);
+                resumedPartial.add(p.clone());
+                Span span = new Span(z, p[1], p[1] + 1);
+                span.skip = p[2];
+                partitions[i++ % partitionCount].add(span);
+            }
+        }
+
+        for (int z = tr.zoomStart; z <= tr.zoomStop; z++) {
+            long chunks = chunkCount(z);
+            List<long[]> free = new ArrayList<long[]>();
+            long freeCount = 0;
+            long start = 0;
+            for (long[] range : taken.getCompleted(z)) {
+                if (range[0] > start) {
+                    free.add(new long[] { start, Math.min(range[0], chunks) });
+                    freeCount += free.get(free.size() - 1)[1] - start;
+                }
+                start = Math.max(start, range[1]);
+            }
+            if (start < chunks) {
+                free.add(new long[] { start, chunks });
+                freeCount += chunks - start;
+            }
+            distribute(z, free, freeCount);
+        }
+    }
+
+    /**
+     * Divides the free chunks of a level into contiguous runs of about the same size, one for each
+     * partition
+     */
+    private void distribute(int z, List<long[]> free, long freeCount) {
+        long assigned = 0;
+        int i = 0;
+        for (long[] range : free) {
+            long start = range[0];
+            while (start < range[1]) {
+                long partitionEnd = freeCount * (i + 1) / partitions.length;
+                long count = Math.min(range[1] - start, partitionEnd - assigned);
+                if (count > 0) {
+                    partitions[i].add(new Span(z, start, start + count));
+                    start += count;
+                    assigned += count;
+                }
+                if (assigned >= partitionEnd) {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the next meta tile location of the calling thread's partition, or of another
+     * partition if the own one is done
+     *
+     * @return null once every location has been handed out
+     */
+    public long[] nextMetaGridLocation() {
+        Cursor cursor = cursors.get();
+        if (cursor == null) {
+            cursor = new Cursor(nextPartition.getAndIncrement() % partitions.length, metaX,
+                    metaY);
+            cursors.set(cursor);
+        }
+
+        while (true) {
+            long[] gridLoc = cursor.next();
+            if (gridLoc == null) {
+                if (!takeChunk(cursor)) {
+                    release(cursor);
+                    cursors.remove();
+                    return null;
+                }
+                continue;
+            }
+
+            long[] levelBounds = tr.rangeBounds[(int) gridLoc[2]];
+            int tileCount = tilesForLocation(gridLoc, levelBounds);
+            if (checkGridLocation(gridLoc)) {
+                tilesRenderedCount.addAndGet(tileCount);
+                return gridLoc;
+            }
+            tilesSkippedCount.addAndGet(tileCount);
+        }
+    }
+
+    /**
+     * Points the cursor at the next chunk of its partition, stealing from the other partitions if
+     * there is none left
+     *
+     * @return false if all chunks have been handed out
+     */
+    private boolean takeChunk(Cursor cursor) {
+        LinkedList<Span> own = partitions[cursor.partition];
+        synchronized (own) {
+            while (!own.isEmpty()) {
+                Span span = own.getFirst();
+                if (span.next < span.end) {
+                    long skip = span.skip;
+                    span.skip = 0;
+                    moveTo(cursor, span.z, span.next++, skip);
+                    return true;
+                }
+                own.removeFirst();
+            }
+        }
+
+        for (int i = 1; i < partitions.length; i++) {
+            LinkedList<Span> victim = partitions[(cursor.partition + i) % partitions.length];
+            Span stolen = null;
+            synchronized (victim) {
+                while (!victim.isEmpty()) {
+                    Span span = victim.getLast();
+                    if (span.next < span.end) {
+                        // the far half, leaving the victim the chunks next to where it works
+                        long middle = span.next + (span.end - span.next) / 2;
+                        stolen = new Span(span.z, middle, span.end);
+                        if (middle == span.next) {
+                            stolen.skip = span.skip;
+                        }
+                        span.end = middle;
+                        if (span.next == span.end) {
+                            victim.removeLast();
+                        }
+                        break;
+                    }
+                    victim.removeLast();
+                }
+            }
+            if (stolen != null) {
+                moveTo(cursor, stolen.z, stolen.next++, stolen.skip);
+                stolen.skip = 0;
+                if (stolen.next < stolen.end) {
+                    synchronized (own) {
+                        own.addLast(stolen);
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the chunk the cursor was on as completed and points it at the new one
+     *
+     * @param skip
+     *            the number of locations of the chunk that were done by a previous run
+     */
+    private void moveTo(Cursor cursor, int z, long chunk, long skip) {
+        long[] levelBounds = tr.rangeBounds[z];
+        long columns = chunkColumns(z);
+        long chunkX = chunk % columns;
+        long chunkY = chunk / columns;
+
+        synchronized (completed) {
+            if (cursor.active) {
+                completed.addCompleted(cursor.z, cursor.chunk, cursor.chunk + 1);
+            } else {
+                cursor.active = true;
+                activeCursors.add(cursor);
+            }
+            if (skip > 0) {
+                Iterator<long[]> iter = resumedPartial.iterator();
+                while (iter.hasNext()) {
+                    long[] p = iter.next();
+                    if (p[0] == z && p[1] == chunk) {
+                        iter.remove();
+                    }
+                }
+            }
+
+            synchronized (cursor) {
+                cursor.z = z;
+                cursor.chunk = chunk;
+                cursor.minX = levelBounds[0] + chunkX * chunkSize * metaX;
+                cursor.maxX = Math.min(levelBounds[2], cursor.minX + chunkSize * metaX);
+                long minY = levelBounds[1] + chunkY * chunkSize * metaY;
+                cursor.maxY = Math.min(levelBounds[3], minY + chunkSize * metaY);
+
+                long width = divideRoundingUp(cursor.maxX - cursor.minX, metaX);
+                cursor.x = cursor.minX + (skip % width) * metaX;
+                cursor.y = minY + (skip / width) * metaY;
+                cursor.index = skip;
+                cursor.pending = false;
+                cursor.exhausted = false;
+            }
+        }
+    }
+
+    /**
+     * Records the chunk the cursor was on as completed, the cursor is done with the range
+     */
+    private void release(Cursor cursor) {
+        synchronized (completed) {
+            if (cursor.active) {
+                completed.addCompleted(cursor.z, cursor.chunk, cursor.chunk + 1);
+                cursor.active = false;
+                activeCursors.remove(cursor);
+            }
+        }
+    }
+
+    /**
+     * Marks the last location handed to the calling thread as done
+     */
+    public void locationDone() {
+        Cursor cursor = cursors.get();
+        if (cursor != null) {
+            synchronized (cursor) {
+                cursor.pending = false;
+            }
+        }
+    }
+
+    /**
+     * A snapshot of what has been done so far, consistent even while other threads are working.
+     * Locations that were handed out but not reported done count as not done.
+     */
+    public TileRangeProgress getProgress() {
+        TileRangeProgress progress = new TileRangeProgress();
+        synchronized (completed) {
+            for (Integer z : completed.getCompletedLevels()) {
+                for (long[] range : completed.getCompleted(z)) {
+                    progress.addCompleted(z, range[0], range[1]);
+                }
+            }
+            for (long[] p : resumedPartial) {
+                progress.addPartial((int) p[0], p[1], p[2]);
+            }
+            for (Cursor cursor : activeCursors) {
+                synchronized (cursor) {
+                    long done = cursor.pending ? cursor.index - 1 : cursor.index;
+                    if (done > 0) {
+                        progress.addPartial(cursor.z, cursor.chunk, done);
+                    }
+                }
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * @return whether every chunk of the range is completed, that is, every location has been
+     *         handed out and the threads have come back for more after finishing them
+     */
+    public boolean isComplete() {
+        synchronized (completed) {
+            for (int z = tr.zoomStart; z <= tr.zoomStop; z++) {
+                if (completed.countCompleted(z) < chunkCount(z)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private long chunkCount(int z) {
+        return chunkColumns(z) * chunkRows(z);
+    }
+
+    private long chunkColumns(int z) {
+        long[] levelBounds = tr.rangeBounds[z];
+        long metaColumns = divideRoundingUp(levelBounds[2] - levelBounds[0], metaX);
+        return divideRoundingUp(metaColumns, chunkSize);
+    }
+
+    private long chunkRows(int z) {
+        long[] levelBounds = tr.rangeBounds[z];
+        long metaRows = divideRoundingUp(levelBounds[3] - levelBounds[1], metaY);
+        return divideRoundingUp(metaRows, chunkSize);
+    }
+
+    private static long divideRoundingUp(long dividend, long divisor) {
+        if (dividend <= 0) {
+            return 0;
+        }
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /**
+     * The number of tiles this iterator has skipped so far.
+     */
+    public long getCountSkipped() {
+        return tilesSkippedCount.get();
+    }
+
+    /**
+     * The number of tiles for which this iterator has returned a grid location.
+     */
+    public long getCountRendered() {
+        return tilesRenderedCount.get();
+    }
+
+    /**
+     * A range of chunk numbers on one zoom level, chunks are numbered row by row
+     */
+    private static class Span {
+        final int z;
+
+        long next;
+
+        long end;
+
+        /** Locations of the next chunk already done by a previous run */
+        long skip;
+
+        Span(int z, long next, long end) {
+            this.z = z;
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Where a thread is inside its current chunk. Only moved by the thread that owns it, other
+     * threads read it for {@link PartitionedTileRangeIterator#getProgress()}. Static so that a
+     * thread local left behind by a terminated task does not keep the iterator.
+     */
+    private static class Cursor {
+        final int partition;
+
+        final int metaX;
+
+        final int metaY;
+
+        int z;
+
+        long chunk;
+
+        long minX;
+
+        long maxX;
+
+        long maxY;
+
+        long x;
+
+        long y;
+
+        /** Number of locations of the chunk walked so far */
+        long index;
+
+        /** Whether the last location walked has been handed out and not reported done */
+        boolean pending;
+
+        boolean exhausted = true;
+
+        /** Whether the cursor has a chunk */
+        boolean active;
+
+        Cursor(int partition, int metaX, int metaY) {
+            this.partition = partition;
+            this.metaX = metaX;
+            this.metaY = metaY;
+        }
+
+        /**
+         * @return the next location in the chunk, in the same order as the whole level is walked by
+         *         {@link TileRangeIterator}, or null at the end of the chunk
+         */
+        synchronized long[] next() {
+            pending = false;
+            if (exhausted) {
+                return null;
+            }
+            if (x >= maxX) {
+                x = minX;
+                y += metaY;
+            }
+            if (y >= maxY) {
+                exhausted = true;
+                return null;
+            }
+            long[] gridLoc = { x, y, z };
+            x += metaX;
+            index++;
+            pending = true;
+            return gridLoc;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Bounded thread pool used to write tiles to the {@link StorageBroker} in the background, so that
+ * the client that triggered a metatile request does not have to wait for all of its tiles to be
+ * stored.
+ * <p>
+ * Each queued task holds on to a decoded metatile, so the queue depth bounds the memory used by
+ * pending writes. When the queue is full the submitting thread runs the task itself, which slows
+ * down producers to the speed of the storage. At shutdown all queued tasks are completed before
+ * the pool terminates.
+ * </p>
+ */
+public class PersistenceExecutor extends ThreadPoolExecutor implements DisposableBean {
+
+    private static final Log log = LogFactory.getLog(PersistenceExecutor.class);
+
+    private static final ThreadFactory tf = new CustomizableThreadFactory("GWC Persistence Thread-");
+
+    /**
+     * @param poolSize
+     *            the number of threads writing to storage
+     * @param queueDepth
+     *            the maximum number of pending tasks before submitters run them themselves
+     */
+    public PersistenceExecutor(int poolSize, int queueDepth) {
+        super(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                queueDepth), tf, new CallerRuns());
+    }
+
+    /**
+     * Destroy method called by the application context at shutdown, lets the pending writes
+     * complete before returning
+     *
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        log.info("Flushing " + getQueue().size() + " pending tile writes...");
+        this.shutdown();
+        while (!this.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+            log.debug("Waiting for pending tile writes to complete....");
+        }
+        log.info("Persistence thread pool executor shut down complete.");
+    }
+
+    /**
+     * Runs rejected tasks on the submitting thread. Unlike ThreadPoolExecutor.CallerRunsPolicy
+     * this also applies after shutdown, as the tasks may be releasing locks other threads wait on.
+     */
+    private static class CallerRuns implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            r.run();
+        }
+    }
+}
@@ -18,9 +18,14 @@
 package org.geowebcache.storage;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.Resource;
+import org.geowebcache.stats.PipelineStats;
+import org.geowebcache.stats.PipelineStats.Stage;
 
 /**
  * Handles cacheable objects (tiles, wfs responses) both in terms of data storage and metadata
@@ -39,6 +44,14 @@ public class StorageBroker {
     
     private boolean isReady = false;
     
+    private Executor persistenceExecutor = null;
+    
+    private Executor encoderExecutor = null;
+    
+    private MemoryTileCache memoryCache = null;
+    
+    private PipelineStats pipelineStats = null;
+    
     public StorageBroker(MetaStore metaStore, BlobStore blobStore) {
         this.metaStore = metaStore;
         this.blobStore = blobStore;
@@ -62,46 +75,150 @@ public class StorageBroker {
         this.verifyFileSize = verifyFileSize;
     }
     
+    /**
+     * Sets the executor used by callers that want to store objects in the background, see
+     * {@link PersistenceExecutor}. If none is set those writes are done synchronously.
+     * 
+     * @param persistenceExecutor
+     */
+    public void setPersistenceExecutor(Executor persistenceExecutor) {
+        this.persistenceExecutor = persistenceExecutor;
+    }
+    
+    /**
+     * @return the executor for background writes, or null if writes should be synchronous
+     */
+    public Executor getPersistenceExecutor() {
+        return persistenceExecutor;
+    }
+    
+    /**
+     * Sets the executor the layers encode the tiles of a metatile on before storing them, see
+     * {@link org.geowebcache.layer.TileEncoderExecutor}. If none is set they are encoded one after
+     * the other.
+     * 
+     * @param encoderExecutor
+     */
+    public void setEncoderExecutor(Executor encoderExecutor) {
+        this.encoderExecutor = encoderExecutor;
+    }
+    
+    /**
+     * @return the executor for encoding tiles, or null if they should be encoded sequentially
+     */
+    public Executor getEncoderExecutor() {
+        return encoderExecutor;
+    }
+    
+    /**
+     * Sets an in-memory cache that is checked before the metastore and blobstore. 
+     * Null (the default) disables it.
+     * 
+     * @param memoryCache
+     */
+    public void setMemoryCache(MemoryTileCache memoryCache) {
+        this.memoryCache = memoryCache;
+    }
+    
+    public MemoryTileCache getMemoryCache() {
+        return memoryCache;
+    }
+    
+    /**
+     * Sets where the time spent getting and storing tiles is recorded, null (the default) 
+     * disables it. The layers pick it up from here to record the backend stages too.
+     * 
+     * @param pipelineStats
+     */
+    public void setPipelineStats(PipelineStats pipelineStats) {
+        this.pipelineStats = pipelineStats;
+    }
+    
+    public PipelineStats getPipelineStats() {
+        return pipelineStats;
+    }
+    
     public boolean delete(String layerName) throws StorageException {
         boolean ret = true;
-        if(metaStoreEnabled) {
-            ret = metaStore.delete(layerName);
+        try {
+            if(metaStoreEnabled) {
+                ret = metaStore.delete(layerName);
+            }
+            ret = (ret && blobStore.delete(layerName));
+        } finally {
+            // Invalidating afterwards discards anything read concurrently
+            if(memoryCache != null) {
+                memoryCache.invalidate(layerName);
+            }
         }
-        ret = (ret && blobStore.delete(layerName));
         return ret;
     }
     
     public boolean delete(TileRange trObj) throws StorageException {
         boolean deleted;
-        if(metaStoreEnabled) {
-            deleted = metaStore.delete(blobStore, trObj);
-        } else {
-            if(trObj instanceof DiscontinuousTileRange) {
-                throw new StorageException(
-                        "DiscontinuousTileRange currently requries a metastore."
-                        );
+        try {
+            if(metaStoreEnabled) {
+                deleted = metaStore.delete(blobStore, trObj);
+            } else {
+                if(trObj instanceof DiscontinuousTileRange) {
+                    throw new StorageException(
+                            "DiscontinuousTileRange currently requries a metastore."
+                            );
+                }
+                deleted = blobStore.delete(trObj);
+            }
+        } finally {
+            if(memoryCache != null) {
+                memoryCache.invalidate(trObj);
             }
-            deleted = blobStore.delete(trObj);
         }
         return deleted;
     }
     
     public boolean expire(TileRange trObj) throws StorageException {
         boolean expired = false;
-        if(metaStoreEnabled) {
-            expired = metaStore.expire(trObj);
+        try {
+            if(metaStoreEnabled) {
+                expired = metaStore.expire(trObj);
+            }
+        } finally {
+            if(memoryCache != null) {
+                memoryCache.invalidate(trObj);
+            }
         }
         return expired;
     }
     
     
     public boolean get(TileObject tileObj) throws StorageException {
+        if(memoryCache == null) {
+            return getFromStore(tileObj);
+        }
+        
+        if(memoryCache.get(tileObj)) {
+            return true;
+        }
+        
+        long generation = memoryCache.getGeneration(tileObj);
+        boolean found = getFromStore(tileObj);
+        if(found) {
+            memoryCache.put(tileObj, generation);
+        }
+        return found;
+    }
+    
+    private boolean getFromStore(TileObject tileObj) throws StorageException {
         if(! metaStoreEnabled) {
             boolean found = getBlobOnly(tileObj);
             return found;
         }
         
-        if(! metaStore.get(tileObj)) {
+        long start = System.nanoTime();
+        boolean found = metaStore.get(tileObj);
+        if(pipelineStats != null) {
+            pipelineStats.record(tileObj.getLayerName(), Stage.METASTORE_GET, start);
+        }
+        if(! found) {
             return false;
         }
         
@@ -111,18 +228,22 @@ public class StorageBroker {
         }
         
         if(tileObj.blob_size > 0) {
-            byte[] blob = blobStore.get(tileObj);
+            start = System.nanoTime();
+            Resource blob = blobStore.getResource(tileObj);
+            if(pipelineStats != null) {
+                pipelineStats.record(tileObj.getLayerName(), Stage.BLOB_GET, start);
+            }
             if(blob == null) {
                 throw new StorageException(
                         "Blob for "+Arrays.toString(tileObj.xyz)+" was expected to have size " 
                         + tileObj.blob_size + " but was null.");
-            } else if(verifyFileSize && blob.length != tileObj.blob_size) {
+            } else if(verifyFileSize && blob.getSize() != tileObj.blob_size) {
                 throw new StorageException(
                         "Blob was expected to have size " 
-                        + tileObj.blob_size + " but was " + blob.length);
+                        + tileObj.blob_size + " but was " + blob.getSize());
             }
                 
-            tileObj.blob = blob;
+            tileObj.setBlobResource(blob);
         }
         return true;
     }
@@ -130,11 +251,15 @@ public class StorageBroker {
     private boolean getBlobOnly(TileObject tileObj) throws StorageException {
         if(tileObj.getParameters() == null 
                 || tileObj.getParameters().length() == 0) {
-            byte[] blob = blobStore.get(tileObj);
+            long start = System.nanoTime();
+            Resource blob = blobStore.getResource(tileObj);
+            if(pipelineStats != null) {
+                pipelineStats.record(tileObj.getLayerName(), Stage.BLOB_GET, start);
+            }
             if(blob == null) {
                 return false;
             } else {
-                tileObj.blob = blob;
+                tileObj.setBlobResource(blob);
                 return true;
             }
         } else {
@@ -162,6 +287,28 @@ public class StorageBroker {
     }
     
     public boolean put(TileObject tileObj) throws StorageException {
+        if(pipelineStats == null) {
+            return putAndInvalidate(tileObj);
+        }
+        long start = System.nanoTime();
+        try {
+            return putAndInvalidate(tileObj);
+        } finally {
+            pipelineStats.record(tileObj.getLayerName(), Stage.PERSIST, start);
+        }
+    }
+    
+    private boolean putAndInvalidate(TileObject tileObj) throws StorageException {
+        try {
+            return putInStore(tileObj);
+        } finally {
+            if(memoryCache != null) {
+                memoryCache.invalidate(tileObj);
+            }
+        }
+    }
+    
+    private boolean putInStore(TileObject tileObj) throws StorageException {
         if(! metaStoreEnabled) {
             boolean stored = putBlobOnly(tileObj);
             return stored;
@@ -184,6 +331,56 @@ public class StorageBroker {
         return false;
     }
     
+    /**
+     * Stores several tiles, typically those of a metatile, writing their metadata in batches
+     * rather than one tile at a time
+     * 
+     * @return true if all tiles were stored
+     */
+    public boolean putAll(List<TileObject> tileObjs) throws StorageException {
+        if(pipelineStats == null || tileObjs.isEmpty()) {
+            return putAllInStore(tileObjs);
+        }
+        long start = System.nanoTime();
+        try {
+            return putAllInStore(tileObjs);
+        } finally {
+            pipelineStats.record(tileObjs.get(0).getLayerName(), Stage.PERSIST, start);
+        }
+    }
+    
+    private boolean putAllInStore(List<TileObject> tileObjs) throws StorageException {
+        if(! metaStoreEnabled) {
+            // one at a time, the batch is recorded once by putAll()
+            boolean stored = true;
+            for(TileObject tileObj : tileObjs) {
+                stored = putAndInvalidate(tileObj) && stored;
+            }
+            return stored;
+        }
+        
+        try {
+            metaStore.putAll(tileObjs);
+            for(TileObject tileObj : tileObjs) {
+                blobStore.put(tileObj);
+            }
+            metaStore.unlockAll(tileObjs);
+            
+            return true;
+            
+        } catch (StorageException se) {
+            log.error(se.getMessage());
+        } finally {
+            if(memoryCache != null) {
+                for(TileObject tileObj : tileObjs) {
+                    memoryCache.invalidate(tileObj);
+                }
+            }
+        }
+        
+        return false;
+    }
+    
     private boolean putBlobOnly(TileObject tileObj) {
         if(tileObj.getParameters() == null 
                 || tileObj.getParameters().length() == 0) {
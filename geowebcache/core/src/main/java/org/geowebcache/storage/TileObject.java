@@ -17,20 +17,36 @@
  */
 package org.geowebcache.storage;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+
 /**
  * Represents a specific tile in a {@link GridSet}, identified by xyz. Normally the contents can be
  * either an image or a regionated KML tile, the class is format agnostic and just holds an array of
  * bytes.
+ * <p>
+ * Tiles read from storage may instead hold a {@link Resource}, which is only loaded into the byte
+ * array if {@link #getBlob()} is called.
+ * </p>
  */
 public class TileObject extends StorageObject {
+    private static Log log = LogFactory.getLog(TileObject.class);
+    
     public static final String TYPE = "tile";
     
     long tile_id = -1L;
     
     byte[] blob;
     
+    Resource blobResource;
+    
     long parameters_id = -1L;
     
     long layer_id = -1L;
@@ -86,7 +102,22 @@ public class TileObject extends StorageObject {
         
     }
     
+    /**
+     * @return the contents of the tile, loading them if they are held in a {@link Resource}; null
+     *         if there are none, or they could no longer be read, e.g. because the tile was
+     *         deleted in the meantime
+     */
     public byte[] getBlob() {
+        if(blob == null && blobResource != null) {
+            try {
+                blob = readResource(blobResource);
+                blob_size = blob.length;
+            } catch (IOException ioe) {
+                log.warn("Unable to read the contents of tile " + Arrays.toString(xyz) + " of "
+                        + layer_name + ": " + ioe.getMessage());
+                return null;
+            }
+        }
         return blob;
     }
     
@@ -98,6 +129,45 @@ public class TileObject extends StorageObject {
         }
         
         this.blob = blob;
+        this.blobResource = null;
+    }
+    
+    /**
+     * @return the contents of the tile, or null if there are none
+     */
+    public Resource getBlobResource() {
+        // prefer the byte array if the contents have already been loaded
+        if(blob != null) {
+            return new ByteArrayResource(blob);
+        }
+        return blobResource;
+    }
+    
+    public void setBlobResource(Resource blobResource) {
+        if(blobResource != null) {
+            this.blob_size = (int) blobResource.getSize();
+        } else {
+            this.blob_size = -1;
+        }
+        
+        this.blob = null;
+        this.blobResource = blobResource;
+    }
+    
+    private static byte[] readResource(Resource resource) throws IOException {
+        // the size is only a hint, the resource is read to its end
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) resource.getSize());
+        InputStream is = resource.getInputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
     }
         
     public long getId() {
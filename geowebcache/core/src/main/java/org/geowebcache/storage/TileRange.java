@@ -39,6 +39,9 @@ public class TileRange {
     
     final public String parameters;
     
+    // assigned by the metastore, -1 for tiles without parameters
+    private long parametersId = -1L;
+    
     public TileRange(String layerName, String gridSetId, int zoomStart, 
             int zoomStop, long[][] rangeBounds, MimeType mimeType, String parameters) {
         this.layerName = layerName;
@@ -50,6 +53,17 @@ public class TileRange {
         this.parameters = parameters;
     }
     
+    /**
+     * @return the id the parameters are stored under, see {@link TileObject#getParametersId()}
+     */
+    public long getParametersId() {
+        return parametersId;
+    }
+    
+    public void setParametersId(long parametersId) {
+        this.parametersId = parametersId;
+    }
+    
     public boolean contains(long[] idx) {
         return contains(idx[0], idx[1], (int)idx[2]);
     }
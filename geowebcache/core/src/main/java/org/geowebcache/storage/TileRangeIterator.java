@@ -124,6 +124,14 @@ public class TileRangeIterator {
         return null;
     }
 
+    /**
+     * Tells the iterator that the calling thread has finished with the last location it was
+     * handed. This iterator does not keep track of that, see {@link PartitionedTileRangeIterator}.
+     */
+    public void locationDone() {
+        // nothing to do
+    }
+
     /**
      * Calculates the number of tiles covered by the meta tile for this grid location.
      * 
@@ -131,7 +139,7 @@ public class TileRangeIterator {
      * @param levelBounds
      * @return
      */
-    private int tilesForLocation(long[] gridLoc, long[] levelBounds) {
+    protected int tilesForLocation(long[] gridLoc, long[] levelBounds) {
         return (int) Math.min(metaX, levelBounds[2] - gridLoc[0])
                 * (int) Math.min(metaY, levelBounds[3] - gridLoc[1]);
     }
@@ -143,7 +151,7 @@ public class TileRangeIterator {
      * @param gridLoc
      * @return
      */
-    private boolean checkGridLocation(long[] gridLoc) {
+    protected boolean checkGridLocation(long[] gridLoc) {
         if (dtr == null) {
             return true;
         } else {
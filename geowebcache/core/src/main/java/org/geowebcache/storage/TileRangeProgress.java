@@ -0,0 +1,151 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
+/**
+ * How far a {@link PartitionedTileRangeIterator} got through its range, in terms of its chunks.
+ * <p>
+ * Completed chunks are kept per zoom level as ranges of chunk numbers. Chunks a thread was working
+ * on are kept with the number of meta tile locations that were done, counted in the order the
+ * chunk is walked. Everything else is still to do.
+ * </p>
+ * <p>
+ * Not thread safe, the iterator hands out copies.
+ * </p>
+ */
+public class TileRangeProgress {
+
+    /** zoom level -> start -> end of the ranges of completed chunks, end exclusive */
+    private final Map<Integer, TreeMap<Long, Long>> completed = new TreeMap<Integer, TreeMap<Long, Long>>();
+
+    /** {z, chunk, locations done} */
+    private final List<long[]> partial = new ArrayList<long[]>();
+
+    /**
+     * Marks the chunks from start (inclusive) to end (exclusive) of a zoom level as completed,
+     * merging with the adjacent ranges
+     */
+    public void addCompleted(int z, long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        TreeMap<Long, Long> ranges = completed.get(z);
+        if (ranges == null) {
+            ranges = new TreeMap<Long, Long>();
+            completed.put(z, ranges);
+        }
+
+        // a range starting before or at start that reaches it
+        Long before = floorKey(ranges, start);
+        if (before != null && ranges.get(before) >= start) {
+            end = Math.max(end, ranges.remove(before));
+            start = before;
+        }
+        // ranges starting inside the new one
+        Iterator<Entry<Long, Long>> following = ranges.tailMap(start).entrySet().iterator();
+        while (following.hasNext()) {
+            Entry<Long, Long> range = following.next();
+            if (range.getKey() > end) {
+                break;
+            }
+            end = Math.max(end, range.getValue());
+            following.remove();
+        }
+        ranges.put(start, end);
+    }
+
+    /** TreeMap.floorKey is not available on Java 5 */
+    private static Long floorKey(TreeMap<Long, Long> ranges, long key) {
+        SortedMap<Long, Long> head = ranges.headMap(key + 1);
+        return head.isEmpty() ? null : head.lastKey();
+    }
+
+    /**
+     * @return the ranges of completed chunks of the zoom level, as {start, end} with end
+     *         exclusive, in ascending order
+     */
+    public List<long[]> getCompleted(int z) {
+        List<long[]> ret = new ArrayList<long[]>();
+        TreeMap<Long, Long> ranges = completed.get(z);
+        if (ranges != null) {
+            for (Entry<Long, Long> range : ranges.entrySet()) {
+                ret.add(new long[] { range.getKey(), range.getValue() });
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the zoom levels with completed chunks
+     */
+    public List<Integer> getCompletedLevels() {
+        return new ArrayList<Integer>(completed.keySet());
+    }
+
+    /**
+     * @return the number of completed chunks on the zoom level
+     */
+    public long countCompleted(int z) {
+        long count = 0;
+        for (long[] range : getCompleted(z)) {
+            count += range[1] - range[0];
+        }
+        return count;
+    }
+
+    /**
+     * Records a chunk that was left part way through
+     *
+     * @param locationsDone
+     *            the number of meta tile locations of the chunk that are done, in walking order
+     */
+    public void addPartial(int z, long chunk, long locationsDone) {
+        partial.add(new long[] { z, chunk, locationsDone });
+    }
+
+    /**
+     * @return the chunks left part way through, as {z, chunk, locations done}
+     */
+    public List<long[]> getPartial() {
+        return partial;
+    }
+
+    /**
+     * @return whether the chunk is completed, or was left part way through
+     */
+    boolean isStarted(int z, long chunk) {
+        TreeMap<Long, Long> ranges = completed.get(z);
+        if (ranges != null) {
+            Long start = floorKey(ranges, chunk);
+            if (start != null && ranges.get(start) > chunk) {
+                return true;
+            }
+        }
+        for (long[] p : partial) {
+            if (p[0] == z && p[1] == chunk) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
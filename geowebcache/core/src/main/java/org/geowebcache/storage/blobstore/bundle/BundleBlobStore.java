@@ -0,0 +1,504 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.WFSObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+/**
+ * A blobstore that packs tiles into bundle files instead of writing one file per tile.
+ * <p>
+ * Each bundle holds a square block of tiles of one zoom level, 128x128 by default, see
+ * {@link BundleFile} for the file format. Bundles live in the same layer and gridset/zoom level
+ * directories as the ones {@link FileBlobStore} creates, and are named after the position of the
+ * block and the file extension of the format, for example {@code 0_3.png.bundle}.
+ * </p>
+ * <p>
+ * Deleting a tile only clears its index entry. When a truncate leaves less than half of the data in
+ * a bundle in use the bundle is compacted, {@link #compact(String)} does the same for a whole layer.
+ * WFS objects are few and large, they are handed to a {@link FileBlobStore} on the same directory.
+ * </p>
+ */
+public class BundleBlobStore implements BlobStore {
+    private static Log log = LogFactory.getLog(BundleBlobStore.class);
+
+    public static final int DEFAULT_BUNDLE_SIZE = 128;
+
+    public static final String BUNDLE_EXTENSION = ".bundle";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final String path;
+
+    private final int bundleSize;
+
+    private final FileBlobStore wfsStore;
+
+    private final ReadWriteLock[] locks;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    public BundleBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException {
+        this.path = defStoreFinder.getDefaultPath();
+        this.bundleSize = DEFAULT_BUNDLE_SIZE;
+        this.wfsStore = new FileBlobStore(defStoreFinder);
+        this.locks = createLocks();
+    }
+
+    public BundleBlobStore(String rootPath) throws StorageException {
+        this(rootPath, DEFAULT_BUNDLE_SIZE);
+    }
+
+    /**
+     * @param rootPath
+     *            the directory to store the bundles in, must exist
+     * @param bundleSize
+     *            the number of tiles along each side of a bundle. Existing bundles written with a
+     *            different size can not be read.
+     */
+    public BundleBlobStore(String rootPath, int bundleSize) throws StorageException {
+        if (bundleSize < 1) {
+            throw new StorageException("Bundle size must be positive, was " + bundleSize);
+        }
+        this.path = rootPath;
+        this.bundleSize = bundleSize;
+        this.wfsStore = new FileBlobStore(rootPath);
+        this.locks = createLocks();
+    }
+
+    /**
+     * Locks are striped by bundle path, so that there is a bounded number of them however many
+     * bundles there are. Bundles sharing a stripe share the lock.
+     */
+    private static ReadWriteLock[] createLocks() {
+        ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        return locks;
+    }
+
+    private ReadWriteLock lockFor(File bundle) {
+        int h = bundle.getPath().hashCode();
+        h ^= (h >>> 16);
+        return locks[(h & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    public boolean delete(String layerName) throws StorageException {
+        File layerPath = getLayerPath(layerName);
+
+        if (!layerPath.exists() || !layerPath.canWrite()) {
+            log.info(layerPath + " does not exist or is not writable");
+            return false;
+        }
+
+        int count = deleteRecursive(layerPath);
+
+        listeners.sendLayerDeleted(layerName);
+
+        log.info("Removed " + count + " bundles from " + layerPath);
+        return true;
+    }
+
+    public boolean delete(TileObject stObj) throws StorageException {
+        BundleFile bundle = getBundle(stObj);
+        long[] xyz = stObj.getXYZ();
+
+        long length;
+        Lock lock = lockFor(bundle.getFile()).writeLock();
+        lock.lock();
+        try {
+            length = bundle.delete(bundle.entryIndex(xyz[0], xyz[1]));
+        } catch (IOException ioe) {
+            throw new StorageException(ioe.getMessage() + " for "
+                    + bundle.getFile().getAbsolutePath());
+        } finally {
+            lock.unlock();
+        }
+
+        if (length < 0) {
+            return false;
+        }
+        listeners.sendTileDeleted(stObj.getLayerName(), stObj.getGridSetId(),
+                stObj.getBlobFormat(), stObj.getParameters(), xyz[0], xyz[1], (int) xyz[2],
+                length);
+        return true;
+    }
+
+    public boolean delete(WFSObject stObj) throws StorageException {
+        return wfsStore.delete(stObj);
+    }
+
+    public boolean delete(TileRange trObj) throws StorageException {
+        File layerPath = getLayerPath(trObj.layerName);
+
+        if (!layerPath.exists() || !layerPath.canWrite()) {
+            log.info(layerPath + " does not exist or is not writable");
+            return false;
+        }
+        if (trObj.gridSetId == null) {
+            throw new StorageException("Specifying the grid set id is currently mandatory.");
+        }
+        if (trObj.mimeType == null) {
+            throw new StorageException("Specifying the format is currently mandatory.");
+        }
+
+        final String gridSetPrefix = FilePathGenerator.filteredGridSetId(trObj.gridSetId) + "_";
+        final String bundleSuffix = "." + trObj.mimeType.getFileExtension() + BUNDLE_EXTENSION;
+        final String paramStr = trObj.getParametersId() == -1L ? "" : "_"
+                + Long.toHexString(trObj.getParametersId());
+
+        int count = 0;
+        File[] zoomDirs = layerPath.listFiles();
+        for (int i = 0; zoomDirs != null && i < zoomDirs.length; i++) {
+            File zoomDir = zoomDirs[i];
+            int z = parseZoomLevel(zoomDir.getName(), gridSetPrefix, paramStr);
+            if (z < 0 || !inZoomRange(trObj, z)) {
+                continue;
+            }
+
+            File[] bundles = zoomDir.listFiles();
+            for (int j = 0; bundles != null && j < bundles.length; j++) {
+                String name = bundles[j].getName();
+                if (!name.endsWith(bundleSuffix)) {
+                    continue;
+                }
+                count += deleteFromBundle(trObj, bundles[j], z);
+            }
+
+            String[] chk = zoomDir.list();
+            if (chk == null || chk.length == 0) {
+                zoomDir.delete();
+            }
+        }
+
+        log.info("Truncated " + count + " tiles");
+
+        return true;
+    }
+
+    /**
+     * Clears the index entries of the tiles of a bundle that are inside the range, compacting the
+     * bundle if that leaves more than half of its data unused
+     *
+     * @return the number of tiles deleted
+     */
+    private int deleteFromBundle(TileRange trObj, File file, int z) throws StorageException {
+        String name = file.getName();
+        int sep = name.indexOf('_');
+        int dot = name.indexOf('.');
+        long bx, by;
+        try {
+            bx = Long.parseLong(name.substring(0, sep));
+            by = Long.parseLong(name.substring(sep + 1, dot));
+        } catch (RuntimeException e) {
+            log.debug("Skipping " + file.getAbsolutePath() + ", not a bundle name");
+            return 0;
+        }
+
+        if (!intersects(trObj, bx, by, z)) {
+            return 0;
+        }
+
+        BundleFile bundle = new BundleFile(file, bundleSize);
+        List<long[]> deleted = new ArrayList<long[]>();
+
+        Lock lock = lockFor(file).writeLock();
+        lock.lock();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            long live;
+            long data;
+            try {
+                FileChannel ch = raf.getChannel();
+                ByteBuffer index = bundle.readIndex(ch);
+
+                int entries = bundleSize * bundleSize;
+                for (int i = 0; i < entries; i++) {
+                    int pos = i * BundleFile.ENTRY_SIZE;
+                    if (index.getLong(pos) == 0) {
+                        continue;
+                    }
+                    long x = bx * bundleSize + i % bundleSize;
+                    long y = by * bundleSize + i / bundleSize;
+                    if (trObj.rangeBounds == null || trObj.contains(x, y, z)) {
+                        deleted.add(new long[] { x, y, index.getInt(pos + 8) });
+                        index.putLong(pos, 0L);
+                        index.putInt(pos + 8, 0);
+                    }
+                }
+
+                if (deleted.size() > 0) {
+                    bundle.writeIndex(ch, index);
+                }
+                live = bundle.liveBytes(index);
+                data = ch.size() - bundle.headerSize();
+            } finally {
+                raf.close();
+            }
+
+            if (deleted.size() > 0 && live * 2 < data) {
+                bundle.compact();
+            }
+        } catch (IOException ioe) {
+            throw new StorageException(ioe.getMessage() + " for " + file.getAbsolutePath());
+        } finally {
+            lock.unlock();
+        }
+
+        final String blobFormat = trObj.mimeType.getFormat();
+        for (long[] tile : deleted) {
+            listeners.sendTileDeleted(trObj.layerName, trObj.gridSetId, blobFormat,
+                    trObj.parameters, tile[0], tile[1], z, tile[2]);
+        }
+        return deleted.size();
+    }
+
+    private boolean intersects(TileRange trObj, long bx, long by, int z) {
+        if (trObj.rangeBounds == null || z >= trObj.rangeBounds.length
+                || trObj.rangeBounds[z] == null) {
+            return true;
+        }
+        long[] rB = trObj.rangeBounds[z];
+        long minX = bx * bundleSize;
+        long minY = by * bundleSize;
+        long maxX = minX + bundleSize - 1;
+        long maxY = minY + bundleSize - 1;
+        return rB[0] <= maxX && rB[2] >= minX && rB[1] <= maxY && rB[3] >= minY;
+    }
+
+    private static boolean inZoomRange(TileRange trObj, int z) {
+        if (trObj.zoomStart == -1 && trObj.zoomStop == -1) {
+            return true;
+        }
+        return z >= trObj.zoomStart && z <= trObj.zoomStop;
+    }
+
+    /**
+     * Extracts the zoom level from something like EPSG_4326_07, or EPSG_4326_07_1f for the
+     * parameters suffix _1f
+     *
+     * @return the zoom level, -1 if the name does not match the prefix and suffix
+     */
+    private static int parseZoomLevel(String dirName, String gridSetPrefix, String paramStr) {
+        if (!dirName.startsWith(gridSetPrefix) || !dirName.endsWith(paramStr)) {
+            return -1;
+        }
+        int start = gridSetPrefix.length();
+        int end = dirName.length() - paramStr.length();
+        if (end <= start) {
+            return -1;
+        }
+        try {
+            // another parameters suffix left in between does not parse
+            return Integer.parseInt(dirName.substring(start, end));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    public byte[] get(TileObject stObj) throws StorageException {
+        BundleFile bundle = getBundle(stObj);
+        long[] xyz = stObj.getXYZ();
+
+        Lock lock = lockFor(bundle.getFile()).readLock();
+        lock.lock();
+        try {
+            return bundle.read(bundle.entryIndex(xyz[0], xyz[1]));
+        } catch (IOException ioe) {
+            throw new StorageException(ioe.getMessage() + " for "
+                    + bundle.getFile().getAbsolutePath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tiles are read into memory, a file backed resource could see the bundle being compacted
+     * before it gets read
+     */
+    public Resource getResource(TileObject stObj) throws StorageException {
+        byte[] blob = get(stObj);
+        return (blob == null) ? null : new ByteArrayResource(blob);
+    }
+
+    public long get(WFSObject stObj) throws StorageException {
+        return wfsStore.get(stObj);
+    }
+
+    public void put(TileObject stObj) throws StorageException {
+        BundleFile bundle = getBundle(stObj);
+        long[] xyz = stObj.getXYZ();
+
+        long previous;
+        Lock lock = lockFor(bundle.getFile()).writeLock();
+        lock.lock();
+        try {
+            previous = bundle.write(bundle.entryIndex(xyz[0], xyz[1]), stObj.getBlob());
+        } catch (IOException ioe) {
+            throw new StorageException(ioe.getMessage() + " for "
+                    + bundle.getFile().getAbsolutePath());
+        } finally {
+            lock.unlock();
+        }
+
+        /*
+         * This is important because listeners may be tracking tile existence
+         */
+        if (previous >= 0) {
+            listeners.sendTileDeleted(stObj.getLayerName(), stObj.getGridSetId(),
+                    stObj.getBlobFormat(), stObj.getParameters(), xyz[0], xyz[1], (int) xyz[2],
+                    previous);
+        }
+        listeners.sendTileStored(stObj);
+    }
+
+    public void put(WFSObject stObj) throws StorageException {
+        wfsStore.put(stObj);
+    }
+
+    /**
+     * Rewrites the bundles of a layer that contain replaced or deleted tiles, and removes the ones
+     * that no longer contain any tile.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public long compact(String layerName) throws StorageException {
+        long reclaimed = 0;
+        File[] zoomDirs = getLayerPath(layerName).listFiles();
+        for (int i = 0; zoomDirs != null && i < zoomDirs.length; i++) {
+            File[] bundles = zoomDirs[i].listFiles();
+            for (int j = 0; bundles != null && j < bundles.length; j++) {
+                if (bundles[j].getName().endsWith(BUNDLE_EXTENSION)) {
+                    reclaimed += compact(bundles[j]);
+                }
+            }
+        }
+        log.info("Compacting " + layerName + " reclaimed " + reclaimed + " bytes");
+        return reclaimed;
+    }
+
+    private long compact(File file) throws StorageException {
+        BundleFile bundle = new BundleFile(file, bundleSize);
+        Lock lock = lockFor(file).writeLock();
+        lock.lock();
+        try {
+            long length = file.length();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            long live;
+            try {
+                live = bundle.liveBytes(bundle.readIndex(raf.getChannel()));
+            } finally {
+                raf.close();
+            }
+            if (live == length - bundle.headerSize()) {
+                return 0;
+            }
+            return bundle.compact();
+        } catch (IOException ioe) {
+            throw new StorageException(ioe.getMessage() + " for " + file.getAbsolutePath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private File getLayerPath(String layerName) {
+        return new File(path + File.separator + FilePathGenerator.filteredLayerName(layerName));
+    }
+
+    private BundleFile getBundle(TileObject stObj) throws StorageException {
+        MimeType mimeType;
+        try {
+            mimeType = MimeType.createFromFormat(stObj.getBlobFormat());
+        } catch (MimeException me) {
+            throw new StorageException(me.getMessage());
+        }
+
+        long[] xyz = stObj.getXYZ();
+
+        String paramStr = "";
+        if (stObj.getParametersId() != -1L) {
+            paramStr = "_" + Long.toHexString(stObj.getParametersId());
+        }
+
+        String dir = new StringBuilder(path).append(File.separator)
+                .append(FilePathGenerator.filteredLayerName(stObj.getLayerName()))
+                .append(File.separator)
+                .append(FilePathGenerator.gridsetZoomLevelDir(stObj.getGridSetId(), xyz[2]))
+                .append(paramStr).toString();
+
+        String name = new StringBuilder().append(xyz[0] / bundleSize).append('_')
+                .append(xyz[1] / bundleSize).append('.').append(mimeType.getFileExtension())
+                .append(BUNDLE_EXTENSION).toString();
+
+        return new BundleFile(new File(dir, name), bundleSize);
+    }
+
+    private static int deleteRecursive(File file) {
+        int count = 0;
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            count += deleteRecursive(children[i]);
+        }
+        if (file.delete() && file.getName().endsWith(BUNDLE_EXTENSION)) {
+            count++;
+        }
+        return count;
+    }
+
+    public void clear() throws StorageException {
+        throw new StorageException("Not implemented yet!");
+    }
+
+    /**
+     * Destroy method for Spring
+     */
+    public void destroy() {
+        // Do nothing, bundles are closed after every operation
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.bundle;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.geowebcache.util.FileUtils;
+
+/**
+ * Reads and writes the bundle file format used by {@link BundleBlobStore}.
+ * <p>
+ * A bundle holds the tiles of a square block of the grid, {@code dimension} tiles on each side. The
+ * file starts with a fixed size header: a magic number, the dimension, and then one index entry per
+ * tile made of the offset (long) and length (int) of its data. Tile data is appended after the
+ * header. An offset of zero means the tile is not stored, a replaced or deleted tile leaves its old
+ * data behind until the bundle is compacted.
+ * </p>
+ * <p>
+ * None of the methods lock, the caller is expected to hold the lock for the bundle.
+ * </p>
+ */
+class BundleFile {
+
+    static final int MAGIC = 0x47574342; // GWCB
+
+    static final int ENTRY_SIZE = 12;
+
+    private static final int PREAMBLE_SIZE = 8;
+
+    private final File file;
+
+    private final int dimension;
+
+    BundleFile(File file, int dimension) {
+        this.file = file;
+        this.dimension = dimension;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getDimension() {
+        return dimension;
+    }
+
+    int headerSize() {
+        return PREAMBLE_SIZE + dimension * dimension * ENTRY_SIZE;
+    }
+
+    /**
+     * @return the position of the tile inside the index
+     */
+    int entryIndex(long x, long y) {
+        return (int) ((y % dimension) * dimension + (x % dimension));
+    }
+
+    /**
+     * @return the tile data, or null if the bundle or the tile does not exist
+     */
+    byte[] read(int entry) throws IOException {
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException fnfe) {
+            return null;
+        }
+        try {
+            FileChannel ch = raf.getChannel();
+            checkPreamble(ch);
+
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+            readFully(ch, buf, entryPosition(entry));
+            long offset = buf.getLong(0);
+            int length = buf.getInt(8);
+            if (offset == 0) {
+                return null;
+            }
+
+            byte[] blob = new byte[length];
+            readFully(ch, ByteBuffer.wrap(blob), offset);
+            return blob;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends the data of a tile and points its index entry at it, creating the bundle if needed
+     *
+     * @return the length of the data previously stored for the tile, -1 if there was none
+     */
+    long write(int entry, byte[] blob) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            if (ch.size() == 0) {
+                initialize(ch);
+            } else {
+                checkPreamble(ch);
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+            readFully(ch, buf, entryPosition(entry));
+            long previous = (buf.getLong(0) == 0) ? -1 : buf.getInt(8);
+
+            // data first, so that a failed write never leaves the index pointing at garbage
+            long offset = ch.size();
+            writeFully(ch, ByteBuffer.wrap(blob), offset);
+
+            buf.clear();
+            buf.putLong(offset).putInt(blob.length).flip();
+            writeFully(ch, buf, entryPosition(entry));
+            return previous;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Zeroes the index entry of a tile, the data stays until the next compaction
+     *
+     * @return the length of the data that was stored for the tile, -1 if there was none
+     */
+    long delete(int entry) throws IOException {
+        if (!file.exists()) {
+            return -1;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            checkPreamble(ch);
+
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+            readFully(ch, buf, entryPosition(entry));
+            if (buf.getLong(0) == 0) {
+                return -1;
+            }
+            long length = buf.getInt(8);
+
+            writeFully(ch, ByteBuffer.allocate(ENTRY_SIZE), entryPosition(entry));
+            return length;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the whole index, offset and length of entry i are at {@code i * ENTRY_SIZE}
+     */
+    ByteBuffer readIndex(FileChannel ch) throws IOException {
+        checkPreamble(ch);
+        ByteBuffer index = ByteBuffer.allocate(dimension * dimension * ENTRY_SIZE);
+        readFully(ch, index, PREAMBLE_SIZE);
+        return index;
+    }
+
+    void writeIndex(FileChannel ch, ByteBuffer index) throws IOException {
+        index.clear();
+        writeFully(ch, index, PREAMBLE_SIZE);
+    }
+
+    /**
+     * @return the number of bytes of tile data referenced by the index
+     */
+    long liveBytes(ByteBuffer index) {
+        long live = 0;
+        int entries = dimension * dimension;
+        for (int i = 0; i < entries; i++) {
+            if (index.getLong(i * ENTRY_SIZE) != 0) {
+                live += index.getInt(i * ENTRY_SIZE + 8);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Rewrites the bundle with only the tiles its index points to. Removes the file if there are
+     * none left.
+     *
+     * @return the number of bytes reclaimed
+     */
+    long compact() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        long before = file.length();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        boolean empty;
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer index = readIndex(ch);
+            empty = !hasTiles(index);
+
+            if (!empty) {
+                RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+                try {
+                    FileChannel outCh = out.getChannel();
+                    outCh.truncate(0);
+                    initialize(outCh);
+
+                    long position = headerSize();
+                    // transferTo appends at the channel position, the header was written by offset
+                    outCh.position(position);
+                    int entries = dimension * dimension;
+                    for (int i = 0; i < entries; i++) {
+                        long offset = index.getLong(i * ENTRY_SIZE);
+                        if (offset == 0) {
+                            continue;
+                        }
+                        int length = index.getInt(i * ENTRY_SIZE + 8);
+                        long copied = 0;
+                        while (copied < length) {
+                            copied += ch.transferTo(offset + copied, length - copied, outCh);
+                        }
+                        index.putLong(i * ENTRY_SIZE, position);
+                        position += length;
+                    }
+                    writeIndex(outCh, index);
+                    outCh.force(false);
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        if (empty) {
+            file.delete();
+            return before;
+        }
+
+        if (!FileUtils.renameFile(tmp, file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file.getAbsolutePath()
+                    + " with its compacted version");
+        }
+        return before - file.length();
+    }
+
+    private boolean hasTiles(ByteBuffer index) {
+        int entries = dimension * dimension;
+        for (int i = 0; i < entries; i++) {
+            if (index.getLong(i * ENTRY_SIZE) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long entryPosition(int entry) {
+        return PREAMBLE_SIZE + (long) entry * ENTRY_SIZE;
+    }
+
+    private void initialize(FileChannel ch) throws IOException {
+        ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE);
+        preamble.putInt(MAGIC).putInt(dimension).flip();
+        writeFully(ch, preamble, 0);
+        // an all zero index, sparse where the filesystem supports it
+        ByteBuffer last = ByteBuffer.allocate(1);
+        writeFully(ch, last, headerSize() - 1);
+    }
+
+    private void checkPreamble(FileChannel ch) throws IOException {
+        ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE);
+        readFully(ch, preamble, 0);
+        if (preamble.getInt(0) != MAGIC) {
+            throw new IOException(file.getAbsolutePath() + " is not a tile bundle");
+        }
+        if (preamble.getInt(4) != dimension) {
+            throw new IOException(file.getAbsolutePath() + " holds " + preamble.getInt(4) + "x"
+                    + preamble.getInt(4) + " tiles, expected " + dimension + "x" + dimension);
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int read = ch.read(buf, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of bundle at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+    }
+}
@@ -23,9 +23,19 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.FileResource;
+import org.geowebcache.io.Resource;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.BlobStore;
@@ -36,7 +46,9 @@ import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.WFSObject;
+import org.geowebcache.util.FileUtils;
 import org.geowebcache.util.ServletUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * See BlobStore interface description for details
@@ -51,6 +63,11 @@ public class FileBlobStore implements BlobStore {
     
     private final BlobStoreListenerList listeners = new BlobStoreListenerList();
     
+    private int truncateThreads = 2 * Runtime.getRuntime().availableProcessors();
+    
+    // created on the first truncate, shared by all the truncates until destroy()
+    private ExecutorService truncatePool;
+    
     public FileBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException {
         path = defStoreFinder.getDefaultPath();
     }
@@ -167,72 +184,183 @@ public class FileBlobStore implements BlobStore {
         return true;
     }
     
-    public boolean delete(TileRange trObj) throws StorageException {
-        int count = 0;
-
-        String prefix = path + File.separator 
-            + FilePathGenerator.filteredLayerName(trObj.layerName);
-
-        File layerPath = new File(prefix);
+    /**
+     * Deletes the tiles in the range, walking the intermediate directories in parallel.
+     * <p>
+     * Intermediate directories are matched against the range by their name, see
+     * {@link FilePathFilter}. Directories outside the range are not even listed, directories
+     * entirely inside the range are emptied without looking at the tile names, and only those on
+     * the edge of the range check each tile.
+     * Directories left empty are removed, so a range covering whole zoom levels removes their
+     * directories altogether.
+     * </p>
+     */
+    public boolean delete(final TileRange trObj) throws StorageException {
+        final File layerPath = getLayerPath(trObj.layerName);
 
         if (!layerPath.exists() || !layerPath.canWrite()) {
-            throw new StorageException(prefix
-                    + " does not exist or is not writable.");
+            log.info(layerPath + " does not exist or is not writable");
+            return false;
         }
-        FilePathFilter fpf = new FilePathFilter(trObj);
+        final FilePathFilter filter = new FilePathFilter(trObj);
+        final AtomicLong count = new AtomicLong();
+        final List<File> zoomDirs = new ArrayList<File>();
+        final List<Future<?>> tasks = new ArrayList<Future<?>>();
 
-        final String layerName = trObj.layerName;
-        final String gridSetId = trObj.gridSetId;
-        final String blobFormat = trObj.mimeType.getFormat();
-        final String parameters = trObj.parameters;
-
-        File[] srsZoomDirs = layerPath.listFiles(fpf);
-
-        for (File srsZoom : srsZoomDirs) {
-            int zoomLevel = FilePathGenerator.findZoomLevel(srsZoom.getName());
-            File[] intermediates = srsZoom.listFiles(fpf);
-
-            for (File imd : intermediates) {
-                File[] tiles = imd.listFiles(fpf);
-                long length;
-
-                for (File tile : tiles) {
-                    length = tile.length();
-                    boolean deleted = tile.delete();
-                    if (deleted) {
-                        String[] coords = tile.getName().split("\\.")[0].split("_");
-                        long x = Long.parseLong(coords[0]);
-                        long y = Long.parseLong(coords[1]);
-                        listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parameters, x,
-                                y, zoomLevel, length);
-                        count++;
+        final ExecutorService executor = getTruncatePool();
+        try {
+            File[] candidates = layerPath.listFiles();
+            for (int i = 0; candidates != null && i < candidates.length; i++) {
+                File srsZoom = candidates[i];
+                int zoomLevel = filter.zoomLevel(srsZoom.getName());
+                if (zoomLevel == -1 || !srsZoom.isDirectory()) {
+                    continue;
+                }
+                if (trObj.zoomStart != -1 || trObj.zoomStop != -1) {
+                    if (zoomLevel < trObj.zoomStart || zoomLevel > trObj.zoomStop) {
+                        continue;
+                    }
+                }
+                zoomDirs.add(srsZoom);
+
+                File[] intermediates = srsZoom.listFiles();
+                for (int j = 0; intermediates != null && j < intermediates.length; j++) {
+                    final File imd = intermediates[j];
+                    final int coverage = filter.coverage(imd.getName(), zoomLevel);
+                    if (coverage != FilePathFilter.NONE) {
+                        tasks.add(executor.submit(new IntermediateDirTruncate(trObj, imd,
+                                zoomLevel, coverage == FilePathFilter.ALL, count)));
                     }
                 }
+            }
 
-                String[] chk = imd.list();
-                if (chk == null || chk.length == 0) {
-                    imd.delete();
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException ee) {
+                    log.error("Error truncating " + trObj.layerName + ": "
+                            + ee.getCause().getMessage(), ee.getCause());
                 }
             }
+        } catch (InterruptedException ie) {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while truncating " + trObj.layerName);
+        }
 
+        for (File srsZoom : zoomDirs) {
             String[] chk = srsZoom.list();
             if (chk == null || chk.length == 0) {
                 srsZoom.delete();
-                count++;
             }
-
         }
 
-        log.info("Truncated " + count + " tiles");
+        log.info("Truncated " + count.get() + " tiles");
 
         return true;
     }
 
+    private synchronized ExecutorService getTruncatePool() throws StorageException {
+        if (truncatePool == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC Truncate Thread-");
+            tf.setDaemon(true);
+            truncatePool = Executors.newFixedThreadPool(truncateThreads, tf);
+        } else if (truncatePool.isShutdown()) {
+            throw new StorageException("The blob store has been destroyed");
+        }
+        return truncatePool;
+    }
+
+    /**
+     * Deletes the tiles of one intermediate directory, and the directory if that leaves it empty
+     */
+    private class IntermediateDirTruncate implements Callable<Object> {
+        private final TileRange trObj;
+
+        private final File imd;
+
+        private final int zoomLevel;
+
+        private final boolean all;
+
+        private final AtomicLong count;
+
+        IntermediateDirTruncate(TileRange trObj, File imd, int zoomLevel, boolean all,
+                AtomicLong count) {
+            this.trObj = trObj;
+            this.imd = imd;
+            this.zoomLevel = zoomLevel;
+            this.all = all;
+            this.count = count;
+        }
+
+        public Object call() {
+            final String extension = "." + trObj.mimeType.getFileExtension();
+            final String[] tiles = imd.list();
+            if (tiles == null) {
+                return null;
+            }
+            for (String name : tiles) {
+                // other formats share the directory
+                if (!name.regionMatches(true, name.length() - extension.length(), extension, 0,
+                        extension.length())) {
+                    continue;
+                }
+                int sep = name.indexOf('_');
+                if (sep == -1) {
+                    continue;
+                }
+                long x = FilePathFilter.parseIndex(name, 0, sep);
+                long y = FilePathFilter.parseIndex(name, sep + 1, name.length()
+                        - extension.length());
+                if (x == -1 || y == -1) {
+                    continue;
+                }
+                if (!all && !trObj.contains(x, y, zoomLevel)) {
+                    continue;
+                }
+
+                File tile = new File(imd, name);
+                long length = tile.length();
+                if (tile.delete()) {
+                    listeners.sendTileDeleted(trObj.layerName, trObj.gridSetId, trObj.mimeType
+                            .getFormat(), trObj.parameters, x, y, zoomLevel, length);
+                    count.incrementAndGet();
+                }
+            }
+
+            String[] chk = imd.list();
+            if (chk == null || chk.length == 0) {
+                imd.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param truncateThreads
+     *            the number of threads deleting tiles when truncating a tile range, takes effect
+     *            if set before the first truncate
+     */
+    public void setTruncateThreads(int truncateThreads) {
+        this.truncateThreads = Math.max(1, truncateThreads);
+    }
+
     public byte[] get(TileObject stObj) throws StorageException {
         File fh = getFileHandleTile(stObj, false);
         return readFile(fh);
     }
 
+    public Resource getResource(TileObject stObj) throws StorageException {
+        File fh = getFileHandleTile(stObj, false);
+        if (!fh.exists()) {
+            return null;
+        }
+        return new FileResource(fh);
+    }
+
     public long get(WFSObject stObj) throws StorageException {
         // Should we check and compare the blobs?
         File fh = getFileHandleWFS(stObj, false, false);
@@ -346,32 +474,46 @@ public class FileBlobStore implements BlobStore {
         return fis;
     }
     
+    /**
+     * Writes the blob to a temporary file next to {@code fh} and renames it over {@code fh}, so
+     * that readers streaming the previous contents, or opening the file meanwhile, never see it
+     * half written
+     */
     private void writeFile(File fh, byte[] blob) throws StorageException {
         // Open the output stream
+        File tmp;
         FileOutputStream fos;
         try {
-            fos = new FileOutputStream(fh);
-        } catch (FileNotFoundException ioe) {
+            tmp = File.createTempFile(fh.getName(), ".tmp", fh.getParentFile());
+            fos = new FileOutputStream(tmp);
+        } catch (IOException ioe) {
             throw new StorageException(ioe.getMessage() + " for "
                     + fh.getAbsolutePath());
         }
 
         // Write the stream
+        boolean written = false;
         try {
-            fos.write(blob);
+            try {
+                fos.write(blob);
+            } finally {
+                fos.close();
+            }
+            written = FileUtils.renameFile(tmp, fh);
+            if (!written) {
+                throw new StorageException("Unable to rename " + tmp.getAbsolutePath() + " to "
+                        + fh.getAbsolutePath());
+            }
         } catch (IOException ioe) {
             throw new StorageException(ioe.getMessage() + " for "
                     + fh.getAbsolutePath());
         } finally {
-            try {
-                fos.close();
-            } catch (IOException ioe) {
-                throw new StorageException(ioe.getMessage() + " for "
-                        + fh.getAbsolutePath());
+            if (!written) {
+                tmp.delete();
             }
         }
     }
-    
+
     private int writeFile(File fh, InputStream is) throws StorageException {
         // Open the output stream
         FileOutputStream fos;
@@ -413,10 +555,12 @@ public class FileBlobStore implements BlobStore {
     }
 
     /** 
-     * Destroy method for Spring
+     * Destroy method for Spring, stops the truncate threads
      */
-    public void destroy() {
-       // Do nothing 
+    public synchronized void destroy() {
+        if (truncatePool != null) {
+            truncatePool.shutdownNow();
+        }
     }
 
     public void addListener(BlobStoreListener listener) {
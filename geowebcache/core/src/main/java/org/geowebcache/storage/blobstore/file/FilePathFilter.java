@@ -21,12 +21,32 @@ package org.geowebcache.storage.blobstore.file;
 import java.io.File;
 import java.io.FilenameFilter;
 
+import org.geowebcache.storage.DiscontinuousTileRange;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileRange;
 
+/**
+ * Selects the directories and tiles of a {@link TileRange} in a {@link FileBlobStore}.
+ * <p>
+ * Intermediate directories are named after the tile index divided by the directory size (see
+ * {@link FilePathGenerator#tilePath}), so those outside the range bounds are rejected without
+ * being listed.
+ * </p>
+ */
 public class FilePathFilter implements FilenameFilter {
+    /** None of the tiles of a directory are in the range */
+    static final int NONE = 0;
+
+    /** Some of the tiles of a directory may be in the range, each one has to be checked */
+    static final int SOME = 1;
+
+    /** All the tiles of a directory are in the range */
+    static final int ALL = 2;
+
     String gridSetPrefix = null;
+    String zoomLevelPrefix = null;
     String mimeExtension = null;
+    String parametersSuffix = "";
     TileRange tr;
     
     public FilePathFilter(TileRange trObj) throws StorageException {
@@ -37,6 +57,10 @@ public class FilePathFilter implements FilenameFilter {
         }
        
         gridSetPrefix = FilePathGenerator.filteredGridSetId(tr.gridSetId);
+        zoomLevelPrefix = gridSetPrefix + "_";
+        if(tr.getParametersId() != -1L) {
+            parametersSuffix = "_" + Long.toHexString(tr.getParametersId());
+        }
 
         if(tr.mimeType != null) {
             mimeExtension = tr.mimeType.getFileExtension();
@@ -55,12 +79,12 @@ public class FilePathFilter implements FilenameFilter {
         if(name.startsWith(gridSetPrefix)) {
             // gridset and zoomlevel level
             ret = acceptZoomLevelDir(name);
-        } else if(name.contains(".")) {
+        } else if(name.indexOf('.') != -1) {
             // filename
             ret = acceptFileName(dir, name);
         } else {
             // intermediate
-            ret = acceptIntermediateDir(name);
+            ret = acceptIntermediateDir(dir, name);
         }
         
         //System.out.println(ret + " " + name);
@@ -68,74 +92,135 @@ public class FilePathFilter implements FilenameFilter {
     }
         
     /**
-     * Example: EPSG_2163_01
+     * Example: EPSG_2163_01, or EPSG_2163_01_7f with parameters
      */
     private boolean acceptZoomLevelDir(String name) {
-        if(! name.startsWith(gridSetPrefix)) {
+        int zoomLevel = zoomLevel(name);
+        if(zoomLevel == -1) {
             return false;
         }
         
         if(tr.zoomStart == -1 && tr.zoomStop == -1) {
             // All zoomlevels
-        } else {
-            int tmp = FilePathGenerator.findZoomLevel(name);
-            if(tmp < tr.zoomStart || tmp > tr.zoomStop) {
-                return false;
-            }
+            return true;
         }
         
-        return true;   
+        return zoomLevel >= tr.zoomStart && zoomLevel <= tr.zoomStop;
     }
     
-    private boolean acceptIntermediateDir(String name) {
-        //if(bounds == null) {
-        //    return true;
-        //}
-        
-        // For now we'll do all of them,
-        // otherwise we have to extract zoomlevel from path
-        return true;
+    /**
+     * Example: 0012_0003 in EPSG_2163_09
+     */
+    private boolean acceptIntermediateDir(File dir, String name) {
+        int zoomLevel = zoomLevel(dir.getName());
+        if(zoomLevel == -1) {
+            // Not in a zoom level directory, let the tiles decide
+            return true;
+        }
+        return coverage(name, zoomLevel) != NONE;
     }
     
+    /**
+     * Example: 0049_0013.png in EPSG_2163_09/0012_0003
+     */
     private boolean acceptFileName(File dir, String name) {
-        String[] parts = name.split("\\.");
-
         // Check mime type
-        
-        if(! parts[parts.length - 1].equalsIgnoreCase(this.mimeExtension)) {
+        int dot = name.lastIndexOf('.');
+        if(mimeExtension == null || name.length() - dot - 1 != mimeExtension.length()
+                || ! name.regionMatches(true, dot + 1, mimeExtension, 0, mimeExtension.length())) {
             return false;
         }
         
-        //if (mimeExtension != null) {
-            //boolean foundOne = false;
-            
-            //for(String ext : mimeExtensions) {
-            //    if(parts[parts.length - 1].equalsIgnoreCase(ext)) {
-            //        foundOne = true;
-            //    }
-            //}
-            
-            //if(! foundOne) {
-            //    return false;
-            //}
-            
-        //}
-        
         // Check coordinates
         if (tr.rangeBounds != null) {
-            String[] coords = parts[0].split("_");
-
-            int zoomLevel = FilePathGenerator.findZoomLevel(dir.getParentFile().getName());
-            long x = Long.parseLong(coords[0]);
-            long y = Long.parseLong(coords[1]);
-            
-            boolean contains = tr.contains(x, y, zoomLevel);
+            int sep = name.indexOf('_');
+            if(sep == -1 || sep > dot) {
+                return false;
+            }
+            long x = parseIndex(name, 0, sep);
+            long y = parseIndex(name, sep + 1, dot);
+            int zoomLevel = zoomLevel(dir.getParentFile().getName());
+            if(x == -1 || y == -1 || zoomLevel == -1) {
+                return false;
+            }
             
-            return contains;
+            return tr.contains(x, y, zoomLevel);
         }
         
         //System.out.println(dir.getAbsolutePath() + " " + name);
         
         return true;
     }
-}
\ No newline at end of file
+    
+    /**
+     * @return the zoom level of a directory named like EPSG_4326_05, or EPSG_4326_05_7f if the
+     *         range has parameters id 0x7f, for the grid set of the range; -1 for any other name,
+     *         including the directories of other parameters
+     */
+    int zoomLevel(String dirName) {
+        if (!dirName.startsWith(zoomLevelPrefix) || !dirName.endsWith(parametersSuffix)) {
+            return -1;
+        }
+        // anything but digits left in between, such as another parameters id, fails to parse
+        int end = dirName.length() - parametersSuffix.length();
+        long zoomLevel = parseIndex(dirName, zoomLevelPrefix.length(), end);
+        return zoomLevel > Integer.MAX_VALUE ? -1 : (int) zoomLevel;
+    }
+
+    /**
+     * Works out how much of an intermediate directory, named like 0012_0003, falls in the range
+     *
+     * @return {@link #NONE}, {@link #SOME} or {@link #ALL}
+     */
+    int coverage(String dirName, int zoomLevel) {
+        if (tr.rangeBounds == null) {
+            return ALL;
+        }
+        if (zoomLevel >= tr.rangeBounds.length || tr.rangeBounds[zoomLevel] == null) {
+            return NONE;
+        }
+        long[] bounds = tr.rangeBounds[zoomLevel];
+        int sep = dirName.indexOf('_');
+        long halfx = sep == -1 ? -1 : parseIndex(dirName, 0, sep);
+        long halfy = sep == -1 ? -1 : parseIndex(dirName, sep + 1, dirName.length());
+        if (halfx == -1 || halfy == -1) {
+            // not one of ours, leave it to the per tile checks
+            return SOME;
+        }
+        final long half = 2L << (zoomLevel / 2);
+        final long minx = halfx * half;
+        final long miny = halfy * half;
+        final long maxx = minx + half - 1;
+        final long maxy = miny + half - 1;
+
+        if (maxx < bounds[0] || minx > bounds[2] || maxy < bounds[1] || miny > bounds[3]) {
+            return NONE;
+        }
+        if (!(tr instanceof DiscontinuousTileRange) && minx >= bounds[0]
+                && maxx <= bounds[2] && miny >= bounds[1] && maxy <= bounds[3]) {
+            return ALL;
+        }
+        return SOME;
+    }
+
+    /**
+     * Parses the zero padded, non negative number between {@code start} and {@code end}, without
+     * creating substrings for every tile
+     * 
+     * @return the number, or -1 if those are not all digits
+     */
+    static long parseIndex(String name, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -27,7 +27,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -89,6 +93,29 @@ class JDBCMBWrapper {
 
     private JdbcConnectionPool connPool;
 
+    /** Number of connections kept open for writing tiles */
+    static final int WRITE_CONNECTIONS = 4;
+
+    /** Roughly the most tiles removed by a single DELETE when truncating */
+    static final long DELETE_BATCH_SIZE = 10000;
+
+    /** Connections with cached statements for writing tiles, see {@link #putTiles(List)} */
+    private BlockingQueue<JDBCStatementCache> writers;
+
+    private static final String KEY_NO_PARAMETERS = " WHERE LAYER_ID = ? AND X = ? AND Y = ? AND Z = ? "
+            + " AND GRIDSET_ID = ? AND FORMAT_ID = ? AND PARAMETERS_ID IS NULL";
+
+    private static final String KEY_PARAMETERS = " WHERE LAYER_ID = ? AND X = ? AND Y = ? AND Z = ? "
+            + " AND GRIDSET_ID = ? AND FORMAT_ID = ? AND PARAMETERS_ID = ?";
+
+    private static final String LOCK_TILE = "UPDATE TILES SET BLOB_SIZE = ?, CREATED = ?, LOCK = NOW()";
+
+    private static final String UNLOCK_TILE = "UPDATE TILES SET BLOB_SIZE = ?, CREATED = ?, LOCK = NULL";
+
+    private static final String INSERT_LOCKED_TILE = "INSERT INTO "
+            + "TILES(LAYER_ID,X,Y,Z,GRIDSET_ID,FORMAT_ID,PARAMETERS_ID,BLOB_SIZE,CREATED,LOCK) "
+            + "VALUES(?,?,?,?,?,?,?,?,?,NOW())";
+
     protected JDBCMBWrapper(String driverClass, String jdbcString, String username,
             String password, boolean useConnectionPooling, int maxConnections)
             throws StorageException, SQLException {
@@ -108,6 +135,7 @@ class JDBCMBWrapper {
             persistentConnection = getConnection();
         }
 
+        createWriters();
         checkTables();
     }
 
@@ -163,9 +191,35 @@ class JDBCMBWrapper {
             persistentConnection = getConnection();
         }
 
+        createWriters();
         checkTables();
     }
 
+    private void createWriters() {
+        int count = WRITE_CONNECTIONS;
+        if (useConnectionPooling) {
+            // leave most of the pool to readers
+            count = Math.max(1, Math.min(WRITE_CONNECTIONS, maxConnections / 2));
+        }
+        writers = new ArrayBlockingQueue<JDBCStatementCache>(count);
+        for (int i = 0; i < count; i++) {
+            writers.add(new JDBCStatementCache(this));
+        }
+    }
+
+    private JDBCStatementCache acquireWriter() throws SQLException {
+        try {
+            return writers.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        }
+    }
+
+    private void releaseWriter(JDBCStatementCache writer) {
+        writers.offer(writer);
+    }
+
     protected Connection getConnection() throws SQLException {
         if (closing) {
             throw new IllegalStateException(getClass().getSimpleName() + " is being shut down");
@@ -598,50 +652,6 @@ class JDBCMBWrapper {
         }
     }
 
-    public void putTile(TileObject stObj) throws SQLException, StorageException {
-
-        String query = "MERGE INTO "
-                + "TILES(LAYER_ID,X,Y,Z,GRIDSET_ID,FORMAT_ID,PARAMETERS_ID,BLOB_SIZE,LOCK,CREATED) "
-                + "KEY(LAYER_ID,X,Y,Z,GRIDSET_ID,FORMAT_ID,PARAMETERS_ID) "
-                + "VALUES(?,?,?,?,?,?,?,?,NOW(),?)";
-
-        long[] xyz = stObj.getXYZ();
-
-        final Connection conn = getConnection();
-
-        try {
-            Long insertId;
-            PreparedStatement prep = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
-            try {
-                prep.setLong(1, stObj.getLayerId());
-                prep.setLong(2, xyz[0]);
-                prep.setLong(3, xyz[1]);
-                prep.setLong(4, xyz[2]);
-                prep.setLong(5, stObj.getGridSetIdId());
-                prep.setLong(6, stObj.getFormatId());
-                if (stObj.getParametersId() == -1L) {
-                    prep.setNull(7, java.sql.Types.BIGINT);
-                } else {
-                    prep.setLong(7, stObj.getParametersId());
-                }
-                prep.setInt(8, stObj.getBlobSize());
-                prep.setLong(9, System.currentTimeMillis());
-                insertId = wrappedInsert(prep);
-            } finally {
-                close(prep);
-            }
-            if (insertId == null) {
-                log.error("Did not receive a id for " + query);
-            } else {
-                stObj.setId(insertId.longValue());
-            }
-
-        } finally {
-            conn.close();
-        }
-
-    }
-
     public void putWFS(Long parameters, WFSObject stObj) throws SQLException, StorageException {
 
         String query = null;
@@ -693,51 +703,146 @@ class JDBCMBWrapper {
         }
     }
 
-    public boolean unlockTile(TileObject stObj) throws SQLException, StorageException {
-
-        String query = null;
-
-        if (stObj.getParametersId() == -1L) {
-            query = "UPDATE TILES SET LOCK = NULL WHERE "
-                    + "  LAYER_ID = ? AND X = ? AND Y = ? AND Z = ? "
-                    + " AND GRIDSET_ID = ? AND FORMAT_ID = ? AND " + " PARAMETERS_ID IS NULL";
-        } else {
-            query = "UPDATE TILES SET LOCK = NULL WHERE "
-                    + "  LAYER_ID = ? AND X = ? AND Y = ? AND Z = ? "
-                    + " AND GRIDSET_ID = ? AND FORMAT_ID = ? AND " + " PARAMETERS_ID = ?";
+    /**
+     * Writes locked rows for the tiles in a single transaction, replacing any existing rows. The
+     * locks are released by {@link #unlockTiles(List)} once the blobs are stored.
+     * <p>
+     * Existing rows are updated in one batch and the remaining tiles inserted in another. MERGE can
+     * not be used for this, it never matches rows where PARAMETERS_ID is NULL. Ids are not set on
+     * the tiles, nothing reads them after a put.
+     * </p>
+     */
+    public void putTiles(List<TileObject> tiles) throws SQLException {
+        if (tiles.isEmpty()) {
+            return;
         }
+        final long created = System.currentTimeMillis();
 
-        long[] xyz = stObj.getXYZ();
+        JDBCStatementCache writer = acquireWriter();
+        boolean committed = false;
+        try {
+            List<TileObject> missing = new ArrayList<TileObject>();
+            updateTiles(writer, LOCK_TILE, tiles, created, missing);
+
+            if (!missing.isEmpty()) {
+                PreparedStatement insert = writer.prepare(INSERT_LOCKED_TILE);
+                for (TileObject stObj : missing) {
+                    long[] xyz = stObj.getXYZ();
+                    insert.setLong(1, stObj.getLayerId());
+                    insert.setLong(2, xyz[0]);
+                    insert.setLong(3, xyz[1]);
+                    insert.setLong(4, xyz[2]);
+                    insert.setLong(5, stObj.getGridSetIdId());
+                    insert.setLong(6, stObj.getFormatId());
+                    if (stObj.getParametersId() == -1L) {
+                        insert.setNull(7, java.sql.Types.BIGINT);
+                    } else {
+                        insert.setLong(7, stObj.getParametersId());
+                    }
+                    insert.setInt(8, stObj.getBlobSize());
+                    insert.setLong(9, created);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
 
-        final Connection conn = getConnection();
+            writer.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                writer.rollback();
+            }
+            releaseWriter(writer);
+        }
+    }
 
-        PreparedStatement prep = null;
+    /**
+     * Releases the locks taken by {@link #putTiles(List)}, writing the final size and creation
+     * time of each tile in the same statement
+     * 
+     * @return true if every tile had a row to unlock
+     */
+    public boolean unlockTiles(List<TileObject> tiles) throws SQLException {
+        if (tiles.isEmpty()) {
+            return true;
+        }
 
+        JDBCStatementCache writer = acquireWriter();
+        boolean committed = false;
         try {
-            prep = conn.prepareStatement(query);
-            prep.setLong(1, stObj.getLayerId());
-            prep.setLong(2, xyz[0]);
-            prep.setLong(3, xyz[1]);
-            prep.setLong(4, xyz[2]);
-            prep.setLong(5, stObj.getGridSetIdId());
-            prep.setLong(6, stObj.getFormatId());
-            if (stObj.getParametersId() != -1L) {
-                prep.setLong(7, stObj.getParametersId());
+            List<TileObject> missing = new ArrayList<TileObject>();
+            updateTiles(writer, UNLOCK_TILE, tiles, System.currentTimeMillis(), missing);
+            writer.commit();
+            committed = true;
+
+            if (!missing.isEmpty()) {
+                log.error("Expected to clear locks on " + tiles.size() + " rows, but "
+                        + missing.size() + " were missing");
+                return false;
             }
+            return true;
+        } finally {
+            if (!committed) {
+                writer.rollback();
+            }
+            releaseWriter(writer);
+        }
+    }
 
-            int affected = prep.executeUpdate();
-            // System.out.println("Affected: " + affected);
-            if (affected == 1) {
-                return true;
+    /**
+     * Runs an UPDATE of BLOB_SIZE and CREATED for each tile, batching tiles with and without
+     * parameters separately as they need different WHERE clauses
+     * 
+     * @param missing
+     *            receives the tiles that did not match any row
+     */
+    private void updateTiles(JDBCStatementCache writer, String update, List<TileObject> tiles,
+            long created, List<TileObject> missing) throws SQLException {
+        List<TileObject> withParams = new ArrayList<TileObject>();
+        List<TileObject> withoutParams = new ArrayList<TileObject>();
+        for (TileObject stObj : tiles) {
+            if (stObj.getParametersId() == -1L) {
+                withoutParams.add(stObj);
             } else {
-                log.error("Expected to clear lock on one row, but got " + affected);
-                return false;
+                withParams.add(stObj);
             }
-        } finally {
-            close(prep);
-            close(conn);
         }
 
+        if (!withoutParams.isEmpty()) {
+            PreparedStatement prep = writer.prepare(update + KEY_NO_PARAMETERS);
+            batchUpdate(prep, withoutParams, created, missing);
+        }
+        if (!withParams.isEmpty()) {
+            PreparedStatement prep = writer.prepare(update + KEY_PARAMETERS);
+            batchUpdate(prep, withParams, created, missing);
+        }
+    }
+
+    private void batchUpdate(PreparedStatement prep, List<TileObject> tiles, long created,
+            List<TileObject> missing) throws SQLException {
+        for (TileObject stObj : tiles) {
+            long[] xyz = stObj.getXYZ();
+            prep.setInt(1, stObj.getBlobSize());
+            prep.setLong(2, created);
+            prep.setLong(3, stObj.getLayerId());
+            prep.setLong(4, xyz[0]);
+            prep.setLong(5, xyz[1]);
+            prep.setLong(6, xyz[2]);
+            prep.setLong(7, stObj.getGridSetIdId());
+            prep.setLong(8, stObj.getFormatId());
+            if (stObj.getParametersId() != -1L) {
+                prep.setLong(9, stObj.getParametersId());
+            }
+            prep.addBatch();
+        }
+
+        int[] counts = prep.executeBatch();
+        for (int i = 0; i < counts.length; i++) {
+            // SUCCESS_NO_INFO is negative, assume the row was there
+            if (counts[i] == 0) {
+                missing.add(tiles.get(i));
+            }
+        }
     }
 
     public boolean unlockWFS(Long parameters, WFSObject stObj) throws SQLException,
@@ -795,6 +900,13 @@ class JDBCMBWrapper {
     }
 
     public void destroy() {
+        if (writers != null) {
+            // writers in use are closed by the SHUTDOWN below
+            for (JDBCStatementCache writer : writers) {
+                writer.close();
+            }
+        }
+
         Connection conn = null;
         try {
             conn = getConnection();
@@ -920,6 +1032,29 @@ class JDBCMBWrapper {
 
     }
 
+    /**
+     * Deletes the rows of the tiles in a rectangular range without looking at them, a band of
+     * rows at a time so that no single statement holds locks on more than about
+     * {@link #DELETE_BATCH_SIZE} tiles. The blobs are left to the caller.
+     */
+    public void deleteRows(TileRange trObj, int zoomLevel, long layerId, long formatId,
+            long parametersId, long gridSetIdId) throws SQLException {
+        final long[] bounds = trObj.rangeBounds[zoomLevel];
+        final long width = bounds[2] - bounds[0] + 1;
+        final long rowsPerBatch = Math.max(1, DELETE_BATCH_SIZE / width);
+
+        final Connection conn = getConnection();
+        try {
+            for (long miny = bounds[1]; miny <= bounds[3]; miny += rowsPerBatch) {
+                long maxy = Math.min(bounds[3], miny + rowsPerBatch - 1);
+                long[] band = { bounds[0], miny, bounds[2], maxy };
+                deleteRange(conn, layerId, formatId, parametersId, zoomLevel, band, gridSetIdId);
+            }
+        } finally {
+            close(conn);
+        }
+    }
+
     public boolean deleteRange(BlobStore blobStore, TileRange trObj, int zoomLevel, long layerId,
             long formatId, long parametersId, long gridSetIdId) {
 
@@ -18,11 +18,14 @@
 package org.geowebcache.storage.metastore.jdbc;
 
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.DiscontinuousTileRange;
 import org.geowebcache.storage.MetaStore;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
@@ -43,9 +46,18 @@ public class JDBCMetaBackend implements MetaStore {
     /** Cache for translating layers and parameter strings to ids */
     private final JDBCMBIdCache idCache;
 
-    /** Delay before trying a lock again, in ms **/
+    /** Locks taken by this JVM, waited on instead of polling the database */
+    private final TileLockRegistry tileLocks = new TileLockRegistry();
+
+    /**
+     * Delay before checking a lock held by another process again, in ms. Doubled after each
+     * attempt up to lockRetryMaxDelay
+     **/
     private long lockRetryDelay = 50;
 
+    /** Upper bound for the delay between checks of a lock held by another process, in ms **/
+    private long lockRetryMaxDelay = 1000;
+
     private boolean enabled = true;
 
     public JDBCMetaBackend(String driverClass, String jdbcString, String username, String password)
@@ -183,13 +195,30 @@ public class JDBCMetaBackend implements MetaStore {
             parametersId = -1L;
         }
         long gridSetIdId = idCache.getGridSetsId(trObj.gridSetId);
+        // so the blob store leaves the tiles of the other parameters alone
+        trObj.setParametersId(parametersId);
+
+        if (trObj instanceof DiscontinuousTileRange) {
+            // only the rows know which tiles are in the mask
+            for (int zoomLevel = trObj.zoomStart; zoomLevel <= trObj.zoomStop; zoomLevel++) {
+                wrpr.deleteRange(blobStore, trObj, zoomLevel, layerId, formatId, parametersId,
+                        gridSetIdId);
+            }
+            return true;
+        }
 
+        // the range is a rectangle per zoom level, the rows go in a few set based deletes and
+        // the blob store walks its own storage rather than being handed the tiles one by one
         for (int zoomLevel = trObj.zoomStart; zoomLevel <= trObj.zoomStop; zoomLevel++) {
-            wrpr.deleteRange(blobStore, trObj, zoomLevel, layerId, formatId, parametersId,
-                    gridSetIdId);
+            try {
+                wrpr.deleteRows(trObj, zoomLevel, layerId, formatId, parametersId, gridSetIdId);
+            } catch (SQLException se) {
+                log.error(se.getMessage());
+                return false;
+            }
         }
 
-        return true;
+        return blobStore.delete(trObj);
     }
 
     public boolean expire(TileRange trObj) throws StorageException {
@@ -224,11 +253,19 @@ public class JDBCMetaBackend implements MetaStore {
         }
 
         try {
-
             boolean response = wrpr.getTile(stObj);
+            long delay = 0;
             while (stObj.getStatus().equals(Status.LOCK)) {
                 try {
-                    Thread.sleep(lockRetryDelay);
+                    if (!tileLocks.await(stObj, wrpr.lockTimeout)) {
+                        // Locked by another process, or released just now. Check again right
+                        // away once, then back off
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                        delay = (delay == 0) ? Math.max(lockRetryDelay, 1) : Math.min(
+                                delay * 2, lockRetryMaxDelay);
+                    }
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -236,6 +273,11 @@ public class JDBCMetaBackend implements MetaStore {
                 response = wrpr.getTile(stObj);
             }
 
+            if (stObj.getStatus().equals(Status.EXPIRED_LOCK)) {
+                // the writer never released it, don't let others wait for it again
+                tileLocks.unlock(stObj);
+            }
+
             return response;
 
         } catch (SQLException se) {
@@ -274,23 +316,28 @@ public class JDBCMetaBackend implements MetaStore {
     }
 
     public void put(TileObject stObj) throws StorageException {
-        stObj.setLayerId(idCache.getLayerId(stObj.getLayerName()));
-        stObj.setFormatId(idCache.getFormatId(stObj.getBlobFormat()));
-        stObj.setGridSetIdId(idCache.getGridSetsId(stObj.getGridSetId()));
-        if (stObj.getParameters() != null && stObj.getParameters().length() != 0) {
-            stObj.setParamtersId(idCache.getParametersId(stObj.getParameters()));
+        putAll(Collections.singletonList(stObj));
+    }
+
+    public void putAll(List<TileObject> stObjs) throws StorageException {
+        for (TileObject stObj : stObjs) {
+            setIds(stObj);
+            tileLocks.lock(stObj);
         }
 
         try {
-            wrpr.deleteTile(stObj);
+            wrpr.putTiles(stObjs);
         } catch (SQLException se) {
-            log.error("Failed to delete tile: " + se.getMessage());
+            log.error("Failed to put tiles: " + se.getMessage());
         }
+    }
 
-        try {
-            wrpr.putTile(stObj);
-        } catch (SQLException se) {
-            log.error("Failed to put tile: " + se.getMessage());
+    private void setIds(TileObject stObj) throws StorageException {
+        stObj.setLayerId(idCache.getLayerId(stObj.getLayerName()));
+        stObj.setFormatId(idCache.getFormatId(stObj.getBlobFormat()));
+        stObj.setGridSetIdId(idCache.getGridSetsId(stObj.getGridSetId()));
+        if (stObj.getParameters() != null && stObj.getParameters().length() != 0) {
+            stObj.setParamtersId(idCache.getParametersId(stObj.getParameters()));
         }
     }
 
@@ -316,10 +363,19 @@ public class JDBCMetaBackend implements MetaStore {
     }
 
     public boolean unlock(TileObject stObj) throws StorageException {
+        return unlockAll(Collections.singletonList(stObj));
+    }
+
+    public boolean unlockAll(List<TileObject> stObjs) throws StorageException {
         try {
-            return wrpr.unlockTile(stObj);
+            return wrpr.unlockTiles(stObjs);
         } catch (SQLException se) {
-            log.error("Failed to unlock tile: " + se.getMessage());
+            log.error("Failed to unlock tiles: " + se.getMessage());
+        } finally {
+            // after the commit, so that the waiters find the tiles unlocked
+            for (TileObject stObj : stObjs) {
+                tileLocks.unlock(stObj);
+            }
         }
 
         return false;
@@ -366,4 +422,8 @@ public class JDBCMetaBackend implements MetaStore {
     public void setLockRetryDelay(long lockRetryDelay) {
         this.lockRetryDelay = lockRetryDelay;
     }
+
+    public void setLockRetryMaxDelay(long lockRetryMaxDelay) {
+        this.lockRetryMaxDelay = lockRetryMaxDelay;
+    }
 }
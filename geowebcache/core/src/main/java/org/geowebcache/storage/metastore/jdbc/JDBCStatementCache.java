@@ -0,0 +1,104 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A long lived connection that keeps its prepared statements around, used by
+ * {@link JDBCMBWrapper} for writes.
+ * <p>
+ * The connection is opened on first use and runs with auto commit disabled, callers commit or roll
+ * back themselves. Instances are not thread safe, the wrapper hands each one to a single thread at
+ * a time.
+ * </p>
+ */
+class JDBCStatementCache {
+
+    private final JDBCMBWrapper wrapper;
+
+    private Connection conn;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    JDBCStatementCache(JDBCMBWrapper wrapper) {
+        this.wrapper = wrapper;
+    }
+
+    private Connection getConnection() throws SQLException {
+        if (conn == null) {
+            conn = wrapper.getConnection();
+            conn.setAutoCommit(false);
+        }
+        return conn;
+    }
+
+    /**
+     * @return the statement for the query, prepared the first time it is asked for
+     */
+    PreparedStatement prepare(String query) throws SQLException {
+        PreparedStatement prep = statements.get(query);
+        if (prep == null) {
+            prep = getConnection().prepareStatement(query);
+            statements.put(query, prep);
+        } else {
+            prep.clearParameters();
+        }
+        return prep;
+    }
+
+    void commit() throws SQLException {
+        getConnection().commit();
+    }
+
+    /**
+     * Rolls back the current transaction. If that fails the connection is assumed to be broken and
+     * is closed, the next call to {@link #prepare(String)} opens a new one.
+     */
+    void rollback() {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.rollback();
+            Iterator<PreparedStatement> iter = statements.values().iterator();
+            while (iter.hasNext()) {
+                iter.next().clearBatch();
+            }
+        } catch (SQLException se) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the statements and the connection
+     */
+    void close() {
+        Iterator<PreparedStatement> iter = statements.values().iterator();
+        while (iter.hasNext()) {
+            JDBCUtils.close(iter.next());
+        }
+        statements.clear();
+        if (conn != null) {
+            JDBCUtils.close(conn);
+            conn = null;
+        }
+    }
+}
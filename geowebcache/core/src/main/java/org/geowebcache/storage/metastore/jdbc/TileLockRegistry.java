@@ -0,0 +1,87 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.metastore.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.storage.TileObject;
+
+/**
+ * Keeps track of the tile locks taken by this JVM, so that {@link JDBCMetaBackend#get(TileObject)}
+ * can wait for a local writer to release a tile instead of polling the database.
+ * <p>
+ * Locks held by other processes sharing the database are not known here, for those the caller has
+ * to fall back to polling.
+ * </p>
+ */
+class TileLockRegistry {
+
+    private final ConcurrentHashMap<String, CountDownLatch> locks = new ConcurrentHashMap<String, CountDownLatch>();
+
+    /**
+     * Registers the lock, must be called before the lock is visible in the database. If the tile
+     * was already registered the previous waiters are released, they will find the new lock when
+     * they check the database again.
+     */
+    void lock(TileObject stObj) {
+        CountDownLatch previous = locks.put(key(stObj), new CountDownLatch(1));
+        if (previous != null) {
+            previous.countDown();
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting for the tile, must be called after the lock has been cleared
+     * in the database
+     */
+    void unlock(TileObject stObj) {
+        CountDownLatch latch = locks.remove(key(stObj));
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Waits until the tile is unlocked, or the timeout expires
+     *
+     * @return false if the tile is not locked by this JVM, the caller has to poll the database
+     */
+    boolean await(TileObject stObj, long timeout) throws InterruptedException {
+        CountDownLatch latch = locks.get(key(stObj));
+        if (latch == null) {
+            return false;
+        }
+        latch.await(timeout, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * @return the number of tiles currently locked by this JVM
+     */
+    int size() {
+        return locks.size();
+    }
+
+    private static String key(TileObject stObj) {
+        long[] xyz = stObj.getXYZ();
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(stObj.getLayerId()).append('/').append(stObj.getGridSetIdId()).append('/');
+        sb.append(stObj.getFormatId()).append('/').append(stObj.getParametersId()).append('/');
+        sb.append(xyz[0]).append('/').append(xyz[1]).append('/').append(xyz[2]);
+        return sb.toString();
+    }
+}
@@ -52,6 +52,24 @@ public class FileUtils {
         return (path.delete());
     }
 
+    /**
+     * Moves {@code source} to {@code dest}, replacing {@code dest} if it exists.
+     * <p>
+     * {@link File#renameTo} does not replace existing files on all platforms, so when it fails
+     * {@code dest} is deleted and the rename tried again. Where that happens {@code dest} is
+     * briefly missing.
+     * </p>
+     * 
+     * @return true if {@code source} was moved
+     */
+    public static boolean renameFile(File source, File dest) {
+        if (source.renameTo(dest)) {
+            return true;
+        }
+        dest.delete();
+        return source.renameTo(dest);
+    }
+
     /**
      * Traverses the directory denoted by {@code path} recursively and calls {@code filter.accept}
      * on each child, files first, subdirectories next.
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
@@ -47,14 +48,30 @@ public class HttpClientBuilder {
 
     private boolean doAuthentication = false;
 
+    private HttpConnectionManager connectionManager = null;
+
     public HttpClientBuilder() {
         super();
     }
 
     public HttpClientBuilder(URL url, Integer backendTimeout, String httpUsername,
             String httpPassword, URL proxyUrl) {
-        this.setHttpCredentials(httpUsername, httpPassword,
-                new AuthScope(url.getHost(), url.getPort()));
+        this(new AuthScope(url.getHost(), url.getPort()), backendTimeout, httpUsername,
+                httpPassword, proxyUrl);
+    }
+
+    /**
+     * Resolves the credentials and the proxy (including the one passed to the VM through
+     * -Dhttp.proxyHost) up front, so that a single builder can be used to create a long lived
+     * client.
+     * 
+     * @param authscope
+     *            the scope the HTTP credentials apply to, AuthScope.ANY if the client will only
+     *            ever talk to trusted backends
+     */
+    public HttpClientBuilder(AuthScope authscope, Integer backendTimeout, String httpUsername,
+            String httpPassword, URL proxyUrl) {
+        this.setHttpCredentials(httpUsername, httpPassword, authscope);
 
         RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
         List<String> lst = runtimeMXBean.getInputArguments();
@@ -120,16 +137,32 @@ public class HttpClientBuilder {
         this.backendTimeout = backendTimeout * 1000;
     }
 
+    /**
+     * Sets the connection manager the generated HttpClient will use. If not set every client
+     * gets its own SimpleHttpConnectionManager, meaning a new connection per client.
+     * 
+     * @param connectionManager
+     */
+    public void setConnectionManager(HttpConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
     /**
      * uses the configuration of this builder to generate a HttpClient
      * 
      * @return the generated HttpClient
      */
     public HttpClient buildClient() {
-        HttpClient httpClient = new HttpClient();
+        HttpClient httpClient;
+        if (connectionManager != null) {
+            httpClient = new HttpClient(connectionManager);
+        } else {
+            httpClient = new HttpClient();
+        }
+        // backendTimeout is already in milliseconds
         HttpConnectionParams params = httpClient.getHttpConnectionManager().getParams();
-        params.setConnectionTimeout(backendTimeout * 1000);
-        params.setSoTimeout(backendTimeout * 1000);
+        params.setConnectionTimeout(backendTimeout);
+        params.setSoTimeout(backendTimeout);
 
         if (authscope != null && httpcredentials != null) {
             httpClient.getState().setCredentials(authscope, httpcredentials);
@@ -0,0 +1,200 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageBrokerTest;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class FileResourceTest extends TestCase {
+
+    public static final boolean RUN_PERFORMANCE_TESTS = false;
+
+    public static final String TEST_BLOB_DIR_NAME = "gwcTestResourceBlobs";
+
+    public static final int HIT_COUNT = 20000;
+
+    public static final int TILE_COUNT = 100;
+
+    private static TileObject tile(long x, byte[] blob) {
+        long[] xyz = { x, 0, 5 };
+        return TileObject.createCompleteTileObject("resource", xyz, "EPSG:4326", "image/png",
+                null, blob);
+    }
+
+    private static TileObject query(long x) {
+        long[] xyz = { x, 0, 5 };
+        return TileObject.createQueryTileObject("resource", xyz, "EPSG:4326", "image/png", null);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    public void testTransferTo() throws Exception {
+        BlobStore bs = prepBlobStore();
+        byte[] bytes = randomBytes(100000);
+        bs.put(tile(1, bytes));
+
+        Resource res = bs.getResource(query(1));
+        assertTrue(res instanceof FileResource);
+        assertEquals(bytes.length, res.getSize());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(bytes.length, res.transferTo(Channels.newChannel(out)));
+        assertTrue(Arrays.equals(bytes, out.toByteArray()));
+
+        assertNull(bs.getResource(query(2)));
+    }
+
+    public void testReplacedFile() throws Exception {
+        BlobStore bs = prepBlobStore();
+        byte[] bytes = randomBytes(1000);
+        bs.put(tile(1, bytes));
+        Resource res = bs.getResource(query(1));
+
+        // re-seeded with a tile of another size before the first one is sent
+        byte[] replacement = randomBytes(2000);
+        bs.put(tile(1, replacement));
+        try {
+            res.transferTo(Channels.newChannel(new ByteArrayOutputStream()));
+            fail("Expected an IOException, the file no longer has the size announced");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        // complete contents for a new read, and no temporary files left around
+        FileResource current = (FileResource) bs.getResource(query(1));
+        assertEquals(replacement.length, current.getSize());
+        assertEquals(1, current.getFile().getParentFile().list().length);
+
+        // a tile that is gone by the time its contents are needed has none
+        TileObject hit = query(1);
+        hit.setBlobResource(current);
+        assertTrue(current.getFile().delete());
+        assertNull(hit.getBlob());
+    }
+
+    public void testStorageBrokerHit() throws Exception {
+        StorageBroker sb = new StorageBroker(null, prepBlobStore());
+        byte[] bytes = randomBytes(5000);
+        sb.put(tile(1, bytes));
+
+        TileObject hit = query(1);
+        assertTrue(sb.get(hit));
+        assertEquals(bytes.length, hit.getBlobSize());
+        assertTrue(hit.getBlobResource() instanceof FileResource);
+
+        // still available as a byte array for the code that needs one
+        assertTrue(Arrays.equals(bytes, hit.getBlob()));
+
+        // a freshly rendered tile is held in memory
+        hit.setBlob(bytes);
+        assertTrue(hit.getBlobResource() instanceof ByteArrayResource);
+    }
+
+    /**
+     * Compares cache hits read into a byte[] and then written out with cache hits sent using
+     * transferTo, for small, medium and large tiles
+     */
+    public void testHitThroughput() throws Exception {
+        if (!RUN_PERFORMANCE_TESTS)
+            return;
+
+        int[] sizes = { 5 * 1024, 50 * 1024, 500 * 1024 };
+        for (int i = 0; i < sizes.length; i++) {
+            BlobStore bs = prepBlobStore();
+            for (int t = 0; t < TILE_COUNT; t++) {
+                bs.put(tile(t, randomBytes(sizes[i])));
+            }
+
+            int hits = HIT_COUNT / (i * 4 + 1);
+
+            // warm up the page cache and the JIT
+            runHits(bs, hits / 10, false);
+            runHits(bs, hits / 10, true);
+
+            long copy = runHits(bs, hits, false);
+            long transfer = runHits(bs, hits, true);
+
+            System.out.println((sizes[i] / 1024) + " KB tiles, " + hits + " hits: byte[] "
+                    + copy + "ms (" + (hits * 1000L / copy) + "/s), transferTo " + transfer
+                    + "ms (" + (hits * 1000L / transfer) + "/s)");
+        }
+    }
+
+    private long runHits(BlobStore bs, int hits, boolean useResource) throws Exception {
+        NullOutputStream out = new NullOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < hits; i++) {
+            TileObject query = query(i % TILE_COUNT);
+            if (useResource) {
+                bs.getResource(query).transferTo(channel);
+            } else {
+                out.write(bs.get(query));
+            }
+        }
+        return Math.max(System.currentTimeMillis() - start, 1);
+    }
+
+    private BlobStore prepBlobStore() throws Exception {
+        String blobPath = StorageBrokerTest.findTempDir() + File.separator + TEST_BLOB_DIR_NAME;
+        File blobDir = new File(blobPath);
+        deleteRecursive(blobDir);
+        if (!blobDir.mkdirs()) {
+            throw new StorageException("Unable to create " + blobPath);
+        }
+        return new FileBlobStore(blobPath);
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteRecursive(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Stands in for the servlet output stream, discarding what is written
+     */
+    private static class NullOutputStream extends OutputStream {
+        public void write(int b) throws IOException {
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+        }
+    }
+}
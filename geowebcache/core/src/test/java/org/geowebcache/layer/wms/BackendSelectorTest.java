@@ -0,0 +1,277 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.Collections;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileResponseReceiver;
+
+/**
+ * Unit test suite for {@link BackendSelector}
+ */
+public class BackendSelectorTest extends TestCase {
+
+    public void testRoundRobinWhileHealthy() {
+        BackendSelector selector = new BackendSelector(urls(3));
+        for (int i = 0; i < 6; i++) {
+            int backend = selector.select(null);
+            assertEquals(i % 3, backend);
+            selector.finished(backend, true, 5);
+        }
+    }
+
+    public void testLeastLoaded() {
+        BackendSelector selector = new BackendSelector(urls(2));
+        int first = selector.select(null);
+        int second = selector.select(null);
+        assertTrue(first != second);
+        // the first one is done, the second is still busy
+        selector.finished(first, true, 5);
+        assertEquals(first, selector.select(null));
+    }
+
+    public void testPrefersFasterBackend() {
+        BackendSelector selector = new BackendSelector(urls(2));
+        selector.finished(selector.select(null), true, 500);
+        selector.finished(selector.select(null), true, 5);
+        for (int i = 0; i < 5; i++) {
+            int backend = selector.select(null);
+            assertEquals(1, backend);
+            selector.finished(backend, true, 5);
+        }
+    }
+
+    public void testSkipsTried() {
+        BackendSelector selector = new BackendSelector(urls(2));
+        boolean[] tried = { true, false };
+        assertEquals(1, selector.select(tried));
+        tried[1] = true;
+        assertEquals(-1, selector.select(tried));
+    }
+
+    public void testCircuitBreaker() throws Exception {
+        BackendSelector selector = new BackendSelector(urls(1));
+        selector.setOpenTimeout(100);
+        for (int i = 0; i < BackendSelector.DEFAULT_FAILURE_THRESHOLD; i++) {
+            assertFalse(selector.isOpen(0));
+            assertEquals(0, selector.select(null));
+            selector.finished(0, false, 5);
+        }
+        assertTrue(selector.isOpen(0));
+        assertEquals(-1, selector.select(null));
+
+        // half open, only one probe goes through, and fails
+        Thread.sleep(150);
+        assertEquals(0, selector.select(null));
+        assertEquals(-1, selector.select(null));
+        selector.finished(0, false, 5);
+        assertTrue(selector.isOpen(0));
+        assertEquals(-1, selector.select(null));
+
+        // the next probe succeeds
+        Thread.sleep(150);
+        assertEquals(0, selector.select(null));
+        selector.finished(0, true, 5);
+        assertFalse(selector.isOpen(0));
+        assertEquals(0, selector.select(null));
+    }
+
+    /**
+     * Two stub WMS backends, the faster one fails and recovers
+     */
+    public void testFailingBackend() throws Exception {
+        MockWMSServer failing = new MockWMSServer();
+        MockWMSServer healthy = new MockWMSServer();
+        failing.setResponse("image/png", new byte[256]);
+        healthy.setResponse("image/png", new byte[256]);
+        healthy.setDelay(50);
+        try {
+            WMSLayer layer = createWMSLayer(failing.getURL(), healthy.getURL());
+            WMSHttpHelper helper = (WMSHttpHelper) layer.getSourceHelper();
+            BackendSelector selector = layer.getBackendSelector();
+            selector.setOpenTimeout(1000);
+
+            for (int i = 0; i < 4; i++) {
+                helper.makeRequest(new Receiver(), layer, "REQUEST=GetMap", "image/png");
+            }
+            assertEquals(1, healthy.getRequestCount());
+
+            // server errors are retried on the other backend until the circuit opens
+            failing.setStatusCode(500);
+            int before = failing.getRequestCount();
+            int healthyBefore = healthy.getRequestCount();
+            for (int i = 0; i < 6; i++) {
+                Receiver receiver = new Receiver();
+                helper.makeRequest(receiver, layer, "REQUEST=GetMap", "image/png");
+                assertFalse(receiver.getError());
+                assertEquals(200, receiver.getStatus());
+            }
+            assertEquals(before + BackendSelector.DEFAULT_FAILURE_THRESHOLD,
+                    failing.getRequestCount());
+            assertEquals(healthyBefore + 6, healthy.getRequestCount());
+            assertTrue(selector.isOpen(0));
+            assertFalse(selector.isOpen(1));
+
+            // the probe after the timeout finds it working again
+            failing.setStatusCode(200);
+            Thread.sleep(1050);
+            before = failing.getRequestCount();
+            helper.makeRequest(new Receiver(), layer, "REQUEST=GetMap", "image/png");
+            assertEquals(before + 1, failing.getRequestCount());
+            assertFalse(selector.isOpen(0));
+
+            helper.destroy();
+        } finally {
+            failing.stop();
+            healthy.stop();
+        }
+    }
+
+    /**
+     * A backend that stalls until the timeout is tried once, the requests then go elsewhere
+     * without waiting for it
+     */
+    public void testStallingBackend() throws Exception {
+        MockWMSServer stalling = new MockWMSServer();
+        MockWMSServer healthy = new MockWMSServer();
+        stalling.setResponse("image/png", new byte[256]);
+        healthy.setResponse("image/png", new byte[256]);
+        stalling.setDelay(3000);
+        try {
+            WMSLayer layer = createWMSLayer(stalling.getURL(), healthy.getURL());
+            layer.setBackendTimeout(1);
+            WMSHttpHelper helper = (WMSHttpHelper) layer.getSourceHelper();
+
+            // times out on the stalling backend, then goes to the other one
+            helper.makeRequest(new Receiver(), layer, "REQUEST=GetMap", "image/png");
+            assertEquals(1, stalling.getRequestCount());
+            assertEquals(1, healthy.getRequestCount());
+
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 10; i++) {
+                helper.makeRequest(new Receiver(), layer, "REQUEST=GetMap", "image/png");
+            }
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertEquals(1, stalling.getRequestCount());
+            assertEquals(11, healthy.getRequestCount());
+
+            helper.destroy();
+        } finally {
+            stalling.stop();
+            healthy.stop();
+        }
+    }
+
+    /**
+     * A slow backend gets fewer requests
+     */
+    public void testSlowBackend() throws Exception {
+        MockWMSServer slow = new MockWMSServer();
+        MockWMSServer fast = new MockWMSServer();
+        slow.setResponse("image/png", new byte[256]);
+        fast.setResponse("image/png", new byte[256]);
+        slow.setDelay(200);
+        try {
+            WMSLayer layer = createWMSLayer(slow.getURL(), fast.getURL());
+            WMSHttpHelper helper = (WMSHttpHelper) layer.getSourceHelper();
+
+            for (int i = 0; i < 10; i++) {
+                helper.makeRequest(new Receiver(), layer, "REQUEST=GetMap", "image/png");
+            }
+            assertEquals(1, slow.getRequestCount());
+            assertEquals(9, fast.getRequestCount());
+            assertFalse(layer.getBackendSelector().isOpen(0));
+
+            helper.destroy();
+        } finally {
+            slow.stop();
+            fast.stop();
+        }
+    }
+
+    private static String[] urls(int count) {
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = "http://localhost:" + (8080 + i) + "/wms?";
+        }
+        return urls;
+    }
+
+    private WMSLayer createWMSLayer(String... urls) {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, 10);
+        grids.put(grid.getName(), grid);
+        int[] metaWidthHeight = { 3, 3 };
+
+        WMSLayer layer = new WMSLayer("test:layer", urls, "aStyle", "test:layer", Collections
+                .singletonList("image/png"), grids, null, metaWidthHeight, null, false);
+        layer.setSourceHelper(new WMSHttpHelper());
+        layer.setBackendTimeout(10);
+        layer.initialize(gridSetBroker);
+        return layer;
+    }
+
+    private static class Receiver implements TileResponseReceiver {
+        private int status;
+
+        private long expires = -1;
+
+        private boolean error;
+
+        private String errorMessage;
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setExpiresHeader(long seconds) {
+            this.expires = seconds;
+        }
+
+        public long getExpiresHeader() {
+            return expires;
+        }
+
+        public void setError() {
+            error = true;
+        }
+
+        public boolean getError() {
+            return error;
+        }
+
+        public void setErrorMessage(String message) {
+            this.errorMessage = message;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileResponseReceiver;
+
+/**
+ * Unit test suite for {@link BackendThrottle}
+ */
+public class BackendThrottleTest extends TestCase {
+
+    public void testRequestsPerSecond() throws Exception {
+        BackendThrottle throttle = new BackendThrottle();
+        throttle.setSeedRequestsPerSecond(50.0);
+        throttle.initialize();
+
+        // interactive requests are not limited
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            throttle.acquire(false).release();
+        }
+        assertTrue(System.currentTimeMillis() - start < 500);
+
+        // a burst of 50, then 50 more at 50 per second
+        start = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            throttle.acquire(true).release();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Took " + elapsed + "ms", elapsed >= 900);
+        assertTrue("Took " + elapsed + "ms", elapsed < 3000);
+    }
+
+    public void testMaxConcurrent() throws Exception {
+        final BackendThrottle throttle = new BackendThrottle();
+        throttle.setSeedMaxConcurrent(2);
+        throttle.initialize();
+
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            BackendThrottle.Permit permit = throttle.acquire(true);
+                            try {
+                                track(inFlight.incrementAndGet(), maxInFlight);
+                                Thread.sleep(20);
+                                inFlight.decrementAndGet();
+                            } finally {
+                                permit.release();
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        // the seeding threads keep their budget busy, clients still get through right away
+        Thread.sleep(30);
+        long start = System.currentTimeMillis();
+        throttle.acquire(false).release();
+        assertTrue(System.currentTimeMillis() - start < 20);
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(2, maxInFlight.get());
+    }
+
+    /**
+     * Requests in flight while the throttle is initialized again give their place back to the
+     * budget they came from, not to the new one
+     */
+    public void testInitializeWhileInFlight() throws Exception {
+        final BackendThrottle throttle = new BackendThrottle();
+        throttle.setSeedMaxConcurrent(1);
+        throttle.initialize();
+
+        BackendThrottle.Permit old = throttle.acquire(true);
+        throttle.initialize();
+        BackendThrottle.Permit current = throttle.acquire(true);
+        old.release();
+
+        // the new budget is still full
+        Thread waiting = new Thread() {
+            public void run() {
+                try {
+                    throttle.acquire(true).release();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiting.start();
+        waiting.join(200);
+        assertTrue(waiting.isAlive());
+
+        current.release();
+        waiting.join(1000);
+        assertFalse(waiting.isAlive());
+    }
+
+    /**
+     * Seeds against a stub WMS that gets slow, then fast again
+     */
+    public void testAdaptiveSeedConcurrency() throws Exception {
+        MockWMSServer server = new MockWMSServer();
+        server.setResponse("image/png", new byte[256]);
+        server.setDelay(300);
+        try {
+            BackendThrottle throttle = new BackendThrottle();
+            throttle.setSeedMaxConcurrent(8);
+            throttle.setLatencyThreshold(100);
+
+            final WMSLayer layer = createWMSLayer(server.getURL(), throttle);
+            assertEquals(8, throttle.getSeedConcurrencyLimit());
+
+            final AtomicInteger maxInFlight = new AtomicInteger();
+            runSeedRequests(layer, 8, 3, maxInFlight);
+
+            int reduced = throttle.getSeedConcurrencyLimit();
+            assertTrue("Limit is " + reduced, reduced < 8);
+            assertTrue(throttle.getAverageLatency() > 100);
+
+            // clients are not held back by the reduced seed concurrency
+            long start = System.currentTimeMillis();
+            BackendThrottle.Permit[] permits = new BackendThrottle.Permit[4];
+            for (int i = 0; i < permits.length; i++) {
+                permits[i] = throttle.acquire(false);
+            }
+            assertTrue(System.currentTimeMillis() - start < 20);
+            for (int i = 0; i < permits.length; i++) {
+                permits[i].release();
+            }
+
+            // while the backend is slow seeding does not go above the reduced limit
+            maxInFlight.set(0);
+            runSeedRequests(layer, 8, 2, maxInFlight);
+            assertTrue(maxInFlight.get() <= reduced);
+
+            // the backend recovers, and so does the limit
+            server.setDelay(0);
+            int before = throttle.getSeedConcurrencyLimit();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (throttle.getSeedConcurrencyLimit() <= before
+                    && System.currentTimeMillis() < deadline) {
+                runSeedRequests(layer, 4, 10, new AtomicInteger());
+            }
+            assertTrue(throttle.getSeedConcurrencyLimit() > before);
+
+            ((WMSHttpHelper) layer.getSourceHelper()).destroy();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void runSeedRequests(final WMSLayer layer, int threadCount,
+            final int requestsPerThread, final AtomicInteger maxInFlight) throws Exception {
+        final BackendThrottle throttle = layer.getBackendThrottle();
+        final WMSHttpHelper helper = (WMSHttpHelper) layer.getSourceHelper();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final Exception[] failure = new Exception[1];
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < requestsPerThread; j++) {
+                            BackendThrottle.Permit permit = throttle.acquire(true);
+                            try {
+                                track(inFlight.incrementAndGet(), maxInFlight);
+                                helper.makeRequest(new Receiver(), layer, "REQUEST=GetMap",
+                                        "image/png");
+                                inFlight.decrementAndGet();
+                            } finally {
+                                permit.release();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threadCount; i++) {
+            threads[i].join();
+        }
+        assertNull(failure[0]);
+    }
+
+    private static void track(int value, AtomicInteger max) {
+        int current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    private WMSLayer createWMSLayer(String url, BackendThrottle throttle) {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        String[] urls = { url };
+        List<String> formatList = Collections.singletonList("image/png");
+
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, 10);
+        grids.put(grid.getName(), grid);
+        int[] metaWidthHeight = { 3, 3 };
+
+        WMSLayer layer = new WMSLayer("test:layer", urls, "aStyle", "test:layer", formatList,
+                grids, null, metaWidthHeight, "vendorparam=true", false);
+        layer.setSourceHelper(new WMSHttpHelper());
+        layer.setBackendThrottle(throttle);
+        layer.setBackendTimeout(10);
+        layer.initialize(gridSetBroker);
+        return layer;
+    }
+
+    private static class Receiver implements TileResponseReceiver {
+        private int status;
+
+        private long expires = -1;
+
+        private boolean error;
+
+        private String errorMessage;
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setExpiresHeader(long seconds) {
+            this.expires = seconds;
+        }
+
+        public long getExpiresHeader() {
+            return expires;
+        }
+
+        public void setError() {
+            error = true;
+        }
+
+        public boolean getError() {
+            return error;
+        }
+
+        public void setErrorMessage(String message) {
+            this.errorMessage = message;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+}
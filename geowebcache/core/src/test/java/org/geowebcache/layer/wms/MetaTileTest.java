@@ -1,16 +1,22 @@
 package org.geowebcache.layer.wms;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 
+import javax.imageio.ImageIO;
+
 import junit.framework.TestCase;
 
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileEncoderExecutor;
 import org.geowebcache.mime.ImageMime;
 
 public class MetaTileTest extends TestCase {
@@ -199,6 +205,78 @@ public class MetaTileTest extends TestCase {
         assertTrue(Math.abs( Double.parseDouble(coordStrs[3]) - 45.54931640625) < 0.001);
     }
     
+    public void testEncodeTiles() throws Exception {
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        long[] gridPos = { 4, 4, 4 };
+        
+        BufferedImage img = new BufferedImage(4 * 256, 4 * 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, (x * y) | 0xff000000);
+            }
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", response);
+        
+        WMSMetaTile sequential = new WMSMetaTile(null, grid, ImageMime.png, null, gridPos, 4, 4, 
+                null);
+        sequential.setImageBytes(response.toByteArray());
+        sequential.createTiles(256, 256);
+        byte[] first = sequential.encodeTile(5);
+        byte[][] expected = sequential.encodeTiles(null);
+        assertSame(first, expected[5]);
+        
+        WMSMetaTile parallel = new WMSMetaTile(null, grid, ImageMime.png, null, gridPos, 4, 4, 
+                null);
+        parallel.setImageBytes(response.toByteArray());
+        parallel.createTiles(256, 256);
+        TileEncoderExecutor executor = new TileEncoderExecutor(3, 4);
+        try {
+            byte[][] encoded = parallel.encodeTiles(executor);
+            assertEquals(16, encoded.length);
+            for (int i = 0; i < 16; i++) {
+                assertTrue("tile " + i, Arrays.equals(expected[i], encoded[i]));
+            }
+        } finally {
+            executor.destroy();
+        }
+        
+        // the bottom left tile is the first one
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(expected[0]));
+        assertEquals(256, tile.getWidth());
+        assertEquals(img.getRGB(10, 3 * 256 + 20), tile.getRGB(10, 20));
+    }
+    
+    public void testCreateTiles() throws Exception {
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        long[] gridPos = { 3, 3, 4 };
+        
+        BufferedImage img = new BufferedImage(3 * 256, 3 * 256, BufferedImage.TYPE_4BYTE_ABGR);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, (x << 12) | y | 0xff000000);
+            }
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", response);
+        
+        WMSMetaTile mt = new WMSMetaTile(null, grid, ImageMime.png, null, gridPos, 3, 3, null);
+        mt.setImageBytes(response.toByteArray());
+        mt.createTiles(256, 256);
+        
+        // the top right tile, from the bottom left one up
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(mt.encodeTile(8)));
+        assertEquals(256, tile.getWidth());
+        assertEquals(256, tile.getHeight());
+        for (int y = 0; y < 256; y += 17) {
+            for (int x = 0; x < 256; x += 13) {
+                assertEquals(img.getRGB(512 + x, y), tile.getRGB(x, y));
+            }
+        }
+        tile = ImageIO.read(new ByteArrayInputStream(mt.encodeTile(1)));
+        assertEquals(img.getRGB(256 + 100, 512 + 200), tile.getRGB(100, 200));
+    }
+    
     private WMSLayer createWMSLayer(BoundingBox layerBounds) {
         String[] urls = {"http://localhost:38080/wms"};
         List<String> formatList = new LinkedList<String>();
@@ -0,0 +1,179 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server with keep-alive support, standing in for a WMS backend in tests.
+ * <p>
+ * Every request gets the same canned response. The server counts the TCP connections it has
+ * accepted and the requests it has answered, and can be told to delay or fail responses.
+ * </p>
+ */
+public class MockWMSServer {
+
+    private final ServerSocket serverSocket;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile byte[] body = new byte[0];
+
+    private volatile String contentType = "image/png";
+
+    private volatile int statusCode = 200;
+
+    private volatile long delay = 0;
+
+    private volatile boolean running = true;
+
+    public MockWMSServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("MockWMSServer-" + getPort()) {
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the base URL of the server, ending with "?" like a configured WMS URL
+     */
+    public String getURL() {
+        return "http://127.0.0.1:" + getPort() + "/wms?";
+    }
+
+    public void setResponse(String contentType, byte[] body) {
+        this.contentType = contentType;
+        this.body = body;
+    }
+
+    public void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @param delay
+     *            milliseconds to wait before answering each request
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            Thread handler = new Thread("MockWMSServer-connection") {
+                public void run() {
+                    handle(socket);
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            // keep serving requests on the same connection until the client closes it
+            while (running && readRequestHeaders(in)) {
+                requests.incrementAndGet();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                byte[] content = body;
+                StringBuilder headers = new StringBuilder();
+                headers.append("HTTP/1.1 ").append(statusCode).append(" Mock\r\n");
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+                headers.append("Content-Length: ").append(content.length).append("\r\n");
+                headers.append("Connection: keep-alive\r\n\r\n");
+                out.write(headers.toString().getBytes("ISO-8859-1"));
+                out.write(content);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } catch (InterruptedException e) {
+            // shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Consumes the request line and headers, GET requests have no body.
+     *
+     * @return false if the connection was closed before a full request was read
+     */
+    private boolean readRequestHeaders(InputStream in) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if ((matched % 2 == 0 && c == '\r') || (matched % 2 == 1 && c == '\n')) {
+                matched++;
+                if (matched == 4) {
+                    return true;
+                }
+            } else {
+                matched = (c == '\r') ? 1 : 0;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.util.ServletUtils;
+
+/**
+ * Unit test suite for {@link WMSHttpHelper}
+ */
+public class WMSHttpHelperTest extends TestCase {
+
+    private MockWMSServer server;
+
+    protected void setUp() throws Exception {
+        server = new MockWMSServer();
+        server.setResponse("image/png", new byte[1024]);
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testConnectionsAreReused() throws Exception {
+        WMSHttpHelper helper = new WMSHttpHelper();
+
+        for (int i = 0; i < 20; i++) {
+            URL url = new URL(server.getURL() + "REQUEST=GetMap&i=" + i);
+            GetMethod getMethod = helper.executeRequest(url, 10);
+            try {
+                assertEquals(200, getMethod.getStatusCode());
+                byte[] data = ServletUtils.readStream(getMethod.getResponseBodyAsStream(), 2048,
+                        1024);
+                assertEquals(1024, data.length);
+            } finally {
+                getMethod.releaseConnection();
+            }
+        }
+
+        assertEquals(20, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+        helper.destroy();
+    }
+
+    public void testMaxConnectionsPerHost() throws Exception {
+        final WMSHttpHelper helper = new WMSHttpHelper();
+        helper.setMaxConnectionsPerHost(2);
+        assertEquals(2, helper.getMaxConnectionsPerHost());
+
+        server.setDelay(50);
+        Thread[] threads = new Thread[8];
+        final Exception[] failure = new Exception[1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 3; j++) {
+                            GetMethod getMethod = helper.executeRequest(new URL(server.getURL()),
+                                    10);
+                            try {
+                                getMethod.getResponseBody();
+                            } finally {
+                                getMethod.releaseConnection();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        assertNull(failure[0]);
+        assertEquals(24, server.getRequestCount());
+        assertTrue(server.getConnectionCount() <= 2);
+        helper.destroy();
+    }
+
+    public void testMaxTotalConnections() throws Exception {
+        WMSHttpHelper helper = new WMSHttpHelper();
+        assertEquals(WMSHttpHelper.DEFAULT_MAX_CONNECTIONS_PER_HOST, helper
+                .getMaxTotalConnections());
+
+        // the per host limit applies to each of the backends
+        helper.setBackendCount(3);
+        assertEquals(3 * WMSHttpHelper.DEFAULT_MAX_CONNECTIONS_PER_HOST, helper
+                .getMaxTotalConnections());
+        helper.setMaxConnectionsPerHost(4);
+        assertEquals(12, helper.getMaxTotalConnections());
+        helper.destroy();
+    }
+
+    public void testFetchMetaTile() throws Exception {
+        BufferedImage image = new BufferedImage(768, 768, BufferedImage.TYPE_4BYTE_ABGR);
+        image.setRGB(300, 400, 0xff123456);
+        server.setResponse("image/png", encode(image));
+
+        WMSLayer layer = createWMSLayer(server.getURL());
+        WMSMetaTile metaTile = createMetaTile(layer);
+        layer.getSourceHelper().fetchMetaTile(metaTile);
+
+        metaTile.createTiles(256, 256);
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(metaTile.encodeTile(4)));
+        assertEquals(0xff123456, tile.getRGB(300 - 256, 400 - 256));
+        ((WMSHttpHelper) layer.getSourceHelper()).destroy();
+    }
+
+    public void testFetchMetaTileMimeMismatch() throws Exception {
+        server.setResponse("application/vnd.ogc.se_xml", "<ServiceExceptionReport/>"
+                .getBytes());
+
+        WMSLayer layer = createWMSLayer(server.getURL());
+        WMSMetaTile metaTile = createMetaTile(layer);
+        try {
+            layer.getSourceHelper().fetchMetaTile(metaTile);
+            fail("Expected an exception");
+        } catch (GeoWebCacheException expected) {
+            assertTrue(metaTile.getError());
+            assertTrue(metaTile.getErrorMessage().contains("MimeType mismatch"));
+        }
+
+        // the connection was released after the error
+        server.setResponse("image/png", encode(new BufferedImage(768, 768,
+                BufferedImage.TYPE_4BYTE_ABGR)));
+        metaTile = createMetaTile(layer);
+        layer.getSourceHelper().fetchMetaTile(metaTile);
+        assertFalse(metaTile.getError());
+        assertEquals(1, server.getConnectionCount());
+        ((WMSHttpHelper) layer.getSourceHelper()).destroy();
+    }
+
+    /**
+     * A 20MB metatile is decoded from the HTTP response without being buffered in a byte array
+     * first, which saves at least its size in allocations
+     */
+    public void testLargeMetaTileIsNotBuffered() throws Exception {
+        BufferedImage image = new BufferedImage(2300, 2300, BufferedImage.TYPE_4BYTE_ABGR);
+        Random random = new Random(1);
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt();
+            }
+            image.setRGB(0, y, row.length, 1, row, 0, row.length);
+        }
+        byte[] png = encode(image);
+        assertTrue(png.length > 20 * 1024 * 1024);
+        server.setResponse("image/png", png);
+        image = null;
+
+        WMSLayer layer = createWMSLayer(server.getURL());
+        WMSHttpHelper helper = (WMSHttpHelper) layer.getSourceHelper();
+
+        WMSMetaTile streamed = createMetaTile(layer);
+        long before = allocatedBytes();
+        helper.fetchMetaTile(streamed);
+        long streamedBytes = allocatedBytes() - before;
+        assertFalse(streamed.getError());
+        streamed = null;
+
+        WMSMetaTile buffered = createMetaTile(layer);
+        before = allocatedBytes();
+        buffered.setImageBytes(helper.makeRequest(buffered));
+        long bufferedBytes = allocatedBytes() - before;
+        assertFalse(buffered.getError());
+
+        if (before >= 0) {
+            assertTrue("streamed " + streamedBytes + ", buffered " + bufferedBytes,
+                    bufferedBytes - streamedBytes > png.length * 3 / 4);
+        }
+        helper.destroy();
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the JVM can't tell
+     */
+    private long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunBean.isInstance(bean)) {
+                return -1;
+            }
+            Method method = sunBean.getMethod("getThreadAllocatedBytes", long.class);
+            return ((Long) method.invoke(bean, Thread.currentThread().getId())).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private WMSMetaTile createMetaTile(WMSLayer layer) {
+        GridSubset gridSubset = layer.getGridSubset(layer.getGridSubsets().keySet().iterator()
+                .next());
+        long[] gridLoc = { 0, 0, 3 };
+        return new WMSMetaTile(layer, gridSubset, ImageMime.png, null, gridLoc, 3, 3, null);
+    }
+
+    private WMSLayer createWMSLayer(String url) {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        String[] urls = { url };
+
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-180, -90, 180, 90), 0, 10);
+        grids.put(grid.getName(), grid);
+        int[] metaWidthHeight = { 3, 3 };
+
+        WMSLayer layer = new WMSLayer("test:layer", urls, "aStyle", "test:layer", Collections
+                .singletonList("image/png"), grids, null, metaWidthHeight, null, false);
+        layer.setSourceHelper(new WMSHttpHelper());
+        layer.setBackendTimeout(10);
+        layer.initialize(gridSetBroker);
+        return layer;
+    }
+}
@@ -24,9 +24,16 @@ import java.awt.image.RenderedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
@@ -36,15 +43,25 @@ import junit.framework.TestCase;
 
 import org.easymock.Capture;
 import org.easymock.classextension.EasyMock;
+import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSet;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.layer.TileResponseReceiver;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.PersistenceExecutor;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.WFSObject;
 
 import com.mockrunner.mock.web.MockHttpServletRequest;
 import com.mockrunner.mock.web.MockHttpServletResponse;
@@ -62,7 +79,7 @@ public class WMSLayerTest extends TestCase {
     public void testSeedMetaTiled() throws Exception {
         WMSLayer layer = createWMSLayer("image/png");
 
-        WMSSourceHelper mockSourceHelper = EasyMock.createMock(WMSSourceHelper.class);
+        WMSSourceHelper mockSourceHelper = createMockSourceHelper();
         byte[] returnBytes = createFakeSourceImage(layer);
         expect(mockSourceHelper.makeRequest((WMSMetaTile) anyObject())).andReturn(returnBytes);
         replay(mockSourceHelper);
@@ -70,8 +87,11 @@ public class WMSLayerTest extends TestCase {
         layer.setSourceHelper(mockSourceHelper);
 
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
-        Capture<TileObject> captured = new Capture<TileObject>();
-        expect(mockStorageBroker.put(EasyMock.capture(captured))).andReturn(true).anyTimes();
+        Capture<List<TileObject>> captured = new Capture<List<TileObject>>();
+        expect(mockStorageBroker.putAll(EasyMock.capture(captured))).andReturn(true).anyTimes();
+        expect(mockStorageBroker.getPersistenceExecutor()).andReturn(null).anyTimes();
+        expect(mockStorageBroker.getPipelineStats()).andReturn(null).anyTimes();
+        expect(mockStorageBroker.getEncoderExecutor()).andReturn(null).anyTimes();
         replay(mockStorageBroker);
 
         String layerId = layer.getName();
@@ -89,7 +109,8 @@ public class WMSLayerTest extends TestCase {
         layer.seedTile(tile, tryCache);
 
         assertEquals(1, captured.getValues().size());
-        TileObject value = captured.getValue();
+        assertEquals(1, captured.getValue().size());
+        TileObject value = captured.getValue().get(0);
         assertNotNull(value);
         assertEquals("image/png", value.getBlobFormat());
         assertNotNull(value.getBlob());
@@ -100,6 +121,256 @@ public class WMSLayerTest extends TestCase {
         verify(mockStorageBroker);
     }
 
+    /**
+     * Many threads asking for all the tiles of a zoom level, in different orders, must result in
+     * exactly one backend request per metatile
+     */
+    public void testConcurrentMetaTileRequests() throws Exception {
+        final WMSLayer layer = createWMSLayer("image/png");
+        final CountingSourceHelper sourceHelper = new CountingSourceHelper(
+                createFakeSourceImage(layer));
+        layer.setSourceHelper(sourceHelper);
+
+        final StorageBroker storageBroker = new InMemoryStorageBroker();
+        final String gridSetId = gridSetBroker.WORLD_EPSG4326.getName();
+        final MimeType mimeType = layer.getMimeTypes().get(0);
+
+        final int zoomLevel = 6;
+        long[] coverage = layer.getGridSubset(gridSetId).getCoverage(zoomLevel);
+        final List<long[]> tileIndexes = new ArrayList<long[]>();
+        for (long x = coverage[0]; x <= coverage[2]; x++) {
+            for (long y = coverage[1]; y <= coverage[3]; y++) {
+                tileIndexes.add(new long[] { x, y, zoomLevel });
+            }
+        }
+
+        final int threadCount = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final List<long[]> order = new ArrayList<long[]>(tileIndexes);
+            Collections.shuffle(order, new Random(t));
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (long[] idx : order) {
+                            ConveyorTile tile = new ConveyorTile(storageBroker, layer.getName(),
+                                    gridSetId, idx.clone(), mimeType, null, null,
+                                    new MockHttpServletRequest(), new MockHttpServletResponse());
+                            layer.getTile(tile);
+                            assertNotNull(tile.getContent());
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertFalse(sourceHelper.requestsPerMetaTile.isEmpty());
+        for (Map.Entry<String, AtomicInteger> e : sourceHelper.requestsPerMetaTile.entrySet()) {
+            assertEquals("metatile " + e.getKey(), 1, e.getValue().get());
+        }
+    }
+
+    /**
+     * With a persistence executor the client gets its tile without waiting for the rest of the
+     * metatile to be stored, and shutting down the executor flushes the pending writes
+     */
+    public void testAsyncPersistenceLatency() throws Exception {
+        final long writeDelay = 200;
+        WMSLayer layer = createWMSLayer("image/png");
+        layer.setSourceHelper(new CountingSourceHelper(createFakeSourceImage(layer)));
+
+        SlowBlobStore blobStore = new SlowBlobStore(writeDelay);
+        StorageBroker storageBroker = new StorageBroker(null, blobStore);
+        PersistenceExecutor executor = new PersistenceExecutor(1, 4);
+        storageBroker.setPersistenceExecutor(executor);
+
+        String gridSetId = gridSetBroker.WORLD_EPSG4326.getName();
+        MimeType mimeType = layer.getMimeTypes().get(0);
+        long[] coverage = layer.getGridSubset(gridSetId).getCoverage(6);
+        long[] gridLoc = { coverage[0] + 3, coverage[1] + 3, 6 };
+
+        // warm up the image codecs on another metatile, without a slow store
+        long[] warmUpLoc = { coverage[2], coverage[1] + 3, 6 };
+        layer.getTile(new ConveyorTile(new InMemoryStorageBroker(), layer.getName(), gridSetId,
+                warmUpLoc, mimeType, null, null, new MockHttpServletRequest(),
+                new MockHttpServletResponse()));
+
+        ConveyorTile tile = new ConveyorTile(storageBroker, layer.getName(), gridSetId, gridLoc,
+                mimeType, null, null, new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        long start = System.currentTimeMillis();
+        layer.getTile(tile);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertNotNull(tile.getContent());
+
+        executor.destroy();
+        int storedTiles = blobStore.stored.size();
+        assertTrue(storedTiles > 1);
+        assertTrue(blobStore.stored.containsKey(Arrays.toString(gridLoc)));
+        // synchronous storage would have taken at least storedTiles * writeDelay
+        assertTrue("response took " + elapsed + "ms", elapsed < storedTiles * writeDelay);
+    }
+
+    /**
+     * Counts the backend requests made for each metatile
+     */
+    private static class CountingSourceHelper extends WMSSourceHelper {
+
+        final ConcurrentHashMap<String, AtomicInteger> requestsPerMetaTile = new ConcurrentHashMap<String, AtomicInteger>();
+
+        private final byte[] image;
+
+        CountingSourceHelper(byte[] image) {
+            this.image = image;
+        }
+
+        public byte[] makeRequest(WMSMetaTile metaTile) throws GeoWebCacheException {
+            String key = Arrays.toString(metaTile.getMetaGridPos());
+            AtomicInteger count = new AtomicInteger();
+            AtomicInteger prev = requestsPerMetaTile.putIfAbsent(key, count);
+            (prev == null ? count : prev).incrementAndGet();
+            return makeRequest(metaTile, metaTile.getLayer(), null, null);
+        }
+
+        protected byte[] makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+                String wmsParams, String expectedMimeType) throws GeoWebCacheException {
+            try {
+                // give other threads a chance to pile up on the same metatile
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                // nothing to do
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Keeps the tiles in a map, enough for the layer to find what it stored earlier
+     */
+    private static class InMemoryStorageBroker extends StorageBroker {
+
+        private final Map<String, byte[]> tiles = new ConcurrentHashMap<String, byte[]>();
+
+        InMemoryStorageBroker() {
+            super(null, null);
+        }
+
+        public boolean get(TileObject tileObj) {
+            byte[] blob = tiles.get(Arrays.toString(tileObj.getXYZ()));
+            if (blob == null) {
+                return false;
+            }
+            tileObj.setBlob(blob);
+            return true;
+        }
+
+        public boolean put(TileObject tileObj) {
+            tiles.put(Arrays.toString(tileObj.getXYZ()), tileObj.getBlob());
+            return true;
+        }
+
+        public boolean putAll(List<TileObject> tileObjs) {
+            for (TileObject tileObj : tileObjs) {
+                put(tileObj);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A blob store that keeps tiles in memory and takes its time storing them
+     */
+    private static class SlowBlobStore implements BlobStore {
+
+        final Map<String, byte[]> stored = new ConcurrentHashMap<String, byte[]>();
+
+        private final long writeDelay;
+
+        SlowBlobStore(long writeDelay) {
+            this.writeDelay = writeDelay;
+        }
+
+        public void put(TileObject obj) throws StorageException {
+            try {
+                Thread.sleep(writeDelay);
+            } catch (InterruptedException e) {
+                throw new StorageException(e.getMessage());
+            }
+            stored.put(Arrays.toString(obj.getXYZ()), obj.getBlob());
+        }
+
+        public byte[] get(TileObject obj) throws StorageException {
+            return stored.get(Arrays.toString(obj.getXYZ()));
+        }
+
+        public Resource getResource(TileObject obj) throws StorageException {
+            byte[] blob = get(obj);
+            return blob == null ? null : new ByteArrayResource(blob);
+        }
+
+        public boolean delete(TileObject obj) throws StorageException {
+            return stored.remove(Arrays.toString(obj.getXYZ())) != null;
+        }
+
+        public boolean delete(String layerName) throws StorageException {
+            stored.clear();
+            return true;
+        }
+
+        public boolean delete(WFSObject obj) throws StorageException {
+            return false;
+        }
+
+        public boolean delete(TileRange obj) throws StorageException {
+            return false;
+        }
+
+        public long get(WFSObject obj) throws StorageException {
+            return -1;
+        }
+
+        public void put(WFSObject obj) throws StorageException {
+            // not needed
+        }
+
+        public void clear() throws StorageException {
+            stored.clear();
+        }
+
+        public void destroy() {
+            // nothing to do
+        }
+
+        public void addListener(BlobStoreListener listener) {
+            // not needed
+        }
+
+        public boolean removeListener(BlobStoreListener listener) {
+            return false;
+        }
+    }
+
+    /**
+     * Mocks the WMS response only, the layer fetches the metatile through the real
+     * {@link WMSSourceHelper#fetchMetaTile(WMSMetaTile)}
+     */
+    private WMSSourceHelper createMockSourceHelper() throws NoSuchMethodException {
+        return EasyMock.createMock(WMSSourceHelper.class, WMSSourceHelper.class.getMethod(
+                "makeRequest", WMSMetaTile.class));
+    }
+
     private byte[] createFakeSourceImage(final WMSLayer layer) throws IOException {
 
         int tileWidth = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName()).getGridSet()
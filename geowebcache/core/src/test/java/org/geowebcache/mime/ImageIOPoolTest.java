@@ -0,0 +1,63 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.mime;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class ImageIOPoolTest extends TestCase {
+
+    private BufferedImage img;
+
+    protected void setUp() throws Exception {
+        img = new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 64; x++) {
+                img.setRGB(x, y, (x * 4) << 24 | (y * 8) << 8 | x);
+            }
+        }
+    }
+
+    public void testWriteLikeImageIO() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", expected);
+
+        // the second time round the writer and its buffer are reused
+        for (int i = 0; i < 2; i++) {
+            byte[] encoded = ImageIOPool.write(img, ImageMime.png, null);
+            assertTrue(Arrays.equals(expected.toByteArray(), encoded));
+        }
+    }
+
+    public void testRead() throws Exception {
+        byte[] encoded = ImageIOPool.write(img, ImageMime.png, null);
+        for (int i = 0; i < 2; i++) {
+            BufferedImage read = ImageIOPool.read(encoded, ImageMime.png);
+            assertEquals(64, read.getWidth());
+            assertEquals(img.getRGB(63, 31), read.getRGB(63, 31));
+        }
+
+        // not what was expected, ImageIO works out what it is
+        BufferedImage read = ImageIOPool.read(encoded, ImageMime.jpeg);
+        assertEquals(img.getRGB(63, 31), read.getRGB(63, 31));
+
+        assertNull(ImageIOPool.read("not an image".getBytes(), ImageMime.png));
+    }
+}
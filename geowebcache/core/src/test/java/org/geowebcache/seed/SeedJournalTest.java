@@ -0,0 +1,234 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileResponseReceiver;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.layer.wms.WMSSourceHelper;
+import org.geowebcache.seed.GWCTask.TYPE;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+
+/**
+ * Unit test suite for {@link SeedJournal} and resuming seed jobs through {@link TileBreeder}
+ */
+public class SeedJournalTest extends TestCase {
+
+    private final GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+
+    private File journalDir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        journalDir = File.createTempFile("gwc", "journal");
+        journalDir.delete();
+        journalDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        File[] files = journalDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        journalDir.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Kills a seed job part way through, then resumes it from the journal as if after a restart,
+     * and makes sure no meta tile is requested from the backend twice
+     */
+    public void testResumedSeedIssuesNoDuplicateRequests() throws Exception {
+        final WMSLayer tl = createWMSLayer("image/png");
+        final byte[] fakeWMSResponse = createFakeSourceImage(tl);
+
+        final int killAfter = 20;
+        final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger requestCount = new AtomicInteger();
+        final List<GWCTask> toKill = Collections.synchronizedList(new ArrayList<GWCTask>());
+
+        tl.setSourceHelper(new WMSSourceHelper() {
+            protected byte[] makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+                    String wmsParams, String expectedMimeType) throws GeoWebCacheException {
+                AtomicInteger count = new AtomicInteger();
+                AtomicInteger previous = requests.putIfAbsent(wmsParams, count);
+                (previous == null ? count : previous).incrementAndGet();
+
+                if (requestCount.incrementAndGet() == killAfter) {
+                    synchronized (toKill) {
+                        for (GWCTask task : toKill) {
+                            task.terminateNicely();
+                        }
+                    }
+                }
+                return fakeWMSResponse;
+            }
+        });
+
+        SeedRequest req = new SeedRequest(tl.getName(), null, tl.getGridSubsets().keySet()
+                .iterator().next(), 2, 0, 6, "image/png", TYPE.SEED, null);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+
+        int expected = 0;
+        TileRangeIterator plain = new TileRangeIterator(tr, tl.getMetaTilingFactors());
+        while (plain.nextMetaGridLocation() != null) {
+            expected++;
+        }
+        assertTrue(expected > killAfter);
+
+        /*
+         * First run, killed after a number of requests
+         */
+        SeederThreadPoolExecutor pool = new SeederThreadPoolExecutor(4, 4);
+        TileBreeder breeder = createBreeder(tl, pool, new SeedJournal(journalDir));
+
+        GWCTask[] tasks = breeder.createTasks(tr, tl, TYPE.SEED, 2, false);
+        toKill.addAll(Arrays.asList(tasks));
+        breeder.dispatchTasks(tasks);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(60, TimeUnit.SECONDS));
+
+        int firstRun = requestCount.get();
+        assertTrue(firstRun >= killAfter);
+        assertTrue(firstRun < expected);
+
+        List<SeedJob> unfinished = breeder.getUnfinishedJobs();
+        assertEquals(1, unfinished.size());
+        assertEquals(tl.getName(), unfinished.get(0).getTileRange().layerName);
+
+        /*
+         * Second run, a new journal and breeder on the same directory as after a restart
+         */
+        toKill.clear();
+        pool = new SeederThreadPoolExecutor(4, 4);
+        breeder = createBreeder(tl, pool, new SeedJournal(journalDir));
+        breeder.setResumeUnfinishedJobs(true);
+        breeder.afterPropertiesSet();
+        // the job is resumed in the background, wait until its tasks have been dispatched
+        breeder.getResumeThread().join(60000);
+        assertFalse(breeder.getResumeThread().isAlive());
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(60, TimeUnit.SECONDS));
+
+        assertEquals(expected, requests.size());
+        for (String wmsParams : requests.keySet()) {
+            assertEquals("Requested twice: " + wmsParams, 1, requests.get(wmsParams).get());
+        }
+        assertEquals(expected, requestCount.get());
+
+        // the job is done, nothing left to resume
+        assertTrue(breeder.getUnfinishedJobs().isEmpty());
+        assertEquals(0, journalDir.listFiles().length);
+    }
+
+    private TileBreeder createBreeder(final TileLayer tl, SeederThreadPoolExecutor pool,
+            SeedJournal journal) {
+        TileBreeder breeder = new TileBreeder() {
+            public TileLayer findTileLayer(String layerName) throws GeoWebCacheException {
+                return tl;
+            }
+        };
+        breeder.setThreadPoolExecutor(pool);
+        breeder.setStorageBroker(new NullStorageBroker());
+        breeder.setSeedJournal(journal);
+        return breeder;
+    }
+
+    /**
+     * Has no tiles and throws away everything it is given
+     */
+    private static class NullStorageBroker extends StorageBroker {
+        NullStorageBroker() {
+            super(null, null);
+        }
+
+        public boolean get(TileObject tileObj) {
+            return false;
+        }
+
+        public boolean put(TileObject tileObj) {
+            return true;
+        }
+
+        public boolean putAll(List<TileObject> tileObjs) {
+            return true;
+        }
+    }
+
+    private WMSLayer createWMSLayer(final String format) {
+
+        String[] urls = { "http://localhost:38080/wms" };
+        List<String> formatList = Collections.singletonList(format);
+
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, 10);
+
+        grids.put(grid.getName(), grid);
+        int[] metaWidthHeight = { 3, 3 };
+
+        WMSLayer layer = new WMSLayer("test:layer", urls, "aStyle", "test:layer", formatList,
+                grids, null, metaWidthHeight, "vendorparam=true", false);
+
+        layer.initialize(gridSetBroker);
+
+        return layer;
+    }
+
+    private byte[] createFakeSourceImage(final WMSLayer layer) throws IOException {
+
+        int tileWidth = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName()).getGridSet()
+                .getTileWidth();
+        int tileHeight = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName()).getGridSet()
+                .getTileHeight();
+
+        int width = tileWidth * layer.getMetaTilingFactors()[0];
+        int height = tileHeight * layer.getMetaTilingFactors()[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RenderedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        String formatName = layer.getMimeTypes().get(0).getInternalName();
+        ImageIO.write(image, formatName, out);
+        return out.toByteArray();
+    }
+}
@@ -25,6 +25,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
@@ -76,7 +77,7 @@ public class SeedTaskTest extends TestCase {
      * 
      * @throws Exception
      */
-    @SuppressWarnings("serial")
+    @SuppressWarnings( { "serial", "unchecked" })
     public void testSeedWMSRequests() throws Exception {
         WMSLayer tl = createWMSLayer("image/png");
 
@@ -84,7 +85,7 @@ public class SeedTaskTest extends TestCase {
         final byte[] fakeWMSResponse = createFakeSourceImage(tl);
 
         // WMSSourceHelper that on makeRequest() returns always the saqme fake image
-        WMSSourceHelper mockSourceHelper = EasyMock.createMock(WMSSourceHelper.class);
+        WMSSourceHelper mockSourceHelper = createMockSourceHelper();
 
         final AtomicInteger wmsRequestsCounter = new AtomicInteger();
         Capture<WMSMetaTile> wmsRequestsCapturer = new Capture<WMSMetaTile>() {
@@ -113,7 +114,12 @@ public class SeedTaskTest extends TestCase {
          */
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         expect(mockStorageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
+        expect(mockStorageBroker.putAll((List<TileObject>) anyObject())).andReturn(true)
+                .anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.getPersistenceExecutor()).andReturn(null).anyTimes();
+        expect(mockStorageBroker.getPipelineStats()).andReturn(null).anyTimes();
+        expect(mockStorageBroker.getEncoderExecutor()).andReturn(null).anyTimes();
         replay(mockStorageBroker);
 
         boolean reseed = false;
@@ -149,7 +155,7 @@ public class SeedTaskTest extends TestCase {
         // create an image to be returned by the mock WMSSourceHelper
         final byte[] fakeWMSResponse = createFakeSourceImage(tl);
         // WMSSourceHelper that on makeRequest() returns always the saqme fake image
-        WMSSourceHelper mockSourceHelper = EasyMock.createMock(WMSSourceHelper.class);
+        WMSSourceHelper mockSourceHelper = createMockSourceHelper();
         expect(mockSourceHelper.makeRequest((WMSMetaTile) anyObject())).andReturn(fakeWMSResponse)
                 .anyTimes();
         replay(mockSourceHelper);
@@ -164,17 +170,21 @@ public class SeedTaskTest extends TestCase {
          * the TileObject the seeder requests it to store for further test validation
          */
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
-        Capture<TileObject> storedObjects = new Capture<TileObject>() {
+        final List<TileObject> storedTiles = new ArrayList<TileObject>();
+        Capture<List<TileObject>> storedObjects = new Capture<List<TileObject>>() {
             /**
              * Override because setValue with anyTimes() resets the list of values
              */
             @Override
-            public void setValue(TileObject o) {
-                super.getValues().add(o);
+            public void setValue(List<TileObject> o) {
+                storedTiles.addAll(o);
             }
         };
-        expect(mockStorageBroker.put(capture(storedObjects))).andReturn(true).anyTimes();
+        expect(mockStorageBroker.putAll(capture(storedObjects))).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.getPersistenceExecutor()).andReturn(null).anyTimes();
+        expect(mockStorageBroker.getPipelineStats()).andReturn(null).anyTimes();
+        expect(mockStorageBroker.getEncoderExecutor()).andReturn(null).anyTimes();
         replay(mockStorageBroker);
 
         TileRange tr = TileBreeder.createTileRange(req, tl);
@@ -212,7 +222,6 @@ public class SeedTaskTest extends TestCase {
         expectedSavedTileCount = (coveredGridLevels[2] - startx + 1)
                 * (coveredGridLevels[3] - starty + 1);
 
-        List<TileObject> storedTiles = storedObjects.getValues();
         final int seededTileCount = storedTiles.size();
 
         assertEquals(expectedSavedTileCount, seededTileCount);
@@ -263,6 +272,15 @@ public class SeedTaskTest extends TestCase {
         return layer;
     }
 
+    /**
+     * Mocks the WMS response only, the layer fetches the metatile through the real
+     * {@link WMSSourceHelper#fetchMetaTile(WMSMetaTile)}
+     */
+    private WMSSourceHelper createMockSourceHelper() throws NoSuchMethodException {
+        return EasyMock.createMock(WMSSourceHelper.class, WMSSourceHelper.class.getMethod(
+                "makeRequest", WMSMetaTile.class));
+    }
+
     private byte[] createFakeSourceImage(final WMSLayer layer) throws IOException {
 
         int tileWidth = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName()).getGridSet()
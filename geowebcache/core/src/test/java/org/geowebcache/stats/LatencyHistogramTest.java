@@ -0,0 +1,75 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() throws Exception {
+        // every bucket starts right after the previous one ends
+        for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lowerBound = LatencyHistogram.lowerBound(bucket);
+            assertTrue(lowerBound > LatencyHistogram.lowerBound(bucket - 1));
+            assertEquals(bucket, LatencyHistogram.bucket(lowerBound));
+            assertEquals(bucket - 1, LatencyHistogram.bucket(lowerBound - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    public void testEmpty() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getP50());
+        assertEquals(0.0, histogram.getMean());
+    }
+
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 1000 milliseconds
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * 1000000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000.0, histogram.getMax());
+        assertEquals(500, histogram.getP50(), 500 * 0.125);
+        assertEquals(950, histogram.getP95(), 950 * 0.125);
+        assertEquals(990, histogram.getP99(), 990 * 0.125);
+        assertTrue(histogram.getP50() >= 500);
+        assertTrue(histogram.getP99() <= 1000);
+    }
+
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(j * 1000L);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, histogram.getCount());
+        assertEquals(9.999, histogram.getMax());
+        assertEquals(5.0, histogram.getP50(), 5.0 * 0.125);
+    }
+}
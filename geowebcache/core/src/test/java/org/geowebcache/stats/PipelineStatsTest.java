@@ -0,0 +1,94 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.stats.PipelineStats.Stage;
+
+public class PipelineStatsTest extends TestCase {
+
+    private PipelineStats stats;
+
+    @Override
+    protected void setUp() throws Exception {
+        stats = new PipelineStats();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        stats.destroy();
+    }
+
+    public void testHitRatio() throws Exception {
+        stats.recordCacheResult("topp:states", CacheResult.HIT);
+        stats.recordCacheResult("topp:states", CacheResult.HIT);
+        stats.recordCacheResult("topp:states", CacheResult.HIT);
+        stats.recordCacheResult("topp:states", CacheResult.MISS);
+        stats.recordCacheResult("topp:states", CacheResult.OTHER);
+
+        LayerStats layerStats = stats.getLayerStats("topp:states");
+        assertEquals(3, layerStats.getHits());
+        assertEquals(1, layerStats.getMisses());
+        assertEquals(0.75, layerStats.getHitRatio());
+        assertEquals(0.0, stats.getLayerStats("other").getHitRatio());
+    }
+
+    public void testJSON() throws Exception {
+        stats.record("topp:states", Stage.BLOB_GET, System.nanoTime() - 2000000);
+        stats.recordCacheResult("topp:states", CacheResult.HIT);
+        stats.record("a \"quoted\" layer", Stage.WMS_FETCH, System.nanoTime());
+
+        String json = stats.getJSONStats();
+        assertTrue(json, json.startsWith("{\"layers\":{\"a \\\"quoted\\\" layer\":{"));
+        assertTrue(json, json.contains("\"topp:states\":{\"hits\":1,\"misses\":0,\"hitRatio\":1.0,"
+                + "\"latency\":{\"blobGet\":{\"count\":1,"));
+        assertTrue(json, json.contains("\"wmsFetch\":{\"count\":1,"));
+        // stages that saw nothing are left out
+        assertFalse(json, json.contains("dispatch"));
+        assertTrue(json, json.endsWith("}}}}}"));
+    }
+
+    public void testJMX() throws Exception {
+        stats.record("topp:states", Stage.PERSIST, System.nanoTime() - 5000000);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName layer = new ObjectName("org.geowebcache:type=LayerStats,layer="
+                + ObjectName.quote("topp:states"));
+        ObjectName persist = new ObjectName("org.geowebcache:type=LayerLatency,layer="
+                + ObjectName.quote("topp:states") + ",stage=persist");
+        assertTrue(server.isRegistered(layer));
+        assertEquals(Long.valueOf(1), server.getAttribute(persist, "Count"));
+        assertTrue(((Double) server.getAttribute(persist, "P99")).doubleValue() >= 5.0);
+
+        stats.destroy();
+        assertFalse(server.isRegistered(layer));
+        assertFalse(server.isRegistered(persist));
+    }
+
+    public void testJmxDisabled() throws Exception {
+        stats.setJmxEnabled(false);
+        stats.record("topp:states", Stage.DISPATCH, System.nanoTime());
+        ObjectName layer = new ObjectName("org.geowebcache:type=LayerStats,layer="
+                + ObjectName.quote("topp:states"));
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(layer));
+    }
+}
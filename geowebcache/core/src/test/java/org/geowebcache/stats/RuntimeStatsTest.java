@@ -0,0 +1,92 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+
+public class RuntimeStatsTest extends TestCase {
+
+    private RuntimeStats stats;
+
+    @Override
+    protected void setUp() throws Exception {
+        stats = new RuntimeStats(1, Arrays.asList(1, 5), Arrays.asList("1 second", "5 seconds"));
+        // running for a while already, the rates are per second of running time
+        stats.startTime -= 10000;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        stats.destroy();
+    }
+
+    public void testNotStarted() throws Exception {
+        stats.log(100, CacheResult.HIT);
+        assertTrue(stats.getHTMLStats().contains(
+                "Total number of requests:</td><td colspan=\"3\">0"));
+    }
+
+    public void testConcurrentLog() throws Exception {
+        stats.start();
+        final long before = System.currentTimeMillis() / 1000;
+
+        final int threads = 16;
+        final int requests = 10000;
+        Thread[] loggers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            loggers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < requests; j++) {
+                        stats.log(10, j % 2 == 0 ? CacheResult.HIT : CacheResult.MISS);
+                    }
+                }
+            };
+            loggers[i].start();
+        }
+        for (Thread logger : loggers) {
+            logger.join();
+        }
+        final long after = System.currentTimeMillis() / 1000;
+
+        String html = stats.getHTMLStats();
+        assertTrue(html.contains("Total number of requests:</td><td colspan=\"3\">"
+                + (threads * requests)));
+        assertTrue(html.contains("Total number of bytes:</td><td colspan=\"3\">"
+                + (threads * requests * 10)));
+        assertTrue(html.contains("Cache hit ratio:</td><td colspan=\"3\">50.0% of requests"));
+
+        long[] bytesRequests = stats.sumBuckets(before, after);
+        assertEquals(threads * requests * 10, bytesRequests[0]);
+        assertEquals(threads * requests, bytesRequests[1]);
+    }
+
+    public void testBucketsAreReused() throws Exception {
+        stats.start();
+        final long now = System.currentTimeMillis() / 1000;
+        // the bucket of this second was last used a whole ring ago
+        stats.seconds.set((int) (now % stats.ringSize), now - stats.ringSize);
+        stats.buckets.set((int) (now % stats.ringSize) * 2, 1000);
+
+        stats.log(10, CacheResult.HIT);
+
+        long[] bytesRequests = stats.sumBuckets(now - stats.ringSize + 1, now + 1);
+        assertEquals(10, bytesRequests[0]);
+        assertEquals(1, bytesRequests[1]);
+    }
+}
@@ -21,6 +21,7 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -33,7 +34,7 @@ public class BlobStoreTest extends TestCase {
     public static final String TEST_BLOB_DIR_NAME = "gwcTestBlobs";
     
     public void testTile() throws Exception {
-        FileBlobStore fbs = setup();
+        BlobStore fbs = setup();
         
         byte[] bytes = "1 2 3 4 5 6 test".getBytes();
         long[] xyz = {1L,2L,3L};
@@ -54,7 +55,7 @@ public class BlobStoreTest extends TestCase {
     }
     
     public void testWFSParam() throws Exception {
-        FileBlobStore fbs = setup();
+        BlobStore fbs = setup();
         
         byte[] bytes = "1 2 3 Test".getBytes();
         WFSObject wo = WFSObject.createCompleteWFSObject("a=æ&å=Ø");
@@ -87,7 +88,7 @@ public class BlobStoreTest extends TestCase {
     }
     
     public void testWFSBlob() throws Exception {
-        FileBlobStore fbs = setup();
+        BlobStore fbs = setup();
         
         byte[] bytes = "1 2 3 Test".getBytes();
         byte[] queryBlob = "'ad;wer0sv234".getBytes();
@@ -123,7 +124,7 @@ public class BlobStoreTest extends TestCase {
     
     
     public void testTileDelete() throws Exception {
-        FileBlobStore fbs = setup();
+        BlobStore fbs = setup();
         
         byte[] bytes = "1 2 3 4 5 6 test".getBytes();
         long[] xyz = {5L,6L,7L};
@@ -149,7 +150,7 @@ public class BlobStoreTest extends TestCase {
     }
     
     public void testTilRangeDelete() throws Exception {
-        FileBlobStore fbs = setup();
+        BlobStore fbs = setup();
         
         byte[] bytes = "1 2 3 4 5 6 test".getBytes();
         String parameters = "a=x&b=ø";
@@ -195,7 +196,104 @@ public class BlobStoreTest extends TestCase {
         assertNull(res);
     }
     
-    public FileBlobStore setup() throws Exception {
+    /**
+     * A range spanning a directory it covers entirely, one it covers in part and one it misses
+     */
+    public void testTileRangeDeleteByDirectory() throws Exception {
+        BlobStore fbs = setup();
+        if (fbs instanceof FileBlobStore) {
+            ((FileBlobStore) fbs).setTruncateThreads(3);
+        }
+        final AtomicInteger deleted = new AtomicInteger();
+        fbs.addListener(new BlobStoreListener() {
+            public void tileStored(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+            }
+
+            public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+                deleted.incrementAndGet();
+            }
+
+            public void layerDeleted(String layerName) {
+            }
+        });
+
+        byte[] bytes = "1 2 3 4 5 6 test".getBytes();
+        String layerName = "test:rangeDelete";
+        String gridSetId = SRS.getEPSG4326().toString();
+        fbs.delete(layerName);
+
+        // 16x16 tiles per directory at zoom level 6, three directories side by side
+        int zoomLevel = 6;
+        for (long x = 0; x < 48; x++) {
+            for (long y = 0; y < 16; y++) {
+                long[] xyz = { x, y, zoomLevel };
+                fbs.put(TileObject.createCompleteTileObject(layerName, xyz, gridSetId, "image/png",
+                        null, bytes));
+            }
+        }
+        long[] jpegXYZ = { 20, 5, zoomLevel };
+        fbs.put(TileObject.createCompleteTileObject(layerName, jpegXYZ, gridSetId, "image/jpeg",
+                null, bytes));
+
+        long[][] rangeBounds = new long[zoomLevel + 1][];
+        rangeBounds[zoomLevel] = new long[] { 16, 0, 40, 15 };
+        TileRange trObj = new TileRange(layerName, gridSetId, zoomLevel, zoomLevel, rangeBounds,
+                ImageMime.png, null);
+        assertTrue(fbs.delete(trObj));
+        assertEquals(25 * 16, deleted.get());
+
+        for (long x = 0; x < 48; x++) {
+            for (long y = 0; y < 16; y++) {
+                long[] xyz = { x, y, zoomLevel };
+                byte[] blob = fbs.get(TileObject.createQueryTileObject(layerName, xyz, gridSetId,
+                        "image/png", null));
+                if (x >= 16 && x <= 40) {
+                    assertNull(blob);
+                } else {
+                    assertTrue(Arrays.equals(bytes, blob));
+                }
+            }
+        }
+        // other formats in the same directory are left alone
+        assertTrue(Arrays.equals(bytes, fbs.get(TileObject.createQueryTileObject(layerName,
+                jpegXYZ, gridSetId, "image/jpeg", null))));
+
+        // the whole zoom level, its directory goes once the jpeg is gone too
+        rangeBounds[zoomLevel] = new long[] { 0, 0, 47, 15 };
+        assertTrue(fbs.delete(trObj));
+        assertEquals(48 * 16, deleted.get());
+        trObj = new TileRange(layerName, gridSetId, zoomLevel, zoomLevel, rangeBounds,
+                ImageMime.jpeg, null);
+        assertTrue(fbs.delete(trObj));
+        assertEquals(48 * 16 + 1, deleted.get());
+
+        if (fbs instanceof FileBlobStore) {
+            File layerDir = new File(StorageBrokerTest.findTempDir() + File.separator
+                    + TEST_BLOB_DIR_NAME + File.separator + "test_rangeDelete");
+            assertEquals(0, layerDir.list().length);
+            layerDir.delete();
+        }
+    }
+    
+    /**
+     * A range of a layer that has nothing stored deletes nothing
+     */
+    public void testTileRangeDeleteMissingLayer() throws Exception {
+        BlobStore fbs = setup();
+        String layerName = "test:rangeDeleteMissing";
+        String gridSetId = SRS.getEPSG4326().toString();
+        fbs.delete(layerName);
+
+        long[][] rangeBounds = new long[1][];
+        rangeBounds[0] = new long[] { 0, 0, 1, 0 };
+        TileRange trObj = new TileRange(layerName, gridSetId, 0, 0, rangeBounds, ImageMime.png,
+                null);
+        assertFalse(fbs.delete(trObj));
+    }
+    
+    public BlobStore setup() throws Exception {
         File fh = new File(StorageBrokerTest.findTempDir() 
                 + File.separator + TEST_BLOB_DIR_NAME);
         
@@ -0,0 +1,209 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.FileResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class MemoryTileCacheTest extends TestCase {
+
+    public static final boolean RUN_PERFORMANCE_TESTS = false;
+
+    public static final String TEST_BLOB_DIR_NAME = "gwcTestMemoryCacheBlobs";
+
+    public static final int TILE_COUNT = 1000;
+
+    public static final int GET_COUNT = 100000;
+
+    private static TileObject tile(String layer, long x, long y, long z, int size) {
+        long[] xyz = { x, y, z };
+        return TileObject.createCompleteTileObject(layer, xyz, "EPSG:4326", "image/png", null,
+                new byte[size]);
+    }
+
+    private static TileObject query(String layer, long x, long y, long z) {
+        long[] xyz = { x, y, z };
+        return TileObject.createQueryTileObject(layer, xyz, "EPSG:4326", "image/png", null);
+    }
+
+    private static void cache(MemoryTileCache cache, TileObject tileObj) {
+        cache.put(tileObj, cache.getGeneration(tileObj));
+    }
+
+    public void testGetPut() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+
+        TileObject query = query("layer", 1, 2, 3);
+        assertFalse(cache.get(query));
+
+        cache(cache, tile("layer", 1, 2, 3, 100));
+        assertTrue(cache.get(query));
+        assertEquals(100, query.getBlob().length);
+
+        // a different format is a different tile
+        long[] xyz = { 1, 2, 3 };
+        assertFalse(cache.get(TileObject.createQueryTileObject("layer", xyz, "EPSG:4326",
+                "image/jpeg", null)));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(100, cache.getSize());
+    }
+
+    public void testSizeBound() throws Exception {
+        // 16 segments of 1000 bytes each
+        MemoryTileCache cache = new MemoryTileCache(16 * 1000);
+
+        for (int i = 0; i < 200; i++) {
+            cache(cache, tile("layer", i, 0, 10, 400));
+        }
+        assertTrue(cache.getSize() <= 16 * 1000);
+        assertTrue(cache.getEvictionCount() > 0);
+
+        // larger than a segment, never cached
+        cache(cache, tile("layer", 0, 0, 0, 2000));
+        assertFalse(cache.get(query("layer", 0, 0, 0)));
+    }
+
+    public void testInvalidate() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                cache(cache, tile("layer", x, y, 2, 10));
+            }
+        }
+        cache(cache, tile("other", 0, 0, 2, 10));
+
+        cache.invalidate(query("layer", 0, 0, 2));
+        assertFalse(cache.get(query("layer", 0, 0, 2)));
+        assertTrue(cache.get(query("layer", 1, 0, 2)));
+
+        long[][] bounds = new long[3][];
+        bounds[2] = new long[] { 0, 0, 1, 1, 2 };
+        cache.invalidate(new TileRange("layer", "EPSG:4326", 2, 2, bounds, ImageMime.png, null));
+        assertFalse(cache.get(query("layer", 1, 1, 2)));
+        assertTrue(cache.get(query("layer", 2, 2, 2)));
+        assertTrue(cache.get(query("other", 0, 0, 2)));
+
+        cache.invalidate("layer");
+        assertFalse(cache.get(query("layer", 3, 3, 2)));
+        assertTrue(cache.get(query("other", 0, 0, 2)));
+    }
+
+    public void testStaleReadIsNotCached() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+
+        TileObject read = tile("layer", 1, 1, 1, 10);
+        long generation = cache.getGeneration(read);
+        // the tile gets replaced while the old version is being read from storage
+        cache.invalidate(read);
+        cache.put(read, generation);
+
+        assertFalse(cache.get(query("layer", 1, 1, 1)));
+    }
+
+    public void testLargeTilesAreNotLoaded() throws Exception {
+        StorageBroker sb = new StorageBroker(null, prepBlobStore());
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+        cache.setMaxTileSize(1000);
+        sb.setMemoryCache(cache);
+
+        sb.put(tile("layer", 0, 0, 0, 1000));
+        sb.put(tile("layer", 1, 0, 0, 1001));
+
+        TileObject small = query("layer", 0, 0, 0);
+        assertTrue(sb.get(small));
+        assertEquals(1000, cache.getSize());
+
+        // served from the file, without its contents being read
+        TileObject large = query("layer", 1, 0, 0);
+        assertTrue(sb.get(large));
+        assertEquals(1000, cache.getSize());
+        assertTrue(large.getBlobResource() instanceof FileResource);
+    }
+
+    public void testStorageBrokerInvalidation() throws Exception {
+        StorageBroker sb = new StorageBroker(null, prepBlobStore());
+        sb.setMemoryCache(new MemoryTileCache(1024 * 1024));
+
+        sb.put(tile("layer", 0, 0, 0, 10));
+        assertTrue(sb.get(query("layer", 0, 0, 0)));
+        assertTrue(sb.get(query("layer", 0, 0, 0)));
+        assertEquals(1, sb.getMemoryCache().getHitCount());
+
+        sb.put(tile("layer", 0, 0, 0, 20));
+        TileObject query = query("layer", 0, 0, 0);
+        assertTrue(sb.get(query));
+        assertEquals(20, query.getBlob().length);
+
+        sb.delete("layer");
+        assertFalse(sb.get(query("layer", 0, 0, 0)));
+    }
+
+    public void testColdWarmThroughput() throws Exception {
+        if (!RUN_PERFORMANCE_TESTS)
+            return;
+
+        StorageBroker sb = new StorageBroker(null, prepBlobStore());
+        for (int i = 0; i < TILE_COUNT; i++) {
+            sb.put(tile("perf", i, i, 10, 20 * 1024));
+        }
+
+        long cold = runGets(sb, "Without memory cache");
+
+        sb.setMemoryCache(new MemoryTileCache(64 * 1024 * 1024));
+        runGets(sb, "Populating memory cache");
+        long warm = runGets(sb, "With warm memory cache");
+
+        System.out.println("Warm / cold throughput: " + (cold * 100 / Math.max(warm, 1)) + "%");
+    }
+
+    private long runGets(StorageBroker sb, String name) throws StorageException {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < GET_COUNT; i++) {
+            int t = i % TILE_COUNT;
+            sb.get(query("perf", t, t, 10));
+        }
+        long diff = Math.max(System.currentTimeMillis() - start, 1);
+        System.out.println(name + ": " + GET_COUNT + " gets took " + diff + "ms ("
+                + (GET_COUNT * 1000L / diff) + " tiles/second)");
+        return diff;
+    }
+
+    private BlobStore prepBlobStore() throws Exception {
+        String blobPath = StorageBrokerTest.findTempDir() + File.separator + TEST_BLOB_DIR_NAME;
+        File blobDir = new File(blobPath);
+        deleteRecursive(blobDir);
+        if (!blobDir.mkdirs()) {
+            throw new StorageException("Unable to create " + blobPath);
+        }
+        return new FileBlobStore(blobPath);
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteRecursive(children[i]);
+            }
+        }
+        file.delete();
+    }
+}
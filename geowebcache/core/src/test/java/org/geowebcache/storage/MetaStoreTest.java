@@ -21,6 +21,7 @@ import java.io.File;
 
 import junit.framework.TestCase;
 
+import org.geowebcache.mime.ImageMime;
 import org.geowebcache.storage.metastore.jdbc.JDBCMetaBackend;
 
 public class MetaStoreTest extends TestCase {
@@ -151,6 +152,90 @@ public class MetaStoreTest extends TestCase {
 
     }
 
+    public void testTileRangeDelete() throws Exception {
+        MetaStore ms = setup();
+        BlobStore bs = new BlobStoreTest().setup();
+        String layerName = "test:metaRangeDelete";
+        String gridSetId = "EPSG:4326";
+        byte[] bytes = "Test 1 2 3".getBytes();
+
+        for (long x = 0; x < 5; x++) {
+            for (long y = 0; y < 3; y++) {
+                long[] xyz = { x, y, 5L };
+                TileObject to = TileObject.createCompleteTileObject(layerName, xyz, gridSetId,
+                        "image/png", null, bytes);
+                ms.put(to);
+                ms.unlock(to);
+            }
+        }
+
+        long[][] rangeBounds = new long[6][];
+        rangeBounds[5] = new long[] { 1, 0, 3, 1 };
+        ms.delete(bs, new TileRange(layerName, gridSetId, 5, 5, rangeBounds, ImageMime.png,
+                null));
+
+        for (long x = 0; x < 5; x++) {
+            for (long y = 0; y < 3; y++) {
+                long[] xyz = { x, y, 5L };
+                TileObject query = TileObject.createQueryTileObject(layerName, xyz, gridSetId,
+                        "image/png", null);
+                boolean inRange = x >= 1 && x <= 3 && y <= 1;
+                assertEquals("Tile " + x + "," + y, !inRange, ms.get(query));
+            }
+        }
+    }
+
+    public void testLockWakeUp() throws Exception {
+        JDBCMetaBackend ms = (JDBCMetaBackend) setup();
+        // a waiter that has to poll the database would not see the unlock for a long time
+        ms.setLockRetryDelay(10000);
+        ms.setLockRetryMaxDelay(10000);
+
+        long[] xyz = { 4L, 5L, 6L };
+        final byte[] bytes = "Test 4 5 6".getBytes();
+        TileObject to = TileObject.createCompleteTileObject("lockLayer", xyz, "EPSG:4326",
+                "image/png", null, bytes);
+        ms.put(to);
+
+        long[] xyz2 = { 4L, 5L, 6L };
+        final TileObject to2 = TileObject.createQueryTileObject("lockLayer", xyz2, "EPSG:4326",
+                "image/png", null);
+        final MetaStore reader = ms;
+        final long[] returned = new long[1];
+        final boolean[] found = new boolean[1];
+        final StorageException[] failure = new StorageException[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    found[0] = reader.get(to2);
+                } catch (StorageException se) {
+                    failure[0] = se;
+                }
+                returned[0] = System.currentTimeMillis();
+            }
+        };
+        waiter.start();
+
+        // give the reader time to find the tile locked
+        Thread.sleep(500);
+        assertTrue(waiter.isAlive());
+
+        long unlocked = System.currentTimeMillis();
+        ms.unlock(to);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long latency = returned[0] - unlocked;
+        assertTrue(found[0]);
+        assertEquals(bytes.length, to2.getBlobSize());
+        assertTrue("Waiter took " + latency + "ms to wake up", latency < 1000);
+
+        ms.destroy();
+    }
+
     public MetaStore setup() throws Exception {
         StorageBrokerTest.deleteDb(TEST_DB_NAME);
         
@@ -0,0 +1,267 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+
+public class PartitionedTileRangeIteratorTest extends TestCase {
+
+    public static final boolean RUN_PERFORMANCE_TESTS = false;
+
+    private final GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+
+    private static final int[] META = { 4, 4 };
+
+    private TileRange createRange(int zoomStop) {
+        return createRange(0, zoomStop);
+    }
+
+    private TileRange createRange(int zoomStart, int zoomStop) {
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, zoomStop);
+        long[][] coverages = gridSubset.expandToMetaFactors(gridSubset.getCoverages(), META);
+        return new TileRange("test:layer", gridSubset.getName(), zoomStart, zoomStop, coverages,
+                ImageMime.png, null);
+    }
+
+    private static Set<String> drain(TileRangeIterator trIter) {
+        Set<String> locations = new HashSet<String>();
+        long[] gridLoc;
+        while ((gridLoc = trIter.nextMetaGridLocation()) != null) {
+            assertTrue("Returned twice: " + Arrays.toString(gridLoc), locations.add(Arrays
+                    .toString(gridLoc)));
+        }
+        return locations;
+    }
+
+    public void testSameLocationsAsTileRangeIterator() throws Exception {
+        TileRange tr = createRange(8);
+
+        TileRangeIterator plain = new TileRangeIterator(tr, META);
+        Set<String> expected = drain(plain);
+
+        for (int chunkSize = 1; chunkSize <= 16; chunkSize *= 2) {
+            PartitionedTileRangeIterator partitioned = new PartitionedTileRangeIterator(tr, META,
+                    3, chunkSize);
+            assertEquals(expected, drain(partitioned));
+            assertEquals(plain.getCountRendered(), partitioned.getCountRendered());
+            assertEquals(plain.getCountSkipped(), partitioned.getCountSkipped());
+        }
+    }
+
+    /**
+     * More threads than partitions, all of them draining the iterator at once
+     */
+    public void testConcurrentThreadsCoverRangeOnce() throws Exception {
+        TileRange tr = createRange(9);
+        Set<String> expected = drain(new TileRangeIterator(tr, META));
+
+        final PartitionedTileRangeIterator trIter = new PartitionedTileRangeIterator(tr, META, 4,
+                2);
+        final ConcurrentHashMap<String, String> seen = new ConcurrentHashMap<String, String>();
+        final AtomicInteger duplicates = new AtomicInteger();
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    long[] gridLoc;
+                    while ((gridLoc = trIter.nextMetaGridLocation()) != null) {
+                        String key = Arrays.toString(gridLoc);
+                        if (seen.putIfAbsent(key, key) != null) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(expected, new HashSet<String>(seen.keySet()));
+    }
+
+    /**
+     * A thread keeps to its own part of a level until that is done, then helps out with the rest
+     */
+    public void testPartitionsAreContiguous() throws Exception {
+        TileRange tr = createRange(6, 6);
+        final PartitionedTileRangeIterator trIter = new PartitionedTileRangeIterator(tr, META, 2,
+                1);
+
+        // the first thread binds to partition 0 and takes one location
+        final List<long[]> first = new ArrayList<long[]>();
+        Thread thread = new Thread() {
+            public void run() {
+                first.add(trIter.nextMetaGridLocation());
+            }
+        };
+        thread.start();
+        thread.join();
+
+        // the second one walks partition 1, then everything partition 0 has left
+        List<long[]> second = new ArrayList<long[]>();
+        long[] gridLoc;
+        while ((gridLoc = trIter.nextMetaGridLocation()) != null) {
+            second.add(gridLoc);
+        }
+
+        long[] firstLoc = first.get(0);
+        long[] secondLoc = second.get(0);
+        assertEquals(tr.rangeBounds[6][0], firstLoc[0]);
+        assertEquals(tr.rangeBounds[6][1], firstLoc[1]);
+        // partition 1 starts half way through the level
+        assertTrue(secondLoc[1] > firstLoc[1]);
+
+        Set<String> all = drain(new TileRangeIterator(tr, META));
+        assertEquals(all.size() - 1, second.size());
+    }
+
+    /**
+     * Several threads stop part way through their chunks, the resumed iterator hands out exactly
+     * what they had not done, including a location that was handed out but not reported done
+     */
+    public void testResumeFromProgress() throws Exception {
+        TileRange tr = createRange(8);
+        Set<String> expected = drain(new TileRangeIterator(tr, META));
+
+        final PartitionedTileRangeIterator first = new PartitionedTileRangeIterator(tr, META, 3,
+                2);
+        final Set<String> done = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            final int stopAfter = 5 + 17 * i;
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int j = 0; j < stopAfter; j++) {
+                        long[] gridLoc = first.nextMetaGridLocation();
+                        synchronized (done) {
+                            done.add(Arrays.toString(gridLoc));
+                        }
+                        first.locationDone();
+                    }
+                    // handed out, but the thread goes away before finishing it
+                    first.nextMetaGridLocation();
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        assertFalse(first.isComplete());
+
+        TileRangeProgress progress = first.getProgress();
+        assertEquals(3, progress.getPartial().size());
+
+        PartitionedTileRangeIterator resumed = new PartitionedTileRangeIterator(tr, META, 2, 2,
+                progress);
+        Set<String> rest = drain(resumed);
+        for (String location : rest) {
+            assertFalse("Done twice: " + location, done.contains(location));
+        }
+        assertEquals(expected.size(), done.size() + rest.size());
+        assertTrue(resumed.isComplete());
+
+        // and resuming a resumed iterator part way through works as well
+        PartitionedTileRangeIterator second = new PartitionedTileRangeIterator(tr, META, 2, 2,
+                progress);
+        Set<String> secondDone = new HashSet<String>();
+        for (int i = 0; i < 40; i++) {
+            secondDone.add(Arrays.toString(second.nextMetaGridLocation()));
+            second.locationDone();
+        }
+        Set<String> third = drain(new PartitionedTileRangeIterator(tr, META, 4, 2, second
+                .getProgress()));
+        assertEquals(rest.size(), secondDone.size() + third.size());
+        third.addAll(secondDone);
+        assertEquals(rest, third);
+    }
+
+    public void testProgressMergesRanges() throws Exception {
+        TileRangeProgress progress = new TileRangeProgress();
+        progress.addCompleted(3, 10, 12);
+        progress.addCompleted(3, 0, 2);
+        progress.addCompleted(3, 5, 6);
+        progress.addCompleted(3, 2, 5);
+        progress.addCompleted(3, 7, 11);
+        progress.addCompleted(4, 1, 2);
+
+        List<long[]> ranges = progress.getCompleted(3);
+        assertEquals(2, ranges.size());
+        assertEquals("[0, 6]", Arrays.toString(ranges.get(0)));
+        assertEquals("[7, 12]", Arrays.toString(ranges.get(1)));
+        assertEquals(11, progress.countCompleted(3));
+        assertEquals(1, progress.countCompleted(4));
+        assertTrue(progress.isStarted(3, 11));
+        assertFalse(progress.isStarted(3, 6));
+    }
+
+    /**
+     * Iteration throughput, shared iterator versus partitioned, for a number of threads doing no
+     * work per meta tile
+     */
+    public void testIterationThroughput() throws Exception {
+        if (!RUN_PERFORMANCE_TESTS)
+            return;
+
+        TileRange tr = createRange(14);
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            runIteration("Shared     ", new TileRangeIterator(tr, META), threads);
+            runIteration("Partitioned", new PartitionedTileRangeIterator(tr, META, threads),
+                    threads);
+        }
+    }
+
+    private void runIteration(String name, final TileRangeIterator trIter, int threadCount)
+            throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    int local = 0;
+                    while (trIter.nextMetaGridLocation() != null) {
+                        local++;
+                    }
+                    count.addAndGet(local);
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threadCount; i++) {
+            threads[i].join();
+        }
+        long diff = Math.max(System.currentTimeMillis() - start, 1);
+        System.out.println(name + " " + threadCount + " threads: " + count.get()
+                + " meta tiles in " + diff + "ms (" + (count.get() * 1000L / diff)
+                + " meta tiles/second)");
+    }
+}
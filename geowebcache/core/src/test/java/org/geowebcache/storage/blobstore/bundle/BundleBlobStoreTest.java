@@ -0,0 +1,145 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.bundle;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreTest;
+import org.geowebcache.storage.StorageBrokerTest;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+/**
+ * Runs the {@link BlobStoreTest} tests against a {@link BundleBlobStore}, plus a few checks of the
+ * bundle layout itself
+ */
+public class BundleBlobStoreTest extends BlobStoreTest {
+    public static final String TEST_BUNDLE_DIR_NAME = "gwcTestBundles";
+
+    private File root;
+
+    public BlobStore setup() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir() + File.separator + TEST_BUNDLE_DIR_NAME);
+        deleteRecursive(root);
+
+        if (!root.mkdirs()) {
+            throw new StorageException("Unable to create " + root.getAbsolutePath());
+        }
+
+        return new BundleBlobStore(root.getAbsolutePath(), 16);
+    }
+
+    private static TileObject tile(long x, long y, long z, byte[] bytes) {
+        long[] xyz = { x, y, z };
+        return TileObject.createCompleteTileObject("bundled", xyz, "EPSG:4326", "image/png",
+                null, bytes);
+    }
+
+    private static TileObject query(long x, long y, long z) {
+        long[] xyz = { x, y, z };
+        return TileObject.createQueryTileObject("bundled", xyz, "EPSG:4326", "image/png", null);
+    }
+
+    private File zoomDir(int z) {
+        return new File(root, "bundled" + File.separator + "EPSG_4326_0" + z);
+    }
+
+    public void testTilesShareBundle() throws Exception {
+        BlobStore bs = setup();
+
+        for (int x = 0; x < 20; x++) {
+            for (int y = 0; y < 20; y++) {
+                bs.put(tile(x, y, 5, ("tile " + x + " " + y).getBytes()));
+            }
+        }
+
+        // 20x20 tiles in blocks of 16x16
+        String[] bundles = zoomDir(5).list();
+        assertEquals(4, bundles.length);
+
+        for (int x = 0; x < 20; x++) {
+            for (int y = 0; y < 20; y++) {
+                byte[] blob = bs.get(query(x, y, 5));
+                assertTrue(Arrays.equals(("tile " + x + " " + y).getBytes(), blob));
+            }
+        }
+        assertNull(bs.get(query(20, 20, 5)));
+        assertNull(bs.get(query(0, 0, 6)));
+    }
+
+    public void testEmptyTile() throws Exception {
+        BlobStore bs = setup();
+
+        bs.put(tile(1, 1, 1, new byte[0]));
+        byte[] blob = bs.get(query(1, 1, 1));
+        assertNotNull(blob);
+        assertEquals(0, blob.length);
+    }
+
+    public void testReplaceAndCompact() throws Exception {
+        BundleBlobStore bs = (BundleBlobStore) setup();
+
+        byte[] large = new byte[10000];
+        Arrays.fill(large, (byte) 1);
+        bs.put(tile(3, 3, 2, large));
+        bs.put(tile(4, 4, 2, "kept".getBytes()));
+        bs.put(tile(3, 3, 2, "replaced".getBytes()));
+
+        File bundle = zoomDir(2).listFiles()[0];
+        long before = bundle.length();
+
+        long reclaimed = bs.compact("bundled");
+        assertEquals(large.length, reclaimed);
+        assertEquals(before - large.length, bundle.length());
+
+        assertTrue(Arrays.equals("replaced".getBytes(), bs.get(query(3, 3, 2))));
+        assertTrue(Arrays.equals("kept".getBytes(), bs.get(query(4, 4, 2))));
+
+        // nothing left to reclaim
+        assertEquals(0, bs.compact("bundled"));
+    }
+
+    public void testRangeDeleteRemovesEmptyBundles() throws Exception {
+        BlobStore bs = setup();
+
+        for (int x = 0; x < 32; x++) {
+            bs.put(tile(x, 0, 4, "abc".getBytes()));
+        }
+        assertEquals(2, zoomDir(4).list().length);
+
+        long[][] bounds = new long[5][];
+        bounds[4] = new long[] { 0, 0, 20, 0 };
+        bs.delete(new TileRange("bundled", "EPSG:4326", 4, 4, bounds, ImageMime.png, null));
+
+        // the first bundle is gone, the second one still has tiles 21 to 31
+        assertEquals(1, zoomDir(4).list().length);
+        assertNull(bs.get(query(20, 0, 4)));
+        assertTrue(Arrays.equals("abc".getBytes(), bs.get(query(21, 0, 4))));
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteRecursive(children[i]);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileRange;
+
+public class FilePathFilterTest extends TestCase {
+
+    private static final File LAYER_DIR = new File("topp_states");
+
+    private static final File ZOOM_DIR = new File(LAYER_DIR, "EPSG_4326_06");
+
+    private FilePathFilter filter;
+
+    protected void setUp() throws Exception {
+        // 16x16 tiles per intermediate directory at zoom level 6
+        long[][] rangeBounds = new long[7][];
+        rangeBounds[6] = new long[] { 16, 0, 40, 15 };
+        TileRange tr = new TileRange("topp:states", "EPSG:4326", 5, 6, rangeBounds,
+                ImageMime.png, null);
+        filter = new FilePathFilter(tr);
+    }
+
+    public void testZoomLevelDirs() {
+        assertTrue(filter.accept(LAYER_DIR, "EPSG_4326_06"));
+        assertFalse(filter.accept(LAYER_DIR, "EPSG_4326_07"));
+        assertFalse(filter.accept(LAYER_DIR, "EPSG_4326_xx"));
+        // the tiles of some parameters, not part of a range without parameters
+        assertFalse(filter.accept(LAYER_DIR, "EPSG_4326_05_7f"));
+    }
+
+    public void testParametersDirs() throws Exception {
+        TileRange tr = new TileRange("topp:states", "EPSG:4326", 5, 6, null, ImageMime.png,
+                "STYLES=population");
+        tr.setParametersId(0x7f);
+        FilePathFilter paramsFilter = new FilePathFilter(tr);
+
+        assertTrue(paramsFilter.accept(LAYER_DIR, "EPSG_4326_05_7f"));
+        assertEquals(5, paramsFilter.zoomLevel("EPSG_4326_05_7f"));
+        assertFalse(paramsFilter.accept(LAYER_DIR, "EPSG_4326_05"));
+        assertFalse(paramsFilter.accept(LAYER_DIR, "EPSG_4326_05_17f"));
+        assertFalse(paramsFilter.accept(LAYER_DIR, "EPSG_4326_05_7e"));
+        assertFalse(paramsFilter.accept(LAYER_DIR, "EPSG_4326_07_7f"));
+    }
+
+    public void testIntermediateDirs() {
+        // covered entirely, in part, not at all
+        assertTrue(filter.accept(ZOOM_DIR, "01_00"));
+        assertTrue(filter.accept(ZOOM_DIR, "02_00"));
+        assertFalse(filter.accept(ZOOM_DIR, "00_00"));
+        assertFalse(filter.accept(ZOOM_DIR, "03_00"));
+        assertFalse(filter.accept(ZOOM_DIR, "01_01"));
+        // no bounds for this zoom level
+        assertFalse(filter.accept(new File(LAYER_DIR, "EPSG_4326_05"), "00_00"));
+
+        assertEquals(FilePathFilter.ALL, filter.coverage("01_00", 6));
+        assertEquals(FilePathFilter.SOME, filter.coverage("02_00", 6));
+        assertEquals(FilePathFilter.NONE, filter.coverage("03_00", 6));
+        // unknown names are left to the tile checks
+        assertEquals(FilePathFilter.SOME, filter.coverage("tmp", 6));
+    }
+
+    public void testFileNames() {
+        File imd = new File(ZOOM_DIR, "02_00");
+        assertTrue(filter.accept(imd, "0040_0015.png"));
+        assertTrue(filter.accept(imd, "0032_0000.PNG"));
+        assertFalse(filter.accept(imd, "0041_0015.png"));
+        assertFalse(filter.accept(imd, "0040_0015.jpeg"));
+        assertFalse(filter.accept(imd, "0040_0015.pn"));
+        assertFalse(filter.accept(imd, "0040.png"));
+        assertFalse(filter.accept(imd, "00x0_0015.png"));
+    }
+
+    public void testParseIndex() {
+        assertEquals(40, FilePathFilter.parseIndex("0040_0015.png", 0, 4));
+        assertEquals(15, FilePathFilter.parseIndex("0040_0015.png", 5, 9));
+        assertEquals(-1, FilePathFilter.parseIndex("0040_0015.png", 0, 9));
+        assertEquals(-1, FilePathFilter.parseIndex("0040_0015.png", 4, 4));
+    }
+
+    public void testGridSetMandatory() {
+        try {
+            new FilePathFilter(new TileRange("topp:states", null, 0, 0, null, ImageMime.png,
+                    null));
+            fail("Expected a StorageException");
+        } catch (StorageException se) {
+            // expected
+        }
+    }
+}
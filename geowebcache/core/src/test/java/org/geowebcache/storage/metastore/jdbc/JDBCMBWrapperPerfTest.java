@@ -3,6 +3,7 @@ package org.geowebcache.storage.metastore.jdbc;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -36,6 +37,11 @@ public class JDBCMBWrapperPerfTest extends TestCase {
 
     private boolean USE_CONNECTION_POOLING;
 
+    /** Write tiles in groups of a 4x4 metatile through putTiles/unlockTiles */
+    private boolean USE_BATCH;
+
+    private static final int BATCH_SIZE = 16;
+
     private int NUM_THREADS;
 
     @Override
@@ -88,6 +94,13 @@ public class JDBCMBWrapperPerfTest extends TestCase {
         putTiles();
     }
 
+    public void testSingleThreadBatch() throws Exception {
+        USE_CONNECTION_POOLING = true;
+        USE_BATCH = true;
+        NUM_THREADS = 1;
+        putTiles();
+    }
+
     public void testMultiThreadOldStyle() throws Exception {
         USE_CONNECTION_POOLING = false;
         USE_DELETE_PUT_UNLOCK = true;
@@ -109,6 +122,13 @@ public class JDBCMBWrapperPerfTest extends TestCase {
         putTiles();
     }
 
+    public void testMultiThreadBatch() throws Exception {
+        USE_CONNECTION_POOLING = true;
+        USE_BATCH = true;
+        NUM_THREADS = 5;
+        putTiles();
+    }
+
     private void putTiles() throws Exception {
 
         final int numThreads = NUM_THREADS;
@@ -139,7 +159,8 @@ public class JDBCMBWrapperPerfTest extends TestCase {
         }
         System.out.println("\nInserting " + NUM_TILES_PER_THREAD * numThreads
                 + " tiles spread over " + numThreads + " threads.\nConnection pooling: "
-                + USE_CONNECTION_POOLING + ". Old style put: " + USE_DELETE_PUT_UNLOCK);
+                + USE_CONNECTION_POOLING + ". Old style put: " + USE_DELETE_PUT_UNLOCK
+                + ". Batches of " + (USE_BATCH ? BATCH_SIZE : 1));
 
         List<Future<Long>> results = executorService.invokeAll(tasks);
 
@@ -157,26 +178,45 @@ public class JDBCMBWrapperPerfTest extends TestCase {
         long[] xyz;
         TileObject tileObject;
         long totalTime = 0;
+        List<TileObject> batch = new ArrayList<TileObject>(BATCH_SIZE);
         for (int i = 0; i < numTiles; i++) {
             xyz = new long[] { i + offset, i + offset, 0 };
             tileObject = TileObject.createCompleteTileObject(layerName, xyz, gridSetId, format,
                     parameters, blob);
-            totalTime += insertTile(tileObject);
+            if (USE_BATCH) {
+                batch.add(tileObject);
+                if (batch.size() == BATCH_SIZE || i == numTiles - 1) {
+                    totalTime += insertBatch(batch);
+                    batch.clear();
+                }
+            } else {
+                totalTime += insertTile(tileObject);
+            }
         }
         return totalTime;
     }
 
+    private long insertBatch(List<TileObject> tiles) throws Exception {
+        long t = System.currentTimeMillis();
+        JDBCMBWrapper wrapper = getJdbcWrapper();
+        wrapper.putTiles(tiles);
+        wrapper.unlockTiles(tiles);
+        t = System.currentTimeMillis() - t;
+        return t;
+    }
+
     private long insertTile(TileObject stObj) throws Exception {
         long t = System.currentTimeMillis();
         JDBCMBWrapper wrapper = getJdbcWrapper();
+        List<TileObject> tile = Collections.singletonList(stObj);
         if (USE_DELETE_PUT_UNLOCK) {
             wrapper.deleteTile(stObj);
         }
 
-        wrapper.putTile(stObj);
+        wrapper.putTiles(tile);
 
         if (USE_DELETE_PUT_UNLOCK) {
-            wrapper.unlockTile(stObj);
+            wrapper.unlockTiles(tile);
         }
         t = System.currentTimeMillis() - t;
         return t;
@@ -0,0 +1,182 @@
+package org.geowebcache.diskquota;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.util.FileUtils;
+
+/**
+ * Saves the cache usage per layer, grid set and zoom level on a clean shutdown, so the cache does
+ * not have to be scanned again on the next start up.
+ * <p>
+ * The file is written to a temporary file first and then renamed, and it is deleted as soon as it
+ * is read. So it is only there if nothing happened to the cache since the last clean shutdown,
+ * and a crash while running makes the next start up scan the cache.
+ * </p>
+ *
+ * @see LayerCacheInfoBuilder
+ */
+final class CacheUsageCheckpoint {
+
+    private static final Log log = LogFactory.getLog(CacheUsageCheckpoint.class);
+
+    static final String FILE_NAME = "geowebcache-diskquota-usage.properties";
+
+    private static final String VERSION = "1";
+
+    private final File file;
+
+    public CacheUsageCheckpoint(final File rootCacheDir) {
+        this.file = new File(rootCacheDir, FILE_NAME);
+    }
+
+    /**
+     * Reads and deletes the checkpoint
+     *
+     * @param blockSize
+     *            the disk block size the usage is expected to be computed with
+     * @return the bytes used per layer, grid set and zoom level, or {@code null} if there's no
+     *         checkpoint or it can't be trusted
+     */
+    public Map<String, Map<String, Map<Integer, Long>>> read(final int blockSize) {
+        if (!file.exists()) {
+            log.info("No cache usage checkpoint found, the cache is going to be scanned");
+            return null;
+        }
+        Properties props = new Properties();
+        IOException readError = null;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            readError = e;
+        }
+        // from now on the usage changes, a crash has to be followed by a scan
+        if (!file.delete()) {
+            log.warn("Unable to delete the cache usage checkpoint " + file.getAbsolutePath()
+                    + ", the cache is going to be scanned");
+            return null;
+        }
+        if (readError != null) {
+            log.warn("Unable to read the cache usage checkpoint " + file.getAbsolutePath()
+                    + ", the cache is going to be scanned: " + readError.getMessage());
+            return null;
+        }
+
+        if (!VERSION.equals(props.getProperty("version"))
+                || !"true".equals(props.getProperty("clean"))) {
+            log.info("The cache usage checkpoint is not consistent, "
+                    + "the cache is going to be scanned");
+            return null;
+        }
+        if (!String.valueOf(blockSize).equals(props.getProperty("blockSize"))) {
+            log.info("The disk block size changed since the cache usage checkpoint was saved, "
+                    + "the cache is going to be scanned");
+            return null;
+        }
+
+        Map<String, Map<String, Map<Integer, Long>>> usage;
+        usage = new HashMap<String, Map<String, Map<Integer, Long>>>();
+        try {
+            for (int i = 0; props.getProperty("layer." + i) != null; i++) {
+                final String layer = props.getProperty("layer." + i);
+                Map<String, Map<Integer, Long>> gridSets;
+                gridSets = new HashMap<String, Map<Integer, Long>>();
+                for (int j = 0; props.getProperty("layer." + i + ".gridSet." + j) != null; j++) {
+                    final String prefix = "layer." + i + ".gridSet." + j;
+                    String levels = props.getProperty(prefix + ".usage");
+                    gridSets.put(props.getProperty(prefix), parseLevels(levels));
+                }
+                usage.put(layer, gridSets);
+            }
+        } catch (RuntimeException e) {
+            log.warn("The cache usage checkpoint " + file.getAbsolutePath()
+                    + " is corrupt, the cache is going to be scanned: " + e.getMessage());
+            return null;
+        }
+        return usage;
+    }
+
+    /**
+     * Saves the usage of the given layers
+     *
+     * @param usage
+     *            the bytes used per layer, grid set and zoom level
+     * @param blockSize
+     *            the disk block size the usage was computed with
+     * @param clean
+     *            whether the usage is consistent, a dirty checkpoint is not trusted on
+     *            {@link #read(int) read}
+     */
+    public void write(final Map<String, Map<String, Map<Integer, Long>>> usage,
+            final int blockSize, final boolean clean) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("version", VERSION);
+        props.setProperty("blockSize", String.valueOf(blockSize));
+        int i = 0;
+        for (Map.Entry<String, Map<String, Map<Integer, Long>>> layer : usage.entrySet()) {
+            props.setProperty("layer." + i, layer.getKey());
+            int j = 0;
+            for (Map.Entry<String, Map<Integer, Long>> gridSet : layer.getValue().entrySet()) {
+                props.setProperty("layer." + i + ".gridSet." + j, gridSet.getKey());
+                props.setProperty("layer." + i + ".gridSet." + j + ".usage", formatLevels(gridSet
+                        .getValue()));
+                j++;
+            }
+            i++;
+        }
+        props.setProperty("clean", String.valueOf(clean));
+
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "Disk quota usage at the last clean shutdown");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!FileUtils.renameFile(tmp, file)) {
+            throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to "
+                    + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return {@code zoomLevel:bytes} pairs separated by commas
+     */
+    private static String formatLevels(Map<Integer, Long> levels) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Long> level : levels.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(level.getKey()).append(':').append(level.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static Map<Integer, Long> parseLevels(String levels) {
+        Map<Integer, Long> parsed = new TreeMap<Integer, Long>();
+        if (levels == null || levels.length() == 0) {
+            return parsed;
+        }
+        for (String level : levels.split(",")) {
+            int sep = level.indexOf(':');
+            parsed.put(Integer.valueOf(level.substring(0, sep)), Long.valueOf(level
+                    .substring(sep + 1)));
+        }
+        return parsed;
+    }
+}
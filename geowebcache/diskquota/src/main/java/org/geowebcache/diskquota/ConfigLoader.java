@@ -101,6 +101,10 @@ public class ConfigLoader {
         XStream xStream = getConfiguredXStream();
         File configFile = new File(rootCacheDir, CONFIGURATION_FILE_NAME);
         log.debug("Saving disk quota config to " + configFile.getAbsolutePath());
+        for (LayerQuota lq : config.getLayerQuotas()) {
+            // bring in the usage tile events accounted for since the last save
+            lq.updateUsedQuota();
+        }
         OutputStream configOut = new FileOutputStream(configFile);
         try {
             xStream.toXML(config, configOut);
@@ -34,7 +34,8 @@ public class DiskQuotaConfig {
 
     private List<LayerQuota> layerQuotas;
 
-    private transient Map<String, LayerQuota> layerQuotasMap;
+    /** Never modified once published, replaced instead */
+    private transient volatile Map<String, LayerQuota> layerQuotasMap;
 
     private transient boolean dirty;
 
@@ -108,20 +109,28 @@ public class DiskQuotaConfig {
         this.layerQuotasMap = null;
     }
 
+    /**
+     * Called for every tile stored or deleted, so it does not take a lock once the layer map is
+     * built
+     */
     public LayerQuota getLayerQuota(final String layerName) {
-        LayerQuota quota = getLayerQuotasMap().get(layerName);
-        return quota;
+        Map<String, LayerQuota> map = layerQuotasMap;
+        if (map == null) {
+            map = getLayerQuotasMap();
+        }
+        return map.get(layerName);
     }
 
     private synchronized Map<String, LayerQuota> getLayerQuotasMap() {
         if (layerQuotasMap == null) {
-            layerQuotasMap = new HashMap<String, LayerQuota>();
+            Map<String, LayerQuota> map = new HashMap<String, LayerQuota>();
 
             if (layerQuotas != null) {
                 for (LayerQuota lq : layerQuotas) {
-                    layerQuotasMap.put(lq.getLayer(), lq);
+                    map.put(lq.getLayer(), lq);
                 }
             }
+            layerQuotasMap = map;
         }
         return layerQuotasMap;
     }
@@ -131,7 +140,10 @@ public class DiskQuotaConfig {
             LayerQuota quota = it.next();
             if (quota.getLayer().equals(lq.getLayer())) {
                 it.remove();
-                getLayerQuotasMap().remove(lq.getLayer());
+                Map<String, LayerQuota> map;
+                map = new HashMap<String, LayerQuota>(getLayerQuotasMap());
+                map.remove(lq.getLayer());
+                layerQuotasMap = map;
                 break;
             }
         }
@@ -1,7 +1,5 @@
 package org.geowebcache.diskquota;
 
-import static org.geowebcache.diskquota.StorageUnit.B;
-
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
@@ -46,6 +44,11 @@ public class DiskQuotaMonitor implements DisposableBean {
 
     private static final Log log = LogFactory.getLog(DiskQuotaMonitor.class);
 
+    /**
+     * How long {@link #destroy()} waits for the clean up and cache scanning threads to finish
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
     private final TileLayerDispatcher tileLayerDispatcher;
 
     private final StorageBroker storageBroker;
@@ -70,6 +73,12 @@ public class DiskQuotaMonitor implements DisposableBean {
 
     private final LayerCacheInfoBuilder cacheInfoBuilder;
 
+    /**
+     * Keeps the used quotas up to date, removed from the {@link #storageBroker} on
+     * {@link #destroy()}
+     */
+    private final MonitoringBlobListener blobListener;
+
     /**
      * 
      * @param configLoader
@@ -94,6 +103,7 @@ public class DiskQuotaMonitor implements DisposableBean {
         if (quotaConfig.getNumLayers() == 0) {
             this.cleanUpExecutorService = null;
             this.cacheInfoBuilder = null;
+            this.blobListener = null;
             log.info("No layer quotas defined. Disk quota monitor is disabled.");
         } else {
             this.cleanUpExecutorService = createCleanUpExecutor();
@@ -102,7 +112,7 @@ public class DiskQuotaMonitor implements DisposableBean {
 
             this.cacheInfoBuilder = launchCacheInfoGatheringThreads();
 
-            final MonitoringBlobListener blobListener = new MonitoringBlobListener(quotaConfig);
+            this.blobListener = new MonitoringBlobListener(quotaConfig);
             storageBroker.addBlobStoreListener(blobListener);
 
             setUpScheduledCleanUp();
@@ -117,16 +127,44 @@ public class DiskQuotaMonitor implements DisposableBean {
     /**
      * Called when the framework destroys this bean (e.g. due to web app shutdown), stops any
      * running scheduled clean up and gracefuly shuts down
+     * <p>
+     * The used quotas stop being updated, and the clean up and cache scanning threads are given
+     * {@link #SHUTDOWN_TIMEOUT_SECONDS} to finish before the usage is saved. If they don't finish
+     * in time the usage may still change, so it is saved as dirty and the next start up scans
+     * the cache.
+     * </p>
      * 
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
     public void destroy() throws Exception {
+        if (this.blobListener != null) {
+            storageBroker.removeBlobStoreListener(blobListener);
+        }
         if (this.cleanUpExecutorService != null) {
             this.cleanUpExecutorService.shutdown();
         }
-        if(this.cacheInfoBuilder != null){
+        if (this.cacheInfoBuilder != null) {
             this.cacheInfoBuilder.shutDown();
         }
+        boolean clean = true;
+        try {
+            final long deadline = System.currentTimeMillis() + 1000 * SHUTDOWN_TIMEOUT_SECONDS;
+            if (this.cleanUpExecutorService != null) {
+                clean &= this.cleanUpExecutorService.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS,
+                        TimeUnit.SECONDS);
+            }
+            if (this.cacheInfoBuilder != null) {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                clean &= this.cacheInfoBuilder.awaitTermination(remaining, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            clean = false;
+        }
+        if (!clean) {
+            log.warn("Disk quota threads didn't finish within " + SHUTDOWN_TIMEOUT_SECONDS
+                    + " seconds, the cache is going to be scanned on the next start up");
+        }
         try {
             log.info("Disk quota monitor shutting down, saving configuration");
             configLoader.saveConfig(quotaConfig);
@@ -134,6 +172,17 @@ public class DiskQuotaMonitor implements DisposableBean {
         } catch (Exception e) {
             log.error("Error saving disk quota config: " + e.getMessage(), e);
         }
+        if (this.cacheInfoBuilder != null) {
+            try {
+                this.cacheInfoBuilder.saveCacheInfo(quotaConfig.getLayerQuotas(), clean);
+                if (clean) {
+                    log.info("Cache usage saved, "
+                            + "the cache won't be scanned on the next start up.");
+                }
+            } catch (Exception e) {
+                log.error("Error saving cache usage: " + e.getMessage(), e);
+            }
+        }
     }
 
     private LayerCacheInfoBuilder launchCacheInfoGatheringThreads() throws StorageException {
@@ -141,9 +190,16 @@ public class DiskQuotaMonitor implements DisposableBean {
         final File rootCacheDir = configLoader.getRootCacheDir();
         final int blockSize = quotaConfig.getDiskBlockSize();
 
+        // the zoom levels are scanned in parallel, with as many threads as processors at most
+        final int numScanningThreads = Runtime.getRuntime().availableProcessors();
+        CustomizableThreadFactory tf;
+        tf = new CustomizableThreadFactory("gwc.DiskQuotaCacheInfoThread");
+        tf.setDaemon(true);
+        ExecutorService scanExecutorService;
+        scanExecutorService = Executors.newFixedThreadPool(numScanningThreads, tf);
+
         LayerCacheInfoBuilder cacheInfoBuilder;
-        cacheInfoBuilder = new LayerCacheInfoBuilder(rootCacheDir, cleanUpExecutorService,
-                blockSize);
+        cacheInfoBuilder = new LayerCacheInfoBuilder(rootCacheDir, scanExecutorService, blockSize);
 
         TileLayer tileLayer;
         for (LayerQuota layerQuota : quotaConfig.getLayerQuotas()) {
@@ -152,7 +208,9 @@ public class DiskQuotaMonitor implements DisposableBean {
             } catch (GeoWebCacheException e) {
                 throw new RuntimeException(e);
             }
-            cacheInfoBuilder.buildCacheInfo(tileLayer, layerQuota);
+            if (!cacheInfoBuilder.restoreCacheInfo(layerQuota)) {
+                cacheInfoBuilder.buildCacheInfo(tileLayer, layerQuota);
+            }
         }
         return cacheInfoBuilder;
     }
@@ -235,9 +293,7 @@ public class DiskQuotaMonitor implements DisposableBean {
 
             long actuallyUsedStorage = blockSize * (int) Math.ceil((double) blobSize / blockSize);
 
-            Quota usedQuota = layerQuota.getUsedQuota();
-
-            usedQuota.add(actuallyUsedStorage, B);
+            layerQuota.addUsedBytes(gridSetId, z, actuallyUsedStorage);
 
             // inform the layer policy the tile has been added, in case it needs that information
             LayerQuotaExpirationPolicy policy = layerQuota.getExpirationPolicy();
@@ -247,7 +303,8 @@ public class DiskQuotaMonitor implements DisposableBean {
             quotaConfig.setDirty(true);
             layerQuota.setDirty(true);
             if (log.isDebugEnabled()) {
-                log.debug("Used quota increased for " + layerName + ": " + usedQuota);
+                log.debug("Used quota increased for " + layerName + ": "
+                        + layerQuota.getUsedQuota());
             }
         }
 
@@ -268,9 +325,7 @@ public class DiskQuotaMonitor implements DisposableBean {
 
             long actualTileSizeOnDisk = blockSize * (int) Math.ceil((double) blobSize / blockSize);
 
-            Quota usedQuota = layerQuota.getUsedQuota();
-
-            usedQuota.subtract(actualTileSizeOnDisk, B);
+            layerQuota.addUsedBytes(gridSetId, z, -actualTileSizeOnDisk);
 
             // inform the layer policy the tile has been deleted, in case it needs that information
             LayerQuotaExpirationPolicy policy = layerQuota.getExpirationPolicy();
@@ -280,7 +335,8 @@ public class DiskQuotaMonitor implements DisposableBean {
             quotaConfig.setDirty(true);
             layerQuota.setDirty(true);
             if (log.isTraceEnabled()) {
-                log.trace("Used quota decreased for " + layerName + ": " + usedQuota);
+                log.trace("Used quota decreased for " + layerName + ": "
+                        + layerQuota.getUsedQuota());
             }
         }
 
@@ -1,15 +1,19 @@
 package org.geowebcache.diskquota;
 
 import java.io.File;
-import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -17,10 +21,14 @@ import org.geowebcache.diskquota.paging.TilePage;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
-import org.geowebcache.util.FileUtils;
 
 /**
  * Gathers information about the cache of a layer, such as its size and available {@link TilePage}s.
+ * <p>
+ * The usage per grid set and zoom level is {@link #saveCacheInfo(Collection) saved} on a clean
+ * shutdown and {@link #restoreCacheInfo(LayerQuota) restored} on the next start up, so the cache
+ * is only scanned when the last shutdown wasn't clean.
+ * </p>
  * 
  * @author groldan
  */
@@ -36,12 +44,104 @@ final class LayerCacheInfoBuilder {
 
     private final Map<String, List<Future<ZoomLevelVisitor.Stats>>> perLayerRunningTasks;
 
+    /**
+     * Zoom levels yet to be scanned per layer. Only the usage of layers with none left is
+     * consistent and can be saved
+     */
+    private final Map<String, AtomicInteger> perLayerPendingZoomLevels;
+
+    private final CacheUsageCheckpoint checkpoint;
+
+    private Map<String, Map<String, Map<Integer, Long>>> checkpointUsage;
+
+    private boolean checkpointRead;
+
+    /**
+     * @param rootCacheDir
+     *            the cache directory
+     * @param threadPool
+     *            scans the zoom levels, its size bounds how many are scanned at the same time
+     * @param blockSize
+     *            the disk block size, the size of each tile is rounded up to it
+     */
     public LayerCacheInfoBuilder(final File rootCacheDir, final ExecutorService threadPool,
             final int blockSize) {
         this.rootCacheDir = rootCacheDir;
         this.threadPool = threadPool;
         this.blockSize = blockSize;
         this.perLayerRunningTasks = new HashMap<String, List<Future<ZoomLevelVisitor.Stats>>>();
+        this.perLayerPendingZoomLevels = new ConcurrentHashMap<String, AtomicInteger>();
+        this.checkpoint = new CacheUsageCheckpoint(rootCacheDir);
+    }
+
+    /**
+     * Restores the usage of the layer saved at the last clean shutdown.
+     * <p>
+     * The saved usage is read the first time this method is called, and then discarded, so it's
+     * not used again if the process doesn't shut down cleanly.
+     * </p>
+     * 
+     * @param layerQuota
+     * @return {@code true} if the usage was restored, {@code false} if the last shutdown wasn't
+     *         clean or the layer wasn't being monitored, and its cache has to be
+     *         {@link #buildCacheInfo(TileLayer, LayerQuota) scanned}
+     */
+    public synchronized boolean restoreCacheInfo(final LayerQuota layerQuota) {
+        if (!checkpointRead) {
+            checkpointUsage = checkpoint.read(blockSize);
+            checkpointRead = true;
+        }
+        final String layerName = layerQuota.getLayer();
+        if (checkpointUsage == null || !checkpointUsage.containsKey(layerName)) {
+            return false;
+        }
+        layerQuota.setZoomLevelUsage(checkpointUsage.get(layerName));
+        perLayerPendingZoomLevels.put(layerName, new AtomicInteger());
+        log.info("Restored cache usage for '" + layerName + "' saved at the last shutdown: "
+                + layerQuota.getUsedQuota().toNiceString());
+        return true;
+    }
+
+    /**
+     * Saves the usage of the layers whose cache information is complete, to be
+     * {@link #restoreCacheInfo(LayerQuota) restored} on the next start up. Layers still being
+     * scanned are left out and get scanned again.
+     * <p>
+     * To be called on shutdown, after {@link #shutDown()}.
+     * </p>
+     * 
+     * @param layerQuotas
+     * @throws IOException
+     */
+    public void saveCacheInfo(final Collection<LayerQuota> layerQuotas) throws IOException {
+        saveCacheInfo(layerQuotas, true);
+    }
+
+    /**
+     * Saves the usage of the layers whose cache information is complete, see
+     * {@link #saveCacheInfo(Collection)}
+     * 
+     * @param layerQuotas
+     * @param clean
+     *            whether the usage can be trusted, when {@code false} the checkpoint is marked as
+     *            dirty and the next start up scans the cache anyway
+     * @throws IOException
+     */
+    public void saveCacheInfo(final Collection<LayerQuota> layerQuotas, final boolean clean)
+            throws IOException {
+        Map<String, Map<String, Map<Integer, Long>>> usage;
+        usage = new HashMap<String, Map<String, Map<Integer, Long>>>();
+        for (LayerQuota layerQuota : layerQuotas) {
+            final String layerName = layerQuota.getLayer();
+            AtomicInteger pending = perLayerPendingZoomLevels.get(layerName);
+            if (pending == null || pending.get() > 0) {
+                log.info("Cache information for '" + layerName
+                        + "' is incomplete, it'll be gathered again on the next start up");
+                continue;
+            }
+            usage.put(layerName, layerQuota.getZoomLevelUsage());
+        }
+        checkpoint.write(usage, blockSize, clean);
     }
 
     /**
@@ -76,9 +176,11 @@ final class LayerCacheInfoBuilder {
         final File layerDir = new File(rootCacheDir, layerDirName);
 
         // truncate the usage information before gathering the updated information
-        layerQuota.getUsedQuota().setValue(0);
+        layerQuota.clearUsage();
 
         perLayerRunningTasks.put(layerName, new ArrayList<Future<ZoomLevelVisitor.Stats>>());
+        final AtomicInteger pendingZoomLevels = new AtomicInteger();
+        perLayerPendingZoomLevels.put(layerName, pendingZoomLevels);
 
         if (layerDir.exists()) {
             final Map<String, GridSubset> gridSubsets = tileLayer.getGridSubsets();
@@ -96,7 +198,8 @@ final class LayerCacheInfoBuilder {
                     if (gridsetZLevelDir.exists()) {
                         ZoomLevelVisitor cacheInfoBuilder;
                         cacheInfoBuilder = new ZoomLevelVisitor(gridsetZLevelDir, gridSetId,
-                                zoomLevel, layerQuota, blockSize);
+                                zoomLevel, layerQuota, blockSize, pendingZoomLevels);
+                        pendingZoomLevels.incrementAndGet();
 
                         Future<ZoomLevelVisitor.Stats> cacheTask;
                         cacheTask = threadPool.submit(cacheInfoBuilder);
@@ -112,12 +215,16 @@ final class LayerCacheInfoBuilder {
 
     /**
      * Builds the cache information for a zingle zoom level/gridsetId/layer combo
+     * <p>
+     * Tiles are laid out as {@code <zoom level dir>/<intermediate dir>/<x>_<y>.<extension>}, so
+     * instead of a generic traversal, which stats every file to tell whether it's a directory, the
+     * intermediate directories are listed and the names found in them taken as tiles.
+     * </p>
      * 
      * @author groldan
      * 
      */
-    private static final class ZoomLevelVisitor implements FileFilter,
-            Callable<ZoomLevelVisitor.Stats> {
+    private static final class ZoomLevelVisitor implements Callable<ZoomLevelVisitor.Stats> {
 
         private final String gridSetId;
 
@@ -131,6 +238,8 @@ final class LayerCacheInfoBuilder {
 
         private final int blockSize;
 
+        private final AtomicInteger pendingZoomLevels;
+
         private Stats stats;
 
         private static class Stats {
@@ -142,12 +251,14 @@ final class LayerCacheInfoBuilder {
         }
 
         public ZoomLevelVisitor(final File zoomLevelPath, final String gridsetId,
-                final int zoomLevel, final LayerQuota layerQuota, final int blockSize) {
+                final int zoomLevel, final LayerQuota layerQuota, final int blockSize,
+                final AtomicInteger pendingZoomLevels) {
             this.zoomLevelPath = zoomLevelPath;
             this.gridSetId = gridsetId;
             this.layerQuota = layerQuota;
             this.blockSize = blockSize;
             this.tileZ = zoomLevel;
+            this.pendingZoomLevels = pendingZoomLevels;
             this.policy = layerQuota.getExpirationPolicy();
             this.stats = new Stats();
         }
@@ -159,20 +270,30 @@ final class LayerCacheInfoBuilder {
             final String zLevelKey = layerQuota.getLayer() + "'/" + gridSetId + "/" + tileZ;
             try {
                 log.debug("Gathering cache information for '" + zLevelKey);
-                stats.collectedQuota.setValue(0);
                 stats.numTiles = 0L;
                 stats.runTimeMillis = 0L;
                 long runTime = System.currentTimeMillis();
-                FileUtils.traverseDepth(zoomLevelPath, this);
+                long collectedBytes = 0L;
+                final String[] intermediateDirs = zoomLevelPath.list();
+                if (intermediateDirs != null) {
+                    for (String intermediateDir : intermediateDirs) {
+                        if (Thread.interrupted()) {
+                            log.debug("Gathering cache information for " + zLevelKey
+                                    + " was canceled.");
+                            return null;
+                        }
+                        collectedBytes += visit(new File(zoomLevelPath, intermediateDir));
+                    }
+                }
                 runTime = System.currentTimeMillis() - runTime;
                 stats.runTimeMillis = runTime;
-            } catch (TraversalCanceledException cancel) {
-                log.debug("Gathering cache information for " + zLevelKey + " was canceled.");
-                return null;
+                stats.collectedQuota.setValue(0);
+                stats.collectedQuota.add(collectedBytes, StorageUnit.B);
             } catch (Exception e) {
                 e.printStackTrace();
                 throw (e);
             }
+            pendingZoomLevels.decrementAndGet();
             log.info("Cache information for " + zLevelKey + " collected in " + stats.runTimeMillis
                     / 1000D + "s. Counted " + stats.numTiles + " tiles for a storage space of "
                     + stats.collectedQuota.toNiceString());
@@ -180,49 +301,43 @@ final class LayerCacheInfoBuilder {
         }
 
         /**
-         * @see java.io.FileFilter#accept(java.io.File)
+         * Accounts for the tiles in an intermediate directory
+         * 
+         * @return the bytes the tiles take on disk
          */
-        public boolean accept(final File file) {
-            if (Thread.interrupted()) {
-                throw new TraversalCanceledException();
-            }
-            if (file.isDirectory()) {
-                log.trace("Processing files in " + file.getAbsolutePath());
-                return true;
+        private long visit(final File intermediateDir) {
+            log.trace("Processing files in " + intermediateDir.getAbsolutePath());
+            final String[] fileNames = intermediateDir.list();
+            if (fileNames == null) {
+                // not a directory
+                return 0L;
             }
+            long dirBytes = 0L;
+            for (String fileName : fileNames) {
+                final int coordSepIdx = fileName.lastIndexOf('_');
+                final int dotIdx = fileName.lastIndexOf('.');
+                if (coordSepIdx <= 0 || dotIdx < coordSepIdx) {
+                    continue;
+                }
+                final long x;
+                final long y;
+                try {
+                    x = Long.parseLong(fileName.substring(0, coordSepIdx));
+                    y = Long.parseLong(fileName.substring(1 + coordSepIdx, dotIdx));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
 
-            final long length = file.length();
-            final double fileSize = blockSize * Math.ceil((double) length / blockSize);
-            final Quota usedQuota = layerQuota.getUsedQuota();
-            usedQuota.add(fileSize, StorageUnit.B);
-
-            // we know path is a direct child of processingDir and represents a tile file...
-            final String path = file.getPath();
-
-            final int fileNameIdx = 1 + path.lastIndexOf(File.separatorChar);
-            final int coordSepIdx = path.lastIndexOf('_');
-            final int dotIdx = path.lastIndexOf('.');
-
-            final long x = Long.valueOf(path.substring(fileNameIdx, coordSepIdx));
-            final long y = Long.valueOf(path.substring(1 + coordSepIdx, dotIdx));
-
-            policy.createInfoFor(layerQuota, gridSetId, x, y, tileZ);
+                final long length = new File(intermediateDir, fileName).length();
+                final long fileSize = blockSize * (long) Math.ceil((double) length / blockSize);
+                layerQuota.addUsedBytes(gridSetId, tileZ, fileSize);
 
-            stats.numTiles++;
-            stats.collectedQuota.add(fileSize, StorageUnit.B);
-            return true;
-        }
+                policy.createInfoFor(layerQuota, gridSetId, x, y, tileZ);
 
-        /**
-         * Used to brute-force cancel a cache inspection (as InterruptedException is checked and
-         * hence can't use it in accept(File) above
-         * 
-         * @author groldan
-         * 
-         */
-        private static class TraversalCanceledException extends RuntimeException {
-            private static final long serialVersionUID = 1L;
-            // doesn't need a body
+                stats.numTiles++;
+                dirBytes += fileSize;
+            }
+            return dirBytes;
         }
     }
 
@@ -257,7 +372,20 @@ final class LayerCacheInfoBuilder {
         }
     }
 
+    /**
+     * Stops gathering cache information, the layers being scanned are left incomplete
+     */
     public void shutDown() {
         this.threadPool.shutdownNow();
     }
+
+    /**
+     * Waits for the scanning threads to finish after {@link #shutDown()}
+     * 
+     * @return {@code true} if they finished, {@code false} if the timeout elapsed first
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return this.threadPool.awaitTermination(timeout, unit);
+    }
 }
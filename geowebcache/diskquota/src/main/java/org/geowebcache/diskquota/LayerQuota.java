@@ -1,5 +1,12 @@
 package org.geowebcache.diskquota;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 public final class LayerQuota {
 
     private String layer;
@@ -14,6 +21,18 @@ public final class LayerQuota {
 
     private transient boolean dirty;
 
+    /**
+     * Bytes stored or deleted since the last time {@link #usedQuota} was brought up to date. Tile
+     * events only touch this counter, so they don't contend on the quota.
+     */
+    private transient AtomicLong pendingBytes;
+
+    /**
+     * Bytes used per grid set and zoom level, as far as they're known. Saved apart from the
+     * configuration, see {@link LayerCacheInfoBuilder}
+     */
+    private transient ConcurrentMap<String, ConcurrentMap<Integer, AtomicLong>> zoomLevelUsage;
+
     public LayerQuota(final String layer, final String expirationPolicyName) {
         this.layer = layer;
         this.expirationPolicyName = expirationPolicyName;
@@ -32,6 +51,8 @@ public final class LayerQuota {
         if (usedQuota == null) {
             usedQuota = new Quota();
         }
+        pendingBytes = new AtomicLong();
+        zoomLevelUsage = new ConcurrentHashMap<String, ConcurrentMap<Integer, AtomicLong>>();
 
         return this;
     }
@@ -65,9 +86,112 @@ public final class LayerQuota {
      * @return the cache usage for the layer. Non null, but a zero value might mean unknown
      */
     public Quota getUsedQuota() {
+        updateUsedQuota();
         return usedQuota;
     }
 
+    /**
+     * Accounts for tiles stored, or deleted if negative, without updating the used quota right
+     * away. Safe to call from any number of threads.
+     * 
+     * @param bytes
+     *            the bytes the tiles take on disk
+     */
+    public void addUsedBytes(long bytes) {
+        pendingBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Accounts for tiles stored, or deleted if negative, at the given grid set and zoom level.
+     * Safe to call from any number of threads.
+     * 
+     * @param gridSetId
+     * @param zoomLevel
+     * @param bytes
+     *            the bytes the tiles take on disk
+     */
+    public void addUsedBytes(final String gridSetId, final int zoomLevel, final long bytes) {
+        addUsedBytes(bytes);
+        ConcurrentMap<Integer, AtomicLong> gridSetUsage = zoomLevelUsage.get(gridSetId);
+        if (gridSetUsage == null) {
+            gridSetUsage = new ConcurrentHashMap<Integer, AtomicLong>();
+            ConcurrentMap<Integer, AtomicLong> existing;
+            existing = zoomLevelUsage.putIfAbsent(gridSetId, gridSetUsage);
+            if (existing != null) {
+                gridSetUsage = existing;
+            }
+        }
+        AtomicLong usage = gridSetUsage.get(Integer.valueOf(zoomLevel));
+        if (usage == null) {
+            usage = new AtomicLong();
+            AtomicLong existing = gridSetUsage.putIfAbsent(Integer.valueOf(zoomLevel), usage);
+            if (existing != null) {
+                usage = existing;
+            }
+        }
+        usage.addAndGet(bytes);
+    }
+
+    /**
+     * @return a copy of the bytes used per grid set and zoom level
+     */
+    public Map<String, Map<Integer, Long>> getZoomLevelUsage() {
+        Map<String, Map<Integer, Long>> copy = new HashMap<String, Map<Integer, Long>>();
+        for (Map.Entry<String, ConcurrentMap<Integer, AtomicLong>> gridSet : zoomLevelUsage
+                .entrySet()) {
+            Map<Integer, Long> levels = new TreeMap<Integer, Long>();
+            for (Map.Entry<Integer, AtomicLong> level : gridSet.getValue().entrySet()) {
+                levels.put(level.getKey(), Long.valueOf(level.getValue().get()));
+            }
+            copy.put(gridSet.getKey(), levels);
+        }
+        return copy;
+    }
+
+    /**
+     * Replaces the used quota by the sum of the given per grid set and zoom level usage. Not to be
+     * called while tile events are being accounted for.
+     * 
+     * @param usage
+     *            the bytes used per grid set and zoom level
+     */
+    void setZoomLevelUsage(final Map<String, Map<Integer, Long>> usage) {
+        clearUsage();
+        long total = 0;
+        for (Map.Entry<String, Map<Integer, Long>> gridSet : usage.entrySet()) {
+            ConcurrentMap<Integer, AtomicLong> levels;
+            levels = new ConcurrentHashMap<Integer, AtomicLong>();
+            for (Map.Entry<Integer, Long> level : gridSet.getValue().entrySet()) {
+                long bytes = level.getValue().longValue();
+                levels.put(level.getKey(), new AtomicLong(bytes));
+                total += bytes;
+            }
+            zoomLevelUsage.put(gridSet.getKey(), levels);
+        }
+        usedQuota.add(total, StorageUnit.B);
+    }
+
+    /**
+     * Discards all usage information, before it is gathered again
+     */
+    void clearUsage() {
+        pendingBytes.set(0);
+        zoomLevelUsage.clear();
+        usedQuota.setValue(0);
+    }
+
+    /**
+     * Adds the bytes accounted for with {@link #addUsedBytes(long)} to the used quota
+     */
+    void updateUsedQuota() {
+        long bytes = pendingBytes.getAndSet(0);
+        if (bytes > 0) {
+            usedQuota.add(bytes, StorageUnit.B);
+        } else if (bytes < 0) {
+            usedQuota.subtract(-bytes, StorageUnit.B);
+        }
+    }
+
     @Override
     public String toString() {
         return new StringBuilder(getClass().getSimpleName()).append("[layer: ").append(layer)
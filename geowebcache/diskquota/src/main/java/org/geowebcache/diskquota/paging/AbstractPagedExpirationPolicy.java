@@ -5,12 +5,21 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,6 +29,7 @@ import org.geowebcache.diskquota.DiskQuotaMonitor;
 import org.geowebcache.diskquota.LayerQuota;
 import org.geowebcache.diskquota.LayerQuotaExpirationPolicy;
 import org.geowebcache.diskquota.Quota;
+import org.geowebcache.diskquota.StorageUnit;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerListener;
@@ -29,12 +39,20 @@ import org.geowebcache.seed.TileBreeder;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * Abstract base bean that expects {@link Quota}s to be {@link #attach(TileLayer, Quota) attached}
  * for all monitored {@link TileLayer layers} and whips out pages of tiles. Subclasses must
  * implement the actual expiration policy (e.g. LRU/LFU/FIFO) when requested through
  * {@link #expireTiles(String)}.
+ * <p>
+ * Expiring starts once a layer exceeds its quota and goes on until it's down to the
+ * {@link #setLowWatermark(double) low watermark}, a fraction of the quota, so that a layer right
+ * at its limit isn't truncated over and over. The pages to expire are picked in batches, the
+ * pages next to each other merged into a single truncate, and truncated by a small pool of
+ * {@link #setExpirationThreads(int) threads}.
+ * </p>
  * 
  * @author groldan
  * @see DiskQuotaMonitor
@@ -52,6 +70,14 @@ public abstract class AbstractPagedExpirationPolicy implements LayerQuotaExpirat
 
     private final PageStore pageStore;
 
+    static final double DEFAULT_LOW_WATERMARK = 0.9;
+
+    static final int DEFAULT_EXPIRATION_THREADS = 2;
+
+    private double lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    private final ThreadPoolExecutor expirationThreadPool;
+
     /**
      * 
      * @param tileBreeder
@@ -62,6 +88,43 @@ public abstract class AbstractPagedExpirationPolicy implements LayerQuotaExpirat
         this.pageStore = pageStore;
         attachedLayers = new ConcurrentHashMap<String, TilePageCalculator>();
         statsCollectors = new ConcurrentHashMap<String, PagingStatsCollector>();
+
+        CustomizableThreadFactory tf;
+        tf = new CustomizableThreadFactory("gwc.DiskQuotaExpirationThread");
+        tf.setDaemon(true);
+        expirationThreadPool = new ThreadPoolExecutor(DEFAULT_EXPIRATION_THREADS,
+                DEFAULT_EXPIRATION_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), tf);
+    }
+
+    /**
+     * @param lowWatermark
+     *            the fraction of its quota a layer is brought down to once it exceeds it, defaults
+     *            to {@code 0.9}
+     */
+    public void setLowWatermark(final double lowWatermark) {
+        if (lowWatermark <= 0 || lowWatermark > 1) {
+            throw new IllegalArgumentException("lowWatermark shall be in the (0, 1] range: "
+                    + lowWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * @param expirationThreads
+     *            the number of truncates run at the same time, over all layers, defaults to 2
+     */
+    public void setExpirationThreads(final int expirationThreads) {
+        if (expirationThreads <= 0) {
+            throw new IllegalArgumentException("expirationThreads shall be a positive integer");
+        }
+        if (expirationThreads > expirationThreadPool.getMaximumPoolSize()) {
+            expirationThreadPool.setMaximumPoolSize(expirationThreads);
+            expirationThreadPool.setCorePoolSize(expirationThreads);
+        } else {
+            expirationThreadPool.setCorePoolSize(expirationThreads);
+            expirationThreadPool.setMaximumPoolSize(expirationThreads);
+        }
     }
 
     /**
@@ -111,6 +174,7 @@ public abstract class AbstractPagedExpirationPolicy implements LayerQuotaExpirat
         for (String layerName : layerNames) {
             dettach(layerName);
         }
+        expirationThreadPool.shutdownNow();
     }
 
     /**
@@ -221,105 +285,173 @@ public abstract class AbstractPagedExpirationPolicy implements LayerQuotaExpirat
 
         final LayerQuota layerQuota = tilePageCalculator.getLayerQuota();
         final Quota quotaLimit = layerQuota.getQuota();
-        final Quota usedQuota = layerQuota.getUsedQuota();
+        final long limitBytes = toBytes(quotaLimit);
 
-        Quota exceededQuota = usedQuota.difference(quotaLimit);
-        if (exceededQuota.getValue().compareTo(BigDecimal.ZERO) <= 0) {
+        if (toBytes(layerQuota.getUsedQuota()) <= limitBytes) {
             return;
         }
+        final long targetBytes = (long) (limitBytes * lowWatermark);
 
         final TileLayer tileLayer = tilePageCalculator.getTileLayer();
         final Collection<GridSubset> gridSubsets = tileLayer.getGridSubsets().values();
 
+        // pages already truncated, in case some of their tiles are left (e.g. other parameters)
+        final Map<String, Set<TilePage>> expiredPages = new HashMap<String, Set<TilePage>>();
+        for (GridSubset gridSubset : gridSubsets) {
+            expiredPages.put(gridSubset.getName(), new HashSet<TilePage>());
+        }
+
         /*
          * Keep in mind that a seeding process might be ongoing while we try to enforce the layer's
          * quota and the two processes may compete. We can't just ask for and sort the list of pages
          * once as they might be changing under our feet.
          */
-        while (exceededQuota.getValue().compareTo(BigDecimal.ZERO) > 0) {
-            // make a one-page-cleanup per gridSubset so the clean up is sort of evenly spread over
-            // the different gridsets instead of whiping out too much of one and nothing of the
-            // other
-            for (GridSubset gridSubSet : gridSubsets) {
-                final String gridSetId = gridSubSet.getName();
-                List<TilePage> gsPages = tilePageCalculator.getPages(gridSetId);
-                gsPages = sortPagesForExpiration(gsPages);
-
-                TilePage tilePage = null;
-                long numTilesInPage = 0;
-                for (TilePage page : gsPages) {
-                    numTilesInPage = page.getNumTilesInPage();
-                    if (numTilesInPage > 0) {
-                        tilePage = page;
-                        break;
-                    }
-                }
-                if (numTilesInPage == 0) {
-                    log.warn("Didn't find a page with tiles to truncate for '" + layerName
-                            + "' whilst it reports having a quota excedednt of " + exceededQuota);
+        long usedBytes;
+        while ((usedBytes = toBytes(layerQuota.getUsedQuota())) > targetBytes) {
+            Map<String, List<TilePage>> batch = nextBatch(tilePageCalculator, usedBytes,
+                    usedBytes - targetBytes, expiredPages);
+            if (batch.isEmpty()) {
+                log.warn("Didn't find a page with tiles to truncate for '" + layerName
+                        + "' whilst it reports using " + layerQuota.getUsedQuota().toNiceString()
+                        + " out of " + quotaLimit.toNiceString());
+                break;
+            }
+            try {
+                truncate(tilePageCalculator, batch, targetBytes);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        log.debug("Quota for layer '" + layerName + "' reached. Using "
+                + layerQuota.getUsedQuota() + " out of a limit of " + quotaLimit);
+    }
+
+    /**
+     * Picks the pages to expire next, as many as it takes to free {@code bytesToFree} given the
+     * average size of the tiles, evenly spread over the grid subsets so not too much is whipped
+     * out of one and nothing out of the other.
+     * 
+     * @return the pages per grid subset, empty if there are no pages with tiles left to expire
+     */
+    private Map<String, List<TilePage>> nextBatch(final TilePageCalculator tilePageCalculator,
+            final long usedBytes, final long bytesToFree,
+            final Map<String, Set<TilePage>> expiredPages) {
+
+        Map<String, List<TilePage>> sortedPages = new HashMap<String, List<TilePage>>();
+        long numTiles = 0;
+        for (String gridSetId : expiredPages.keySet()) {
+            List<TilePage> gsPages = tilePageCalculator.getPages(gridSetId);
+            for (TilePage page : gsPages) {
+                numTiles += page.getNumTilesInPage();
+            }
+            sortedPages.put(gridSetId, sortPagesForExpiration(gsPages));
+        }
+
+        Map<String, List<TilePage>> batch = new HashMap<String, List<TilePage>>();
+        if (numTiles <= 0) {
+            return batch;
+        }
+        final double tilesToExpire = Math.ceil(bytesToFree / ((double) usedBytes / numTiles)
+                / sortedPages.size());
+
+        for (Map.Entry<String, List<TilePage>> gsPages : sortedPages.entrySet()) {
+            final String gridSetId = gsPages.getKey();
+            final Set<TilePage> expired = expiredPages.get(gridSetId);
+            List<TilePage> gsBatch = new ArrayList<TilePage>();
+            long batchTiles = 0;
+            for (TilePage page : gsPages.getValue()) {
+                if (batchTiles >= tilesToExpire) {
                     break;
                 }
+                final long numTilesInPage = page.getNumTilesInPage();
+                if (numTilesInPage > 0 && expired.add(page)) {
+                    gsBatch.add(page);
+                    batchTiles += numTilesInPage;
+                }
+            }
+            if (gsBatch.size() > 0) {
+                batch.put(gridSetId, gsBatch);
+            }
+        }
+        return batch;
+    }
 
-                final int zoomLevel = tilePage.getZ();
-                final long[][] pageGridCoverage;
-                pageGridCoverage = tilePageCalculator.toGridCoverage(tilePage, gridSetId);
+    /**
+     * Truncates the pages in the batch, merging the ones next to each other into a single
+     * truncate, and stops as soon as the layer is down to {@code targetBytes}. The used quota is
+     * updated by the tile deleted events as each truncate completes.
+     */
+    private void truncate(final TilePageCalculator tilePageCalculator,
+            final Map<String, List<TilePage>> batch, final long targetBytes)
+            throws GeoWebCacheException, InterruptedException {
+
+        final TileLayer tileLayer = tilePageCalculator.getTileLayer();
+        final LayerQuota layerQuota = tilePageCalculator.getLayerQuota();
+
+        CompletionService<Object> truncates;
+        truncates = new ExecutorCompletionService<Object>(expirationThreadPool);
+        List<Future<Object>> pending = new ArrayList<Future<Object>>();
+        int numPages = 0;
+        for (Map.Entry<String, List<TilePage>> gsBatch : batch.entrySet()) {
+            final String gridSetId = gsBatch.getKey();
+            numPages += gsBatch.getValue().size();
+            List<long[][]> coverages;
+            coverages = tilePageCalculator.toGridCoverages(gsBatch.getValue(), gridSetId);
+            for (long[][] coverage : coverages) {
                 for (MimeType mimeType : tileLayer.getMimeTypes()) {
-                    log.trace("Expiring page " + tilePage + "/" + mimeType.getFormat());
-
-                    GWCTask truncateTask = createTruncateTaskForPage(tileLayer, gridSetId,
-                            zoomLevel, pageGridCoverage, mimeType);
-
-                    // truncate synchronously. We're already inside the interested thread
-                    try {
-                        truncateTask.doAction();
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-
-                    Quota newExcedent = logDifference(layerName, quotaLimit, usedQuota,
-                            exceededQuota, tilePage, numTilesInPage);
-
-                    // usedQuota may have changed
-                    exceededQuota = newExcedent;
-                    if (0 == tilePage.getNumTilesInPage()) {
-                        // already truncated the tiles for the page at all available mime types
-                        break;
-                    }
+                    final GWCTask truncateTask = createTruncateTask(tileLayer, gridSetId,
+                            coverage, mimeType);
+                    pending.add(truncates.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            truncateTask.doAction();
+                            return null;
+                        }
+                    }));
                 }
+            }
+        }
+        log.debug("Expiring " + numPages + " pages of '" + tileLayer.getName() + "' with "
+                + pending.size() + " truncates");
 
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                Future<Object> truncate = truncates.take();
+                try {
+                    truncate.get();
+                } catch (ExecutionException e) {
+                    log.error("Error expiring tiles of '" + tileLayer.getName() + "'", e
+                            .getCause());
+                }
+                if (toBytes(layerQuota.getUsedQuota()) <= targetBytes) {
+                    log.trace("Quota for layer '" + tileLayer.getName()
+                            + "' reached, skipping the rest of the batch");
+                    break;
+                }
+            }
+        } finally {
+            for (Future<Object> truncate : pending) {
+                truncate.cancel(false);
             }
         }
-        log.debug("Quota for layer '" + layerName + "' reached. Using " + usedQuota
-                + " out of a limit of " + quotaLimit);
     }
 
-    private Quota logDifference(final String layerName, final Quota quotaLimit,
-            final Quota usedQuota, Quota exceededQuota, final TilePage tilePage, long numTilesInPage) {
-        Quota newExcedent = usedQuota.difference(quotaLimit);
-        if (log.isTraceEnabled()) {
-            Quota truncated = exceededQuota.difference(newExcedent);
-            log.trace("Truncated " + truncated.toNiceString() + " from page " + tilePage.getX()
-                    + "," + tilePage.getY() + "," + tilePage.getZ() + ". Layer: '" + layerName
-                    + "'. Tiles in page: " + tilePage.getNumTilesInPage() + ". Previously: "
-                    + numTilesInPage);
-        }
-        return newExcedent;
+    private static long toBytes(final Quota quota) {
+        return quota.getUnits().convertTo(quota.getValue(), StorageUnit.B).longValue();
     }
 
     protected abstract List<TilePage> sortPagesForExpiration(List<TilePage> allPages);
 
-    private GWCTask createTruncateTaskForPage(final TileLayer tileLayer, String gridSetId,
-            int zoomLevel, long[][] pageGridCoverage, MimeType mimeType)
-            throws GeoWebCacheException {
+    private GWCTask createTruncateTask(final TileLayer tileLayer, String gridSetId,
+            long[][] gridCoverage, MimeType mimeType) throws GeoWebCacheException {
         TileRange tileRange;
         {
             String layerName = tileLayer.getName();
-            int zoomStart = zoomLevel;
-            int zoomStop = zoomLevel;
+            int zoomStart = TilePageCalculator.zoomLevel(gridCoverage);
+            int zoomStop = zoomStart;
 
             String parameters = null;
 
-            tileRange = new TileRange(layerName, gridSetId, zoomStart, zoomStop, pageGridCoverage,
+            tileRange = new TileRange(layerName, gridSetId, zoomStart, zoomStop, gridCoverage,
                     mimeType, parameters);
         }
 
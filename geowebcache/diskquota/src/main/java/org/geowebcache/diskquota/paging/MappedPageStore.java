@@ -0,0 +1,343 @@
+package org.geowebcache.diskquota.paging;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.diskquota.ConfigLoader;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * A {@link PageStore} keeping the pages of each layer and grid set as fixed width records in a
+ * memory mapped file, updated in place.
+ * <p>
+ * Loading the pages reads the records straight out of the mapped file. Saving only writes the
+ * records of the pages whose hits, access time or number of tiles changed since the last save,
+ * and appends the pages that are new, so saving a deep pyramid where little happened is cheap.
+ * </p>
+ * <p>
+ * The header holds the number of records committed and whether a save is under way. New records
+ * are only counted once they are on disk, and each record carries a checksum, so after a crash
+ * in the middle of a save the file still loads, minus the records that were half written.
+ * </p>
+ * <p>
+ * Pages saved by {@link FilePageStore} are read the first time a layer is loaded, and written in
+ * the new format on the next save.
+ * </p>
+ *
+ * @see TilePage
+ */
+public class MappedPageStore implements PageStore, DisposableBean {
+
+    private static final Log log = LogFactory.getLog(MappedPageStore.class);
+
+    private static final int MAGIC = 0x47574350;
+
+    private static final int VERSION = 1;
+
+    /** magic, version, record size, state, generation, count, checksum */
+    static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 4 + 4;
+
+    /** x, y, z, access time, hits, tiles, checksum */
+    static final int RECORD_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 4;
+
+    private static final int STATE_CLEAN = 0;
+
+    private static final int STATE_SAVING = 1;
+
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final String EXTENSION = ".pagestore";
+
+    private final ConfigLoader configLoader;
+
+    private final File directory;
+
+    private final ConcurrentHashMap<String, PageFile> files = new ConcurrentHashMap<String, PageFile>();
+
+    /**
+     * Keeps the pages in the cache directory
+     */
+    public MappedPageStore(final ConfigLoader configLoader) {
+        this.configLoader = configLoader;
+        this.directory = null;
+    }
+
+    public MappedPageStore(final File directory) {
+        this.configLoader = null;
+        this.directory = directory;
+    }
+
+    private File getDirectory() throws StorageException {
+        return directory != null ? directory : configLoader.getRootCacheDir();
+    }
+
+    public List<TilePage> getPages(String layerName, String gridSetId) throws IOException {
+        final String fileName = fileName(layerName, gridSetId);
+        PageFile pageFile = files.get(fileName);
+        if (pageFile == null) {
+            File file = new File(getDirectory(), fileName + EXTENSION);
+            if (!file.exists()) {
+                if (configLoader != null) {
+                    // pages from before this store, the next save writes them here
+                    return new FilePageStore(configLoader).getPages(layerName, gridSetId);
+                }
+                throw new FileNotFoundException(file.getAbsolutePath());
+            }
+            pageFile = open(fileName, file);
+        }
+        List<TilePage> pages = pageFile.readPages();
+        log.info("Paged state for layer '" + layerName + "'/" + gridSetId + " loaded.");
+        return pages;
+    }
+
+    public void savePages(String layerName, String gridSetId, List<TilePage> availablePages)
+            throws IOException {
+        final String fileName = fileName(layerName, gridSetId);
+        PageFile pageFile = files.get(fileName);
+        if (pageFile == null) {
+            pageFile = open(fileName, new File(getDirectory(), fileName + EXTENSION));
+        }
+        int written = pageFile.writePages(availablePages);
+        if (log.isDebugEnabled()) {
+            log.debug("Saved paged state for " + layerName + "/" + gridSetId + ": " + written
+                    + " out of " + availablePages.size() + " pages changed.");
+        }
+    }
+
+    private synchronized PageFile open(String fileName, File file) throws IOException {
+        PageFile pageFile = files.get(fileName);
+        if (pageFile == null) {
+            pageFile = new PageFile(file);
+            files.put(fileName, pageFile);
+        }
+        return pageFile;
+    }
+
+    private String fileName(String layerName, String gridSetId) {
+        return layerName + "." + FilePathGenerator.filteredGridSetId(gridSetId);
+    }
+
+    /**
+     * Closes the files, the pages have to be saved by the expiration policies before this
+     *
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public synchronized void destroy() throws Exception {
+        for (PageFile pageFile : files.values()) {
+            pageFile.close();
+        }
+        files.clear();
+    }
+
+    private static int checksum(int x, int y, int z, int access, long hits, long tiles) {
+        int h = 17;
+        h = 31 * h + x;
+        h = 31 * h + y;
+        h = 31 * h + z;
+        h = 31 * h + access;
+        h = 31 * h + (int) (hits ^ (hits >>> 32));
+        h = 31 * h + (int) (tiles ^ (tiles >>> 32));
+        return h;
+    }
+
+    private static int headerChecksum(int state, long generation, int count) {
+        int h = 17;
+        h = 31 * h + MAGIC;
+        h = 31 * h + VERSION;
+        h = 31 * h + RECORD_SIZE;
+        h = 31 * h + state;
+        h = 31 * h + (int) (generation ^ (generation >>> 32));
+        h = 31 * h + count;
+        return h;
+    }
+
+    /**
+     * The records of one layer and grid set
+     */
+    private static class PageFile {
+
+        private final File file;
+
+        private final RandomAccessFile raf;
+
+        private final FileChannel channel;
+
+        private MappedByteBuffer buffer;
+
+        /** Records the file has room for */
+        private int capacity;
+
+        /** Records committed */
+        private int count;
+
+        private long generation;
+
+        PageFile(File file) throws IOException {
+            this.file = file;
+            final boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            try {
+                if (exists) {
+                    readHeader();
+                } else {
+                    map(MIN_CAPACITY);
+                    writeHeader(STATE_CLEAN);
+                    buffer.force();
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void map(int records) throws IOException {
+            long size = HEADER_SIZE + (long) records * RECORD_SIZE;
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            capacity = records;
+        }
+
+        private void readHeader() throws IOException {
+            int records = (int) ((raf.length() - HEADER_SIZE) / RECORD_SIZE);
+            map(records);
+            buffer.position(0);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int recordSize = buffer.getInt();
+            int state = buffer.getInt();
+            generation = buffer.getLong();
+            int committed = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (magic != MAGIC || version != VERSION || recordSize != RECORD_SIZE) {
+                throw new IOException(file.getAbsolutePath() + " is not a version " + VERSION
+                        + " page store");
+            }
+            if (checksum != headerChecksum(state, generation, committed) || committed > records
+                    || committed < 0) {
+                throw new IOException("The header of " + file.getAbsolutePath()
+                        + " is corrupt");
+            }
+            if (state != STATE_CLEAN) {
+                log.warn("The last save of " + file.getAbsolutePath()
+                        + " did not complete, pages written half way through are skipped");
+            }
+            count = committed;
+        }
+
+        private void writeHeader(int state) {
+            buffer.position(0);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(RECORD_SIZE);
+            buffer.putInt(state);
+            buffer.putLong(generation);
+            buffer.putInt(count);
+            buffer.putInt(headerChecksum(state, generation, count));
+        }
+
+        synchronized List<TilePage> readPages() {
+            List<TilePage> pages = new ArrayList<TilePage>(count);
+            int skipped = 0;
+            for (int slot = 0; slot < count; slot++) {
+                buffer.position(HEADER_SIZE + slot * RECORD_SIZE);
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                int z = buffer.getInt();
+                int access = buffer.getInt();
+                long hits = buffer.getLong();
+                long tiles = buffer.getLong();
+                if (buffer.getInt() != checksum(x, y, z, access, hits, tiles)) {
+                    skipped++;
+                    continue;
+                }
+                TilePage page = new TilePage(x, y, z, hits, tiles, access);
+                page.setStoreSlot(slot);
+                pages.add(page);
+            }
+            if (skipped > 0) {
+                log.warn("Skipped " + skipped + " corrupt pages in " + file.getAbsolutePath());
+            }
+            return pages;
+        }
+
+        /**
+         * @return the number of records written
+         */
+        synchronized int writePages(List<TilePage> pages) throws IOException {
+            int written = 0;
+            int appended = 0;
+            for (TilePage page : pages) {
+                final int x = page.getX();
+                final int y = page.getY();
+                final int z = page.getZ();
+                final int access = page.getLastAccessTimeMinutes();
+                final long hits = page.getNumHits();
+                final long tiles = page.getNumTilesInPage();
+
+                int slot = page.getStoreSlot();
+                if (slot >= 0 && slot < count && isRecordFor(slot, x, y, z)) {
+                    buffer.position(HEADER_SIZE + slot * RECORD_SIZE + 12);
+                    if (buffer.getInt() == access && buffer.getLong() == hits
+                            && buffer.getLong() == tiles) {
+                        continue;
+                    }
+                } else {
+                    // new pages go past the committed records until they are all on disk
+                    slot = count + appended;
+                    if (slot >= capacity) {
+                        map(Math.max(MIN_CAPACITY, Math.max(slot + 1, capacity * 2)));
+                    }
+                    appended++;
+                    page.setStoreSlot(slot);
+                }
+                if (written == 0) {
+                    writeHeader(STATE_SAVING);
+                    buffer.force();
+                }
+                buffer.position(HEADER_SIZE + slot * RECORD_SIZE);
+                buffer.putInt(x);
+                buffer.putInt(y);
+                buffer.putInt(z);
+                buffer.putInt(access);
+                buffer.putLong(hits);
+                buffer.putLong(tiles);
+                buffer.putInt(checksum(x, y, z, access, hits, tiles));
+                written++;
+            }
+            if (written == 0) {
+                return 0;
+            }
+            buffer.force();
+
+            count += appended;
+            generation++;
+            writeHeader(STATE_CLEAN);
+            buffer.force();
+            return written;
+        }
+
+        private boolean isRecordFor(int slot, int x, int y, int z) {
+            buffer.position(HEADER_SIZE + slot * RECORD_SIZE);
+            return buffer.getInt() == x && buffer.getInt() == y && buffer.getInt() == z;
+        }
+
+        synchronized void close() throws IOException {
+            channel.close();
+            raf.close();
+        }
+    }
+}
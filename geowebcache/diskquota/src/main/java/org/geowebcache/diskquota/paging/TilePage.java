@@ -56,6 +56,11 @@ public class TilePage implements Serializable {
      */
     private int accessTimeMinutes;
 
+    /**
+     * Where the page is kept by a {@link MappedPageStore}, -1 if it is not there yet
+     */
+    private transient int storeSlot = -1;
+
     public TilePage(final int x, final int y, final int z) {
         this(x, y, z, 0L, 0L, 0);
     }
@@ -152,6 +157,15 @@ public class TilePage implements Serializable {
         accessTimeMinutes = in.readInt();
         numHits = new AtomicLong(in.readLong());
         numTilesInPage = new AtomicLong(in.readLong());
+        storeSlot = -1;
+    }
+
+    int getStoreSlot() {
+        return storeSlot;
+    }
+
+    void setStoreSlot(int storeSlot) {
+        this.storeSlot = storeSlot;
     }
 
     /**
@@ -1,6 +1,9 @@
 package org.geowebcache.diskquota.paging;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
@@ -118,4 +121,96 @@ public class TilePageCalculator {
         long[][] gridCoverage = pageRange.toGridCoverage(page);
         return gridCoverage;
     }
+
+    /**
+     * Returns the grid subset coverage ranges suitable for {@link TileRange} covered by the given
+     * pages, where the pages next to each other at the same zoom level are merged into a single
+     * range
+     * 
+     * @param pages
+     * @param gridSetId
+     * @return one {@code [level][minTileX, minTileY, maxTileX, maxTileY, zoomlevel]} per range
+     */
+    public List<long[][]> toGridCoverages(final Collection<TilePage> pages,
+            final String gridSetId) {
+
+        PagePyramid pageRange = this.pageRangesPerGridSubset.get(gridSetId);
+
+        List<long[][]> coverages = new ArrayList<long[][]>(pages.size());
+        for (TilePage page : pages) {
+            coverages.add(pageRange.toGridCoverage(page));
+        }
+        // first the pages on the same row, then the rows of the same width on top of each other
+        Collections.sort(coverages, new CoverageComparator(1, 0));
+        coverages = merge(coverages, 0);
+        Collections.sort(coverages, new CoverageComparator(0, 1));
+        coverages = merge(coverages, 1);
+        return coverages;
+    }
+
+    /**
+     * Merges consecutive coverages on the given axis, expecting them sorted by zoom level, then
+     * by the other axis and then by this one
+     */
+    private static List<long[][]> merge(final List<long[][]> sorted, final int axis) {
+        final int other = 1 - axis;
+        List<long[][]> merged = new ArrayList<long[][]>();
+        long[] last = null;
+        for (long[][] coverage : sorted) {
+            long[] range = coverage[zoomLevel(coverage)];
+            if (last != null && last[4] == range[4] && last[other] == range[other]
+                    && last[other + 2] == range[other + 2] && last[axis + 2] + 1 == range[axis]) {
+                last[axis + 2] = range[axis + 2];
+                continue;
+            }
+            merged.add(coverage);
+            last = range;
+        }
+        return merged;
+    }
+
+    /**
+     * @return the zoom level of a single level coverage as returned by
+     *         {@link #toGridCoverage(TilePage, String)}
+     */
+    static int zoomLevel(final long[][] coverage) {
+        int level = 0;
+        while (coverage[level] == null) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Orders single level coverages by zoom level, then by the {@code first} axis and then by the
+     * {@code second} one
+     */
+    private static class CoverageComparator implements Comparator<long[][]> {
+
+        private final int first;
+
+        private final int second;
+
+        CoverageComparator(final int first, final int second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        public int compare(long[][] c1, long[][] c2) {
+            long[] r1 = c1[zoomLevel(c1)];
+            long[] r2 = c2[zoomLevel(c2)];
+            long d = r1[4] - r2[4];
+            if (d == 0) {
+                d = r1[first] - r2[first];
+            }
+            if (d == 0) {
+                // same extent on the first axis, so both ranges can be merged on the second one
+                d = r1[first + 2] - r2[first + 2];
+            }
+            if (d == 0) {
+                d = r1[second] - r2[second];
+            }
+            return d < 0 ? -1 : (d > 0 ? 1 : 0);
+        }
+    }
 }
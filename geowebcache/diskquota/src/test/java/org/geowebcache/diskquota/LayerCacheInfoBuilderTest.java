@@ -7,6 +7,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -120,6 +121,150 @@ public class LayerCacheInfoBuilderTest extends TestCase {
         assertEquals(0L, usedQuota.difference(expectedUsedQuota).getValue().longValue());
     }
 
+    public void testCheckpoint() throws Exception {
+        final String layerName = "MockLayer";
+        TileLayer mockLayer = mockLayer(layerName);
+        final String gridSetId = mockLayer.getGridSubsets().keySet().iterator().next();
+        final int fileSize = this.blockSize + 1;
+        final int blockFileSize = 2 * this.blockSize;
+
+        // a generated tree with a known number of tiles per zoom level
+        final int[] tilesPerLevel = { 2, 8, 20, 20 };
+        for (int z = 0; z < tilesPerLevel.length; z++) {
+            seedZoomLevel(mockLayer, z, tilesPerLevel[z], fileSize);
+        }
+
+        LayerQuota layerQuota = new LayerQuota(layerName, "MockPolicy");
+        LayerQuotaExpirationPolicy mockPolicy = EasyMock
+                .createNiceMock(LayerQuotaExpirationPolicy.class);
+        EasyMock.replay(mockPolicy);
+        layerQuota.setExpirationPolicy(mockPolicy);
+
+        // nothing saved, the cache is scanned
+        assertFalse(infoBuilder.restoreCacheInfo(layerQuota));
+        infoBuilder.buildCacheInfo(mockLayer, layerQuota);
+        waitForCacheInfo(layerName);
+
+        Map<Integer, Long> levels = layerQuota.getZoomLevelUsage().get(gridSetId);
+        assertNotNull(levels);
+        assertEquals(tilesPerLevel.length, levels.size());
+        for (int z = 0; z < tilesPerLevel.length; z++) {
+            assertEquals(tilesPerLevel[z] * blockFileSize, levels.get(z).longValue());
+        }
+        // some tiles stored after the scan
+        layerQuota.addUsedBytes(gridSetId, 2, 3 * blockFileSize);
+
+        // a clean shutdown
+        infoBuilder.shutDown();
+        infoBuilder.saveCacheInfo(Collections.singletonList(layerQuota));
+        assertTrue(new File(rootCacheDir, CacheUsageCheckpoint.FILE_NAME).exists());
+
+        // the next start up restores the usage without scanning
+        threadPool = Executors.newSingleThreadExecutor();
+        infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool, blockSize);
+        LayerQuota restored = new LayerQuota(layerName, "MockPolicy");
+        assertTrue(infoBuilder.restoreCacheInfo(restored));
+        assertEquals(layerQuota.getZoomLevelUsage(), restored.getZoomLevelUsage());
+        assertEquals(0L, restored.getUsedQuota().difference(layerQuota.getUsedQuota()).getValue()
+                .longValue());
+        Quota usedQuota = restored.getUsedQuota();
+        assertEquals(53 * blockFileSize, usedQuota.getUnits().convertTo(usedQuota.getValue(),
+                StorageUnit.B).longValue());
+
+        // the saved usage is gone, if this process crashes the next one scans the cache
+        assertFalse(new File(rootCacheDir, CacheUsageCheckpoint.FILE_NAME).exists());
+        infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool, blockSize);
+        assertFalse(infoBuilder.restoreCacheInfo(new LayerQuota(layerName, "MockPolicy")));
+    }
+
+    public void testIncompleteLayersAreNotSaved() throws Exception {
+        // a layer whose cache information was never gathered
+        LayerQuota layerQuota = new LayerQuota("MockLayer", "MockPolicy");
+        layerQuota.addUsedBytes("EPSG:4326", 0, blockSize);
+        infoBuilder.saveCacheInfo(Collections.singletonList(layerQuota));
+
+        infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool, blockSize);
+        assertFalse(infoBuilder.restoreCacheInfo(new LayerQuota("MockLayer", "MockPolicy")));
+    }
+
+    public void testDirtyUsageIsNotRestored() throws Exception {
+        final String layerName = "MockLayer";
+        TileLayer mockLayer = mockLayer(layerName);
+        seedZoomLevel(mockLayer, 0, 2, this.blockSize);
+
+        LayerQuota layerQuota = new LayerQuota(layerName, "MockPolicy");
+        LayerQuotaExpirationPolicy mockPolicy = EasyMock
+                .createNiceMock(LayerQuotaExpirationPolicy.class);
+        EasyMock.replay(mockPolicy);
+        layerQuota.setExpirationPolicy(mockPolicy);
+        infoBuilder.buildCacheInfo(mockLayer, layerQuota);
+        waitForCacheInfo(layerName);
+
+        // the threads didn't finish in time on shutdown
+        infoBuilder.shutDown();
+        infoBuilder.saveCacheInfo(Collections.singletonList(layerQuota), false);
+        assertTrue(new File(rootCacheDir, CacheUsageCheckpoint.FILE_NAME).exists());
+
+        threadPool = Executors.newSingleThreadExecutor();
+        infoBuilder = new LayerCacheInfoBuilder(rootCacheDir, threadPool, blockSize);
+        assertFalse(infoBuilder.restoreCacheInfo(new LayerQuota(layerName, "MockPolicy")));
+        assertFalse(new File(rootCacheDir, CacheUsageCheckpoint.FILE_NAME).exists());
+    }
+
+    private TileLayer mockLayer(final String layerName) {
+        TileLayer mockLayer = EasyMock.createMock(TileLayer.class);
+        EasyMock.expect(mockLayer.getName()).andReturn(layerName).anyTimes();
+        GridSet gridSet = new GridSetBroker(false, false).WORLD_EPSG4326;
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSet);
+        EasyMock.expect(mockLayer.getGridSubsets()).andReturn(
+                new Hashtable<String, GridSubset>(Collections.singletonMap(gridSubset.getName(),
+                        gridSubset))).anyTimes();
+        EasyMock.replay(mockLayer);
+        return mockLayer;
+    }
+
+    private void waitForCacheInfo(final String layerName) throws InterruptedException {
+        // be careful and don't wait more than 30s
+        long startTime = System.currentTimeMillis();
+        while (infoBuilder.isRunning(layerName)) {
+            Thread.sleep(100);
+            if (System.currentTimeMillis() - startTime > 30000) {
+                fail(LayerCacheInfoBuilder.class.getSimpleName()
+                        + ".buildCacheInfo was running for too long, aborting test!");
+            }
+        }
+    }
+
+    /**
+     * Seeds the first {@code numFiles} tiles of a zoom level, {@code fileSize} bytes each
+     */
+    private void seedZoomLevel(TileLayer layer, int level, int numFiles, int fileSize)
+            throws MimeException, IOException {
+        final GridSubset gridSubset = layer.getGridSubsets().values().iterator().next();
+        final String prefix = this.rootCacheDir.getAbsolutePath();
+        final MimeType mimeType = MimeType.createFromFormat("image/png");
+        final byte[] mockTileContents = new byte[fileSize];
+
+        final long[] coverage = gridSubset.getCoverage(level);// {minx,miny,maxx,maxy,z}
+        int seeded = 0;
+        for (long y = coverage[1]; y <= coverage[3] && seeded < numFiles; y++) {
+            for (long x = coverage[0]; x <= coverage[2] && seeded < numFiles; x++) {
+                String[] tilePath = FilePathGenerator.tilePath(prefix, layer.getName(),
+                        new long[] { x, y, level }, gridSubset.getName(), mimeType, -1);
+                File tileDir = new File(tilePath[0]);
+                tileDir.mkdirs();
+                FileOutputStream fout = new FileOutputStream(new File(tileDir, tilePath[1]));
+                try {
+                    fout.write(mockTileContents);
+                } finally {
+                    fout.close();
+                }
+                seeded++;
+            }
+        }
+        assertEquals(numFiles, seeded);
+    }
+
     /**
      * Seeds {@code numFiles} fake tiles of {@code fileSize} each at random tile indices
      * 
@@ -0,0 +1,49 @@
+package org.geowebcache.diskquota;
+
+import junit.framework.TestCase;
+
+public class LayerQuotaTest extends TestCase {
+
+    public void testUsedBytes() {
+        LayerQuota lq = new LayerQuota("topp:states", "LFU");
+        lq.getUsedQuota().setValue(1);
+        lq.getUsedQuota().setUnits(StorageUnit.MiB);
+
+        lq.addUsedBytes(512 * 1024);
+        lq.addUsedBytes(-1024);
+        Quota expected = new Quota(1024 + 511, StorageUnit.KiB);
+        assertEquals(0D, lq.getUsedQuota().difference(expected).getValue().doubleValue(), 1e-6);
+
+        // nothing is added twice
+        assertEquals(0D, lq.getUsedQuota().difference(expected).getValue().doubleValue(), 1e-6);
+    }
+
+    public void testConcurrentUsedBytes() throws Exception {
+        final LayerQuota lq = new LayerQuota("topp:states", "LFU");
+        final int tiles = 10000;
+
+        Thread[] writers = new Thread[32];
+        for (int i = 0; i < writers.length; i++) {
+            final boolean deleting = i % 4 == 0;
+            writers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < tiles; j++) {
+                        lq.addUsedBytes(deleting ? -4096 : 4096);
+                        if (j % 1000 == 0) {
+                            // someone checking the quota in the meantime
+                            lq.getUsedQuota();
+                        }
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (int i = 0; i < writers.length; i++) {
+            writers[i].join();
+        }
+
+        // 24 threads storing, 8 deleting
+        Quota expected = new Quota(16 * tiles * 4096D, StorageUnit.B);
+        assertEquals(0D, lq.getUsedQuota().difference(expected).getValue().doubleValue(), 1e-6);
+    }
+}
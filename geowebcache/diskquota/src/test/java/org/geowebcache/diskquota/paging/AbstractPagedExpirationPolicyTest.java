@@ -23,6 +23,9 @@ import org.geowebcache.layer.TileLayerListener;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.seed.GWCTask;
 import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
 
 /**
@@ -276,4 +279,118 @@ public class AbstractPagedExpirationPolicyTest extends TestCase {
         assertTrue(((MockGWCTask) truncateTask).called);
     }
 
+    /**
+     * Expires the tiles of an in memory blob store, the used quota following its tile events like
+     * it does with the disk quota monitor
+     */
+    public final void testExpireTilesBatched() throws Exception {
+        final MemoryBlobStore blobStore = new MemoryBlobStore();
+        final LayerQuota layerQuota = setUpBlobStorePolicy(blobStore);
+        // 100 tiles of 4KiB
+        layerQuota.getQuota().setValue(400);
+        layerQuota.getQuota().setUnits(StorageUnit.KiB);
+
+        // 16x8 tiles at zoom level 3, in pages of 2x2 tiles
+        seed(blobStore, 3, 16, 8);
+        assertEquals(128 * 4096L, usedBytes(layerQuota));
+
+        policy.expireTiles("MockLayer");
+
+        // down to 90% of the quota, in as many whole pages as it takes
+        assertEquals(88, blobStore.size());
+        assertEquals(88 * 4096L, usedBytes(layerQuota));
+        // the mock policy sorts the pages backwards, the last row of pages and two more on the
+        // row before it, in two truncates instead of ten
+        assertEquals(2, blobStore.getRangeDeletes());
+    }
+
+    public final void testExpireTilesOverQuotaOnly() throws Exception {
+        final MemoryBlobStore blobStore = new MemoryBlobStore();
+        final LayerQuota layerQuota = setUpBlobStorePolicy(blobStore);
+        // 130 tiles of 4KiB
+        layerQuota.getQuota().setValue(520);
+        layerQuota.getQuota().setUnits(StorageUnit.KiB);
+
+        // over the low watermark, but under the quota
+        seed(blobStore, 3, 16, 8);
+        policy.expireTiles("MockLayer");
+        assertEquals(128, blobStore.size());
+        assertEquals(0, blobStore.getRangeDeletes());
+    }
+
+    /**
+     * Attaches a layer to a policy whose truncate tasks delete from the given blob store
+     */
+    private LayerQuota setUpBlobStorePolicy(final MemoryBlobStore blobStore) {
+        TileLayer layer = EasyMock.createMock(TileLayer.class);
+        EasyMock.expect(layer.getName()).andReturn("MockLayer").anyTimes();
+        EasyMock.expect(layer.getGridSubsets()).andReturn(gridSubsets).anyTimes();
+        EasyMock.expect(layer.getMimeTypes()).andReturn(
+                Collections.singletonList(MimeType.createFromFormat("image/png"))).anyTimes();
+        layer.addLayerListener((TileLayerListener) EasyMock.anyObject());
+        EasyMock.replay(layer);
+
+        tileBreeder = new TileBreeder() {
+            @Override
+            public GWCTask[] createTasks(final TileRange tr, TileLayer tl, GWCTask.TYPE type,
+                    int threadCount, boolean filterUpdate) {
+                GWCTask truncateTask = new GWCTask() {
+                    @Override
+                    public void doAction() throws GeoWebCacheException {
+                        try {
+                            blobStore.delete(tr);
+                        } catch (StorageException e) {
+                            throw new GeoWebCacheException(e);
+                        }
+                    }
+                };
+                return new GWCTask[] { truncateTask };
+            }
+        };
+        final AbstractPagedExpirationPolicy blobStorePolicy;
+        blobStorePolicy = new MockPagedExipirationPolicy(tileBreeder, pageStore);
+        policy = blobStorePolicy;
+
+        final LayerQuota layerQuota = new LayerQuota(layer.getName(), policy.getName());
+        layerQuota.setExpirationPolicy(policy);
+        policy.attach(layer, layerQuota);
+
+        blobStore.addListener(new BlobStoreListener() {
+            public void tileStored(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+                layerQuota.addUsedBytes(gridSetId, z, blobSize);
+                blobStorePolicy.createInfoFor(layerQuota, gridSetId, x, y, z);
+            }
+
+            public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+                layerQuota.addUsedBytes(gridSetId, z, -blobSize);
+                blobStorePolicy.removeInfoFor(layerQuota, gridSetId, x, y, z);
+            }
+
+            public void layerDeleted(String layerName) {
+                // not used
+            }
+        });
+        return layerQuota;
+    }
+
+    /**
+     * Stores {@code tilesWide x tilesHigh} tiles of 4KiB at the given zoom level
+     */
+    private void seed(MemoryBlobStore blobStore, int z, int tilesWide, int tilesHigh)
+            throws Exception {
+        final String gridsetId = gridSubsets.keySet().iterator().next();
+        for (long x = 0; x < tilesWide; x++) {
+            for (long y = 0; y < tilesHigh; y++) {
+                blobStore.put(TileObject.createCompleteTileObject("MockLayer", new long[] { x, y,
+                        z }, gridsetId, "image/png", null, new byte[4096]));
+            }
+        }
+    }
+
+    private long usedBytes(LayerQuota layerQuota) {
+        return layerQuota.getUsedQuota().getUnits().convertTo(
+                layerQuota.getUsedQuota().getValue(), StorageUnit.B).longValue();
+    }
 }
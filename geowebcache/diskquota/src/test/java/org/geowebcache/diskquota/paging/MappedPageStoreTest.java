@@ -0,0 +1,159 @@
+package org.geowebcache.diskquota.paging;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MappedPageStoreTest extends TestCase {
+
+    private File directory;
+
+    private MappedPageStore store;
+
+    private List<TilePage> pages;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("gwc", "pagestore");
+        directory.delete();
+        directory.mkdirs();
+        store = new MappedPageStore(directory);
+
+        pages = new ArrayList<TilePage>();
+        pages.add(new TilePage(1, 2, 3, 1000L, 50L, 5));
+        pages.add(new TilePage(4, 5, 6, 1000L, 50L, 5));
+        pages.add(new TilePage(7, 8, 9, 1000L, 50L, 5));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        File[] files = directory.listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testNoPages() throws Exception {
+        try {
+            store.getPages("someLayer", "EPSG:4326");
+            fail("Expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            assertTrue(true);
+        }
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        store.savePages("someLayer", "EPSG:4326", pages);
+        store.destroy();
+
+        store = new MappedPageStore(directory);
+        List<TilePage> loaded = store.getPages("someLayer", "EPSG:4326");
+        assertPagesEqual(pages, loaded);
+    }
+
+    public void testIncrementalSave() throws Exception {
+        store.savePages("someLayer", "EPSG:4326", pages);
+        File file = new File(directory, "someLayer.EPSG_4326.pagestore");
+        long length = file.length();
+
+        // one page changes, one is added, the file is updated in place
+        pages.get(1).markHit();
+        pages.get(1).addTile();
+        pages.add(new TilePage(10, 11, 12));
+        store.savePages("someLayer", "EPSG:4326", pages);
+        assertEquals(length, file.length());
+        store.destroy();
+
+        store = new MappedPageStore(directory);
+        List<TilePage> loaded = store.getPages("someLayer", "EPSG:4326");
+        assertPagesEqual(pages, loaded);
+
+        // the loaded pages are saved to their own records
+        loaded.get(0).markHit();
+        store.savePages("someLayer", "EPSG:4326", loaded);
+        store.destroy();
+        store = new MappedPageStore(directory);
+        assertPagesEqual(loaded, store.getPages("someLayer", "EPSG:4326"));
+    }
+
+    public void testCorruptRecordIsSkipped() throws Exception {
+        store.savePages("someLayer", "EPSG:4326", pages);
+        store.destroy();
+
+        // as if the machine went down half way through writing the second page
+        File file = new File(directory, "someLayer.EPSG_4326.pagestore");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(MappedPageStore.HEADER_SIZE + MappedPageStore.RECORD_SIZE + 16);
+            raf.writeLong(123456L);
+        } finally {
+            raf.close();
+        }
+
+        store = new MappedPageStore(directory);
+        List<TilePage> loaded = store.getPages("someLayer", "EPSG:4326");
+        assertEquals(2, loaded.size());
+        assertEquals(pages.get(0), loaded.get(0));
+        assertEquals(pages.get(2), loaded.get(1));
+    }
+
+    public void testUncommittedRecordsAreIgnored() throws Exception {
+        store.savePages("someLayer", "EPSG:4326", pages);
+        store.destroy();
+
+        // a record written past the committed ones, but the header was never updated
+        File file = new File(directory, "someLayer.EPSG_4326.pagestore");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(MappedPageStore.HEADER_SIZE + 3 * MappedPageStore.RECORD_SIZE);
+            raf.writeInt(99);
+        } finally {
+            raf.close();
+        }
+
+        store = new MappedPageStore(directory);
+        assertPagesEqual(pages, store.getPages("someLayer", "EPSG:4326"));
+    }
+
+    public void testCorruptHeader() throws Exception {
+        store.savePages("someLayer", "EPSG:4326", pages);
+        store.destroy();
+
+        File file = new File(directory, "someLayer.EPSG_4326.pagestore");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the record count
+            raf.seek(24);
+            raf.writeInt(2);
+        } finally {
+            raf.close();
+        }
+
+        store = new MappedPageStore(directory);
+        try {
+            store.getPages("someLayer", "EPSG:4326");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("corrupt"));
+        }
+    }
+
+    private void assertPagesEqual(List<TilePage> expected, List<TilePage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TilePage e = expected.get(i);
+            TilePage a = actual.get(i);
+            assertEquals(e, a);
+            assertEquals(e.getNumHits(), a.getNumHits());
+            assertEquals(e.getNumTilesInPage(), a.getNumTilesInPage());
+            assertEquals(e.getLastAccessTimeMinutes(), a.getLastAccessTimeMinutes());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.geowebcache.diskquota.paging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.WFSObject;
+
+/**
+ * A {@link BlobStore} keeping the tiles in memory, that sends the same events a real one does
+ */
+public class MemoryBlobStore implements BlobStore {
+
+    private final Map<String, TileObject> tiles = new TreeMap<String, TileObject>();
+
+    private final List<BlobStoreListener> listeners = new ArrayList<BlobStoreListener>();
+
+    private int rangeDeletes;
+
+    private static String key(String layerName, String gridSetId, String format,
+            String parameters, long[] xyz) {
+        return layerName + "/" + gridSetId + "/" + format + "/" + parameters + "/" + xyz[2] + "/"
+                + xyz[0] + "/" + xyz[1];
+    }
+
+    private static String key(TileObject obj) {
+        return key(obj.getLayerName(), obj.getGridSetId(), obj.getBlobFormat(), obj
+                .getParameters(), obj.getXYZ());
+    }
+
+    public synchronized int size() {
+        return tiles.size();
+    }
+
+    /**
+     * @return the number of {@link #delete(TileRange)} calls
+     */
+    public synchronized int getRangeDeletes() {
+        return rangeDeletes;
+    }
+
+    public synchronized boolean delete(String layerName) throws StorageException {
+        boolean deleted = false;
+        for (Iterator<TileObject> it = tiles.values().iterator(); it.hasNext();) {
+            if (it.next().getLayerName().equals(layerName)) {
+                it.remove();
+                deleted = true;
+            }
+        }
+        for (BlobStoreListener listener : listeners) {
+            listener.layerDeleted(layerName);
+        }
+        return deleted;
+    }
+
+    public synchronized boolean delete(TileObject obj) throws StorageException {
+        TileObject tile = tiles.remove(key(obj));
+        if (tile == null) {
+            return false;
+        }
+        sendTileDeleted(tile);
+        return true;
+    }
+
+    public synchronized boolean delete(TileRange tr) throws StorageException {
+        rangeDeletes++;
+        for (Iterator<TileObject> it = tiles.values().iterator(); it.hasNext();) {
+            TileObject tile = it.next();
+            if (tile.getLayerName().equals(tr.layerName)
+                    && tile.getGridSetId().equals(tr.gridSetId)
+                    && tile.getBlobFormat().equals(tr.mimeType.getFormat())
+                    && tr.contains(tile.getXYZ())) {
+                it.remove();
+                sendTileDeleted(tile);
+            }
+        }
+        return true;
+    }
+
+    private void sendTileDeleted(TileObject tile) {
+        long[] xyz = tile.getXYZ();
+        for (BlobStoreListener listener : listeners) {
+            listener.tileDeleted(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(),
+                    tile.getParameters(), xyz[0], xyz[1], (int) xyz[2], tile.getBlobSize());
+        }
+    }
+
+    public synchronized byte[] get(TileObject obj) throws StorageException {
+        TileObject tile = tiles.get(key(obj));
+        return tile == null ? null : tile.getBlob();
+    }
+
+    public Resource getResource(TileObject obj) throws StorageException {
+        byte[] blob = get(obj);
+        return blob == null ? null : new ByteArrayResource(blob);
+    }
+
+    public synchronized void put(TileObject obj) throws StorageException {
+        tiles.put(key(obj), obj);
+        long[] xyz = obj.getXYZ();
+        for (BlobStoreListener listener : listeners) {
+            listener.tileStored(obj.getLayerName(), obj.getGridSetId(), obj.getBlobFormat(), obj
+                    .getParameters(), xyz[0], xyz[1], (int) xyz[2], obj.getBlobSize());
+        }
+    }
+
+    public synchronized void clear() throws StorageException {
+        tiles.clear();
+    }
+
+    public void destroy() {
+        // nothing to do
+    }
+
+    public synchronized void addListener(BlobStoreListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized boolean removeListener(BlobStoreListener listener) {
+        return listeners.remove(listener);
+    }
+
+    public boolean delete(WFSObject obj) throws StorageException {
+        throw new UnsupportedOperationException();
+    }
+
+    public long get(WFSObject obj) throws StorageException {
+        throw new UnsupportedOperationException();
+    }
+
+    public void put(WFSObject obj) throws StorageException {
+        throw new UnsupportedOperationException();
+    }
+}
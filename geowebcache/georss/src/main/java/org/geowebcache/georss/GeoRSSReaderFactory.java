@@ -38,7 +38,7 @@ class GeoRSSReaderFactory {
 
         HttpClientBuilder builder = new HttpClientBuilder();
         builder.setHttpCredentials(username, password, url);
-        builder.setBackendTimeout(120 * 1000);
+        builder.setBackendTimeout(120);
 
         HttpClient httpClient = builder.buildClient();
         GetMethod getMethod = new GetMethod(url.toString());
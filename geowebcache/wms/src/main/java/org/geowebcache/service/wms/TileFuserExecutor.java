@@ -0,0 +1,68 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service.wms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Bounded thread pool used by {@link WMSTileFuser} to fetch and decode the tiles of a full WMS
+ * request in parallel.
+ * <p>
+ * When the queue is full the requesting thread fetches the tile itself, so a burst of large
+ * requests slows down to sequential fetching rather than piling up. Queued tiles are still fetched
+ * after shutdown, as the requesting threads wait for them.
+ * </p>
+ */
+public class TileFuserExecutor extends ThreadPoolExecutor implements DisposableBean {
+
+    private static final ThreadFactory tf = new CustomizableThreadFactory("GWC Tile Fuser Thread-");
+
+    /**
+     * @param poolSize
+     *            the number of threads fetching tiles
+     * @param queueDepth
+     *            the maximum number of pending tiles before requesting threads fetch them 
+     *            themselves
+     */
+    public TileFuserExecutor(int poolSize, int queueDepth) {
+        super(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                queueDepth), tf, new CallerRuns());
+    }
+
+    /**
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        // not shutdownNow(), the tiles it drains from the queue would never be fetched
+        shutdown();
+    }
+
+    /**
+     * Runs rejected tasks on the requesting thread. Unlike ThreadPoolExecutor.CallerRunsPolicy
+     * this also applies after shutdown, as the requesting thread waits for every tile.
+     */
+    private static class CallerRuns implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            r.run();
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.geowebcache.service.wms;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -63,6 +64,8 @@ public class WMSService extends Service {
     
     private RuntimeStats stats;
     
+    private Executor tileFuserExecutor;
+    
     public WMSService(StorageBroker sb, TileLayerDispatcher tld, RuntimeStats stats) {
         super(SERVICE_WMS);
         
@@ -200,6 +203,7 @@ public class WMSService extends Service {
                 wmsCap.writeResponse(tile.servletResp);
             } else if(tile.getHint().equalsIgnoreCase("getmap")) {
                 WMSTileFuser wmsFuser = new WMSTileFuser(tld, sb, tile.servletReq);
+                wmsFuser.setExecutor(tileFuserExecutor);
                 try {
                     wmsFuser.writeResponse(tile.servletResp, stats);
                 } catch (IOException e) {
@@ -320,6 +324,16 @@ public class WMSService extends Service {
         }
     }
     
+    /**
+     * Sets the pool that fetches and decodes the tiles recombined for full WMS requests in 
+     * parallel. If none is set each request fetches its tiles one after the other.
+     * 
+     * @param tileFuserExecutor
+     */
+    public void setTileFuserExecutor(Executor tileFuserExecutor) {
+        this.tileFuserExecutor = tileFuserExecutor;
+    }
+    
     public void setProxyNonTiledRequests(String trueFalse) {
         this.proxyNonTiledRequests = Boolean.parseBoolean(trueFalse);
         if(this.proxyNonTiledRequests) {
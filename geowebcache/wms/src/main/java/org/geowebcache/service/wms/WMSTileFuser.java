@@ -20,11 +20,23 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.servlet.ServletOutputStream;
@@ -108,7 +120,11 @@ public class WMSTileFuser {
     
     BufferedImage canvas;
     
-    Graphics2D gfx;
+    // Background the tiles are composited over, null if the canvas is transparent
+    Color bgColor;
+    
+    // Fetches and decodes the tiles, null to do it on the calling thread
+    Executor executor;
         
     protected WMSTileFuser(TileLayerDispatcher tld, StorageBroker sb, HttpServletRequest servReq) 
     throws GeoWebCacheException {
@@ -169,6 +185,14 @@ public class WMSTileFuser {
         this.reqModStrs = new String[2];
     }
     
+    /**
+     * @param executor fetches and decodes the tiles in parallel, null (the default) to fetch them
+     *        one after the other on the calling thread
+     */
+    protected void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
     protected void determineSourceResolution() {
         xResolution = reqBounds.getWidth() / reqWidth;
         yResolution = reqBounds.getHeight() / reqHeight;
@@ -220,8 +244,15 @@ public class WMSTileFuser {
         boundOfs[2] = reqBounds.coords[2] - srcBounds.coords[2];
         boundOfs[3] = reqBounds.coords[3] - srcBounds.coords[3];
         
-        canvasSize[0] = (int) Math.round(reqBounds.getWidth() / this.srcResolution);
-        canvasSize[1] = (int) Math.round(reqBounds.getHeight() / this.srcResolution);
+        if(sameResolution(xResolution, srcResolution) 
+                && sameResolution(yResolution, srcResolution)) {
+            // The tiles are at the requested resolution, don't let rounding cause a rescale
+            canvasSize[0] = reqWidth;
+            canvasSize[1] = reqHeight;
+        } else {
+            canvasSize[0] = (int) Math.round(reqBounds.getWidth() / this.srcResolution);
+            canvasSize[1] = (int) Math.round(reqBounds.getHeight() / this.srcResolution);
+        }
         
         //Calculate the corresponding pixel offsets. We'll stick to sane,
         // i.e. bottom left, coordinates at this point
@@ -238,11 +269,15 @@ public class WMSTileFuser {
         }  
     }
     
+    private static boolean sameResolution(double requested, double source) {
+        return Math.abs(requested - source) <= source * 1e-9;
+    }
+    
     protected void createCanvas() {        
         // TODO take bgcolor and transparency from request into account
         // should move this into a separate function
         
-        Color bgColor = null;
+        bgColor = null;
         boolean transparent = true;
         
         if(layer instanceof WMSLayer) {
@@ -266,20 +301,20 @@ public class WMSTileFuser {
             }       
         }
         
-        // Create the actual canvas and graphics object
+        // Create the actual canvas, the tiles are written straight to its raster
         canvas = new BufferedImage(canvasSize[0], canvasSize[1], canvasType);
-        gfx = (Graphics2D) canvas.getGraphics();
     
         if(bgColor != null) {
-            gfx.setColor(bgColor);
-            gfx.fillRect(0,0,canvasSize[0], canvasSize[1]);
+            int[] pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            Arrays.fill(pixels, bgColor.getRGB());
         }
     }
     
     protected void renderCanvas() 
     throws OutsideCoverageException, GeoWebCacheException, IOException {
-        //Now we loop over all the relevant tiles and write them to the canvas,
+        //Now we loop over all the relevant tiles and work out where they go on the canvas,
         //Starting at the bottom, moving to the right and up
+        List<TileTask> tasks = new ArrayList<TileTask>();
         long starty = srcRectangle[1];
         for (long gridy = starty; gridy <= srcRectangle[3]; gridy++) {
             
@@ -314,21 +349,6 @@ public class WMSTileFuser {
 
                 long[] gridLoc = { gridx, gridy, srcIdx };
                 
-                ConveyorTile tile = new ConveyorTile(sb, layer.getName(), gridSubset.getName(), 
-                        gridLoc, ImageMime.png, reqModStrs[0], reqModStrs[1], null, null);
-                
-                // Check whether this tile is to be rendered at all
-                try {
-                    layer.applyRequestFilters(tile);
-                } catch (RequestFilterException e) {
-                    log.debug(e.getMessage());
-                    continue;
-                }
-                
-                layer.getTile(tile);
-                
-                BufferedImage tileImg = ImageIO.read(new ByteArrayInputStream(tile.getContent()));
-                
                 int tilex = 0;
                 int canvasx = (int) (gridx - startx)*gridSubset.getTileWidth();
                 int tileWidth = gridSubset.getTileWidth();
@@ -354,35 +374,68 @@ public class WMSTileFuser {
                     // Offset is negative, slice the bottom off the tile
                     tileWidth = tileWidth + canvOfs[2];
                 }
-                
+
+                // Rounding can put a few pixels outside the canvas, which drawing used to clip
+                tileWidth = Math.min(tileWidth, canvasSize[0] - canvasx);
+                int clippedHeight = Math.min(tileHeight, canvasSize[1] - canvasy);
+
                 // TODO We should really ensure we can never get here
-                if(tileWidth == 0|| tileHeight == 0) {
-                    log.debug("tileWidth: " + tileWidth + " tileHeight: " + tileHeight);
+                if(tileWidth <= 0|| clippedHeight <= 0) {
+                    log.debug("tileWidth: " + tileWidth + " tileHeight: " + clippedHeight);
                     continue;
                 }
                 
-                // Cut down the tile to the part we want
-                if(tileWidth != gridSubset.getTileWidth() || tileHeight != gridSubset.getTileHeight()) {
-                    log.debug("tileImg.getSubimage("+tilex+","+tiley+","+tileWidth+","+tileHeight+")");
-                    tileImg = tileImg.getSubimage(
-                            tilex,
-                            tiley,
-                            tileWidth,
-                            tileHeight
-                            );
-                }
-                
-                // Render the tile on the big canvas
-                log.debug("drawImage(subtile,"+canvasx+","+canvasy+",null) " + Arrays.toString(gridLoc));                
-                gfx.drawImage(
-                        tileImg, 
-                        canvasx, 
-                        canvasy,
-                        null); // imageObserver
+                tasks.add(new TileTask(gridLoc, tilex, tiley, tileWidth, clippedHeight, 
+                        canvasx, canvasy));
             }
         }
         
-        gfx.dispose();
+        if(executor == null || tasks.size() == 1) {
+            for(TileTask task : tasks) {
+                task.writeTo(canvas.getRaster(), task.call());
+            }
+        } else {
+            renderInParallel(tasks);
+        }
+    }
+    
+    /**
+     * Fetches and decodes the tiles on the executor, copying each one to the canvas as soon as 
+     * it is ready
+     */
+    private void renderInParallel(List<TileTask> tasks) 
+    throws OutsideCoverageException, GeoWebCacheException, IOException {
+        CompletionService<int[]> completionService = new ExecutorCompletionService<int[]>(executor);
+        Map<Future<int[]>, TileTask> pending = new HashMap<Future<int[]>, TileTask>();
+        try {
+            for(TileTask task : tasks) {
+                pending.put(completionService.submit(task), task);
+            }
+            WritableRaster raster = canvas.getRaster();
+            for(int i = 0; i < tasks.size(); i++) {
+                Future<int[]> future = completionService.take();
+                pending.remove(future).writeTo(raster, future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while fetching the tiles of " 
+                    + layer.getName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof GeoWebCacheException) {
+                throw (GeoWebCacheException) cause;
+            } else if(cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new GeoWebCacheException(cause);
+        } finally {
+            // Nobody wants the rest after an error
+            for(Future<int[]> future : pending.keySet()) {
+                future.cancel(true);
+            }
+        }
     }
     
     protected void scaleRaster() {
@@ -433,4 +486,131 @@ public class WMSTileFuser {
         
         stats.log(aos.getCount(), CacheResult.WMS);
     }
-}
\ No newline at end of file
+    
+    /**
+     * Fetches one tile, decodes it and converts the part of it that is on the canvas to pixels of 
+     * the canvas type, ready to be copied
+     */
+    private class TileTask implements Callable<int[]> {
+        final long[] gridLoc;
+        
+        final int tilex, tiley, tileWidth, tileHeight;
+        
+        final int canvasx, canvasy;
+        
+        TileTask(long[] gridLoc, int tilex, int tiley, int tileWidth, int tileHeight, 
+                int canvasx, int canvasy) {
+            this.gridLoc = gridLoc;
+            this.tilex = tilex;
+            this.tiley = tiley;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.canvasx = canvasx;
+            this.canvasy = canvasy;
+        }
+        
+        /**
+         * @return the pixels, or null if the tile is not to be rendered
+         */
+        public int[] call() throws OutsideCoverageException, GeoWebCacheException, IOException {
+            ConveyorTile tile = new ConveyorTile(sb, layer.getName(), gridSubset.getName(), 
+                    gridLoc, ImageMime.png, reqModStrs[0], reqModStrs[1], null, null);
+            
+            // Check whether this tile is to be rendered at all
+            try {
+                layer.applyRequestFilters(tile);
+            } catch (RequestFilterException e) {
+                log.debug(e.getMessage());
+                return null;
+            }
+            
+            layer.getTile(tile);
+            
+            BufferedImage tileImg = ImageIO.read(new ByteArrayInputStream(tile.getContent()));
+            if(tileImg == null) {
+                throw new GeoWebCacheException("Unable to decode tile " 
+                        + Arrays.toString(gridLoc) + " of " + layer.getName());
+            }
+            
+            if(tileImg.getType() == canvas.getType()) {
+                // Same pixel layout, no conversion needed
+                return (int[]) tileImg.getRaster().getDataElements(
+                        tilex, tiley, tileWidth, tileHeight, null);
+            }
+            
+            int[] pixels = readARGB(tileImg, tilex, tiley, tileWidth, tileHeight);
+            if(bgColor != null && tileImg.getColorModel().hasAlpha()) {
+                blend(pixels, bgColor.getRGB());
+            }
+            return pixels;
+        }
+        
+        void writeTo(WritableRaster raster, int[] pixels) {
+            if(pixels == null) {
+                return;
+            }
+            log.debug("setDataElements("+canvasx+","+canvasy+") " + Arrays.toString(gridLoc));
+            raster.setDataElements(canvasx, canvasy, tileWidth, tileHeight, pixels);
+        }
+    }
+    
+    /**
+     * Reads a region of an image as non-premultiplied ARGB pixels, converting the layouts PNG 
+     * tiles decode to directly rather than pixel by pixel through the color model
+     */
+    static int[] readARGB(BufferedImage img, int x, int y, int w, int h) {
+        final int[] pixels = new int[w * h];
+        switch(img.getType()) {
+        case BufferedImage.TYPE_4BYTE_ABGR: {
+            // One element per band, in R, G, B, A order
+            byte[] data = (byte[]) img.getRaster().getDataElements(x, y, w, h, null);
+            for(int i = 0, j = 0; i < pixels.length; i++, j += 4) {
+                pixels[i] = (data[j + 3] & 0xff) << 24 | (data[j] & 0xff) << 16 
+                        | (data[j + 1] & 0xff) << 8 | (data[j + 2] & 0xff);
+            }
+            return pixels;
+        }
+        case BufferedImage.TYPE_3BYTE_BGR: {
+            byte[] data = (byte[]) img.getRaster().getDataElements(x, y, w, h, null);
+            for(int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+                pixels[i] = 0xff000000 | (data[j] & 0xff) << 16 
+                        | (data[j + 1] & 0xff) << 8 | (data[j + 2] & 0xff);
+            }
+            return pixels;
+        }
+        case BufferedImage.TYPE_BYTE_INDEXED: {
+            IndexColorModel colorModel = (IndexColorModel) img.getColorModel();
+            int[] palette = new int[256];
+            colorModel.getRGBs(palette);
+            byte[] data = (byte[]) img.getRaster().getDataElements(x, y, w, h, null);
+            for(int i = 0; i < pixels.length; i++) {
+                pixels[i] = palette[data[i] & 0xff];
+            }
+            return pixels;
+        }
+        default:
+            return img.getRGB(x, y, w, h, pixels, 0, w);
+        }
+    }
+    
+    /**
+     * Composites ARGB pixels over an opaque background, as drawing them on it would
+     */
+    static void blend(int[] pixels, int background) {
+        final int bgR = (background >> 16) & 0xff;
+        final int bgG = (background >> 8) & 0xff;
+        final int bgB = background & 0xff;
+        for(int i = 0; i < pixels.length; i++) {
+            final int pixel = pixels[i];
+            final int alpha = pixel >>> 24;
+            if(alpha == 0xff) {
+                continue;
+            }
+            final int transparency = 0xff - alpha;
+            int r = (((pixel >> 16) & 0xff) * alpha + bgR * transparency + 127) / 0xff;
+            int g = (((pixel >> 8) & 0xff) * alpha + bgG * transparency + 127) / 0xff;
+            int b = ((pixel & 0xff) * alpha + bgB * transparency + 127) / 0xff;
+            pixels[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+}
@@ -17,13 +17,23 @@
  */
 package org.geowebcache.service.wms;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 
 import junit.framework.TestCase;
 
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
@@ -94,6 +104,157 @@ public class WMSTileFuserTest extends TestCase {
         tileFuser.determineCanvasLayout();
     }
 
+    public void testRenderCanvas() throws Exception {
+        ColoredTileLayer layer = createColoredLayer(true);
+        GridSubset gridSubset = layer.getGridSubsets().values().iterator().next();
+        
+        // Three by two tiles of zoom level 2, at exactly their resolution
+        BoundingBox bounds = new BoundingBox(-135.0, -45.0, 0.0, 45.0);
+        WMSTileFuser tileFuser = new WMSTileFuser(layer, gridSubset, bounds, 768, 512);
+        render(tileFuser);
+        
+        assertEquals(2, tileFuser.srcIdx);
+        assertEquals(6, layer.requests.get());
+        assertEquals(BufferedImage.TYPE_INT_ARGB, tileFuser.canvas.getType());
+        assertEquals(768, tileFuser.canvas.getWidth());
+        assertEquals(512, tileFuser.canvas.getHeight());
+        // the top left tile, and the one at the bottom right
+        assertEquals(ColoredTileLayer.color(1, 2), tileFuser.canvas.getRGB(128, 64));
+        assertEquals(ColoredTileLayer.color(3, 1), tileFuser.canvas.getRGB(640, 320));
+        // the lower half of each tile is half transparent
+        assertEquals(ColoredTileLayer.color(1, 2) & 0x80ffffff, tileFuser.canvas.getRGB(128, 192));
+    }
+    
+    public void testParallelRendering() throws Exception {
+        ColoredTileLayer layer = createColoredLayer(false);
+        GridSubset gridSubset = layer.getGridSubsets().values().iterator().next();
+        
+        // Cuts through tiles on all sides, and needs scaling
+        BoundingBox bounds = new BoundingBox(-130.0, -40.0, 10.0, 40.0);
+        WMSTileFuser sequential = new WMSTileFuser(layer, gridSubset, bounds, 796, 455);
+        render(sequential);
+        
+        TileFuserExecutor executor = new TileFuserExecutor(4, 2);
+        try {
+            WMSTileFuser parallel = new WMSTileFuser(layer, gridSubset, bounds, 796, 455);
+            parallel.setExecutor(executor);
+            render(parallel);
+            
+            assertEquals(BufferedImage.TYPE_INT_RGB, parallel.canvas.getType());
+            assertEquals(796, parallel.canvas.getWidth());
+            assertEquals(455, parallel.canvas.getHeight());
+            for (int y = 0; y < 455; y++) {
+                for (int x = 0; x < 796; x++) {
+                    assertEquals(sequential.canvas.getRGB(x, y), parallel.canvas.getRGB(x, y));
+                }
+            }
+        } finally {
+            executor.destroy();
+        }
+    }
+    
+    public void testBlend() throws Exception {
+        // What drawing half transparent pixels on a white canvas gives
+        BufferedImage source = new BufferedImage(256, 1, BufferedImage.TYPE_INT_ARGB);
+        for (int alpha = 0; alpha < 256; alpha++) {
+            source.setRGB(alpha, 0, (alpha << 24) | 0x336699);
+        }
+        BufferedImage expected = new BufferedImage(256, 1, BufferedImage.TYPE_INT_RGB);
+        Graphics2D gfx = expected.createGraphics();
+        gfx.setColor(Color.WHITE);
+        gfx.fillRect(0, 0, 256, 1);
+        gfx.drawImage(source, 0, 0, null);
+        gfx.dispose();
+        
+        int[] pixels = source.getRGB(0, 0, 256, 1, null, 0, 256);
+        WMSTileFuser.blend(pixels, Color.WHITE.getRGB());
+        for (int i = 0; i < 256; i++) {
+            int actual = pixels[i];
+            int wanted = expected.getRGB(i, 0);
+            assertEquals(0xff, actual >>> 24);
+            for (int shift = 0; shift < 24; shift += 8) {
+                int difference = ((actual >> shift) & 0xff) - ((wanted >> shift) & 0xff);
+                assertTrue("pixel " + i, Math.abs(difference) <= 1);
+            }
+        }
+    }
+    
+    public void testReadARGB() throws Exception {
+        int[] types = { BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR, 
+                BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_USHORT_565_RGB };
+        for (int type : types) {
+            BufferedImage img = new BufferedImage(32, 16, type);
+            for (int y = 0; y < 16; y++) {
+                for (int x = 0; x < 32; x++) {
+                    img.setRGB(x, y, (x * 8) << 24 | (x * 8) << 16 | (y * 16) << 8 | 0x40);
+                }
+            }
+            int[] expected = img.getRGB(3, 2, 20, 10, null, 0, 20);
+            int[] actual = WMSTileFuser.readARGB(img, 3, 2, 20, 10);
+            assertTrue("type " + type, Arrays.equals(expected, actual));
+        }
+    }
+    
+    private void render(WMSTileFuser tileFuser) throws Exception {
+        tileFuser.determineSourceResolution();
+        tileFuser.determineCanvasLayout();
+        tileFuser.createCanvas();
+        tileFuser.renderCanvas();
+        tileFuser.scaleRaster();
+    }
+    
+    private ColoredTileLayer createColoredLayer(boolean transparent) {
+        String[] urls = {"http://localhost:38080/wms"};
+        List<String> formatList = new LinkedList<String>();
+        formatList.add("image/png");
+        
+        Hashtable<String,GridSubset> grids = new Hashtable<String,GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        grids.put(grid.getName(), grid);
+        int[] metaWidthHeight = {1,1};
+        
+        ColoredTileLayer layer = new ColoredTileLayer(urls, formatList, grids, metaWidthHeight);
+        layer.setTransparent(transparent);
+        layer.initialize(gridSetBroker);
+        return layer;
+    }
+    
+    /**
+     * Serves tiles of a different color each, the lower half of them half transparent, without 
+     * a backend
+     */
+    private static class ColoredTileLayer extends WMSLayer {
+        final AtomicInteger requests = new AtomicInteger();
+        
+        ColoredTileLayer(String[] urls, List<String> formatList, 
+                Hashtable<String,GridSubset> grids, int[] metaWidthHeight) {
+            super("test:colored", urls, "aStyle", "test:colored", formatList, grids, null, 
+                    metaWidthHeight, null, false);
+        }
+        
+        static int color(long x, long y) {
+            return 0xff000000 | (int) (x * 30) << 16 | (int) (y * 60) << 8 | 0x80;
+        }
+        
+        @Override
+        public ConveyorTile getTile(ConveyorTile tile) 
+        throws GeoWebCacheException, IOException {
+            requests.incrementAndGet();
+            long[] idx = tile.getTileIndex();
+            BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+            int color = color(idx[0], idx[1]);
+            for (int y = 0; y < 256; y++) {
+                for (int x = 0; x < 256; x++) {
+                    img.setRGB(x, y, y < 128 ? color : color & 0x80ffffff);
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(img, "png", out);
+            tile.setContent(out.toByteArray());
+            return tile;
+        }
+    }
+    
     private WMSLayer createWMSLayer() {
         String[] urls = {"http://localhost:38080/wms"};
         List<String> formatList = new LinkedList<String>();